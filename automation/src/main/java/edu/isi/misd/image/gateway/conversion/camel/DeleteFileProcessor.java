@@ -6,6 +6,8 @@ import org.apache.camel.Exchange;
 import org.apache.camel.Processor;
 import org.apache.log4j.Logger;
 
+import edu.isi.misd.image.gateway.conversion.loci.LociReaderCache;
+
 /**
  * Deletes a specified file (used for multi-file image deletion)
  * 
@@ -18,6 +20,10 @@ public class DeleteFileProcessor implements Processor {
     @Override
     public void process(Exchange exchange) throws Exception {
         File f = exchange.getIn().getBody(File.class);
+        // close the image shared by the route, then any readers kept open on
+        // the file
+        OpenImageSourceProcessor.releaseImageSource(exchange);
+        LociReaderCache.evict(f.getAbsolutePath());
         if (!f.delete()) {
             LOG.warn("Could not delete " + f.getAbsolutePath());
         } else {
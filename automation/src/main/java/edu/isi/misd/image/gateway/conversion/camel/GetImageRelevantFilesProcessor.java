@@ -9,7 +9,6 @@ import org.apache.camel.Processor;
 import org.apache.log4j.Logger;
 
 import edu.isi.misd.image.gateway.conversion.ImageSource;
-import edu.isi.misd.image.gateway.conversion.ImageSourceFactory;
 
 /**
  * Retreives the list of relevant files necessary to process an image. Writes
@@ -25,9 +24,8 @@ public class GetImageRelevantFilesProcessor implements Processor {
 
     @Override
     public void process(Exchange exchange) throws Exception {
-        final File f = exchange.getIn().getBody(File.class);
-        final ImageSource source = ImageSourceFactory.getImageSource(f
-                .getAbsolutePath());
+        final ImageSource source = OpenImageSourceProcessor
+                .getImageSource(exchange);
         final List<String> files = source.getRelevantFiles();
         final List<File> fileList = new ArrayList<File>(files.size());
         for (String fn : files) {
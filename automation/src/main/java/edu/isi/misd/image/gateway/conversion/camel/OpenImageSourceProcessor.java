@@ -0,0 +1,113 @@
+package edu.isi.misd.image.gateway.conversion.camel;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.Processor;
+import org.apache.camel.impl.SynchronizationAdapter;
+import org.apache.log4j.Logger;
+
+import edu.isi.misd.image.gateway.conversion.ImageSource;
+import edu.isi.misd.image.gateway.conversion.ImageSourceFactory;
+import edu.isi.misd.image.gateway.conversion.SharedImageSource;
+
+/**
+ * Opens the image in the inbound message body once, and stores it in an
+ * exchange property so that the processors of every branch of the route share
+ * it. The image is closed when the last processor has closed its handle and
+ * the opener's reference has been released, either by releaseImageSource()
+ * before the image's files are deleted or when the exchange completes.
+ * 
+ * @author David Smith
+ * 
+ */
+public class OpenImageSourceProcessor implements Processor {
+
+    private static final Logger LOG = Logger
+            .getLogger(OpenImageSourceProcessor.class);
+
+    /**
+     * The exchange property holding the shared image source.
+     */
+    public static final String IMAGE_SOURCE_PROPERTY = "sharedImageSource";
+
+    @Override
+    public void process(Exchange exchange) throws Exception {
+        final File f = exchange.getIn().getBody(File.class);
+        final ImageSource source = ImageSourceFactory.getImageSource(f
+                .getAbsolutePath());
+        if (source == null) {
+            // leave each processor to open and report on the image
+            return;
+        }
+        final SharedImageSource shared = new SharedImageSource(source);
+        exchange.setProperty(IMAGE_SOURCE_PROPERTY, shared);
+        exchange.addOnCompletion(new SynchronizationAdapter() {
+            @Override
+            public void onDone(Exchange exchange) {
+                release(shared);
+            }
+        });
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Opened shared image source for " + f.getAbsolutePath());
+        }
+    }
+
+    /**
+     * Releases the opener's reference to the shared image source of the
+     * exchange, so that the image is closed once the processors still using
+     * it close their handles. Called before the image's files are deleted;
+     * releasing more than once has no effect.
+     * 
+     * @param exchange
+     *            the exchange
+     */
+    public static void releaseImageSource(Exchange exchange) {
+        final SharedImageSource shared = exchange.getProperty(
+                IMAGE_SOURCE_PROPERTY, SharedImageSource.class);
+        if (shared != null) {
+            release(shared);
+        }
+    }
+
+    private static void release(final SharedImageSource shared) {
+        try {
+            shared.release();
+        } catch (IOException e) {
+            LOG.warn("Could not close " + shared.getFilename(), e);
+        }
+    }
+
+    /**
+     * Returns a handle on the shared image source of the exchange if it is
+     * the image in the inbound message body, or otherwise opens that image.
+     * Either way, the caller closes the image source when done.
+     * 
+     * @param exchange
+     *            the exchange
+     * @return the image source of the inbound message body
+     * @throws Exception
+     *             if the image could not be opened
+     */
+    public static ImageSource getImageSource(Exchange exchange)
+            throws Exception {
+        final File f = exchange.getIn().getBody(File.class);
+        final SharedImageSource shared = exchange.getProperty(
+                IMAGE_SOURCE_PROPERTY, SharedImageSource.class);
+        if (shared != null) {
+            if (!new File(shared.getFilename()).getAbsoluteFile().equals(
+                    f.getAbsoluteFile())) {
+                LOG.warn("Shared image source is " + shared.getFilename()
+                        + ", opening " + f.getAbsolutePath());
+            } else {
+                try {
+                    return shared.retain();
+                } catch (IOException e) {
+                    LOG.warn("Shared image source was closed, reopening the image.");
+                }
+            }
+        }
+        return ImageSourceFactory.getImageSource(f.getAbsolutePath());
+    }
+}
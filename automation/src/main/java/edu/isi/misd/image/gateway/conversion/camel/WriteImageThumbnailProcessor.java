@@ -8,11 +8,12 @@ import org.apache.camel.Processor;
 import org.apache.log4j.Logger;
 
 import edu.isi.misd.image.gateway.conversion.ImageSource;
-import edu.isi.misd.image.gateway.conversion.ImageSourceFactory;
 
 /**
  * Reads the pixel data of an image and writes a thumbnail buffered image in the
- * outbound message body
+ * outbound message body. In pyramid mode, the smallest zoom level tile left by
+ * WriteZoomifyTilesProcessor earlier in the route is used instead, so the
+ * image isn't read again.
  * 
  * @author David Smith
  * 
@@ -22,19 +23,54 @@ public class WriteImageThumbnailProcessor implements Processor {
     private static final Logger LOG = Logger
             .getLogger(WriteImageThumbnailProcessor.class);
 
+    private boolean fromPyramid = false;
+
+    /**
+     * Sets whether the thumbnail is taken from the tile pyramid built earlier
+     * in the route.
+     * 
+     * @param pyramid
+     *            true to use the smallest zoom level tile when there is one
+     */
+    public void setFromPyramid(boolean pyramid) {
+        fromPyramid = pyramid;
+    }
+
     @Override
     public void process(Exchange exchange) throws Exception {
-        final File f = exchange.getIn().getBody(File.class);
-        final ImageSource source = ImageSourceFactory.getImageSource(f
-                .getAbsolutePath());
-        final BufferedImage thumbImage = source.getThumbnailImage();
-        source.close();
+        final Object filename = exchange.getIn().getHeader(Exchange.FILE_NAME);
+        BufferedImage thumbImage = null;
+        if (fromPyramid) {
+            thumbImage = exchange.getProperty(
+                    WriteZoomifyTilesProcessor.PYRAMID_THUMBNAIL_PROPERTY,
+                    BufferedImage.class);
+            if (thumbImage == null) {
+                LOG.warn("No tile pyramid thumbnail for " + filename
+                        + ", reading it from the image.");
+            }
+        }
+        if (thumbImage == null) {
+            // WriteZoomifyTilesProcessor replaces the body with the tile
+            // directory, so open the image file it kept
+            final File image = exchange.getProperty(
+                    WriteZoomifyTilesProcessor.IMAGE_FILE_PROPERTY, File.class);
+            if (image != null) {
+                exchange.getIn().setBody(image);
+            }
+            final ImageSource source = OpenImageSourceProcessor
+                    .getImageSource(exchange);
+            try {
+                thumbImage = source.getThumbnailImage();
+            } finally {
+                source.close();
+            }
+        }
         exchange.getOut().setBody(thumbImage);
         exchange.getOut().setHeaders(exchange.getIn().getHeaders());
         if (LOG.isDebugEnabled()) {
             LOG.debug("Created thumbnail of size " + thumbImage.getWidth()
                     + "x" + thumbImage.getHeight() + " for image "
-                    + f.getAbsolutePath());
+                    + filename);
         }
     }
 
@@ -10,7 +10,6 @@ import edu.isi.misd.image.gateway.conversion.ConvertImageAnnotationToZoomify;
 import edu.isi.misd.image.gateway.conversion.ImageInformation;
 import edu.isi.misd.image.gateway.conversion.ImageInformationFactory;
 import edu.isi.misd.image.gateway.conversion.ImageSource;
-import edu.isi.misd.image.gateway.conversion.ImageSourceFactory;
 
 /**
  * Retrieves proprietary annotation data and converts it to Zoomify format in
@@ -27,8 +26,8 @@ public class WriteZoomifyAnnotationProcessor implements Processor {
     @Override
     public void process(Exchange exchange) throws Exception {
         final File f = exchange.getIn().getBody(File.class);
-        final ImageSource source = ImageSourceFactory.getImageSource(f
-                .getAbsolutePath());
+        final ImageSource source = OpenImageSourceProcessor
+                .getImageSource(exchange);
         final ImageInformation info = ImageInformationFactory
                 .getImageInformation(f.getAbsolutePath());
         final ConvertImageAnnotationToZoomify convert = new ConvertImageAnnotationToZoomify(
@@ -8,7 +8,6 @@ import org.apache.log4j.Logger;
 
 import edu.isi.misd.image.gateway.conversion.ConvertImageToZoomifyTiles;
 import edu.isi.misd.image.gateway.conversion.ImageSource;
-import edu.isi.misd.image.gateway.conversion.ImageSourceFactory;
 
 /**
  * Tiles an image to a given base directory.
@@ -23,16 +22,76 @@ public class WriteZoomifyTilesProcessor implements Processor {
 
     private final String TILE_DIRECTORY_HEADER = "tileDirectory";
 
+    /**
+     * The exchange property holding the smallest zoom level tile, which
+     * WriteImageThumbnailProcessor can use as the thumbnail.
+     */
+    public static final String PYRAMID_THUMBNAIL_PROPERTY = "pyramidThumbnail";
+
+    /**
+     * The exchange property holding the image file, since the outbound
+     * message body is replaced with the tile directory.
+     */
+    public static final String IMAGE_FILE_PROPERTY = "imageFile";
+
+    private int numberOfThreads = 1;
+    private boolean compressedTileCopy = false;
+    private boolean embeddedPyramid = false;
+
+    /**
+     * Sets the number of threads used to export the full resolution tiles of
+     * each image.
+     * 
+     * @param threads
+     *            the number of threads
+     */
+    public void setNumberOfThreads(int threads) {
+        numberOfThreads = threads;
+    }
+
+    /**
+     * Sets whether stored JPEG tiles of the right size are copied to the tile
+     * files as they are.
+     * 
+     * @param copy
+     *            true to copy the stored tiles when possible
+     */
+    public void setCompressedTileCopy(boolean copy) {
+        compressedTileCopy = copy;
+    }
+
+    /**
+     * Sets whether the lower zoom levels are built from the reduced resolution
+     * series embedded in the image.
+     * 
+     * @param embedded
+     *            true to build from the embedded series
+     */
+    public void setEmbeddedPyramid(boolean embedded) {
+        embeddedPyramid = embedded;
+    }
+
     @Override
     public void process(Exchange exchange) throws Exception {
         final File f = exchange.getIn().getBody(File.class);
-        final ImageSource source = ImageSourceFactory.getImageSource(f
-                .getAbsolutePath());
-        final ConvertImageToZoomifyTiles convert = new ConvertImageToZoomifyTiles(
-                source, exchange.getIn().getHeader(TILE_DIRECTORY_HEADER)
-                .toString());
-        convert.run();
-        source.close();
+        exchange.setProperty(IMAGE_FILE_PROPERTY, f);
+        final ImageSource source = OpenImageSourceProcessor
+                .getImageSource(exchange);
+        try {
+            final ConvertImageToZoomifyTiles convert = new ConvertImageToZoomifyTiles(
+                    source, exchange.getIn().getHeader(TILE_DIRECTORY_HEADER)
+                            .toString());
+            convert.setNumberOfThreads(numberOfThreads);
+            convert.setCompressedTileCopy(compressedTileCopy);
+            convert.setEmbeddedPyramid(embeddedPyramid);
+            convert.run();
+            if (convert.getThumbnailImage() != null) {
+                exchange.setProperty(PYRAMID_THUMBNAIL_PROPERTY,
+                        convert.getThumbnailImage());
+            }
+        } finally {
+            source.close();
+        }
         exchange.getOut()
         .setBody(
                 new File(exchange.getIn().getHeader(TILE_DIRECTORY_HEADER)
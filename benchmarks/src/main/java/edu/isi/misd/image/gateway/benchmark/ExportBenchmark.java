@@ -0,0 +1,107 @@
+/*
+ * Copyright 2011 University of Southern California
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.isi.misd.image.gateway.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.isi.misd.image.gateway.conversion.ImageSource;
+import edu.isi.misd.image.gateway.conversion.tile.ZoomLevelConfiguration;
+import edu.isi.misd.image.gateway.conversion.tile.ZoomLevelConfigurationImplementation;
+import edu.isi.misd.image.gateway.conversion.zoomify.ZoomifyTileDirectoryExport;
+
+/**
+ * Benchmark of a whole Zoomify tile export of a synthetic image held in
+ * memory, so that it measures the export and not a file format. Each export
+ * writes over the tiles of the one before.
+ *
+ * @author David Smith
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 1, time = 30)
+@Measurement(iterations = 3, time = 30)
+public class ExportBenchmark {
+
+    /**
+     * The width and height of the image
+     */
+    @Param({ "8192" })
+    public int imageSize;
+
+    /**
+     * The number of threads that export the full resolution tiles
+     */
+    @Param({ "1", "4" })
+    public int threads;
+
+    /**
+     * The number of threads that create the lower zoom level tiles
+     */
+    @Param({ "0" })
+    public int pyramidThreads;
+
+    private ImageSource source;
+    private File directory;
+    private long tiles;
+    private long imageBytes;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        source = new SyntheticImageSource(SyntheticImages.createImage(
+                imageSize, imageSize, 1));
+        directory = SyntheticImages.createTemporaryDirectory("export");
+        final ZoomLevelConfiguration config = new ZoomLevelConfigurationImplementation(
+                imageSize, imageSize, 256, 2.0);
+        tiles = config.getTotalNumberOfTiles();
+        imageBytes = (long) imageSize * imageSize * 3;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(directory);
+    }
+
+    @Benchmark
+    public void export(final Throughput throughput) throws Exception {
+        final ZoomifyTileDirectoryExport export = new ZoomifyTileDirectoryExport(
+                source);
+        export.setNumberOfThreads(threads);
+        export.setPyramidThreads(pyramidThreads);
+        export.export(directory.getAbsolutePath());
+        throughput.add(tiles, imageBytes);
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2011 University of Southern California
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.isi.misd.image.gateway.benchmark;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.isi.misd.image.gateway.conversion.loci.LociImageSource;
+
+/**
+ * Benchmarks of reading regions of a slide through LOCI, from a tiled
+ * pyramidal TIFF file of a synthetic image that is created for the trial.
+ * The regions are read in row order across the whole image, so that the
+ * reads aren't all served from the same decoded tiles.
+ *
+ * @author David Smith
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class LociImageSourceBenchmark {
+
+    /**
+     * The width and height of the image
+     */
+    @Param({ "8192" })
+    public int imageSize;
+
+    /**
+     * The width and height of the regions that are read
+     */
+    @Param({ "256", "1024" })
+    public int regionSize;
+
+    private File tiffFile;
+    private LociImageSource source;
+    private long regionBytes;
+    private long regionsPerRow;
+    private long regions;
+    private long nextRegion = 0;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        tiffFile = File.createTempFile("synthetic", ".tif");
+        SyntheticImages.createTiff(tiffFile, imageSize, imageSize, 1);
+        source = new LociImageSource(tiffFile.getAbsolutePath());
+        regionBytes = (long) regionSize * regionSize * 3;
+        regionsPerRow = imageSize / regionSize;
+        regions = regionsPerRow * regionsPerRow;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        source.close();
+        tiffFile.delete();
+    }
+
+    @Benchmark
+    public BufferedImage readImage(final Throughput throughput)
+            throws IOException {
+        final long region = nextRegion++ % regions;
+        throughput.add(1, regionBytes);
+        return source.readImage(region % regionsPerRow * regionSize, region
+                / regionsPerRow * regionSize, regionSize, regionSize);
+    }
+
+    @Benchmark
+    public byte[] readBytes(final Throughput throughput) throws IOException {
+        final long region = nextRegion++ % regions;
+        throughput.add(1, regionBytes);
+        return source.readBytes(region % regionsPerRow * regionSize, region
+                / regionsPerRow * regionSize, regionSize, regionSize);
+    }
+}
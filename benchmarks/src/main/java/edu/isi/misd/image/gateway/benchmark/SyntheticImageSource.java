@@ -0,0 +1,162 @@
+/*
+ * Copyright 2011 University of Southern California
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.isi.misd.image.gateway.benchmark;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import edu.isi.misd.image.gateway.conversion.ConcurrentImageSource;
+import edu.isi.misd.image.gateway.conversion.tile.TileUtils;
+
+/**
+ * Image source that reads from an image in memory, so that benchmarks of the
+ * tile export measure the export rather than a file format.
+ *
+ * @author David Smith
+ *
+ */
+public class SyntheticImageSource implements ConcurrentImageSource {
+
+    private final BufferedImage image;
+
+    /**
+     * Constructor.
+     *
+     * @param sourceImage
+     *            the image to read from, of type TYPE_3BYTE_BGR
+     */
+    public SyntheticImageSource(final BufferedImage sourceImage) {
+        if (sourceImage == null
+                || sourceImage.getType() != BufferedImage.TYPE_3BYTE_BGR) {
+            throw new IllegalArgumentException(
+                    "Image must be of type TYPE_3BYTE_BGR.");
+        }
+        image = sourceImage;
+    }
+
+    @Override
+    public byte[] readBytes(final long x, final long y, final long width,
+            final long height) throws IOException {
+        final byte[] data = ((DataBufferByte) image.getRaster()
+                .getDataBuffer()).getData();
+        final int rowBytes = (int) width * 3;
+        final byte[] bytes = new byte[rowBytes * (int) height];
+        for (int r = 0; r < height; r++) {
+            System.arraycopy(data, (int) (((y + r) * image.getWidth() + x) * 3),
+                    bytes, r * rowBytes, rowBytes);
+        }
+        return bytes;
+    }
+
+    @Override
+    public BufferedImage readImage(final long x, final long y,
+            final long width, final long height) throws IOException {
+        return TileUtils.cropImage(image, (int) x, (int) y, (int) width,
+                (int) height);
+    }
+
+    @Override
+    public byte[] readCompressedTile(final long x, final long y,
+            final long width, final long height) throws IOException {
+        return null;
+    }
+
+    @Override
+    public long getWidth() {
+        return image.getWidth();
+    }
+
+    @Override
+    public long getHeight() {
+        return image.getHeight();
+    }
+
+    @Override
+    public int getOptimalTileWidth() {
+        return image.getWidth();
+    }
+
+    @Override
+    public int getOptimalTileHeight() {
+        return 1;
+    }
+
+    @Override
+    public String getFilename() {
+        return "synthetic";
+    }
+
+    @Override
+    public int getSeriesNumber() {
+        return 0;
+    }
+
+    @Override
+    public int getImageNumber() {
+        return 0;
+    }
+
+    @Override
+    public void close() throws IOException {
+    }
+
+    @Override
+    public Map<String, Object> getGlobalMetadata() {
+        return Collections.emptyMap();
+    }
+
+    @Override
+    public Map<String, Object> getSeriesMetadata() {
+        return Collections.emptyMap();
+    }
+
+    @Override
+    public Object getMetadataValue(final String key) {
+        return null;
+    }
+
+    @Override
+    public Object getSeriesMetadataValue(final String key) {
+        return null;
+    }
+
+    @Override
+    public void setSeriesNumber(final int seriesNumber) {
+        if (seriesNumber != 0) {
+            throw new IllegalArgumentException("There is only one series.");
+        }
+    }
+
+    @Override
+    public int getSeriesCount() {
+        return 1;
+    }
+
+    @Override
+    public List<String> getRelevantFiles() {
+        return Collections.emptyList();
+    }
+
+    @Override
+    public BufferedImage getThumbnailImage() {
+        return null;
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright 2011 University of Southern California
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.isi.misd.image.gateway.benchmark;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import edu.isi.misd.image.gateway.conversion.loci.SyntheticSlideGenerator;
+
+/**
+ * Creates the synthetic images that the benchmarks run on. The images are
+ * made from a seed, so that every run measures the same pixels: smooth
+ * stained-looking regions with noise, which compress like slide tiles rather
+ * than like flat color or random bytes.
+ *
+ * @author David Smith
+ *
+ */
+public final class SyntheticImages {
+
+    private static final int CELL_SIZE = 64;
+
+    private static final int TIFF_TILE_SIZE = 256;
+
+    private SyntheticImages() {
+    }
+
+    /**
+     * Creates an image of the given size.
+     *
+     * @param width
+     *            the width of the image
+     * @param height
+     *            the height of the image
+     * @param seed
+     *            the seed that the pixels are made from
+     * @return an image of type TYPE_3BYTE_BGR
+     */
+    public static BufferedImage createImage(final int width, final int height,
+            final long seed) {
+        if (width < 1 || height < 1) {
+            throw new IllegalArgumentException(
+                    "Width and height must be at least 1.");
+        }
+        final Random random = new Random(seed);
+        final int cellColumns = width / CELL_SIZE + 2;
+        final int cellRows = height / CELL_SIZE + 2;
+        final int[] stain = new int[cellColumns * cellRows];
+        for (int i = 0; i < stain.length; i++) {
+            stain[i] = random.nextInt(160);
+        }
+
+        final BufferedImage image = new BufferedImage(width, height,
+                BufferedImage.TYPE_3BYTE_BGR);
+        final byte[] data = ((DataBufferByte) image.getRaster()
+                .getDataBuffer()).getData();
+        int i = 0;
+        for (int y = 0; y < height; y++) {
+            final int cellY = y / CELL_SIZE;
+            final int fy = y % CELL_SIZE;
+            for (int x = 0; x < width; x++) {
+                final int cellX = x / CELL_SIZE;
+                final int fx = x % CELL_SIZE;
+                // blend the stain of the four nearest cells
+                final int top = stain[cellY * cellColumns + cellX]
+                        * (CELL_SIZE - fx) + stain[cellY * cellColumns
+                        + cellX + 1] * fx;
+                final int bottom = stain[(cellY + 1) * cellColumns + cellX]
+                        * (CELL_SIZE - fx) + stain[(cellY + 1) * cellColumns
+                        + cellX + 1] * fx;
+                final int density = (top * (CELL_SIZE - fy) + bottom * fy)
+                        / (CELL_SIZE * CELL_SIZE) + random.nextInt(16);
+                data[i++] = (byte) (255 - density / 4);
+                data[i++] = (byte) (255 - density);
+                data[i++] = (byte) (255 - density / 2);
+            }
+        }
+        return image;
+    }
+
+    /**
+     * Creates a tiled TIFF file of a synthetic slide through LOCI, with the
+     * reduced resolution levels of a pyramid.
+     *
+     * @param tiffFile
+     *            the file to write, which is replaced if it exists
+     * @param width
+     *            the width of the image
+     * @param height
+     *            the height of the image
+     * @param seed
+     *            the seed that the pixels are made from
+     * @throws Exception
+     *             if the file could not be written
+     */
+    public static void createTiff(final File tiffFile, final int width,
+            final int height, final long seed) throws Exception {
+        final SyntheticSlideGenerator generator = new SyntheticSlideGenerator(
+                tiffFile.getAbsolutePath(), width, height);
+        generator.setTileSize(TIFF_TILE_SIZE);
+        generator.setPyramidLevels(2);
+        generator.setSeed(seed);
+        generator.run();
+    }
+
+    /**
+     * Creates an empty temporary directory.
+     *
+     * @param prefix
+     *            the prefix of the directory name
+     * @return the directory
+     * @throws IOException
+     *             if the directory could not be created
+     */
+    public static File createTemporaryDirectory(final String prefix)
+            throws IOException {
+        final File directory = File.createTempFile(prefix, "");
+        if (!directory.delete() || !directory.mkdir()) {
+            throw new IOException("Could not create directory " + directory);
+        }
+        return directory;
+    }
+}
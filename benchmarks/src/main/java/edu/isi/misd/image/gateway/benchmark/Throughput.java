@@ -0,0 +1,66 @@
+/*
+ * Copyright 2011 University of Southern California
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.isi.misd.image.gateway.benchmark;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Counts the tiles and bytes that a benchmark processes, so that JMH reports
+ * them as tiles/s and MB/s next to the operation rate.
+ *
+ * @author David Smith
+ *
+ */
+@State(Scope.Thread)
+@AuxCounters(AuxCounters.Type.EVENTS)
+public class Throughput {
+
+    private static final double MEGABYTE = 1024.0 * 1024.0;
+
+    /**
+     * The tiles processed in this iteration
+     */
+    public long tiles;
+
+    /**
+     * The megabytes of pixels processed in this iteration
+     */
+    public double megabytes;
+
+    @Setup(Level.Iteration)
+    public void reset() {
+        tiles = 0;
+        megabytes = 0;
+    }
+
+    /**
+     * Counts processed tiles.
+     *
+     * @param tileCount
+     *            the number of tiles
+     * @param bytes
+     *            the number of bytes of pixels in them
+     */
+    public void add(final long tileCount, final long bytes) {
+        tiles += tileCount;
+        megabytes += bytes / MEGABYTE;
+    }
+}
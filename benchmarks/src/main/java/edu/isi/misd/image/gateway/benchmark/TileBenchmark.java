@@ -0,0 +1,147 @@
+/*
+ * Copyright 2011 University of Southern California
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.isi.misd.image.gateway.benchmark;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.isi.misd.image.gateway.conversion.CompositeImage;
+import edu.isi.misd.image.gateway.conversion.tile.JpegTileWriterImplementation;
+import edu.isi.misd.image.gateway.conversion.tile.TileUtils;
+import edu.isi.misd.image.gateway.conversion.tile.ZoomLevelConfiguration;
+import edu.isi.misd.image.gateway.conversion.tile.ZoomLevelConfigurationImplementation;
+import edu.isi.misd.image.gateway.conversion.tile.ZoomLevelNotFoundException;
+import edu.isi.misd.image.gateway.conversion.zoomify.ZoomifyTileNamingConvention;
+
+/**
+ * Benchmarks of the work done for each tile: writing it as a JPEG file,
+ * creating a lower zoom level tile from four others, combining tiles, and
+ * naming tile files.
+ *
+ * @author David Smith
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class TileBenchmark {
+
+    // tiles are written over the same files, so that the disk doesn't fill
+    private static final int WRITTEN_TILES = 1024;
+
+    private static final long IMAGE_SIZE = 100000;
+
+    /**
+     * The width and height of the tiles
+     */
+    @Param({ "256", "512" })
+    public int tileSize;
+
+    private BufferedImage tile;
+    private BufferedImage[] children;
+    private long tileBytes;
+    private ZoomLevelConfiguration config;
+    private final ZoomifyTileNamingConvention convention = new ZoomifyTileNamingConvention();
+    private File directory;
+    private JpegTileWriterImplementation tileWriter;
+    private long nextTile = 0;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        tile = SyntheticImages.createImage(tileSize, tileSize, 1);
+        children = new BufferedImage[4];
+        for (int i = 0; i < children.length; i++) {
+            children[i] = SyntheticImages.createImage(tileSize, tileSize,
+                    i + 2);
+        }
+        tileBytes = (long) tileSize * tileSize * 3;
+        config = new ZoomLevelConfigurationImplementation(IMAGE_SIZE,
+                IMAGE_SIZE, tileSize, 2.0);
+        directory = SyntheticImages.createTemporaryDirectory("tiles");
+        tileWriter = new JpegTileWriterImplementation(directory
+                .getAbsolutePath(), convention, config);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        tileWriter.close();
+        FileUtils.deleteDirectory(directory);
+    }
+
+    @Benchmark
+    public String writeJpegTile(final Throughput throughput)
+            throws IOException, ZoomLevelNotFoundException {
+        final long index = nextTile++ % WRITTEN_TILES;
+        final long columns = config.getNumberOfColumns(0);
+        throughput.add(1, tileBytes);
+        return tileWriter.write(tile, 0, index / columns, index % columns);
+    }
+
+    @Benchmark
+    public BufferedImage createLowerZoomLevelTile(final Throughput throughput) {
+        final List<List<BufferedImage>> imagesToAdd = new ArrayList<List<BufferedImage>>();
+        for (int r = 0; r < 2; r++) {
+            final List<BufferedImage> row = new ArrayList<BufferedImage>();
+            row.add(children[r * 2]);
+            row.add(children[r * 2 + 1]);
+            imagesToAdd.add(row);
+        }
+        throughput.add(1, tileBytes * children.length);
+        return TileUtils.createLowerZoomLevelTile(imagesToAdd, 2.0);
+    }
+
+    @Benchmark
+    public BufferedImage addCompositeImage(final Throughput throughput) {
+        final CompositeImage composite = new CompositeImage();
+        composite.addImage(children[0], CompositeImage.HORIZONTAL);
+        composite.addImage(children[1], CompositeImage.HORIZONTAL);
+        throughput.add(2, tileBytes * 2);
+        return composite.getImage();
+    }
+
+    @Benchmark
+    public String getTileFileName(final Throughput throughput)
+            throws ZoomLevelNotFoundException {
+        final long columns = config.getNumberOfColumns(0);
+        final long index = nextTile++ % config.getNumberOfTiles(0);
+        throughput.add(1, 0);
+        return convention.getTileFileName(0, index / columns,
+                index % columns, JpegTileWriterImplementation.JPG, config);
+    }
+}
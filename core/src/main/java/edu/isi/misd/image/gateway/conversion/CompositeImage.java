@@ -18,6 +18,7 @@ package edu.isi.misd.image.gateway.conversion;
 
 import java.awt.Graphics2D;
 import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
 
 /**
  * Represents an image object that is built from combining multiple images on
@@ -57,16 +58,16 @@ public class CompositeImage {
             BufferedImage newImage = null;
             Graphics2D g = null;
             if (position == HORIZONTAL) {
-                newImage = new BufferedImage(combined.getWidth()
+                newImage = createImage(source, combined.getWidth()
                         + source.getWidth(), Math.max(combined.getHeight(),
-                                source.getHeight()), source.getType());
+                                source.getHeight()));
                 g = newImage.createGraphics();
                 g.drawImage(combined, null, 0, 0);
                 g.drawImage(source, null, combined.getWidth(), 0);
             } else {
-                newImage = new BufferedImage(Math.max(combined.getWidth(),
+                newImage = createImage(source, Math.max(combined.getWidth(),
                         source.getWidth()), combined.getHeight()
-                        + source.getHeight(), source.getType());
+                        + source.getHeight());
                 g = newImage.createGraphics();
                 g.drawImage(combined, null, 0, 0);
                 g.drawImage(source, null, 0, combined.getHeight());
@@ -75,6 +76,30 @@ public class CompositeImage {
         }
     }
 
+    /**
+     * Creates an empty image of the same type as the source image. Images
+     * decoded by Bio-Formats are usually of a custom type, which can't be
+     * constructed from the type alone, so their color model is used instead.
+     * 
+     * @param source
+     *            the image whose type to use
+     * @param width
+     *            the width of the new image
+     * @param height
+     *            the height of the new image
+     * @return the new image
+     */
+    private static BufferedImage createImage(final BufferedImage source,
+            final int width, final int height) {
+        if (source.getType() != BufferedImage.TYPE_CUSTOM) {
+            return new BufferedImage(width, height, source.getType());
+        }
+        final ColorModel colorModel = source.getColorModel();
+        return new BufferedImage(colorModel,
+                colorModel.createCompatibleWritableRaster(width, height),
+                colorModel.isAlphaPremultiplied(), null);
+    }
+
     /**
      * 
      * @return the image in its current state
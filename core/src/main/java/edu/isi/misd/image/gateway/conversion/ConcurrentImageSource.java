@@ -0,0 +1,28 @@
+/*
+ * Copyright 2011 University of Southern California
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.isi.misd.image.gateway.conversion;
+
+/**
+ * An image source whose readBytes, readImage and readCompressedTile methods
+ * can be called from several threads at once. Tile exports share one of these
+ * between their worker threads instead of opening an image source for each.
+ * 
+ * @author David Smith
+ * 
+ */
+public interface ConcurrentImageSource extends ImageSource {
+}
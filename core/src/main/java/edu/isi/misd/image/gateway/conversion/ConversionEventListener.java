@@ -0,0 +1,117 @@
+/*
+ * Copyright 2011 University of Southern California
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.isi.misd.image.gateway.conversion;
+
+/**
+ * Receives the events of slide conversions: slides being opened, regions
+ * being read from them, and tiles being encoded and written. Listeners are
+ * found with {@link java.util.ServiceLoader} by {@link ConversionEvents}, so
+ * that a listener such as one that records the events with Java Flight
+ * Recorder can be added by putting its jar on the class path.
+ * 
+ * Events are sent from the threads that do the work, so listeners must be
+ * thread safe and should return quickly.
+ * 
+ * @author David Smith
+ * 
+ */
+public interface ConversionEventListener {
+
+    /**
+     * Called when a slide has been opened.
+     * 
+     * @param filename
+     *            the slide file
+     * @param format
+     *            the name of the slide's format
+     * @param series
+     *            the series that was opened
+     * @param parseNanos
+     *            the time taken to parse the slide, in nanoseconds
+     */
+    public void slideOpened(String filename, String format, int series,
+            long parseNanos);
+
+    /**
+     * Called when a region has been read from a slide.
+     * 
+     * @param filename
+     *            the slide file
+     * @param x
+     *            the x offset of the region
+     * @param y
+     *            the y offset of the region
+     * @param width
+     *            the width of the region
+     * @param height
+     *            the height of the region
+     * @param bytes
+     *            the bytes that were read
+     * @param nanos
+     *            the time taken to read the region, in nanoseconds
+     */
+    public void regionRead(String filename, long x, long y, long width,
+            long height, long bytes, long nanos);
+
+    /**
+     * Called when a tile has been encoded.
+     * 
+     * @param level
+     *            the zoom level of the tile
+     * @param row
+     *            the row of the tile
+     * @param column
+     *            the column of the tile
+     * @param bytes
+     *            the size of the encoded tile
+     * @param nanos
+     *            the time taken to encode the tile, in nanoseconds
+     */
+    public void tileEncoded(int level, long row, long column, long bytes,
+            long nanos);
+
+    /**
+     * Called when a tile has been written.
+     * 
+     * @param level
+     *            the zoom level of the tile
+     * @param row
+     *            the row of the tile
+     * @param column
+     *            the column of the tile
+     * @param bytes
+     *            the bytes that were written
+     * @param nanos
+     *            the time taken to write the tile, in nanoseconds
+     */
+    public void tileWritten(int level, long row, long column, long bytes,
+            long nanos);
+
+    /**
+     * Called when every tile of a zoom level has been written. Zoom levels
+     * that are built in memory from a higher one are completed with it.
+     * 
+     * @param level
+     *            the zoom level
+     * @param tiles
+     *            the number of tiles of the zoom level
+     * @param nanos
+     *            the time taken to export the zoom level, together with the
+     *            zoom levels that were exported with it, in nanoseconds
+     */
+    public void levelCompleted(int level, long tiles, long nanos);
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright 2011 University of Southern California
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.isi.misd.image.gateway.conversion;
+
+import java.util.Iterator;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Sends the events of slide conversions to the listeners on the class path,
+ * and to any that are added. The code that sends events checks
+ * {@link #isEnabled()} before it times anything, so that they cost a single
+ * volatile read when there are no listeners.
+ * 
+ * @author David Smith
+ * 
+ */
+public final class ConversionEvents {
+
+    private static final Logger LOG = Logger.getLogger(ConversionEvents.class);
+
+    private static volatile ConversionEventListener[] listeners = loadListeners();
+
+    private ConversionEvents() {
+    }
+
+    /**
+     * 
+     * @return true if there are listeners to send events to
+     */
+    public static boolean isEnabled() {
+        return listeners.length > 0;
+    }
+
+    /**
+     * Adds a listener.
+     * 
+     * @param listener
+     *            the listener
+     */
+    public static synchronized void addListener(
+            final ConversionEventListener listener) {
+        if (listener == null) {
+            throw new IllegalArgumentException("Listener cannot be null.");
+        }
+        final ConversionEventListener[] added = new ConversionEventListener[listeners.length + 1];
+        System.arraycopy(listeners, 0, added, 0, listeners.length);
+        added[listeners.length] = listener;
+        listeners = added;
+    }
+
+    /**
+     * Removes a listener that was added.
+     * 
+     * @param listener
+     *            the listener
+     */
+    public static synchronized void removeListener(
+            final ConversionEventListener listener) {
+        for (int i = 0; i < listeners.length; i++) {
+            if (listeners[i] == listener) {
+                final ConversionEventListener[] removed = new ConversionEventListener[listeners.length - 1];
+                System.arraycopy(listeners, 0, removed, 0, i);
+                System.arraycopy(listeners, i + 1, removed, i,
+                        removed.length - i);
+                listeners = removed;
+                return;
+            }
+        }
+    }
+
+    /**
+     * @see ConversionEventListener#slideOpened(String, String, int, long)
+     */
+    public static void slideOpened(final String filename,
+            final String format, final int series, final long parseNanos) {
+        for (final ConversionEventListener listener : listeners) {
+            listener.slideOpened(filename, format, series, parseNanos);
+        }
+    }
+
+    /**
+     * @see ConversionEventListener#regionRead(String, long, long, long, long,
+     *      long, long)
+     */
+    public static void regionRead(final String filename, final long x,
+            final long y, final long width, final long height,
+            final long bytes, final long nanos) {
+        for (final ConversionEventListener listener : listeners) {
+            listener.regionRead(filename, x, y, width, height, bytes, nanos);
+        }
+    }
+
+    /**
+     * @see ConversionEventListener#tileEncoded(int, long, long, long, long)
+     */
+    public static void tileEncoded(final int level, final long row,
+            final long column, final long bytes, final long nanos) {
+        for (final ConversionEventListener listener : listeners) {
+            listener.tileEncoded(level, row, column, bytes, nanos);
+        }
+    }
+
+    /**
+     * @see ConversionEventListener#tileWritten(int, long, long, long, long)
+     */
+    public static void tileWritten(final int level, final long row,
+            final long column, final long bytes, final long nanos) {
+        for (final ConversionEventListener listener : listeners) {
+            listener.tileWritten(level, row, column, bytes, nanos);
+        }
+    }
+
+    /**
+     * @see ConversionEventListener#levelCompleted(int, long, long)
+     */
+    public static void levelCompleted(final int level, final long tiles,
+            final long nanos) {
+        for (final ConversionEventListener listener : listeners) {
+            listener.levelCompleted(level, tiles, nanos);
+        }
+    }
+
+    /**
+     * Loads the listeners named in the
+     * META-INF/services/edu.isi.misd.image.gateway.conversion.ConversionEventListener
+     * files on the class path. Listeners that can't be loaded, such as ones
+     * that need a later Java version, are logged and left out.
+     */
+    private static ConversionEventListener[] loadListeners() {
+        ConversionEventListener[] loaded = new ConversionEventListener[0];
+        final Iterator<ConversionEventListener> i = ServiceLoader.load(
+                ConversionEventListener.class).iterator();
+        while (true) {
+            try {
+                if (!i.hasNext()) {
+                    break;
+                }
+                final ConversionEventListener listener = i.next();
+                final ConversionEventListener[] added = new ConversionEventListener[loaded.length + 1];
+                System.arraycopy(loaded, 0, added, 0, loaded.length);
+                added[loaded.length] = listener;
+                loaded = added;
+                if (LOG.isInfoEnabled()) {
+                    LOG.info("Sending conversion events to "
+                            + listener.getClass().getName());
+                }
+            } catch (final ServiceConfigurationError e) {
+                LOG.warn("Could not load a conversion event listener.", e);
+            } catch (final LinkageError e) {
+                LOG.warn("Could not load a conversion event listener.", e);
+            }
+        }
+        return loaded;
+    }
+}
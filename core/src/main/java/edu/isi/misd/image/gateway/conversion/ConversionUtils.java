@@ -143,7 +143,8 @@ public class ConversionUtils {
             currentDir.append(File.separator).append(pieces[i]);
             File dir = new File(currentDir.toString());
             if (!dir.exists()) {
-                if (!dir.mkdir()) {
+                // another thread may have created it in the meantime
+                if (!dir.mkdir() && !dir.isDirectory()) {
                     LOG.warn("Could not create directory " + currentDir);
                     return false;
                 }
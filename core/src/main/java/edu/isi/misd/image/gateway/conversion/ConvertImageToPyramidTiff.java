@@ -0,0 +1,205 @@
+/*
+ * Copyright 2011 University of Southern California
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.isi.misd.image.gateway.conversion;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+
+import org.apache.log4j.Logger;
+
+import edu.isi.misd.image.gateway.conversion.tile.JpegTileEncoder;
+import edu.isi.misd.image.gateway.conversion.tiff.PyramidTiffImageDestination;
+
+/**
+ * Class that converts a source image into a single pyramidal tiled TIFF file.
+ * The source image is read a tile at a time, from top to bottom, so only a
+ * row of tiles is kept in memory.
+ *
+ * @author David Smith
+ *
+ */
+public class ConvertImageToPyramidTiff implements ImageConversion {
+
+    private static final Logger LOG = Logger
+            .getLogger(ConvertImageToPyramidTiff.class);
+
+    private static final String USAGE = "Usage: "
+            + ConvertImageToPyramidTiff.class.getName()
+            + " <source image> <destination ."
+            + PyramidTiffImageDestination.PTIF + " file>"
+            + " [--tile-size=<256|512>] [--jpeg-quality=<0-1>]";
+
+    private static final String TILE_SIZE_OPTION = "--tile-size=";
+    private static final String JPEG_QUALITY_OPTION = "--jpeg-quality=";
+
+    private final ImageSource sourceImage;
+    private final String destinationFile;
+
+    private int tileSize = PyramidTiffImageDestination.DEFAULT_TILE_SIZE;
+    private JpegTileEncoder tileEncoder = new JpegTileEncoder();
+
+    public static void main(final String[] args) {
+        if (args.length < 2) {
+            System.err.println(USAGE);
+            System.exit(1);
+        }
+        try {
+            final ImageSource source = ImageSourceFactory
+                    .getImageSource(args[0]);
+            final ConvertImageToPyramidTiff convert = new ConvertImageToPyramidTiff(
+                    source, args[1]);
+            for (int i = 2; i < args.length; i++) {
+                if (args[i].startsWith(TILE_SIZE_OPTION)) {
+                    convert.setTileSize(Integer.parseInt(args[i]
+                            .substring(TILE_SIZE_OPTION.length())));
+                } else if (args[i].startsWith(JPEG_QUALITY_OPTION)) {
+                    convert.setTileEncoder(new JpegTileEncoder(Float
+                            .parseFloat(args[i].substring(JPEG_QUALITY_OPTION
+                                    .length())), false,
+                            JpegTileEncoder.CHROMA_420));
+                } else {
+                    System.err.println(USAGE);
+                    System.exit(1);
+                }
+            }
+            convert.run();
+        } catch (final Exception e) {
+            LOG.error("Error converting the image to a pyramid TIFF file.", e);
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param source
+     *            the image source
+     * @param destination
+     *            the TIFF file to write
+     */
+    public ConvertImageToPyramidTiff(final ImageSource source,
+            final String destination) {
+        if (source == null) {
+            throw new IllegalArgumentException("ImageSource must be specified.");
+        }
+        if (destination == null || destination.length() == 0) {
+            throw new IllegalArgumentException(
+                    "Destination must be specified.");
+        }
+        final File parent = new File(destination).getAbsoluteFile()
+                .getParentFile();
+        if (parent == null || !parent.isDirectory() || !parent.canWrite()) {
+            throw new IllegalArgumentException("Destination " + destination
+                    + " is not writable.");
+        }
+        sourceImage = source;
+        destinationFile = destination;
+    }
+
+    /**
+     * Runs the conversion.
+     *
+     * @throws Exception
+     *             if the conversion failed.
+     */
+    @Override
+    public void run() throws Exception {
+        final long width = sourceImage.getWidth();
+        final long height = sourceImage.getHeight();
+        final PyramidTiffImageDestination destination = new PyramidTiffImageDestination(
+                destinationFile, width, height, tileSize, tileEncoder);
+        if (LOG.isInfoEnabled()) {
+            LOG.info("Writing " + width + "x" + height + " image "
+                    + sourceImage.getFilename() + " to " + destinationFile);
+        }
+        for (long y = 0; y < height; y += tileSize) {
+            final long readHeight = Math.min(tileSize, height - y);
+            for (long x = 0; x < width; x += tileSize) {
+                final long readWidth = Math.min(tileSize, width - x);
+                final BufferedImage tile = sourceImage.readImage(x, y,
+                        readWidth, readHeight);
+                destination.writeImage(tile, x, y);
+            }
+        }
+        destination.close();
+        sourceImage.close();
+    }
+
+    /**
+     * Sets the tile size of the TIFF file.
+     *
+     * @param size
+     *            the tile size, a multiple of 16 such as 256 or 512
+     */
+    public void setTileSize(final int size) {
+        if (size <= 0 || size % 16 != 0) {
+            throw new IllegalArgumentException(
+                    "Tile size must be a multiple of 16.");
+        }
+        tileSize = size;
+    }
+
+    /**
+     *
+     * @return the tile size of the TIFF file
+     */
+    public int getTileSize() {
+        return tileSize;
+    }
+
+    /**
+     * Sets the encoder used for the tiles.
+     *
+     * @param encoder
+     *            the JPEG encoder
+     */
+    public void setTileEncoder(final JpegTileEncoder encoder) {
+        if (encoder == null) {
+            throw new IllegalArgumentException(
+                    "JPEG encoder must be specified.");
+        }
+        tileEncoder = encoder;
+    }
+
+    /**
+     *
+     * @return the encoder used for the tiles
+     */
+    public JpegTileEncoder getTileEncoder() {
+        return tileEncoder;
+    }
+
+    @Override
+    public String getSourceFilename() {
+        return sourceImage.getFilename();
+    }
+
+    @Override
+    public String getDestinationFilename() {
+        return destinationFile;
+    }
+
+    @Override
+    public void setMaximumImageSize(final long size) {
+        // the main series of the source image is always converted
+    }
+
+    @Override
+    public long getMaximumImageSize() {
+        return 0;
+    }
+}
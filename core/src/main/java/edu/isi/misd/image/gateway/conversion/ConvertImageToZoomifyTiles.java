@@ -16,11 +16,16 @@
 
 package edu.isi.misd.image.gateway.conversion;
 
+import java.awt.image.BufferedImage;
 import java.io.File;
 
 import org.apache.log4j.Logger;
 
-import edu.isi.misd.image.gateway.conversion.tile.TileExport;
+import edu.isi.misd.image.gateway.conversion.loci.LociImageSource;
+import edu.isi.misd.image.gateway.conversion.loci.PooledLociImageSource;
+import edu.isi.misd.image.gateway.conversion.tile.AbstractTileDirectoryExport;
+import edu.isi.misd.image.gateway.conversion.tile.BackgroundDetector;
+import edu.isi.misd.image.gateway.conversion.tile.JpegTileEncoder;
 import edu.isi.misd.image.gateway.conversion.zoomify.ZoomifyTileDirectoryExport;
 
 /**
@@ -37,11 +42,48 @@ public class ConvertImageToZoomifyTiles implements ImageConversion {
 
     private static final String USAGE = "Usage: "
             + ConvertImageToZoomifyTiles.class.getName()
-            + " <source image> <zoomify tile directory>";
+            + " <source image> <zoomify tile directory> [--threads=<n>]"
+            + " [--pyramid-threads=<n>]"
+            + " [--disk-pyramid] [--rows-per-band=<n>] [--native-tiles]"
+            + " [--copy-jpeg-tiles] [--embedded-pyramid]"
+            + " [--jpeg-quality=<0-1>] [--jpeg-subsampling=<420|422|444>]"
+            + " [--optimize-huffman] [--pyramid-tiff=<file>] [--tile-archive]"
+            + " [--skip-background] [--resume]";
+
+    private static final String THREADS_OPTION = "--threads=";
+    private static final String PYRAMID_THREADS_OPTION = "--pyramid-threads=";
+    private static final String DISK_PYRAMID_OPTION = "--disk-pyramid";
+    private static final String ROWS_PER_BAND_OPTION = "--rows-per-band=";
+    private static final String NATIVE_TILES_OPTION = "--native-tiles";
+    private static final String COPY_JPEG_TILES_OPTION = "--copy-jpeg-tiles";
+    private static final String EMBEDDED_PYRAMID_OPTION = "--embedded-pyramid";
+    private static final String JPEG_QUALITY_OPTION = "--jpeg-quality=";
+    private static final String JPEG_SUBSAMPLING_OPTION = "--jpeg-subsampling=";
+    private static final String OPTIMIZE_HUFFMAN_OPTION = "--optimize-huffman";
+    private static final String PYRAMID_TIFF_OPTION = "--pyramid-tiff=";
+    private static final String TILE_ARCHIVE_OPTION = "--tile-archive";
+    private static final String SKIP_BACKGROUND_OPTION = "--skip-background";
+    private static final String RESUME_OPTION = "--resume";
+
     private final ImageSource sourceImage;
 
     private final String destinationDirectory;
 
+    private int numberOfThreads = 1;
+    private int rowsPerTask = 0;
+    private int pyramidThreads = 0;
+    private boolean inMemoryPyramid = true;
+    private int rowsPerBand = 0;
+    private boolean nativeTileReads = false;
+    private boolean compressedTileCopy = false;
+    private boolean embeddedPyramid = false;
+    private JpegTileEncoder tileEncoder = new JpegTileEncoder();
+    private String pyramidTiffFilename = null;
+    private boolean tileArchive = false;
+    private BackgroundDetector backgroundDetector = null;
+    private boolean resume = false;
+    private BufferedImage thumbnailImage = null;
+
     public static void main(final String[] args) {
         if (args.length < 2) {
             System.err.println(USAGE);
@@ -50,6 +92,54 @@ public class ConvertImageToZoomifyTiles implements ImageConversion {
         try {
             final ConvertImageToZoomifyTiles convert = new ConvertImageToZoomifyTiles(
                     args[0], args[1]);
+            float quality = JpegTileEncoder.DEFAULT_QUALITY;
+            int subsampling = JpegTileEncoder.CHROMA_420;
+            boolean optimizeHuffman = false;
+            for (int i = 2; i < args.length; i++) {
+                if (args[i].startsWith(THREADS_OPTION)) {
+                    convert.setNumberOfThreads(Integer.parseInt(args[i]
+                            .substring(THREADS_OPTION.length())));
+                } else if (args[i].startsWith(PYRAMID_THREADS_OPTION)) {
+                    convert.setPyramidThreads(Integer.parseInt(args[i]
+                            .substring(PYRAMID_THREADS_OPTION.length())));
+                } else if (args[i].equals(DISK_PYRAMID_OPTION)) {
+                    convert.setInMemoryPyramid(false);
+                } else if (args[i].startsWith(ROWS_PER_BAND_OPTION)) {
+                    convert.setRowsPerBand(Integer.parseInt(args[i]
+                            .substring(ROWS_PER_BAND_OPTION.length())));
+                } else if (args[i].equals(NATIVE_TILES_OPTION)) {
+                    convert.setNativeTileReads(true);
+                } else if (args[i].equals(COPY_JPEG_TILES_OPTION)) {
+                    convert.setCompressedTileCopy(true);
+                } else if (args[i].equals(EMBEDDED_PYRAMID_OPTION)) {
+                    convert.setEmbeddedPyramid(true);
+                } else if (args[i].startsWith(JPEG_QUALITY_OPTION)) {
+                    quality = Float.parseFloat(args[i]
+                            .substring(JPEG_QUALITY_OPTION.length()));
+                } else if (args[i].equals(JPEG_SUBSAMPLING_OPTION + "420")) {
+                    subsampling = JpegTileEncoder.CHROMA_420;
+                } else if (args[i].equals(JPEG_SUBSAMPLING_OPTION + "422")) {
+                    subsampling = JpegTileEncoder.CHROMA_422;
+                } else if (args[i].equals(JPEG_SUBSAMPLING_OPTION + "444")) {
+                    subsampling = JpegTileEncoder.CHROMA_444;
+                } else if (args[i].equals(OPTIMIZE_HUFFMAN_OPTION)) {
+                    optimizeHuffman = true;
+                } else if (args[i].startsWith(PYRAMID_TIFF_OPTION)) {
+                    convert.setPyramidTiffFilename(args[i]
+                            .substring(PYRAMID_TIFF_OPTION.length()));
+                } else if (args[i].equals(TILE_ARCHIVE_OPTION)) {
+                    convert.setTileArchive(true);
+                } else if (args[i].equals(SKIP_BACKGROUND_OPTION)) {
+                    convert.setBackgroundDetector(new BackgroundDetector());
+                } else if (args[i].equals(RESUME_OPTION)) {
+                    convert.setResume(true);
+                } else {
+                    System.err.println(USAGE);
+                    System.exit(1);
+                }
+            }
+            convert.setTileEncoder(new JpegTileEncoder(quality,
+                    optimizeHuffman, subsampling));
             convert.run();
         } catch (final Exception e) {
             LOG.error("Error converting the image to Zoomify tiles.", e);
@@ -140,11 +230,328 @@ public class ConvertImageToZoomifyTiles implements ImageConversion {
     @Override
     public void run() throws Exception {
 
-        final TileExport export = new ZoomifyTileDirectoryExport(sourceImage);
+        ImageSource source = sourceImage;
+        // a handle on an image shared by a route reads through the reader
+        // that is already open instead of opening the image again
+        final ImageSource shared = SharedImageSource
+                .getSharedSource(sourceImage);
+        final boolean sharedPool = numberOfThreads > 1
+                && shared instanceof LociImageSource;
+        if (sharedPool) {
+            final PooledLociImageSource pool = new PooledLociImageSource(
+                    (LociImageSource) shared, numberOfThreads, false);
+            pool.setSeriesNumber(sourceImage.getSeriesNumber());
+            source = pool;
+        } else if (numberOfThreads > 1 && source instanceof LociImageSource) {
+            // decode regions with a pool of readers rather than one per thread
+            source = new PooledLociImageSource((LociImageSource) source,
+                    numberOfThreads);
+        }
+        final ZoomifyTileDirectoryExport export = new ZoomifyTileDirectoryExport(
+                source);
+        export.setNumberOfThreads(numberOfThreads);
+        if (rowsPerTask > 0) {
+            export.setRowsPerTask(rowsPerTask);
+        }
+        export.setPyramidThreads(pyramidThreads);
+        export.setInMemoryPyramid(inMemoryPyramid);
+        export.setCompressedTileCopy(compressedTileCopy);
+        export.setEmbeddedPyramid(embeddedPyramid);
+        export.setTileEncoder(tileEncoder);
+        export.setPyramidTiffFilename(pyramidTiffFilename);
+        export.setTileArchive(tileArchive);
+        export.setBackgroundDetector(backgroundDetector);
+        export.setResume(resume);
+        if (nativeTileReads) {
+            export.setReadMode(AbstractTileDirectoryExport.READ_NATIVE_TILES);
+        } else if (rowsPerBand > 0) {
+            export.setReadMode(AbstractTileDirectoryExport.READ_BANDS);
+            export.setRowsPerBand(rowsPerBand);
+        }
 
         export.export(destinationDirectory);
+        if (LOG.isInfoEnabled()) {
+            LOG.info(export.getMetrics().getSummary());
+        }
+        thumbnailImage = export.getThumbnailImage();
+
+        source.close();
+        if (sharedPool) {
+            // the pool leaves the shared image open for the handle to release
+            sourceImage.close();
+        }
+    }
+
+    /**
+     * 
+     * @return the tile of the smallest zoom level written by run(), for use
+     *         as a thumbnail, or null if run() hasn't written it
+     */
+    public BufferedImage getThumbnailImage() {
+        return thumbnailImage;
+    }
+
+    /**
+     * Sets the number of threads used to export the full resolution tiles.
+     * LOCI images are read through a pool of up to that many readers.
+     * 
+     * @param threads
+     *            the number of threads, must be at least 1
+     */
+    public void setNumberOfThreads(final int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException(
+                    "Number of threads must be at least 1.");
+        }
+        numberOfThreads = threads;
+    }
+
+    /**
+     * 
+     * @return the number of threads used to export the full resolution tiles
+     */
+    public int getNumberOfThreads() {
+        return numberOfThreads;
+    }
+
+    /**
+     * Sets the number of tile rows that a thread exports as a single unit of
+     * work.
+     * 
+     * @param rows
+     *            the number of tile rows per unit of work, must be at least 1
+     */
+    public void setRowsPerTask(final int rows) {
+        if (rows < 1) {
+            throw new IllegalArgumentException(
+                    "Rows per task must be at least 1.");
+        }
+        rowsPerTask = rows;
+    }
+
+    /**
+     * Sets the number of threads that the tiles of the lower zoom levels are
+     * created on while the full resolution tiles are exported.
+     * 
+     * @param threads
+     *            the number of threads, or 0 to create them on the threads
+     *            that export the full resolution tiles
+     */
+    public void setPyramidThreads(final int threads) {
+        if (threads < 0) {
+            throw new IllegalArgumentException(
+                    "Number of pyramid threads must be at least 0.");
+        }
+        pyramidThreads = threads;
+    }
+
+    /**
+     * 
+     * @return the number of threads that the tiles of the lower zoom levels
+     *         are created on
+     */
+    public int getPyramidThreads() {
+        return pyramidThreads;
+    }
+
+    /**
+     * Sets whether the lower zoom levels are built in memory, or from the
+     * full resolution tiles after they have been written.
+     * 
+     * @param inMemory
+     *            true to build the lower zoom levels in memory
+     */
+    public void setInMemoryPyramid(final boolean inMemory) {
+        inMemoryPyramid = inMemory;
+    }
+
+    /**
+     * Sets the number of full resolution tile rows that are read from the
+     * source image at once. Bands are useful for strip organized images,
+     * which otherwise decode the same strips for every tile in a row.
+     * 
+     * @param rows
+     *            the number of tile rows per band, or 0 to read each tile
+     *            separately
+     */
+    public void setRowsPerBand(final int rows) {
+        if (rows < 0) {
+            throw new IllegalArgumentException(
+                    "Rows per band cannot be < 0");
+        }
+        rowsPerBand = rows;
+    }
+
+    /**
+     * 
+     * @return the number of tile rows read at once, or 0 if each tile is read
+     *         separately
+     */
+    public int getRowsPerBand() {
+        return rowsPerBand;
+    }
+
+    /**
+     * Sets whether the source image is read in the regions that it is stored
+     * in, such as the JPEG tiles of an SVS file, decoding each region once.
+     * Takes precedence over reading in bands.
+     * 
+     * @param nativeTiles
+     *            true to read the source image by its stored regions
+     */
+    public void setNativeTileReads(final boolean nativeTiles) {
+        nativeTileReads = nativeTiles;
+    }
+
+    /**
+     * 
+     * @return true if the source image is read by its stored regions
+     */
+    public boolean isNativeTileReads() {
+        return nativeTileReads;
+    }
+
+    /**
+     * Sets whether full resolution JPEG tiles stored in the source image at
+     * the tile size are copied to the tile files without being decoded and
+     * encoded again.
+     * 
+     * @param copy
+     *            true to copy the stored tiles when possible
+     */
+    public void setCompressedTileCopy(final boolean copy) {
+        compressedTileCopy = copy;
+    }
+
+    /**
+     * 
+     * @return true if stored tiles are copied when possible
+     */
+    public boolean isCompressedTileCopy() {
+        return compressedTileCopy;
+    }
+
+    /**
+     * Sets whether the lower zoom levels are built from the reduced resolution
+     * series embedded in the source image, such as the levels of an SVS or
+     * NDPI file, instead of from the full resolution tiles.
+     * 
+     * @param embedded
+     *            true to build from the embedded series
+     */
+    public void setEmbeddedPyramid(final boolean embedded) {
+        embeddedPyramid = embedded;
+    }
+
+    /**
+     * 
+     * @return true if the lower zoom levels are built from the embedded
+     *         series
+     */
+    public boolean isEmbeddedPyramid() {
+        return embeddedPyramid;
+    }
+
+    /**
+     * Sets the encoder used for the tiles, which determines the JPEG quality,
+     * chroma subsampling, and whether Huffman tables are optimized.
+     * 
+     * @param encoder
+     *            the JPEG encoder
+     */
+    public void setTileEncoder(final JpegTileEncoder encoder) {
+        if (encoder == null) {
+            throw new IllegalArgumentException(
+                    "JPEG encoder must be specified.");
+        }
+        tileEncoder = encoder;
+    }
+
+    /**
+     * 
+     * @return the encoder used for the tiles
+     */
+    public JpegTileEncoder getTileEncoder() {
+        return tileEncoder;
+    }
+
+    /**
+     * Sets a tiled TIFF file that the tiles are also written to, with the
+     * lower zoom levels as reduced resolution images, so that the whole
+     * pyramid is also available as one file.
+     * 
+     * @param filename
+     *            the TIFF file, or null to only write the tile directory
+     */
+    public void setPyramidTiffFilename(final String filename) {
+        pyramidTiffFilename = filename;
+    }
+
+    /**
+     * 
+     * @return the tiled TIFF file that the tiles are also written to, or null
+     */
+    public String getPyramidTiffFilename() {
+        return pyramidTiffFilename;
+    }
+
+    /**
+     * Sets whether the tiles are appended to a single indexed archive file in
+     * the destination directory instead of being written to a file each.
+     * 
+     * @param archive
+     *            true to write a tile archive
+     */
+    public void setTileArchive(final boolean archive) {
+        tileArchive = archive;
+    }
+
+    /**
+     * 
+     * @return true if the tiles are written to a single archive file
+     */
+    public boolean isTileArchive() {
+        return tileArchive;
+    }
 
-        sourceImage.close();
+    /**
+     * Sets the detector of tiles that only show background, which are
+     * exported as a shared placeholder tile.
+     * 
+     * @param detector
+     *            the background detector, or null to export every tile as it
+     *            is read
+     */
+    public void setBackgroundDetector(final BackgroundDetector detector) {
+        backgroundDetector = detector;
+    }
+
+    /**
+     * 
+     * @return the detector of tiles that only show background, or null
+     */
+    public BackgroundDetector getBackgroundDetector() {
+        return backgroundDetector;
+    }
+
+    /**
+     * Sets whether the conversion continues from the checkpoint that an
+     * earlier conversion to the same destination directory saved before it
+     * stopped, instead of starting from the first tile.
+     * 
+     * @param resumeExport
+     *            true to continue from the saved checkpoint
+     */
+    public void setResume(final boolean resumeExport) {
+        resume = resumeExport;
+    }
+
+    /**
+     * 
+     * @return true if the conversion continues from the saved checkpoint
+     */
+    public boolean isResume() {
+        return resume;
     }
 
     /**
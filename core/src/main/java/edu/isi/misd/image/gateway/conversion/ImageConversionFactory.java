@@ -19,6 +19,7 @@ package edu.isi.misd.image.gateway.conversion;
 import edu.isi.misd.image.gateway.conversion.loci.LociConversionImplementation;
 import edu.isi.misd.image.gateway.conversion.loci.LociImageDestination;
 import edu.isi.misd.image.gateway.conversion.loci.LociImageSource;
+import edu.isi.misd.image.gateway.conversion.tiff.PyramidTiffImageDestination;
 
 /**
  * Factory class for generating the ImageConversion instance, based on the
@@ -66,6 +67,10 @@ public class ImageConversionFactory {
                 if (LociImageDestination.class.equals(imageDestinationClass)) {
                     conversion = new LociConversionImplementation(source,
                             destination);
+                } else if (PyramidTiffImageDestination.class
+                        .equals(imageDestinationClass)) {
+                    conversion = new ConvertImageToPyramidTiff(imageSource,
+                            destination);
                 }
             }
         }
@@ -41,6 +41,7 @@ public class ImageDestinationFactory {
     private static final String REGISTER_TYPES_METHOD = "registerTypes";
 
     private static String[] destinationClasses = new String[] {
+        "edu.isi.misd.image.gateway.conversion.tiff.PyramidTiffImageDestination",
         "edu.isi.misd.image.gateway.conversion.loci.LociImageDestination",
     };
 
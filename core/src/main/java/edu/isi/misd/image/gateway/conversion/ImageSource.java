@@ -64,6 +64,26 @@ public interface ImageSource {
     public BufferedImage readImage(long x, long y, long width, long height)
     throws IOException;
 
+    /**
+     * Reads the stored, still compressed data of a region of the image, if
+     * the region is exactly one tile that the image is stored in and the data
+     * can be written out as is.
+     * 
+     * @param x
+     *            the x-coordinate to start
+     * @param y
+     *            the y-coordinate to start
+     * @param width
+     *            the width of the read
+     * @param height
+     *            the height of the read
+     * @return the complete JPEG stream of the region, or null if it has to be
+     *         read with readImage instead
+     * @throws IOException
+     */
+    public byte[] readCompressedTile(long x, long y, long width, long height)
+    throws IOException;
+
     /**
      * 
      * @return the width of the image in pixels
@@ -76,6 +96,20 @@ public interface ImageSource {
      */
     public long getHeight();
 
+    /**
+     * 
+     * @return the width in pixels of the regions that the image is stored in,
+     *         which are the cheapest regions to read
+     */
+    public int getOptimalTileWidth();
+
+    /**
+     * 
+     * @return the height in pixels of the regions that the image is stored
+     *         in, which are the cheapest regions to read
+     */
+    public int getOptimalTileHeight();
+
     /**
      * 
      * @return the filename of the image
@@ -0,0 +1,315 @@
+/*
+ * Copyright 2011 University of Southern California
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.isi.misd.image.gateway.conversion;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+/**
+ * An image source opened once and shared by several users, such as the
+ * branches of a route that each process the same image. Each user retains a
+ * handle and closes it when done; the image source is closed when the last
+ * handle, including the one the shared source was created with, is closed.
+ * Calls through the handles are serialized, and each handle keeps its own
+ * series number, so one user changing series doesn't affect the others.
+ * 
+ * @author David Smith
+ * 
+ */
+public class SharedImageSource {
+
+    private static final Logger LOG = Logger.getLogger(SharedImageSource.class);
+
+    private final ImageSource source;
+    private int references = 1;
+    private boolean released = false;
+
+    /**
+     * Constructor. The shared source starts with one reference, which is
+     * released with release().
+     * 
+     * @param imageSource
+     *            the image source to share
+     */
+    public SharedImageSource(final ImageSource imageSource) {
+        if (imageSource == null) {
+            throw new IllegalArgumentException("Image source cannot be null.");
+        }
+        source = imageSource;
+    }
+
+    /**
+     * Adds a reference to the shared source.
+     * 
+     * @return a handle on the image source, released by closing it
+     * @throws IOException
+     *             if the image source has already been closed
+     */
+    public ImageSource retain() throws IOException {
+        synchronized (source) {
+            if (references == 0) {
+                throw new IOException("Image source " + source.getFilename()
+                        + " is closed.");
+            }
+            references++;
+            return new Handle(source.getSeriesNumber());
+        }
+    }
+
+    /**
+     * Releases the reference the shared source was created with. Handles
+     * release their references when they are closed.
+     * 
+     * @throws IOException
+     *             if the image source could not be closed
+     */
+    public void release() throws IOException {
+        synchronized (source) {
+            if (released) {
+                return;
+            }
+            released = true;
+        }
+        releaseReference();
+    }
+
+    private void releaseReference() throws IOException {
+        boolean close;
+        synchronized (source) {
+            references--;
+            close = references == 0;
+        }
+        if (close) {
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("Closing shared image source "
+                        + source.getFilename());
+            }
+            source.close();
+        }
+    }
+
+    /**
+     * Returns the image source that a handle shares, so that it can be read
+     * in ways the handle doesn't offer, such as with a pool of readers built
+     * on it. Calls on it must be synchronized on it, as the handles' calls
+     * are, and must not assume it is still set to the series they left it at.
+     * 
+     * @param imageSource
+     *            an image source
+     * @return the shared image source if the image source is an open handle;
+     *         otherwise null
+     */
+    public static ImageSource getSharedSource(final ImageSource imageSource) {
+        if (!(imageSource instanceof Handle)) {
+            return null;
+        }
+        return ((Handle) imageSource).getSharedSource();
+    }
+
+    /**
+     * 
+     * @return the filename of the shared image source
+     */
+    public String getFilename() {
+        return source.getFilename();
+    }
+
+    /**
+     * 
+     * @return the number of handles and the creator's reference that are
+     *         still open
+     */
+    public int getReferences() {
+        synchronized (source) {
+            return references;
+        }
+    }
+
+    /**
+     * A reference to the shared source with its own series number.
+     */
+    private final class Handle implements ImageSource {
+        private int seriesNumber;
+        private boolean closed = false;
+
+        private Handle(final int series) {
+            seriesNumber = series;
+        }
+
+        private ImageSource getSharedSource() {
+            synchronized (source) {
+                return closed ? null : source;
+            }
+        }
+
+        /**
+         * Sets the shared source to this handle's series; must be called
+         * while holding the source's lock.
+         */
+        private ImageSource select() {
+            if (closed) {
+                throw new IllegalStateException("Image source handle for "
+                        + source.getFilename() + " is closed.");
+            }
+            if (source.getSeriesNumber() != seriesNumber) {
+                source.setSeriesNumber(seriesNumber);
+            }
+            return source;
+        }
+
+        @Override
+        public byte[] readBytes(final long x, final long y, final long width,
+                final long height) throws IOException {
+            synchronized (source) {
+                return select().readBytes(x, y, width, height);
+            }
+        }
+
+        @Override
+        public BufferedImage readImage(final long x, final long y,
+                final long width, final long height) throws IOException {
+            synchronized (source) {
+                return select().readImage(x, y, width, height);
+            }
+        }
+
+        @Override
+        public byte[] readCompressedTile(final long x, final long y,
+                final long width, final long height) throws IOException {
+            synchronized (source) {
+                return select().readCompressedTile(x, y, width, height);
+            }
+        }
+
+        @Override
+        public long getWidth() {
+            synchronized (source) {
+                return select().getWidth();
+            }
+        }
+
+        @Override
+        public long getHeight() {
+            synchronized (source) {
+                return select().getHeight();
+            }
+        }
+
+        @Override
+        public int getOptimalTileWidth() {
+            synchronized (source) {
+                return select().getOptimalTileWidth();
+            }
+        }
+
+        @Override
+        public int getOptimalTileHeight() {
+            synchronized (source) {
+                return select().getOptimalTileHeight();
+            }
+        }
+
+        @Override
+        public String getFilename() {
+            return source.getFilename();
+        }
+
+        @Override
+        public int getSeriesNumber() {
+            synchronized (source) {
+                return seriesNumber;
+            }
+        }
+
+        @Override
+        public int getImageNumber() {
+            return source.getImageNumber();
+        }
+
+        @Override
+        public void close() throws IOException {
+            synchronized (source) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+            }
+            releaseReference();
+        }
+
+        @Override
+        public Map<String, Object> getGlobalMetadata() {
+            synchronized (source) {
+                return select().getGlobalMetadata();
+            }
+        }
+
+        @Override
+        public Map<String, Object> getSeriesMetadata() {
+            synchronized (source) {
+                return select().getSeriesMetadata();
+            }
+        }
+
+        @Override
+        public Object getMetadataValue(final String key) {
+            synchronized (source) {
+                return select().getMetadataValue(key);
+            }
+        }
+
+        @Override
+        public Object getSeriesMetadataValue(final String key) {
+            synchronized (source) {
+                return select().getSeriesMetadataValue(key);
+            }
+        }
+
+        @Override
+        public void setSeriesNumber(final int series) {
+            synchronized (source) {
+                select().setSeriesNumber(series);
+                seriesNumber = series;
+            }
+        }
+
+        @Override
+        public int getSeriesCount() {
+            synchronized (source) {
+                return select().getSeriesCount();
+            }
+        }
+
+        @Override
+        public List<String> getRelevantFiles() {
+            synchronized (source) {
+                return select().getRelevantFiles();
+            }
+        }
+
+        @Override
+        public BufferedImage getThumbnailImage() throws ImageFormatException {
+            synchronized (source) {
+                return select().getThumbnailImage();
+            }
+        }
+    }
+}
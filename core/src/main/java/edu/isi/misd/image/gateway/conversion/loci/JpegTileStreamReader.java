@@ -0,0 +1,182 @@
+/*
+ * Copyright 2011 University of Southern California
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.isi.misd.image.gateway.conversion.loci;
+
+import java.io.IOException;
+
+import loci.common.RandomAccessInputStream;
+import loci.formats.FormatException;
+import loci.formats.tiff.IFD;
+import loci.formats.tiff.IFDList;
+import loci.formats.tiff.PhotoInterp;
+import loci.formats.tiff.TiffCompression;
+import loci.formats.tiff.TiffParser;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Reads the JPEG streams of the tiles stored in a tiled TIFF image directory,
+ * such as the levels of an SVS file, without decoding them. Each stream is
+ * merged with the directory's JPEGTables so that it can be written as a
+ * complete JPEG file.
+ * 
+ * Only YCbCr directories are read, since JPEG files are assumed to be YCbCr
+ * by viewers; RGB encoded tiles have to be decoded and re-encoded.
+ * 
+ * @author David Smith
+ * 
+ */
+public class JpegTileStreamReader {
+
+    private static final Logger LOG = Logger
+            .getLogger(JpegTileStreamReader.class);
+
+    private final RandomAccessInputStream stream;
+
+    private final long tileWidth;
+    private final long tileHeight;
+    private final long tilesPerRow;
+    private final long imageWidth;
+    private final long imageHeight;
+    private final long[] tileOffsets;
+    private final long[] tileByteCounts;
+    private final byte[] jpegTables;
+
+    /**
+     * Opens the JPEG tile directory of an image that matches the dimensions
+     * given.
+     * 
+     * @param filename
+     *            the TIFF based image file
+     * @param width
+     *            the width of the image directory to read
+     * @param height
+     *            the height of the image directory to read
+     * @return the reader, or null if there is no YCbCr JPEG tiled directory of
+     *         those dimensions
+     * @throws IOException
+     */
+    public static JpegTileStreamReader open(final String filename,
+            final long width, final long height) throws IOException {
+        final TiffParser parser = new TiffParser(filename);
+        try {
+            final IFDList ifds = parser.getIFDs();
+            for (final IFD ifd : ifds) {
+                if (ifd.isTiled() && ifd.getImageWidth() == width
+                        && ifd.getImageLength() == height) {
+                    if (ifd.getCompression() == TiffCompression.JPEG
+                            && ifd.getPhotometricInterpretation() == PhotoInterp.Y_CB_CR) {
+                        final Object tables = ifd
+                                .getIFDValue(IFD.JPEG_TABLES);
+                        if (tables == null || tables instanceof byte[]) {
+                            return new JpegTileStreamReader(parser, ifd,
+                                    (byte[]) tables);
+                        }
+                    }
+                    break;
+                }
+            }
+        } catch (FormatException e) {
+            LOG.warn("Could not read the image directories of " + filename,
+                    e);
+        }
+        parser.getStream().close();
+        return null;
+    }
+
+    private JpegTileStreamReader(final TiffParser parser, final IFD ifd,
+            final byte[] tables) throws FormatException {
+        stream = parser.getStream();
+        tileWidth = ifd.getTileWidth();
+        tileHeight = ifd.getTileLength();
+        tilesPerRow = ifd.getTilesPerRow();
+        imageWidth = ifd.getImageWidth();
+        imageHeight = ifd.getImageLength();
+        tileOffsets = ifd.getStripOffsets();
+        tileByteCounts = ifd.getStripByteCounts();
+        jpegTables = tables;
+    }
+
+    /**
+     * Reads the JPEG stream of a stored tile.
+     * 
+     * @param x
+     *            the x-coordinate of the region
+     * @param y
+     *            the y-coordinate of the region
+     * @param width
+     *            the width of the region
+     * @param height
+     *            the height of the region
+     * @return the complete JPEG stream, or null if the region isn't exactly one
+     *         stored tile
+     * @throws IOException
+     */
+    public byte[] read(final long x, final long y, final long width,
+            final long height) throws IOException {
+        // edge tiles are padded to the full tile size when they are stored
+        if (width != tileWidth || height != tileHeight || x % tileWidth != 0
+                || y % tileHeight != 0 || x + width > imageWidth
+                || y + height > imageHeight) {
+            return null;
+        }
+        final int index = (int) ((y / tileHeight) * tilesPerRow + x
+                / tileWidth);
+        if (index >= tileOffsets.length || tileByteCounts[index] < 4) {
+            return null;
+        }
+        final byte[] tile = new byte[(int) tileByteCounts[index]];
+        synchronized (stream) {
+            stream.seek(tileOffsets[index]);
+            stream.readFully(tile);
+        }
+        if (jpegTables == null || jpegTables.length < 4) {
+            return tile;
+        }
+        // tables without their EOI marker, then the tile without its SOI
+        final byte[] jpeg = new byte[jpegTables.length - 2 + tile.length - 2];
+        System.arraycopy(jpegTables, 0, jpeg, 0, jpegTables.length - 2);
+        System.arraycopy(tile, 2, jpeg, jpegTables.length - 2,
+                tile.length - 2);
+        return jpeg;
+    }
+
+    /**
+     * 
+     * @return the width of the stored tiles
+     */
+    public long getTileWidth() {
+        return tileWidth;
+    }
+
+    /**
+     * 
+     * @return the height of the stored tiles
+     */
+    public long getTileHeight() {
+        return tileHeight;
+    }
+
+    /**
+     * Closes the image file.
+     * 
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        stream.close();
+    }
+}
@@ -17,8 +17,11 @@
 package edu.isi.misd.image.gateway.conversion.loci;
 
 import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
 
 import loci.common.services.ServiceFactory;
+import loci.formats.FormatTools;
 import loci.formats.gui.BufferedImageReader;
 import loci.formats.meta.IMetadata;
 import loci.formats.services.OMEXMLService;
@@ -32,6 +35,11 @@ import edu.isi.misd.image.gateway.conversion.ImageConversion;
  * Class that is responsible for converting between two LOCI Bio-formats
  * supported types.
  * 
+ * The image is copied in strips, or in tiles if a tile size is set, that fit
+ * within a fixed buffer size, so the memory used doesn't grow with the size of
+ * the image. TIFF destinations are written as tiles when a tile size is set,
+ * and as BigTIFF files when the pixel data is too large for a TIFF file.
+ * 
  * @author David Smith
  * 
  */
@@ -42,18 +50,39 @@ public class LociConversionImplementation implements ImageConversion {
     private final String sourceFile;
     private final String destinationFile;
 
+    /**
+     * The default size of the buffer that the image is copied through, in
+     * bytes.
+     */
+    public static final long DEFAULT_MAX_BUFFER_SIZE = 64L * 1024 * 1024;
+
+    /**
+     * The pixel data size past which TIFF destinations are written as BigTIFF
+     * files, leaving room below 4 GB for the TIFF structures.
+     */
+    static final long BIG_TIFF_THRESHOLD = 0xF0000000L;
+
     private long maximumImageSize = 0;
     private final long minimumImageSize = 0;
 
+    private int tileWidth = 0;
+    private int tileHeight = 0;
+    private long maxBufferSize = DEFAULT_MAX_BUFFER_SIZE;
+
     public static void main(final String[] args) {
         if (args.length < 2) {
             System.err.println("Usage: " + ConvertImage.class.getName()
-                    + " <source file> <destination file>");
+                    + " <source file> <destination file> [tile size]");
+            System.exit(1);
         }
         final LociConversionImplementation convert = new LociConversionImplementation(
                 args[0],
                 args[1]);
         try {
+            if (args.length > 2) {
+                final int tileSize = Integer.parseInt(args[2]);
+                convert.setTileSize(tileSize, tileSize);
+            }
             convert.run();
         } catch (final Exception e) {
             LOG.error("Error converting the image.", e);
@@ -131,54 +160,147 @@ public class LociConversionImplementation implements ImageConversion {
                     "Cound not find an image series that fits within bounds.");
         }
         reader.setSeries(series);
-        final LociImageSource source = new LociImageSource(reader, omexml, 0);
-        final LociImageDestination destination = new LociImageDestination(
-                destinationFile, (int) source.getWidth(),
-                (int) source.getHeight(), omexml);
-
-        long remainingWidth = source.getWidth();
-        long remainingHeight = source.getHeight();
 
-        long readWidth, readHeight;
-        long x = 0, y = 0;
+        final long width = reader.getSizeX();
+        final long height = reader.getSizeY();
+        final int pixelSize = FormatTools.getBytesPerPixel(reader
+                .getPixelType()) * reader.getRGBChannelCount();
+        final int bufferWidth, bufferHeight;
+        if (tileWidth > 0) {
+            // the edge tiles are read smaller, but are written whole
+            bufferWidth = tileWidth;
+            bufferHeight = tileHeight;
+            if ((long) bufferWidth * bufferHeight * pixelSize > getBufferLimit()) {
+                throw new IllegalArgumentException("A " + tileWidth + "x"
+                        + tileHeight + " tile doesn't fit in a buffer of "
+                        + maxBufferSize + " bytes.");
+            }
+        } else {
+            final long rowSize = width * pixelSize;
+            if (rowSize > getBufferLimit()) {
+                throw new IllegalArgumentException("A row of " + width
+                        + " pixels doesn't fit in a buffer of "
+                        + maxBufferSize + " bytes; set a tile size.");
+            }
+            bufferWidth = (int) width;
+            bufferHeight = (int) Math.max(1,
+                    Math.min(height, getBufferLimit() / rowSize));
+        }
 
-        final long bufferWidth = source.getWidth();
-        final long bufferHeight = source.getHeight();
+        final boolean bigTiff = width * height * pixelSize > BIG_TIFF_THRESHOLD;
+        final LociImageDestination destination = new LociImageDestination(
+                destinationFile, (int) width, (int) height, omexml, bigTiff);
+        if (tileWidth > 0) {
+            destination.setTileSize(bufferWidth, bufferHeight);
+        }
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Copying series " + series + " in " + bufferWidth + "x"
+                    + bufferHeight + " regions"
+                    + (bigTiff ? " to a BigTIFF file." : "."));
+        }
 
-        boolean finished = false;
-        while (!finished) {
-            if (remainingWidth > bufferWidth) {
-                readWidth = bufferWidth;
-            } else {
-                readWidth = remainingWidth;
-            }
-            if (remainingHeight > bufferHeight) {
-                readHeight = bufferHeight;
-            } else {
-                readHeight = remainingHeight;
+        // the edge regions are smaller, so a buffer is kept for each size
+        final Map<Integer, byte[]> buffers = new HashMap<Integer, byte[]>();
+        try {
+            for (long y = 0; y < height; y += bufferHeight) {
+                final int readHeight = (int) Math.min(bufferHeight, height - y);
+                for (long x = 0; x < width; x += bufferWidth) {
+                    final int readWidth = (int) Math.min(bufferWidth, width
+                            - x);
+                    final Integer length = Integer.valueOf(readWidth
+                            * readHeight * pixelSize);
+                    byte[] bytes = buffers.get(length);
+                    if (bytes == null) {
+                        bytes = new byte[length.intValue()];
+                        buffers.put(length, bytes);
+                    }
+                    reader.openBytes(0, bytes, (int) x, (int) y, readWidth,
+                            readHeight);
+                    destination.writeBytes(bytes, x, y, readWidth, readHeight);
+                }
             }
+        } finally {
+            destination.close();
+            reader.close();
+        }
+    }
 
-            final byte[] bytes = source.readBytes(x, y, readWidth, readHeight);
-            destination.writeBytes(bytes, x, y, readWidth, readHeight);
-            x += readWidth;
+    /**
+     * Sets the size of the regions that the image is copied in. TIFF
+     * destinations are written as tiles of this size.
+     * 
+     * @param width
+     *            the tile width, a multiple of 16, or 0 to copy the image in
+     *            strips
+     * @param height
+     *            the tile height, a multiple of 16, or 0 to copy the image in
+     *            strips
+     */
+    public void setTileSize(final int width, final int height) {
+        if (width < 0 || height < 0) {
+            throw new IllegalArgumentException(
+                    "Tile width and height must be >= 0.");
+        }
+        if (width % 16 != 0 || height % 16 != 0) {
+            throw new IllegalArgumentException(
+                    "Tile width and height must be multiples of 16.");
+        }
+        if (width == 0 || height == 0) {
+            tileWidth = 0;
+            tileHeight = 0;
+        } else {
+            tileWidth = width;
+            tileHeight = height;
+        }
+    }
 
-            remainingWidth -= readWidth;
+    /**
+     * 
+     * @return the tile width, or 0 if the image is copied in strips
+     */
+    public int getTileWidth() {
+        return tileWidth;
+    }
 
-            if (remainingWidth == 0) {
-                y += readHeight;
-                remainingHeight -= readHeight;
+    /**
+     * 
+     * @return the tile height, or 0 if the image is copied in strips
+     */
+    public int getTileHeight() {
+        return tileHeight;
+    }
 
-                if (remainingHeight == 0) {
-                    finished = true;
-                } else {
-                    x = 0;
-                    remainingWidth = source.getWidth();
-                }
-            }
+    /**
+     * Sets the most bytes that a region of the image can use while it is
+     * copied.
+     * 
+     * @param size
+     *            the buffer size in bytes
+     */
+    public void setMaxBufferSize(final long size) {
+        if (size <= 0) {
+            throw new IllegalArgumentException(
+                    "Maximum buffer size must be > 0");
         }
+        maxBufferSize = size;
+    }
 
-        destination.close();
-        source.close();
+    /**
+     * 
+     * @return the most bytes that a region of the image can use while it is
+     *         copied
+     */
+    public long getMaxBufferSize() {
+        return maxBufferSize;
+    }
+
+    /**
+     * 
+     * @return the buffer size, limited to the largest array that can be
+     *         allocated
+     */
+    private long getBufferLimit() {
+        return Math.min(maxBufferSize, Integer.MAX_VALUE - 8);
     }
 
     @Override
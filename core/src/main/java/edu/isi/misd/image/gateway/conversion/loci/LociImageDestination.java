@@ -24,6 +24,8 @@ import loci.formats.FormatException;
 import loci.formats.IFormatWriter;
 import loci.formats.ImageWriter;
 import loci.formats.meta.IMetadata;
+import loci.formats.out.TiffWriter;
+import loci.formats.tiff.IFD;
 import ome.xml.model.primitives.PositiveInteger;
 import edu.isi.misd.image.gateway.conversion.ImageDestination;
 import edu.isi.misd.image.gateway.conversion.ImageDestinationFactory;
@@ -40,8 +42,12 @@ public class LociImageDestination implements ImageDestination {
     private final IMetadata omexml;
     private final String destinationFile;
     private final IFormatWriter writer;
+    private final TiffWriter tiffWriter;
 
-    private final int seriesNumber;
+    private int tileWidth = 0;
+    private int tileHeight = 0;
+
+    private int seriesNumber;
     private final int imageNumber;
 
     private static final TreeMap<String, String> supportedTypes = new TreeMap<String, String>();
@@ -93,6 +99,25 @@ public class LociImageDestination implements ImageDestination {
     public LociImageDestination(final String destinationFilename,
             final int width, final int height, final IMetadata metadata)
     throws IOException, FormatException {
+        this(destinationFilename, width, height, metadata, false);
+    }
+
+    /**
+     * Constructor
+     * 
+     * @param destinationFilename
+     * @param width
+     * @param height
+     * @param metadata
+     * @param bigTiff
+     *            true to write a BigTIFF file if the destination is a TIFF
+     *            file, which is needed once the pixel data passes 4 GB
+     * @throws IOException
+     * @throws FormatException
+     */
+    public LociImageDestination(final String destinationFilename,
+            final int width, final int height, final IMetadata metadata,
+            final boolean bigTiff) throws IOException, FormatException {
         if (destinationFilename == null || destinationFilename.length() == 0) {
             throw new IllegalArgumentException(
             "Destination filename must be specified.");
@@ -116,13 +141,71 @@ public class LociImageDestination implements ImageDestination {
         omexml.setPixelsSizeX(new PositiveInteger(width), imageNumber);
         omexml.setPixelsSizeY(new PositiveInteger(height), imageNumber);
 
-        writer = new ImageWriter();
+        final ImageWriter imageWriter = new ImageWriter();
+        final IFormatWriter formatWriter = imageWriter
+                .getWriter(destinationFile);
+        if (formatWriter instanceof TiffWriter) {
+            tiffWriter = (TiffWriter) formatWriter;
+            tiffWriter.setBigTiff(bigTiff);
+        } else {
+            tiffWriter = null;
+        }
+        writer = imageWriter;
 
         writer.setMetadataRetrieve(omexml);
         writer.setId(destinationFile);
         writer.setSeries(seriesNumber);
     }
 
+    /**
+     * Sets the size of the tiles that a TIFF destination is written in. Each
+     * region given to {@link #writeBytes(byte[], long, long, long, long)}
+     * must then start on a tile boundary. The size is ignored for other
+     * formats.
+     * 
+     * @param width
+     *            the tile width, or 0 to write strips
+     * @param height
+     *            the tile height, or 0 to write strips
+     */
+    public void setTileSize(final int width, final int height) {
+        if (width < 0 || height < 0) {
+            throw new IllegalArgumentException(
+                    "Tile width and height must be >= 0.");
+        }
+        if (width == 0 || height == 0) {
+            tileWidth = 0;
+            tileHeight = 0;
+        } else {
+            tileWidth = width;
+            tileHeight = height;
+        }
+    }
+
+    /**
+     * Moves on to another series of the destination, such as a reduced
+     * resolution level of the image, whose size is given by the metadata.
+     * Every region of a series must be written before moving on to the next
+     * one.
+     * 
+     * @param series
+     *            the series number
+     * @throws FormatException
+     *             if the destination doesn't have the series
+     */
+    public void setSeries(final int series) throws FormatException {
+        writer.setSeries(series);
+        seriesNumber = series;
+    }
+
+    /**
+     * 
+     * @return true if the destination is written as TIFF tiles
+     */
+    public boolean isTiled() {
+        return tiffWriter != null && tileWidth > 0;
+    }
+
     @Override
     public void writeBytes(final byte[] bytes) throws Exception {
         writer.saveBytes(imageNumber, bytes);
@@ -131,6 +214,14 @@ public class LociImageDestination implements ImageDestination {
     @Override
     public void writeBytes(final byte[] bytes, final long x, final long y,
             final long width, final long height) throws Exception {
+        if (isTiled()) {
+            final IFD ifd = new IFD();
+            ifd.put(Integer.valueOf(IFD.TILE_WIDTH), Long.valueOf(tileWidth));
+            ifd.put(Integer.valueOf(IFD.TILE_LENGTH), Long.valueOf(tileHeight));
+            tiffWriter.saveBytes(imageNumber, bytes, ifd, (int) x, (int) y,
+                    (int) width, (int) height);
+            return;
+        }
         writer.saveBytes(imageNumber, bytes, (int) x, (int) y, (int) width,
                 (int) height);
     }
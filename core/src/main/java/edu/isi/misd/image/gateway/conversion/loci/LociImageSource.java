@@ -30,16 +30,15 @@ import java.util.TreeSet;
 
 import loci.common.services.DependencyException;
 import loci.common.services.ServiceException;
-import loci.common.services.ServiceFactory;
 import loci.formats.FormatException;
 import loci.formats.IFormatReader;
 import loci.formats.ImageReader;
 import loci.formats.gui.BufferedImageReader;
 import loci.formats.meta.IMetadata;
-import loci.formats.services.OMEXMLService;
 
 import org.apache.log4j.Logger;
 
+import edu.isi.misd.image.gateway.conversion.ConversionEvents;
 import edu.isi.misd.image.gateway.conversion.ImageFormatException;
 import edu.isi.misd.image.gateway.conversion.ImageInformation;
 import edu.isi.misd.image.gateway.conversion.ImageInformationFactory;
@@ -58,6 +57,8 @@ public class LociImageSource implements ImageSource {
 
     private final BufferedImageReader reader;
     private final IMetadata omexml;
+    private final LociReaderCache.CachedReader cachedReader;
+    private boolean released = false;
     private final String imageFilename;
     private int seriesNumber;
     private final int imageNumber;
@@ -65,6 +66,11 @@ public class LociImageSource implements ImageSource {
     private static final TreeSet<String> supportedTypes = new TreeSet<String>();
 
     private final ImageInformation imageInformation;
+
+    private static final String SVS = "svs";
+
+    private JpegTileStreamReader jpegTileReader = null;
+    private int jpegTileSeries = -1;
 
     public static void registerTypes() {
         final ImageReader baseReader = new ImageReader();
@@ -139,6 +145,7 @@ public class LociImageSource implements ImageSource {
     public LociImageSource(final BufferedImageReader imageReader,
             final IMetadata metadata, final int image) {
         reader = imageReader;
+        cachedReader = null;
         imageNumber = image;
 
         omexml = metadata;
@@ -187,14 +194,16 @@ public class LociImageSource implements ImageSource {
         seriesNumber = series;
         imageNumber = image;
 
-        final ServiceFactory factory = new ServiceFactory();
-        final OMEXMLService service = factory.getInstance(OMEXMLService.class);
-        omexml = service.createOMEXMLMetadata();
-
-        reader = new BufferedImageReader();
-        reader.setMetadataStore(omexml);
-        reader.setId(imageFilename);
+        // reuse the parsed reader of a recently closed source of this file
+        final long start = System.nanoTime();
+        cachedReader = LociReaderCache.open(imageFilename);
+        reader = cachedReader.reader;
+        omexml = cachedReader.metadata;
         reader.setSeries(seriesNumber);
+        if (ConversionEvents.isEnabled()) {
+            ConversionEvents.slideOpened(imageFilename, reader.getFormat(),
+                    seriesNumber, System.nanoTime() - start);
+        }
 
         imageInformation = ImageInformationFactory
                 .getImageInformation(imageFilename);
@@ -274,11 +283,16 @@ public class LociImageSource implements ImageSource {
     public byte[] readBytes(final long x, final long y, final long width,
             final long height) throws IOException {
         byte[] bytes = null;
+        final long start = System.nanoTime();
         try {
             bytes = reader.openBytes(imageNumber, (int) x, (int) y,
                     (int) width, (int) height);
         } catch (final FormatException e) {
             throw new IOException(e.getMessage());
+        }
+        if (ConversionEvents.isEnabled()) {
+            ConversionEvents.regionRead(imageFilename, x, y, width, height,
+                    bytes.length, System.nanoTime() - start);
         }
         return bytes;
     }
@@ -291,17 +305,56 @@ public class LociImageSource implements ImageSource {
             LOG.debug("Reading bytes from offset " + (int) x + "x" + (int) y
                     + " of dimensions " + width + "x" + height);
         }
+        final long start = System.nanoTime();
         try {
             image = reader.openImage(imageNumber, (int) x, (int) y,
                     (int) width,
                     (int) height);
         } catch (final FormatException e) {
             throw new IOException(e.getMessage());
+        }
+        if (ConversionEvents.isEnabled()) {
+            ConversionEvents.regionRead(imageFilename, x, y, width, height,
+                    width * height
+                            * image.getColorModel().getNumComponents(),
+                    System.nanoTime() - start);
         }
         return image;
     }
 
     @Override
+    public byte[] readCompressedTile(final long x, final long y,
+            final long width, final long height) throws IOException {
+        if (imageNumber != 0
+                || !imageFilename.toLowerCase().endsWith("." + SVS)) {
+            return null;
+        }
+        if (jpegTileSeries != seriesNumber) {
+            if (jpegTileReader != null) {
+                jpegTileReader.close();
+            }
+            jpegTileReader = JpegTileStreamReader.open(imageFilename,
+                    getWidth(), getHeight());
+            jpegTileSeries = seriesNumber;
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("Compressed tiles of series " + seriesNumber
+                        + (jpegTileReader == null ? " can't" : " can")
+                        + " be copied.");
+            }
+        }
+        if (jpegTileReader == null) {
+            return null;
+        }
+        final long start = System.nanoTime();
+        final byte[] tile = jpegTileReader.read(x, y, width, height);
+        if (tile != null && ConversionEvents.isEnabled()) {
+            ConversionEvents.regionRead(imageFilename, x, y, width, height,
+                    tile.length, System.nanoTime() - start);
+        }
+        return tile;
+    }
+
+    @Override
     public long getWidth() {
         return reader.getSizeX();
     }
@@ -312,13 +365,36 @@ public class LociImageSource implements ImageSource {
     }
 
     @Override
+    public int getOptimalTileWidth() {
+        return reader.getOptimalTileWidth();
+    }
+
+    @Override
+    public int getOptimalTileHeight() {
+        return reader.getOptimalTileHeight();
+    }
+
+    @Override
     public String getFilename() {
         return imageFilename;
     }
 
     @Override
     public void close() throws IOException {
-        reader.close();
+        if (jpegTileReader != null) {
+            jpegTileReader.close();
+            jpegTileReader = null;
+            jpegTileSeries = -1;
+        }
+        if (cachedReader != null) {
+            // the reader may be handed to another source once it is released
+            if (!released) {
+                released = true;
+                LociReaderCache.release(cachedReader);
+            }
+        } else {
+            reader.close();
+        }
     }
 
     @Override
@@ -0,0 +1,306 @@
+/*
+ * Copyright 2011 University of Southern California
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.isi.misd.image.gateway.conversion.loci;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import loci.common.services.DependencyException;
+import loci.common.services.ServiceException;
+import loci.common.services.ServiceFactory;
+import loci.formats.FormatException;
+import loci.formats.gui.BufferedImageReader;
+import loci.formats.meta.IMetadata;
+import loci.formats.services.OMEXMLService;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Keeps the readers of recently closed LOCI image sources open, so that
+ * opening the same image again reuses the parsed reader instead of parsing
+ * the file again. Readers are matched on the file's path, size and last
+ * modified time, so a file that has changed is parsed again. Idle readers
+ * are closed after a timeout, or when there are too many of them.
+ * 
+ * @author David Smith
+ * 
+ */
+public class LociReaderCache {
+
+    private static final Logger LOG = Logger.getLogger(LociReaderCache.class);
+
+    /**
+     * The default number of idle readers kept.
+     */
+    public static final int DEFAULT_MAX_IDLE_READERS = 4;
+
+    /**
+     * The default time an idle reader is kept, in milliseconds.
+     */
+    public static final long DEFAULT_IDLE_TIMEOUT = 60000;
+
+    private static final LinkedList<CachedReader> idleReaders = new LinkedList<CachedReader>();
+    private static int maxIdleReaders = DEFAULT_MAX_IDLE_READERS;
+    private static long idleTimeout = DEFAULT_IDLE_TIMEOUT;
+    private static Timer timer = null;
+    private static TimerTask sweep = null;
+
+    private LociReaderCache() {
+    }
+
+    /**
+     * Sets the number of idle readers kept. 0 turns off the cache.
+     * 
+     * @param readers
+     *            the most idle readers to keep
+     */
+    public static void setMaxIdleReaders(final int readers) {
+        if (readers < 0) {
+            throw new IllegalArgumentException(
+                    "Number of idle readers cannot be < 0.");
+        }
+        synchronized (idleReaders) {
+            maxIdleReaders = readers;
+        }
+        closeReaders(removeExcessReaders());
+    }
+
+    /**
+     * Sets how long an idle reader is kept.
+     * 
+     * @param millis
+     *            the idle timeout in milliseconds
+     */
+    public static void setIdleTimeout(final long millis) {
+        if (millis < 1) {
+            throw new IllegalArgumentException(
+                    "Idle timeout must be at least 1 ms.");
+        }
+        synchronized (idleReaders) {
+            idleTimeout = millis;
+            if (sweep != null) {
+                // sweep at the new timeout instead of the one in effect when
+                // the timer was started
+                sweep.cancel();
+                scheduleSweep();
+            }
+        }
+        closeReaders(removeExpiredReaders());
+    }
+
+    /**
+     * 
+     * @return the number of readers currently kept
+     */
+    public static int getNumberOfIdleReaders() {
+        synchronized (idleReaders) {
+            return idleReaders.size();
+        }
+    }
+
+    /**
+     * Closes the idle readers of a file, such as before it is deleted.
+     * 
+     * @param filename
+     *            the image filename
+     */
+    public static void evict(final String filename) {
+        if (filename == null) {
+            throw new IllegalArgumentException("Filename cannot be null.");
+        }
+        final String path = getPath(filename);
+        final List<CachedReader> evicted = new ArrayList<CachedReader>();
+        synchronized (idleReaders) {
+            final Iterator<CachedReader> i = idleReaders.iterator();
+            while (i.hasNext()) {
+                final CachedReader cached = i.next();
+                if (cached.key.startsWith(path + "|")) {
+                    i.remove();
+                    evicted.add(cached);
+                }
+            }
+        }
+        closeReaders(evicted);
+    }
+
+    /**
+     * Closes all of the idle readers.
+     */
+    public static void clear() {
+        final List<CachedReader> evicted;
+        synchronized (idleReaders) {
+            evicted = new ArrayList<CachedReader>(idleReaders);
+            idleReaders.clear();
+        }
+        closeReaders(evicted);
+    }
+
+    /**
+     * Returns an idle reader of the file, or opens a new one.
+     * 
+     * @param filename
+     *            the image filename
+     * @return a reader that has been set to the file
+     */
+    static CachedReader open(final String filename)
+            throws DependencyException, ServiceException, IOException,
+            FormatException {
+        final String key = getKey(filename);
+        closeReaders(removeExpiredReaders());
+        synchronized (idleReaders) {
+            final Iterator<CachedReader> i = idleReaders.iterator();
+            while (i.hasNext()) {
+                final CachedReader cached = i.next();
+                if (cached.key.equals(key)) {
+                    i.remove();
+                    if (LOG.isDebugEnabled()) {
+                        LOG.debug("Reusing the parsed reader of " + filename);
+                    }
+                    return cached;
+                }
+            }
+        }
+        final ServiceFactory factory = new ServiceFactory();
+        final OMEXMLService service = factory.getInstance(OMEXMLService.class);
+        final IMetadata omexml = service.createOMEXMLMetadata();
+
+        final BufferedImageReader reader = new BufferedImageReader();
+        reader.setMetadataStore(omexml);
+        reader.setId(filename);
+        return new CachedReader(key, reader, omexml);
+    }
+
+    /**
+     * Keeps a reader that is no longer used, or closes it if the cache is
+     * off or the file has changed since it was opened.
+     * 
+     * @param cached
+     *            the reader
+     */
+    static void release(final CachedReader cached) throws IOException {
+        boolean keep;
+        synchronized (idleReaders) {
+            if (idleReaders.contains(cached)) {
+                return;
+            }
+            keep = maxIdleReaders > 0
+                    && cached.key.equals(getKey(cached.reader.getCurrentFile()));
+            if (keep) {
+                cached.releaseTime = System.currentTimeMillis();
+                idleReaders.addFirst(cached);
+                if (timer == null) {
+                    timer = new Timer("LociReaderCache", true);
+                    scheduleSweep();
+                }
+            }
+        }
+        if (keep) {
+            closeReaders(removeExcessReaders());
+        } else {
+            cached.reader.close();
+        }
+    }
+
+    /**
+     * Schedules closing the expired readers every idle timeout. Must be
+     * called while holding the lock on the idle readers.
+     */
+    private static void scheduleSweep() {
+        sweep = new TimerTask() {
+            @Override
+            public void run() {
+                closeReaders(removeExpiredReaders());
+            }
+        };
+        timer.schedule(sweep, idleTimeout, idleTimeout);
+    }
+
+    private static List<CachedReader> removeExcessReaders() {
+        final List<CachedReader> evicted = new ArrayList<CachedReader>();
+        synchronized (idleReaders) {
+            while (idleReaders.size() > maxIdleReaders) {
+                evicted.add(idleReaders.removeLast());
+            }
+        }
+        return evicted;
+    }
+
+    private static List<CachedReader> removeExpiredReaders() {
+        final List<CachedReader> evicted = new ArrayList<CachedReader>();
+        final long now = System.currentTimeMillis();
+        synchronized (idleReaders) {
+            final Iterator<CachedReader> i = idleReaders.iterator();
+            while (i.hasNext()) {
+                final CachedReader cached = i.next();
+                if (now - cached.releaseTime >= idleTimeout) {
+                    i.remove();
+                    evicted.add(cached);
+                }
+            }
+        }
+        return evicted;
+    }
+
+    private static void closeReaders(final List<CachedReader> readers) {
+        for (final CachedReader cached : readers) {
+            try {
+                cached.reader.close();
+            } catch (IOException e) {
+                LOG.warn("Could not close idle reader.", e);
+            }
+        }
+    }
+
+    private static String getPath(final String filename) {
+        final File f = new File(filename);
+        try {
+            return f.getCanonicalPath();
+        } catch (IOException e) {
+            return f.getAbsolutePath();
+        }
+    }
+
+    private static String getKey(final String filename) {
+        final File f = new File(filename);
+        return new StringBuffer(getPath(filename)).append("|")
+                .append(f.length()).append("|").append(f.lastModified())
+                .toString();
+    }
+
+    /**
+     * A reader and the metadata it was parsed into.
+     */
+    static final class CachedReader {
+        private final String key;
+        final BufferedImageReader reader;
+        final IMetadata metadata;
+        private long releaseTime;
+
+        private CachedReader(final String readerKey,
+                final BufferedImageReader imageReader, final IMetadata omexml) {
+            key = readerKey;
+            reader = imageReader;
+            metadata = omexml;
+        }
+    }
+}
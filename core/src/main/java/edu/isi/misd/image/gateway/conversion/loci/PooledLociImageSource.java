@@ -0,0 +1,399 @@
+/*
+ * Copyright 2011 University of Southern California
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.isi.misd.image.gateway.conversion.loci;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import loci.formats.FormatException;
+
+import org.apache.log4j.Logger;
+
+import edu.isi.misd.image.gateway.conversion.ConcurrentImageSource;
+import edu.isi.misd.image.gateway.conversion.ConversionEvents;
+import edu.isi.misd.image.gateway.conversion.ImageFormatException;
+import edu.isi.misd.image.gateway.conversion.loci.LociReaderCache.CachedReader;
+
+/**
+ * Image source that reads regions of an image with a pool of LOCI readers, so
+ * that several threads can decode the same image at once. The metadata,
+ * thumbnail and compressed tile methods use the image source the pool was
+ * created from. A reader is leased for each region that is read and set to
+ * the current series before it is used.
+ * 
+ * The pooled readers are taken from the LociReaderCache and given back to it
+ * when the pool is closed, so a later export of the same file, or another
+ * image source opened on it, reuses readers that have already parsed it. A
+ * LOCI reader can't share the parsed state of another reader, so each reader
+ * the cache doesn't already hold parses the file once when it is opened.
+ * 
+ * The image source the pool is created from may be shared with other users,
+ * such as through a SharedImageSource, as long as they synchronize on it too;
+ * the pool sets it back to its own series before each call.
+ * 
+ * @author David Smith
+ * 
+ */
+public class PooledLociImageSource implements ConcurrentImageSource {
+
+    private static final Logger LOG = Logger
+            .getLogger(PooledLociImageSource.class);
+
+    private final LociImageSource primary;
+    private final int maxReaders;
+    private final boolean closeSource;
+    private final BlockingQueue<CachedReader> idleReaders = new LinkedBlockingQueue<CachedReader>();
+    private final List<CachedReader> openedReaders = new ArrayList<CachedReader>();
+    private volatile int seriesNumber;
+    private boolean closed = false;
+
+    /**
+     * Constructor.
+     * 
+     * @param source
+     *            the image source that metadata is read from; it is closed
+     *            when this source is closed
+     * @param readers
+     *            the most readers to open for reading regions
+     */
+    public PooledLociImageSource(final LociImageSource source,
+            final int readers) {
+        this(source, readers, true);
+    }
+
+    /**
+     * Constructor.
+     * 
+     * @param source
+     *            the image source that metadata is read from
+     * @param readers
+     *            the most readers to open for reading regions
+     * @param close
+     *            true to close the image source when this source is closed,
+     *            false to leave it open for its other users
+     */
+    public PooledLociImageSource(final LociImageSource source,
+            final int readers, final boolean close) {
+        if (source == null) {
+            throw new IllegalArgumentException("Image source cannot be null.");
+        }
+        if (readers < 1) {
+            throw new IllegalArgumentException(
+                    "Number of readers must be at least 1.");
+        }
+        primary = source;
+        maxReaders = readers;
+        closeSource = close;
+        synchronized (primary) {
+            seriesNumber = source.getSeriesNumber();
+        }
+    }
+
+    @Override
+    public byte[] readBytes(final long x, final long y, final long width,
+            final long height) throws IOException {
+        final CachedReader reader = leaseReader();
+        byte[] bytes = null;
+        final long start = System.nanoTime();
+        try {
+            bytes = reader.reader.openBytes(primary.getImageNumber(), (int) x,
+                    (int) y, (int) width, (int) height);
+        } catch (final FormatException e) {
+            throw new IOException(e.getMessage());
+        } finally {
+            releaseReader(reader);
+        }
+        if (ConversionEvents.isEnabled()) {
+            ConversionEvents.regionRead(primary.getFilename(), x, y, width,
+                    height, bytes.length, System.nanoTime() - start);
+        }
+        return bytes;
+    }
+
+    @Override
+    public BufferedImage readImage(final long x, final long y,
+            final long width, final long height) throws IOException {
+        final CachedReader reader = leaseReader();
+        BufferedImage image = null;
+        final long start = System.nanoTime();
+        try {
+            image = reader.reader.openImage(primary.getImageNumber(), (int) x,
+                    (int) y, (int) width, (int) height);
+        } catch (final FormatException e) {
+            throw new IOException(e.getMessage());
+        } finally {
+            releaseReader(reader);
+        }
+        if (ConversionEvents.isEnabled()) {
+            ConversionEvents.regionRead(primary.getFilename(), x, y, width,
+                    height, width * height
+                            * image.getColorModel().getNumComponents(),
+                    System.nanoTime() - start);
+        }
+        return image;
+    }
+
+    @Override
+    public byte[] readCompressedTile(final long x, final long y,
+            final long width, final long height) throws IOException {
+        synchronized (primary) {
+            return select().readCompressedTile(x, y, width, height);
+        }
+    }
+
+    @Override
+    public long getWidth() {
+        synchronized (primary) {
+            return select().getWidth();
+        }
+    }
+
+    @Override
+    public long getHeight() {
+        synchronized (primary) {
+            return select().getHeight();
+        }
+    }
+
+    @Override
+    public int getOptimalTileWidth() {
+        synchronized (primary) {
+            return select().getOptimalTileWidth();
+        }
+    }
+
+    @Override
+    public int getOptimalTileHeight() {
+        synchronized (primary) {
+            return select().getOptimalTileHeight();
+        }
+    }
+
+    @Override
+    public String getFilename() {
+        return primary.getFilename();
+    }
+
+    @Override
+    public int getSeriesNumber() {
+        return seriesNumber;
+    }
+
+    @Override
+    public int getImageNumber() {
+        return primary.getImageNumber();
+    }
+
+    @Override
+    public void setSeriesNumber(final int series) {
+        synchronized (primary) {
+            primary.setSeriesNumber(series);
+            seriesNumber = series;
+        }
+    }
+
+    @Override
+    public int getSeriesCount() {
+        synchronized (primary) {
+            return select().getSeriesCount();
+        }
+    }
+
+    @Override
+    public Map<String, Object> getGlobalMetadata() {
+        synchronized (primary) {
+            return select().getGlobalMetadata();
+        }
+    }
+
+    @Override
+    public Map<String, Object> getSeriesMetadata() {
+        synchronized (primary) {
+            return select().getSeriesMetadata();
+        }
+    }
+
+    @Override
+    public Object getMetadataValue(final String key) {
+        synchronized (primary) {
+            return select().getMetadataValue(key);
+        }
+    }
+
+    @Override
+    public Object getSeriesMetadataValue(final String key) {
+        synchronized (primary) {
+            return select().getSeriesMetadataValue(key);
+        }
+    }
+
+    @Override
+    public List<String> getRelevantFiles() {
+        synchronized (primary) {
+            return select().getRelevantFiles();
+        }
+    }
+
+    @Override
+    public BufferedImage getThumbnailImage() throws ImageFormatException {
+        synchronized (primary) {
+            return select().getThumbnailImage();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        final List<CachedReader> readers = new ArrayList<CachedReader>();
+        synchronized (this) {
+            closed = true;
+            // readers that are leased are released when they are given back
+            idleReaders.drainTo(readers);
+            openedReaders.removeAll(readers);
+        }
+        for (final CachedReader cached : readers) {
+            releaseToCache(cached);
+        }
+        if (closeSource) {
+            synchronized (primary) {
+                primary.close();
+            }
+        }
+    }
+
+    /**
+     * 
+     * @return the number of readers that have been opened
+     */
+    public synchronized int getNumberOfReaders() {
+        return openedReaders.size();
+    }
+
+    /**
+     * Sets the image source the pool was created from to the pool's series,
+     * in case another user of it changed the series. Must be called while
+     * holding the source's lock.
+     */
+    private LociImageSource select() {
+        if (primary.getSeriesNumber() != seriesNumber) {
+            primary.setSeriesNumber(seriesNumber);
+        }
+        return primary;
+    }
+
+    /**
+     * Leases an idle reader, opening a new one if all are in use and there
+     * are fewer than the maximum, or otherwise waiting for one to be
+     * released. The reader is set to the current series.
+     */
+    private CachedReader leaseReader() throws IOException {
+        CachedReader cached = idleReaders.poll();
+        if (cached == null) {
+            boolean open;
+            synchronized (this) {
+                if (closed) {
+                    throw new IOException("Image source "
+                            + primary.getFilename() + " is closed.");
+                }
+                open = openedReaders.size() < maxReaders;
+                if (open) {
+                    // hold the place of the new reader
+                    openedReaders.add(null);
+                }
+            }
+            if (open) {
+                cached = openReader();
+            } else {
+                try {
+                    cached = idleReaders.take();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException(
+                            "Interrupted while waiting for a reader.");
+                }
+            }
+        }
+        final int series = seriesNumber;
+        if (cached.reader.getSeries() != series) {
+            cached.reader.setSeries(series);
+        }
+        return cached;
+    }
+
+    /**
+     * Takes a parsed reader of the file from the reader cache, or opens one.
+     */
+    private CachedReader openReader() throws IOException {
+        final CachedReader cached;
+        try {
+            cached = LociReaderCache.open(primary.getFilename());
+        } catch (final Exception e) {
+            synchronized (this) {
+                // give up the place of the reader that could not be opened
+                openedReaders.remove(null);
+            }
+            if (e instanceof IOException) {
+                throw (IOException) e;
+            }
+            final IOException thrown = new IOException("Could not open "
+                    + primary.getFilename());
+            thrown.initCause(e);
+            throw thrown;
+        }
+        synchronized (this) {
+            openedReaders.remove(null);
+            if (!closed) {
+                openedReaders.add(cached);
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug("Opened reader " + openedReaders.size() + " of "
+                            + maxReaders + " for " + primary.getFilename());
+                }
+                return cached;
+            }
+        }
+        releaseToCache(cached);
+        throw new IOException("Image source " + primary.getFilename()
+                + " is closed.");
+    }
+
+    private void releaseReader(final CachedReader cached) {
+        synchronized (this) {
+            if (!closed) {
+                idleReaders.offer(cached);
+                return;
+            }
+            openedReaders.remove(cached);
+        }
+        releaseToCache(cached);
+    }
+
+    /**
+     * Gives a reader back to the reader cache, which keeps it open for the
+     * next image source of the file or closes it.
+     */
+    private static void releaseToCache(final CachedReader cached) {
+        try {
+            LociReaderCache.release(cached);
+        } catch (IOException e) {
+            LOG.warn("Could not close pooled reader.", e);
+        }
+    }
+}
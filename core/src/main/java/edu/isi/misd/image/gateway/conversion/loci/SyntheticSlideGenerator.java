@@ -0,0 +1,453 @@
+/*
+ * Copyright 2011 University of Southern California
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.isi.misd.image.gateway.conversion.loci;
+
+import loci.common.services.ServiceFactory;
+import loci.formats.MetadataTools;
+import loci.formats.meta.IMetadata;
+import loci.formats.services.OMEXMLService;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Writes a synthetic slide image of any size to a TIFF file through LOCI
+ * Bio-Formats, for performance tests that need inputs as large as real
+ * slides. The pixels are made from a seed, so the same settings always give
+ * the same image: stained-looking regions with noise, which compress like
+ * slide tissue, and optionally blank background regions.
+ *
+ * Each pixel is computed from its coordinates alone, so the image is written
+ * a tile or a strip at a time, and the memory used doesn't grow with the
+ * size of the image. The reduced resolution levels of a pyramid are written
+ * as further series of the file, each half the size of the one before.
+ * Files whose pixel data is too large for a TIFF file are written as BigTIFF
+ * files.
+ *
+ * @author David Smith
+ *
+ */
+public class SyntheticSlideGenerator {
+
+    private static final Logger LOG = Logger
+            .getLogger(SyntheticSlideGenerator.class);
+
+    private static final String USAGE = "Usage: "
+            + SyntheticSlideGenerator.class.getName()
+            + " <destination file> <width> <height> [--tile-size=<n>]"
+            + " [--strips] [--pyramid-levels=<n>] [--blank-fraction=<0-1>]"
+            + " [--seed=<n>] [--bigtiff]";
+
+    private static final String TILE_SIZE_OPTION = "--tile-size=";
+    private static final String STRIPS_OPTION = "--strips";
+    private static final String PYRAMID_LEVELS_OPTION = "--pyramid-levels=";
+    private static final String BLANK_FRACTION_OPTION = "--blank-fraction=";
+    private static final String SEED_OPTION = "--seed=";
+    private static final String BIG_TIFF_OPTION = "--bigtiff";
+
+    /**
+     * The default size of the tiles the image is written in
+     */
+    public static final int DEFAULT_TILE_SIZE = 512;
+
+    private static final int SAMPLES_PER_PIXEL = 3;
+
+    // the size of the regions that the stain is blended between
+    private static final int CELL_SHIFT = 6;
+    private static final int CELL_SIZE = 1 << CELL_SHIFT;
+
+    // the size of the regions that are either tissue or blank background
+    private static final int BLOCK_SIZE = 1024;
+
+    private static final long STRIP_BYTES = 8L * 1024 * 1024;
+
+    private final String destinationFile;
+    private final int imageWidth;
+    private final int imageHeight;
+
+    private int tileSize = DEFAULT_TILE_SIZE;
+    private int pyramidLevels = 0;
+    private double blankFraction = 0;
+    private long seed = 0;
+    private boolean bigTiff = false;
+
+    public static void main(final String[] args) {
+        if (args.length < 3) {
+            System.err.println(USAGE);
+            System.exit(1);
+        }
+        try {
+            final SyntheticSlideGenerator generator = new SyntheticSlideGenerator(
+                    args[0], Integer.parseInt(args[1]),
+                    Integer.parseInt(args[2]));
+            for (int i = 3; i < args.length; i++) {
+                if (args[i].startsWith(TILE_SIZE_OPTION)) {
+                    generator.setTileSize(Integer.parseInt(args[i]
+                            .substring(TILE_SIZE_OPTION.length())));
+                } else if (args[i].equals(STRIPS_OPTION)) {
+                    generator.setTileSize(0);
+                } else if (args[i].startsWith(PYRAMID_LEVELS_OPTION)) {
+                    generator.setPyramidLevels(Integer.parseInt(args[i]
+                            .substring(PYRAMID_LEVELS_OPTION.length())));
+                } else if (args[i].startsWith(BLANK_FRACTION_OPTION)) {
+                    generator.setBlankFraction(Double.parseDouble(args[i]
+                            .substring(BLANK_FRACTION_OPTION.length())));
+                } else if (args[i].startsWith(SEED_OPTION)) {
+                    generator.setSeed(Long.parseLong(args[i]
+                            .substring(SEED_OPTION.length())));
+                } else if (args[i].equals(BIG_TIFF_OPTION)) {
+                    generator.setBigTiff(true);
+                } else {
+                    System.err.println(USAGE);
+                    System.exit(1);
+                }
+            }
+            generator.run();
+        } catch (final Exception e) {
+            LOG.error("Error generating the synthetic slide.", e);
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param destination
+     *            the TIFF file to write, which is replaced if it exists
+     * @param width
+     *            the width of the full resolution image
+     * @param height
+     *            the height of the full resolution image
+     */
+    public SyntheticSlideGenerator(final String destination, final int width,
+            final int height) {
+        if (destination == null || destination.length() == 0) {
+            throw new IllegalArgumentException(
+                    "Destination must be specified.");
+        }
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException(
+                    "Width and height must be greater than 0.");
+        }
+        destinationFile = destination;
+        imageWidth = width;
+        imageHeight = height;
+    }
+
+    /**
+     * Writes the image.
+     *
+     * @throws Exception
+     *             if the image could not be written
+     */
+    public void run() throws Exception {
+        final ServiceFactory factory = new ServiceFactory();
+        final OMEXMLService service = factory.getInstance(OMEXMLService.class);
+        final IMetadata omexml = service.createOMEXMLMetadata();
+        long pixelBytes = 0;
+        for (int level = 0; level <= pyramidLevels; level++) {
+            MetadataTools.populateMetadata(omexml, level, "Level " + level,
+                    false, "XYCZT", "uint8", getLevelWidth(level),
+                    getLevelHeight(level), 1, SAMPLES_PER_PIXEL, 1,
+                    SAMPLES_PER_PIXEL);
+            pixelBytes += (long) getLevelWidth(level) * getLevelHeight(level)
+                    * SAMPLES_PER_PIXEL;
+        }
+
+        final boolean writeBigTiff = bigTiff
+                || pixelBytes > LociConversionImplementation.BIG_TIFF_THRESHOLD;
+        if (LOG.isInfoEnabled()) {
+            LOG.info("Generating a " + imageWidth + "x" + imageHeight
+                    + " synthetic slide with " + pyramidLevels
+                    + " reduced resolution levels"
+                    + (tileSize > 0 ? " in " + tileSize + " pixel tiles" : "")
+                    + (writeBigTiff ? " as a BigTIFF file." : "."));
+        }
+        final LociImageDestination destination = new LociImageDestination(
+                destinationFile, imageWidth, imageHeight, omexml,
+                writeBigTiff);
+        try {
+            for (int level = 0; level <= pyramidLevels; level++) {
+                if (level > 0) {
+                    destination.setSeries(level);
+                }
+                writeLevel(destination, level);
+            }
+        } finally {
+            destination.close();
+        }
+    }
+
+    /**
+     * Writes the tiles or strips of a level of the image.
+     */
+    private void writeLevel(final LociImageDestination destination,
+            final int level) throws Exception {
+        final int width = getLevelWidth(level);
+        final int height = getLevelHeight(level);
+        final int regionWidth, regionHeight;
+        if (tileSize > 0) {
+            regionWidth = tileSize;
+            regionHeight = tileSize;
+            destination.setTileSize(tileSize, tileSize);
+        } else {
+            regionWidth = width;
+            regionHeight = (int) Math.max(1, Math.min(height, STRIP_BYTES
+                    / ((long) width * SAMPLES_PER_PIXEL)));
+        }
+        byte[] bytes = null;
+        for (int y = 0; y < height; y += regionHeight) {
+            final int h = Math.min(regionHeight, height - y);
+            for (int x = 0; x < width; x += regionWidth) {
+                final int w = Math.min(regionWidth, width - x);
+                final int length = w * h * SAMPLES_PER_PIXEL;
+                if (bytes == null || bytes.length != length) {
+                    bytes = new byte[length];
+                }
+                generate(bytes, level, x, y, w, h);
+                destination.writeBytes(bytes, x, y, w, h);
+            }
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("Wrote rows " + y + " to " + (y + h) + " of level "
+                        + level);
+            }
+        }
+    }
+
+    /**
+     * Fills a buffer with the interleaved RGB pixels of a region of the
+     * image, as they are written to the file.
+     *
+     * @param bytes
+     *            the buffer, of at least width * height * 3 bytes
+     * @param level
+     *            the level of the image, 0 for full resolution
+     * @param x
+     *            the x-coordinate of the region in the level
+     * @param y
+     *            the y-coordinate of the region in the level
+     * @param width
+     *            the width of the region
+     * @param height
+     *            the height of the region
+     */
+    public void generate(final byte[] bytes, final int level, final long x,
+            final long y, final int width, final int height) {
+        if (level < 0 || level > pyramidLevels) {
+            throw new IllegalArgumentException("Level must be from 0 to "
+                    + pyramidLevels + ".");
+        }
+        if (bytes.length < width * height * SAMPLES_PER_PIXEL) {
+            throw new IllegalArgumentException("Buffer is too small.");
+        }
+        int i = 0;
+        for (int row = 0; row < height; row++) {
+            // reduced levels sample the full resolution pixels
+            final long imageY = (y + row) << level;
+            for (int column = 0; column < width; column++) {
+                final long imageX = (x + column) << level;
+                final long noise = hash(imageX, imageY, 0);
+                if (isBlank(imageX, imageY)) {
+                    final byte value = (byte) (240 + (noise & 3));
+                    bytes[i++] = value;
+                    bytes[i++] = value;
+                    bytes[i++] = value;
+                } else {
+                    final int density = getStain(imageX, imageY)
+                            + (int) (noise & 15);
+                    bytes[i++] = (byte) (255 - density / 4);
+                    bytes[i++] = (byte) (255 - density);
+                    bytes[i++] = (byte) (255 - density / 2);
+                }
+            }
+        }
+    }
+
+    /**
+     *
+     * @return true if the pixel is in a blank background region
+     */
+    private boolean isBlank(final long imageX, final long imageY) {
+        if (blankFraction <= 0) {
+            return false;
+        }
+        final long block = hash(imageX / BLOCK_SIZE, imageY / BLOCK_SIZE, 1);
+        return (block >>> 11) * 0x1.0p-53 < blankFraction;
+    }
+
+    /**
+     *
+     * @return the stain density of a pixel, from 0 to 143, blended between
+     *         the densities of the corners of its cell
+     */
+    private int getStain(final long imageX, final long imageY) {
+        final long cellX = imageX >> CELL_SHIFT;
+        final long cellY = imageY >> CELL_SHIFT;
+        final int fx = (int) (imageX & (CELL_SIZE - 1));
+        final int fy = (int) (imageY & (CELL_SIZE - 1));
+        final int top = getCellStain(cellX, cellY) * (CELL_SIZE - fx)
+                + getCellStain(cellX + 1, cellY) * fx;
+        final int bottom = getCellStain(cellX, cellY + 1) * (CELL_SIZE - fx)
+                + getCellStain(cellX + 1, cellY + 1) * fx;
+        return (top * (CELL_SIZE - fy) + bottom * fy)
+                / (CELL_SIZE * CELL_SIZE);
+    }
+
+    private int getCellStain(final long cellX, final long cellY) {
+        return (int) ((hash(cellX, cellY, 2) >>> 33) % 144);
+    }
+
+    /**
+     * Mixes the seed with a pair of coordinates into well distributed bits.
+     */
+    private long hash(final long a, final long b, final long salt) {
+        long h = seed * 0x9E3779B97F4A7C15L + a * 0xC2B2AE3D27D4EB4FL + b
+                * 0x165667B19E3779F9L + salt;
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     *
+     * @param level
+     *            the level of the image, 0 for full resolution
+     * @return the width of the level
+     */
+    public int getLevelWidth(final int level) {
+        return (int) ((imageWidth + (1L << level) - 1) >> level);
+    }
+
+    /**
+     *
+     * @param level
+     *            the level of the image, 0 for full resolution
+     * @return the height of the level
+     */
+    public int getLevelHeight(final int level) {
+        return (int) ((imageHeight + (1L << level) - 1) >> level);
+    }
+
+    /**
+     * Sets the size of the tiles that the image is written in.
+     *
+     * @param size
+     *            the tile size, a multiple of 16, or 0 to write the image in
+     *            strips
+     */
+    public void setTileSize(final int size) {
+        if (size < 0 || size % 16 != 0) {
+            throw new IllegalArgumentException(
+                    "Tile size must be 0 or a multiple of 16.");
+        }
+        tileSize = size;
+    }
+
+    /**
+     *
+     * @return the size of the tiles that the image is written in, or 0 if it
+     *         is written in strips
+     */
+    public int getTileSize() {
+        return tileSize;
+    }
+
+    /**
+     * Sets the number of reduced resolution levels that are written after the
+     * full resolution image, each half the size of the one before.
+     *
+     * @param levels
+     *            the number of levels, at least 0
+     */
+    public void setPyramidLevels(final int levels) {
+        if (levels < 0 || levels > 30) {
+            throw new IllegalArgumentException(
+                    "Pyramid levels must be from 0 to 30.");
+        }
+        pyramidLevels = levels;
+    }
+
+    /**
+     *
+     * @return the number of reduced resolution levels
+     */
+    public int getPyramidLevels() {
+        return pyramidLevels;
+    }
+
+    /**
+     * Sets the fraction of the image that is blank background, which is made
+     * of square regions chosen from the seed.
+     *
+     * @param fraction
+     *            the fraction, from 0 to 1
+     */
+    public void setBlankFraction(final double fraction) {
+        if (fraction < 0 || fraction > 1) {
+            throw new IllegalArgumentException(
+                    "Blank fraction must be from 0 to 1.");
+        }
+        blankFraction = fraction;
+    }
+
+    /**
+     *
+     * @return the fraction of the image that is blank background
+     */
+    public double getBlankFraction() {
+        return blankFraction;
+    }
+
+    /**
+     * Sets the seed that the pixels are made from.
+     *
+     * @param pixelSeed
+     *            the seed
+     */
+    public void setSeed(final long pixelSeed) {
+        seed = pixelSeed;
+    }
+
+    /**
+     *
+     * @return the seed that the pixels are made from
+     */
+    public long getSeed() {
+        return seed;
+    }
+
+    /**
+     * Sets whether the file is written as a BigTIFF file even when its pixel
+     * data would fit in a TIFF file.
+     *
+     * @param big
+     *            true to always write a BigTIFF file
+     */
+    public void setBigTiff(final boolean big) {
+        bigTiff = big;
+    }
+
+    /**
+     *
+     * @return true if the file is always written as a BigTIFF file
+     */
+    public boolean isBigTiff() {
+        return bigTiff;
+    }
+}
@@ -0,0 +1,315 @@
+/*
+ * Copyright 2011 University of Southern California
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.isi.misd.image.gateway.conversion.tiff;
+
+import java.awt.Graphics2D;
+import java.awt.Transparency;
+import java.awt.color.ColorSpace;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import edu.isi.misd.image.gateway.conversion.ImageDestination;
+import edu.isi.misd.image.gateway.conversion.ImageDestinationFactory;
+import edu.isi.misd.image.gateway.conversion.tile.JpegTileEncoder;
+import edu.isi.misd.image.gateway.conversion.tile.PyramidBuilder;
+import edu.isi.misd.image.gateway.conversion.tile.PyramidTiffTileWriter;
+import edu.isi.misd.image.gateway.conversion.tile.ZoomLevelConfiguration;
+import edu.isi.misd.image.gateway.conversion.tile.ZoomLevelConfigurationImplementation;
+
+/**
+ * Image destination that writes a pyramidal tiled TIFF file, with JPEG tiles
+ * and the lower resolutions as reduced resolution SubIFDs, so that viewers
+ * can read any region of the image at any resolution from one file.
+ *
+ * The regions written are cut into tiles as they arrive, and the lower
+ * resolutions are built in memory from the tiles, so only the tiles that
+ * haven't been completely written yet are kept. Writing the image from top to
+ * bottom, in strips or in tiles, keeps at most a row of tiles in memory.
+ *
+ * @author David Smith
+ *
+ */
+public class PyramidTiffImageDestination implements ImageDestination {
+
+    /**
+     * The file extension of pyramid TIFF files
+     */
+    public static final String PTIF = "ptif";
+
+    /**
+     * The default tile size
+     */
+    public static final int DEFAULT_TILE_SIZE = 256;
+
+    private static final double ZOOM_SCALE = 2.0;
+
+    private final String destinationFile;
+    private final long imageWidth;
+    private final long imageHeight;
+    private final int tileSize;
+    private final JpegTileEncoder encoder;
+
+    private final ZoomLevelConfiguration zoomLevelConfiguration;
+    private final Map<Long, PendingTile> pendingTiles = new HashMap<Long, PendingTile>();
+    private PyramidTiffTileWriter tileWriter = null;
+    private PyramidBuilder pyramid = null;
+    private int tileType = 0;
+
+    /**
+     * Registers the types that this class can write to
+     */
+    public static void registerTypes() {
+        ImageDestinationFactory.register(PTIF,
+                PyramidTiffImageDestination.class);
+    }
+
+    /**
+     * Constructor that uses the default tile size and JPEG settings.
+     *
+     * @param destinationFilename
+     *            the TIFF file to write
+     * @param width
+     *            the width of the image
+     * @param height
+     *            the height of the image
+     */
+    public PyramidTiffImageDestination(final String destinationFilename,
+            final long width, final long height) {
+        this(destinationFilename, width, height, DEFAULT_TILE_SIZE,
+                new JpegTileEncoder());
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param destinationFilename
+     *            the TIFF file to write
+     * @param width
+     *            the width of the image
+     * @param height
+     *            the height of the image
+     * @param size
+     *            the tile size, a multiple of 16 such as 256 or 512
+     * @param tileEncoder
+     *            the encoder used for the tiles
+     */
+    public PyramidTiffImageDestination(final String destinationFilename,
+            final long width, final long height, final int size,
+            final JpegTileEncoder tileEncoder) {
+        if (destinationFilename == null || destinationFilename.length() == 0) {
+            throw new IllegalArgumentException(
+                    "Destination filename must be specified.");
+        }
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException(
+                    "Width and height must be greater than 0.");
+        }
+        if (size <= 0 || size % 16 != 0) {
+            throw new IllegalArgumentException(
+                    "Tile size must be a multiple of 16.");
+        }
+        if (tileEncoder == null) {
+            throw new IllegalArgumentException(
+                    "JPEG encoder must be specified.");
+        }
+        destinationFile = destinationFilename;
+        imageWidth = width;
+        imageHeight = height;
+        tileSize = size;
+        encoder = tileEncoder;
+        zoomLevelConfiguration = new ZoomLevelConfigurationImplementation(
+                width, height, size, ZOOM_SCALE);
+    }
+
+    /**
+     * Writes the whole image as interleaved 8 bit samples, with 1 or 3
+     * samples per pixel.
+     */
+    @Override
+    public void writeBytes(final byte[] bytes) throws Exception {
+        writeBytes(bytes, 0, 0, imageWidth, imageHeight);
+    }
+
+    /**
+     * Writes a region of the image as interleaved 8 bit samples, with 1 or 3
+     * samples per pixel. Each pixel of the image must be written once.
+     */
+    @Override
+    public void writeBytes(final byte[] bytes, final long x, final long y,
+            final long width, final long height) throws Exception {
+        if (bytes == null) {
+            throw new IllegalArgumentException("Bytes cannot be null.");
+        }
+        if (width <= 0 || height <= 0 || width * height > bytes.length) {
+            throw new IllegalArgumentException("Region " + width + "x"
+                    + height + " doesn't match the " + bytes.length
+                    + " bytes given.");
+        }
+        final int bands = (int) (bytes.length / (width * height));
+        if (bands != 1 && bands != 3) {
+            throw new IllegalArgumentException("Images with " + bands
+                    + " samples per pixel are not supported.");
+        }
+        final int[] bandOffsets = bands == 1 ? new int[] { 0 } : new int[] {
+                0, 1, 2 };
+        final WritableRaster raster = Raster.createInterleavedRaster(
+                new DataBufferByte(bytes, bytes.length), (int) width,
+                (int) height, (int) width * bands, bands, bandOffsets, null);
+        final ColorModel colorModel = new ComponentColorModel(
+                ColorSpace.getInstance(bands == 1 ? ColorSpace.CS_GRAY
+                        : ColorSpace.CS_sRGB), false, false,
+                Transparency.OPAQUE, DataBuffer.TYPE_BYTE);
+        writeImage(new BufferedImage(colorModel, raster, false, null), x, y);
+    }
+
+    /**
+     * Writes a region of the image. Each pixel of the image must be written
+     * once.
+     *
+     * @param image
+     *            the region
+     * @param x
+     *            the X offset of the region
+     * @param y
+     *            the Y offset of the region
+     * @throws IOException
+     *             if a tile could not be written
+     */
+    public synchronized void writeImage(final BufferedImage image,
+            final long x, final long y) throws IOException {
+        if (image == null) {
+            throw new IllegalArgumentException("Image cannot be null.");
+        }
+        if (x < 0 || y < 0 || x + image.getWidth() > imageWidth
+                || y + image.getHeight() > imageHeight) {
+            throw new IllegalArgumentException("Region " + x + "," + y + " "
+                    + image.getWidth() + "x" + image.getHeight()
+                    + " is outside the image.");
+        }
+        if (tileWriter == null) {
+            tileType = image.getColorModel().getNumComponents() == 1 ? BufferedImage.TYPE_BYTE_GRAY
+                    : BufferedImage.TYPE_3BYTE_BGR;
+            tileWriter = new PyramidTiffTileWriter(destinationFile,
+                    imageWidth, imageHeight, tileSize,
+                    zoomLevelConfiguration, encoder);
+            if (zoomLevelConfiguration.getNumberOfZoomLevels() > 1) {
+                pyramid = new PyramidBuilder(tileWriter);
+            }
+        }
+
+        final long columns = getNumberOfColumns();
+        final long firstRow = y / tileSize;
+        final long lastRow = (y + image.getHeight() - 1) / tileSize;
+        final long firstColumn = x / tileSize;
+        final long lastColumn = (x + image.getWidth() - 1) / tileSize;
+        for (long row = firstRow; row <= lastRow; row++) {
+            for (long column = firstColumn; column <= lastColumn; column++) {
+                final Long key = Long.valueOf(row * columns + column);
+                PendingTile tile = pendingTiles.get(key);
+                if (tile == null) {
+                    tile = new PendingTile((int) Math.min(tileSize,
+                            imageWidth - column * tileSize), (int) Math.min(
+                            tileSize, imageHeight - row * tileSize), tileType);
+                    pendingTiles.put(key, tile);
+                }
+
+                // the part of the region that falls in this tile
+                final long left = Math.max(x, column * tileSize);
+                final long top = Math.max(y, row * tileSize);
+                final long right = Math.min(x + image.getWidth(), column
+                        * tileSize + tile.image.getWidth());
+                final long bottom = Math.min(y + image.getHeight(), row
+                        * tileSize + tile.image.getHeight());
+                final int dx = (int) (left - column * tileSize);
+                final int dy = (int) (top - row * tileSize);
+                final int sx = (int) (left - x);
+                final int sy = (int) (top - y);
+                final int w = (int) (right - left);
+                final int h = (int) (bottom - top);
+                final Graphics2D g = tile.image.createGraphics();
+                try {
+                    g.drawImage(image, dx, dy, dx + w, dy + h, sx, sy, sx + w,
+                            sy + h, null);
+                } finally {
+                    g.dispose();
+                }
+                tile.filled += (long) w * h;
+
+                if (tile.filled >= (long) tile.image.getWidth()
+                        * tile.image.getHeight()) {
+                    pendingTiles.remove(key);
+                    tileWriter.write(tile.image, 0, row, column);
+                    if (pyramid != null) {
+                        pyramid.addTile(tile.image, 0, row, column);
+                    }
+                }
+            }
+        }
+    }
+
+    @Override
+    public synchronized void close() throws Exception {
+        if (tileWriter == null) {
+            throw new IOException("No image was written to "
+                    + destinationFile);
+        }
+        if (!pendingTiles.isEmpty()
+                || (pyramid != null && !pyramid.isComplete())) {
+            tileWriter.discard();
+            throw new IOException("Not all of the image was written to "
+                    + destinationFile);
+        }
+        tileWriter.close();
+    }
+
+    @Override
+    public String getFilename() {
+        return destinationFile;
+    }
+
+    /**
+     *
+     * @return the tile size
+     */
+    public int getTileSize() {
+        return tileSize;
+    }
+
+    private long getNumberOfColumns() {
+        return (imageWidth + tileSize - 1) / tileSize;
+    }
+
+    /**
+     * A full resolution tile that is being filled in.
+     */
+    private static final class PendingTile {
+        private final BufferedImage image;
+        private long filled = 0;
+
+        private PendingTile(final int width, final int height, final int type) {
+            image = new BufferedImage(width, height, type);
+        }
+    }
+}
@@ -17,10 +17,30 @@
 package edu.isi.misd.image.gateway.conversion.tile;
 
 import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.imageio.ImageIO;
 
 import org.apache.log4j.Logger;
 
+import edu.isi.misd.image.gateway.conversion.ConcurrentImageSource;
+import edu.isi.misd.image.gateway.conversion.ConversionEvents;
 import edu.isi.misd.image.gateway.conversion.ImageSource;
+import edu.isi.misd.image.gateway.conversion.ImageSourceFactory;
 
 /**
  * Abstract implementation class for tile directory export operations.
@@ -38,6 +58,52 @@ public abstract class AbstractTileDirectoryExport implements TileExport {
     protected final ZoomLevelConfiguration zoomLevelConfiguration;
     protected final TileNamingConvention namingConvention;
 
+    /**
+     * Read mode that reads each full resolution tile from the source
+     */
+    public static final int READ_TILES = 0;
+
+    /**
+     * Read mode that reads bands of full resolution tile rows from the source
+     */
+    public static final int READ_BANDS = 1;
+
+    /**
+     * Read mode that reads the regions the source is stored in, such as its
+     * JPEG tiles, once each and cuts the full resolution tiles from them
+     */
+    public static final int READ_NATIVE_TILES = 2;
+
+    /**
+     * The name of the checkpoint manifest saved in the destination directory
+     * while tiles are exported
+     */
+    public static final String CHECKPOINT_FILENAME = "ExportCheckpoint.properties";
+
+    private static final int DEFAULT_ROWS_PER_TASK = 8;
+    private static final long DEFAULT_MAX_BAND_BYTES = 256L * 1024 * 1024;
+    private static final int WAITING_PARENTS_PER_THREAD = 4;
+
+    private int numberOfThreads = 1;
+    private int pyramidThreads = 0;
+    private ExecutorService pyramidExecutor = null;
+    private int rowsPerTask = DEFAULT_ROWS_PER_TASK;
+    private boolean inMemoryPyramid = true;
+    private int readMode = READ_TILES;
+    private int rowsPerBand = 1;
+    private long maxBandBytes = DEFAULT_MAX_BAND_BYTES;
+    private boolean compressedTileCopy = false;
+    private boolean embeddedPyramid = false;
+    private JpegTileEncoder tileEncoder = new JpegTileEncoder();
+    private final AtomicReference<BufferedImage> thumbnailImage = new AtomicReference<BufferedImage>();
+    private String pyramidTiffFilename = null;
+    private PyramidTiffTileWriter pyramidTiff = null;
+    private BackgroundDetector backgroundDetector = null;
+    private BackgroundTileWriter backgroundTiles = null;
+    private boolean resume = false;
+    private ExportMetrics metrics = null;
+    private long levelStartTime = 0;
+
     /**
      * Constructor
      * 
@@ -65,14 +131,43 @@ public abstract class AbstractTileDirectoryExport implements TileExport {
 
     /**
      * Constructs a new instance of the appropriate tile writer type for this
-     * operation
+     * operation. It is called once per export.
      * 
      * @param destination
      *            the directory to write the tiles
      * @param zoomLevelConfiguration2
      * @return the tile writer
+     * @throws IOException
+     *             if the tile writer could not be created
      */
-    abstract protected TileWriter getTileWriter(String destination);
+    abstract protected TileWriter getTileWriter(String destination)
+            throws IOException;
+
+    /**
+     * Creates the tile writer for the destination, keeping the tile of the
+     * smallest zoom level when it is written, and writing the tiles to the
+     * pyramid TIFF file as well if there is one, and writing placeholders for
+     * background tiles if they are detected. The writer is created once per
+     * export, and closed after the tile metadata has been saved.
+     */
+    private TileWriter openTileWriter(final String destination)
+            throws IOException {
+        TileWriter tileWriter = getTileWriter(destination);
+        if (tileWriter instanceof JpegTileWriterImplementation) {
+            ((JpegTileWriterImplementation) tileWriter).setMetrics(metrics);
+        } else if (tileWriter instanceof TileArchiveWriter) {
+            ((TileArchiveWriter) tileWriter).setMetrics(metrics);
+        }
+        if (pyramidTiff != null) {
+            tileWriter = new TeeTileWriter(tileWriter, pyramidTiff);
+        }
+        if (backgroundDetector != null) {
+            backgroundTiles = new BackgroundTileWriter(tileWriter,
+                    backgroundDetector, tileEncoder);
+            tileWriter = backgroundTiles;
+        }
+        return new ThumbnailTileWriter(tileWriter, thumbnailImage);
+    }
 
     /**
      * Called after the tiles have all been created to perform any metadata
@@ -85,92 +180,1076 @@ public abstract class AbstractTileDirectoryExport implements TileExport {
     abstract protected void saveTileMetadata(String destination)
             throws Exception;
 
+    /**
+     * Returns the file that saveTileMetadata writes. It is deleted when an
+     * export starts and written once every tile has been, so that a
+     * destination whose export hasn't finished is never taken for a finished
+     * one.
+     * 
+     * @param destination
+     *            the directory that the tile files are saved to
+     * @return the tile metadata file, or null if there is none
+     */
+    protected File getTileMetadataFile(final String destination) {
+        return null;
+    }
+
     @Override
     public void export(final String destination) throws Exception {
         if (destination == null || destination.length() == 0) {
             throw new IllegalArgumentException("Destination must be specified.");
         }
-        exportFullResolutionTiles(destination);
-        for (int i = 1; i < zoomLevelConfiguration.getNumberOfZoomLevels(); i++) {
-            exportZoomLevelTiles(destination, i);
+        thumbnailImage.set(null);
+        metrics = new ExportMetrics(zoomLevelConfiguration
+                .getNumberOfZoomLevels());
+        metrics.register(sourceImage.getFilename());
+        levelStartTime = System.nanoTime();
+        final File metadataFile = getTileMetadataFile(destination);
+        if (metadataFile != null && metadataFile.exists()
+                && !metadataFile.delete()) {
+            throw new IOException("Could not delete " + metadataFile);
+        }
+        if (pyramidTiffFilename != null) {
+            pyramidTiff = new PyramidTiffTileWriter(pyramidTiffFilename,
+                    sourceImage.getWidth(), sourceImage.getHeight(),
+                    (int) getTileSize(), zoomLevelConfiguration, tileEncoder);
+        }
+        if (inMemoryPyramid && pyramidThreads > 0) {
+            pyramidExecutor = Executors.newFixedThreadPool(pyramidThreads);
+        }
+        TileWriter tileWriter = null;
+        boolean finished = false;
+        try {
+            tileWriter = openTileWriter(destination);
+            final ExportCheckpoint checkpoint = openCheckpoint(destination,
+                    tileWriter);
+            final int[] levelSeries = findLevelSeries();
+            if (checkpoint.getLevel() == 0) {
+                exportFullResolutionTiles(tileWriter,
+                        getLastLevelFromSameSeries(levelSeries, 0), checkpoint);
+            }
+            final int levels = zoomLevelConfiguration.getNumberOfZoomLevels();
+            for (int i = Math.max(1, checkpoint.getLevel()); i < levels; i++) {
+                if (levelSeries[i] != levelSeries[i - 1]) {
+                    exportSeriesLevelTiles(tileWriter, i, levelSeries[i],
+                            getLastLevelFromSameSeries(levelSeries, i),
+                            checkpoint);
+                } else if (!inMemoryPyramid) {
+                    exportZoomLevelTiles(tileWriter, i);
+                    levelsCompleted(checkpoint, i);
+                }
+            }
+            final TileWriter writer = tileWriter;
+            tileWriter = null;
+            writer.close();
+            saveTileMetadata(destination);
+            checkpoint.delete();
+            finished = true;
+        } finally {
+            if (!finished) {
+                if (pyramidTiff != null) {
+                    pyramidTiff.discard();
+                }
+                closeQuietly(tileWriter);
+            }
+            if (pyramidExecutor != null) {
+                pyramidExecutor.shutdownNow();
+                pyramidExecutor = null;
+            }
+            pyramidTiff = null;
+            backgroundTiles = null;
+            metrics.stop();
+            metrics.unregister();
         }
-        saveTileMetadata(destination);
     }
 
-    private void exportFullResolutionTiles(final String destination)
-            throws Exception {
-        long n = 1;
-        long col_num, row_num, cols;
-        String tileFilename;
-        int reader_x, reader_y;
-        BufferedImage portion;
+    /**
+     * Opens the checkpoint of an export: the one saved by an earlier export to
+     * the same destination with the same settings when resuming, or a new
+     * one. Checkpoints are only saved when every tile is written to a file of
+     * its own, which can be read back when resuming; tile archives and
+     * pyramid TIFF files are only complete once they have been closed.
+     */
+    private ExportCheckpoint openCheckpoint(final String destination,
+            final TileWriter tileWriter) {
+        final File manifest = new File(destination, CHECKPOINT_FILENAME);
+        final String settings = new StringBuffer(sourceImage.getFilename())
+                .append(',').append(sourceImage.getSeriesNumber())
+                .append(',').append(sourceImage.getImageNumber())
+                .append(',').append(sourceImage.getWidth()).append('x')
+                .append(sourceImage.getHeight()).append(',')
+                .append(getTileSize()).append(',')
+                .append(zoomLevelConfiguration.getNumberOfZoomLevels())
+                .append(',').append(tileWriter.getExtension()).append(',')
+                .append(inMemoryPyramid).append(',').append(embeddedPyramid)
+                .toString();
+        if (pyramidTiff != null
+                || tileWriter.getTileNamingConvention() == null) {
+            if (resume) {
+                LOG.warn("Exports to a single file can't be resumed, "
+                        + "starting from the first tile.");
+            }
+            new ExportCheckpoint(manifest, settings).delete();
+            return new ExportCheckpoint(null, settings);
+        }
+        if (resume) {
+            final ExportCheckpoint checkpoint = ExportCheckpoint.load(
+                    manifest, settings);
+            if (checkpoint != null) {
+                if (LOG.isInfoEnabled()) {
+                    LOG.info("Resuming the export at zoom level "
+                            + checkpoint.getLevel() + ", tile row "
+                            + checkpoint.getRows());
+                }
+                return checkpoint;
+            }
+            if (LOG.isInfoEnabled()) {
+                LOG.info("No checkpoint to resume from in " + destination
+                        + ", starting from the first tile.");
+            }
+        }
+        // a checkpoint left by an earlier export no longer matches the tiles
+        final ExportCheckpoint checkpoint = new ExportCheckpoint(manifest,
+                settings);
+        checkpoint.delete();
+        return checkpoint;
+    }
 
-        long readWidth, readHeight;
-        long remainingWidth, remainingHeight;
+    /**
+     * Adds the tiles that were written before an export was resumed, but
+     * whose parents weren't, to the pyramid builder, reading them back from
+     * the destination. Only the last incomplete row of parents of each zoom
+     * level has children that were written.
+     * 
+     * @param pyramid
+     *            the pyramid builder
+     * @param tileWriter
+     *            the tile writer
+     * @param level
+     *            the zoom level that the pyramid is built from
+     * @param lastLevel
+     *            the last zoom level that the pyramid builds
+     * @param completeRows
+     *            the number of rows of the zoom level that are complete
+     * @throws Exception
+     */
+    private void resumePyramid(final PyramidBuilder pyramid,
+            final TileWriter tileWriter, final int level, final int lastLevel,
+            final long completeRows) throws Exception {
+        long rows = completeRows;
+        for (int l = level; l < lastLevel && rows > 0; l++) {
+            final long parentRows = rows == zoomLevelConfiguration
+                    .getNumberOfRows(l) ? zoomLevelConfiguration
+                    .getNumberOfRows(l + 1) : rows / 2;
+            final long cols = zoomLevelConfiguration.getNumberOfColumns(l);
+            for (long row_num = parentRows * 2; row_num < rows; row_num++) {
+                for (long col_num = 0; col_num < cols; col_num++) {
+                    final File file = new File(
+                            tileWriter.getDestinationDirectory(),
+                            tileWriter.getTileNamingConvention()
+                                    .getTileFileName(l, row_num, col_num,
+                                            tileWriter.getExtension(),
+                                            zoomLevelConfiguration));
+                    final long start = System.nanoTime();
+                    final BufferedImage tile = file.isFile() ? ImageIO
+                            .read(file) : null;
+                    metrics.record(ExportMetrics.DECODE, l, System.nanoTime()
+                            - start, file.length());
+                    if (tile == null) {
+                        throw new IOException("Could not read tile " + file
+                                + " to resume the export.");
+                    }
+                    pyramid.addTile(tile, l, row_num, col_num);
+                }
+            }
+            rows = parentRows;
+        }
+    }
+
+    /**
+     * Closes the tile writer of an export that has failed.
+     */
+    private static void closeQuietly(final TileWriter tileWriter) {
+        if (tileWriter != null) {
+            try {
+                tileWriter.close();
+            } catch (final IOException e) {
+                LOG.warn("Error closing the tile writer.", e);
+            }
+        }
+    }
+
+    /**
+     * Sets the number of worker threads used to export the full resolution
+     * tiles. With more than one thread, the full resolution level is split into
+     * ranges of tile rows that are exported concurrently, each worker reading
+     * through its own image source, or through the source image itself if it
+     * is a ConcurrentImageSource.
+     * 
+     * @param threads
+     *            the number of worker threads, must be at least 1
+     */
+    public void setNumberOfThreads(final int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException(
+                    "Number of threads must be at least 1.");
+        }
+        numberOfThreads = threads;
+    }
+
+    /**
+     * Sets the number of threads that the tiles of the lower zoom levels are
+     * created on when the pyramid is built in memory. A lower zoom level tile
+     * is created as soon as the tiles it is made from have been written, on
+     * one of these threads, so that every zoom level is built while the tiles
+     * they come from are still being read. With no threads, each one is
+     * created by the thread that writes the last of those tiles.
+     * 
+     * @param threads
+     *            the number of threads, at least 0
+     */
+    public void setPyramidThreads(final int threads) {
+        if (threads < 0) {
+            throw new IllegalArgumentException(
+                    "Number of pyramid threads must be at least 0.");
+        }
+        pyramidThreads = threads;
+    }
+
+    /**
+     * 
+     * @return the number of threads that the tiles of the lower zoom levels
+     *         are created on
+     */
+    public int getPyramidThreads() {
+        return pyramidThreads;
+    }
+
+    /**
+     * 
+     * @return the number of worker threads used to export the full resolution
+     *         tiles
+     */
+    public int getNumberOfThreads() {
+        return numberOfThreads;
+    }
+
+    /**
+     * Sets the number of tile rows that a worker exports as a single unit of
+     * work when exporting in parallel.
+     * 
+     * @param rows
+     *            the number of tile rows per unit of work, must be at least 1
+     */
+    public void setRowsPerTask(final int rows) {
+        if (rows < 1) {
+            throw new IllegalArgumentException(
+                    "Rows per task must be at least 1.");
+        }
+        rowsPerTask = rows;
+    }
+
+    /**
+     * 
+     * @return the number of tile rows exported as a single unit of work
+     */
+    public int getRowsPerTask() {
+        return rowsPerTask;
+    }
+
+    /**
+     * Sets whether the lower zoom levels are built in memory while the full
+     * resolution tiles are exported, or afterwards from the tile files that
+     * were written to the destination.
+     * 
+     * @param inMemory
+     *            true to build the lower zoom levels in memory
+     */
+    public void setInMemoryPyramid(final boolean inMemory) {
+        inMemoryPyramid = inMemory;
+    }
+
+    /**
+     * 
+     * @return true if the lower zoom levels are built in memory
+     */
+    public boolean isInMemoryPyramid() {
+        return inMemoryPyramid;
+    }
+
+    /**
+     * Sets how the full resolution tiles are read from the source image.
+     * 
+     * @param mode
+     *            one of READ_TILES, READ_BANDS or READ_NATIVE_TILES
+     */
+    public void setReadMode(final int mode) {
+        if (mode != READ_TILES && mode != READ_BANDS
+                && mode != READ_NATIVE_TILES) {
+            throw new IllegalArgumentException("Invalid read mode '" + mode
+                    + "'");
+        }
+        readMode = mode;
+    }
+
+    /**
+     * 
+     * @return how the full resolution tiles are read from the source image
+     */
+    public int getReadMode() {
+        return readMode;
+    }
+
+    /**
+     * Sets the number of full resolution tile rows that are read from the
+     * source image at once in the READ_BANDS read mode.
+     * 
+     * @param rows
+     *            the number of tile rows per band, must be at least 1
+     */
+    public void setRowsPerBand(final int rows) {
+        if (rows < 1) {
+            throw new IllegalArgumentException(
+                    "Rows per band must be at least 1.");
+        }
+        rowsPerBand = rows;
+    }
+
+    /**
+     * 
+     * @return the number of tile rows read at once in the READ_BANDS read
+     *         mode
+     */
+    public int getRowsPerBand() {
+        return rowsPerBand;
+    }
+
+    /**
+     * Sets the maximum size of a band in the READ_BANDS read mode. Bands are
+     * made fewer rows high, or narrower than the image, to stay under it. Each
+     * worker thread reads its own bands.
+     * 
+     * @param bytes
+     *            the maximum size of a band in bytes, must be at least 1
+     */
+    public void setMaxBandBytes(final long bytes) {
+        if (bytes < 1) {
+            throw new IllegalArgumentException(
+                    "Maximum band size must be at least 1.");
+        }
+        maxBandBytes = bytes;
+    }
+
+    /**
+     * 
+     * @return the maximum size of a band in bytes
+     */
+    public long getMaxBandBytes() {
+        return maxBandBytes;
+    }
+
+    /**
+     * Sets whether full resolution tiles that the source image stores in the
+     * same format and size as the exported tiles are copied as they are,
+     * instead of being decoded and encoded again. Other tiles, such as the
+     * tiles at the right and bottom edges, are always encoded.
+     * 
+     * @param copy
+     *            true to copy the stored tiles when possible
+     */
+    public void setCompressedTileCopy(final boolean copy) {
+        compressedTileCopy = copy;
+    }
+
+    /**
+     * 
+     * @return true if stored tiles are copied when possible
+     */
+    public boolean isCompressedTileCopy() {
+        return compressedTileCopy;
+    }
+
+    /**
+     * Sets whether the lower zoom levels are built from the reduced resolution
+     * series that the source image carries, such as the levels of an SVS or
+     * NDPI file. Each zoom level at or below the resolution of such a series
+     * is then built from the closest one instead of from the full resolution
+     * tiles.
+     * 
+     * @param embedded
+     *            true to build from the embedded reduced resolution series
+     */
+    public void setEmbeddedPyramid(final boolean embedded) {
+        embeddedPyramid = embedded;
+    }
+
+    /**
+     * 
+     * @return true if the lower zoom levels are built from the embedded
+     *         reduced resolution series
+     */
+    public boolean isEmbeddedPyramid() {
+        return embeddedPyramid;
+    }
+
+    /**
+     * Sets the encoder used for tiles that are written as JPEG.
+     * 
+     * @param encoder
+     *            the JPEG encoder
+     */
+    public void setTileEncoder(final JpegTileEncoder encoder) {
+        if (encoder == null) {
+            throw new IllegalArgumentException(
+                    "JPEG encoder must be specified.");
+        }
+        tileEncoder = encoder;
+    }
+
+    /**
+     * 
+     * @return the encoder used for tiles that are written as JPEG
+     */
+    public JpegTileEncoder getTileEncoder() {
+        return tileEncoder;
+    }
+
+    /**
+     * Sets a tiled TIFF file that every tile is also written to during the
+     * export, so that a single file with the whole pyramid is built in the
+     * same pass as the tile directory.
+     * 
+     * @param filename
+     *            the TIFF file, or null to only write the tile directory
+     */
+    public void setPyramidTiffFilename(final String filename) {
+        pyramidTiffFilename = filename;
+    }
+
+    /**
+     * 
+     * @return the tiled TIFF file that the tiles are also written to, or null
+     */
+    public String getPyramidTiffFilename() {
+        return pyramidTiffFilename;
+    }
+
+    /**
+     * Sets the detector of tiles that only show background, such as the white
+     * glass around the tissue of a slide. Each background tile is replaced
+     * with a placeholder filled with the background color, which is encoded
+     * only once, and the lower zoom level tiles made only of placeholders are
+     * placeholders too, so they are neither averaged nor encoded. Tiles that
+     * are copied from the source image as they are aren't checked.
+     * 
+     * @param detector
+     *            the background detector, or null to export every tile as it
+     *            is read
+     */
+    public void setBackgroundDetector(final BackgroundDetector detector) {
+        backgroundDetector = detector;
+    }
+
+    /**
+     * 
+     * @return the detector of tiles that only show background, or null
+     */
+    public BackgroundDetector getBackgroundDetector() {
+        return backgroundDetector;
+    }
+
+    /**
+     * Sets whether an export continues from the checkpoint that an earlier
+     * export to the same destination saved, if it stopped part way with the
+     * same settings. While the tiles are exported, a checkpoint manifest,
+     * {@link #CHECKPOINT_FILENAME}, is saved in the destination as ranges of
+     * tile rows and zoom levels are completed, and deleted once the tile
+     * metadata has been saved. Exports that write the tiles to a single file,
+     * such as a tile archive or a pyramid TIFF file, always start from the
+     * first tile.
+     * 
+     * @param resumeExport
+     *            true to continue from the saved checkpoint
+     */
+    public void setResume(final boolean resumeExport) {
+        resume = resumeExport;
+    }
+
+    /**
+     * 
+     * @return true if an export continues from the saved checkpoint
+     */
+    public boolean isResume() {
+        return resume;
+    }
+
+    /**
+     * Returns the metrics of the last export, which time each stage of it for
+     * each zoom level. While an export runs, its metrics are registered as an
+     * MBean named after the source image.
+     * 
+     * @return the metrics of the last export, or null if there hasn't been
+     *         one
+     */
+    public ExportMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Returns the tile of the smallest zoom level from the last export, which
+     * covers the whole image and can be used as a thumbnail without reading
+     * the source image again.
+     * 
+     * @return the smallest zoom level tile, or null if no export has written
+     *         it
+     */
+    public BufferedImage getThumbnailImage() {
+        return thumbnailImage.get();
+    }
+
+    /**
+     * Opens an additional image source on the same image, used by a single
+     * worker thread during a parallel export. Subclasses may override this to
+     * supply pooled sources.
+     * 
+     * @return a new image source reading the same series as the source image
+     * @throws Exception
+     *             if the image source could not be opened
+     */
+    protected ImageSource openWorkerSource() throws Exception {
+        final ImageSource source = ImageSourceFactory
+                .getImageSource(sourceImage.getFilename());
+        if (source == null) {
+            throw new IOException("Could not open image source for "
+                    + sourceImage.getFilename());
+        }
+        if (source.getSeriesNumber() != sourceImage.getSeriesNumber()) {
+            source.setSeriesNumber(sourceImage.getSeriesNumber());
+        }
+        return source;
+    }
+
+    /**
+     * Finds the series of the source image that each zoom level is built from,
+     * which is the full resolution series for every zoom level unless the
+     * embedded pyramid is used.
+     * 
+     * @return the series number of each zoom level
+     */
+    private int[] findLevelSeries() {
+        if (!embeddedPyramid) {
+            final int[] levelSeries = new int[zoomLevelConfiguration
+                    .getNumberOfZoomLevels()];
+            Arrays.fill(levelSeries, sourceImage.getSeriesNumber());
+            return levelSeries;
+        }
+        return TileUtils.findLevelSeries(sourceImage,
+                zoomLevelConfiguration.getNumberOfZoomLevels(),
+                getZoomScale());
+    }
+
+    /**
+     * 
+     * @return the last zoom level that is built from the same series as the
+     *         given zoom level
+     */
+    private static int getLastLevelFromSameSeries(final int[] levelSeries,
+            final int level) {
+        int last = level;
+        while (last + 1 < levelSeries.length
+                && levelSeries[last + 1] == levelSeries[level]) {
+            last++;
+        }
+        return last;
+    }
+
+    /**
+     * 
+     * @return the width of the image at a zoom level
+     */
+    private long getLevelWidth(final int level) {
+        return (long) Math.ceil(sourceImage.getWidth()
+                / Math.pow(getZoomScale(), level));
+    }
+
+    /**
+     * 
+     * @return the height of the image at a zoom level
+     */
+    private long getLevelHeight(final int level) {
+        return (long) Math.ceil(sourceImage.getHeight()
+                / Math.pow(getZoomScale(), level));
+    }
+
+    /**
+     * Exports the tiles of a zoom level from a reduced resolution series of the
+     * source image, resampling them if the series is larger than the zoom
+     * level.
+     * 
+     * @param tileWriter
+     *            the tile writer
+     * @param level
+     *            the zoom level
+     * @param series
+     *            the series to read
+     * @param lastLevel
+     *            the last zoom level to build in memory from this one
+     * @param checkpoint
+     *            the progress of the export, which gives the first row to
+     *            export
+     * @throws Exception
+     */
+    private void exportSeriesLevelTiles(final TileWriter tileWriter,
+            final int level, final int series, final int lastLevel,
+            final ExportCheckpoint checkpoint) throws Exception {
+        final int mainSeries = sourceImage.getSeriesNumber();
+        final long startRow = checkpoint.getRows();
+        PyramidBuilder pyramid = null;
+        if (inMemoryPyramid && lastLevel > level) {
+            pyramid = createPyramidBuilder(tileWriter, lastLevel);
+            resumePyramid(pyramid, tileWriter, level, lastLevel, startRow);
+        }
 
         final long tileSize = getTileSize();
-        final long imageWidth = sourceImage.getWidth();
-        final long imageHeight = sourceImage.getHeight();
-
-        col_num = 0;
-        row_num = 0;
+        final long levelWidth = getLevelWidth(level);
+        final long levelHeight = getLevelHeight(level);
+        final long rows = zoomLevelConfiguration.getNumberOfRows(level);
+        final long cols = zoomLevelConfiguration.getNumberOfColumns(level);
+        if (LOG.isInfoEnabled()) {
+            LOG.info("Exporting tiles for zoom level " + level
+                    + " from series " + series);
+        }
 
-        reader_x = 0;
-        reader_y = 0;
-        cols = zoomLevelConfiguration.getNumberOfColumns(0) - 1;
+        sourceImage.setSeriesNumber(series);
+        try {
+            final long seriesWidth = sourceImage.getWidth();
+            final long seriesHeight = sourceImage.getHeight();
+            final double xScale = (double) seriesWidth / levelWidth;
+            final double yScale = (double) seriesHeight / levelHeight;
+            final TileReader tileReader = createTileReader(sourceImage,
+                    (long) Math.ceil(tileSize * yScale) + 1, seriesHeight);
 
-        final long numberOfTiles = zoomLevelConfiguration.getNumberOfTiles(0);
+            for (long row_num = startRow; row_num < rows; row_num++) {
+                final long y = row_num * tileSize;
+                final long tileHeight = Math.min(tileSize, levelHeight - y);
+                final long readY = (long) Math.floor(y * yScale);
+                final long readHeight = Math.min(seriesHeight,
+                        (long) Math.ceil((y + tileHeight) * yScale))
+                        - readY;
+                for (long col_num = 0; col_num < cols; col_num++) {
+                    final long x = col_num * tileSize;
+                    final long tileWidth = Math.min(tileSize, levelWidth - x);
+                    final long readX = (long) Math.floor(x * xScale);
+                    final long readWidth = Math.min(seriesWidth,
+                            (long) Math.ceil((x + tileWidth) * xScale))
+                            - readX;
+                    if (tileWidth <= 0 || tileHeight <= 0 || readWidth <= 0
+                            || readHeight <= 0) {
+                        throw new ImageReadRangeException(
+                                "Calculated invalid read range: " + readWidth
+                                        + "x" + readHeight + " for column "
+                                        + col_num + " and row " + row_num
+                                        + " in level " + level);
+                    }
 
-        final TileWriter tileWriter = getTileWriter(destination);
+                    long start = System.nanoTime();
+                    BufferedImage tile = tileReader.read(readX, readY,
+                            readWidth, readHeight);
+                    metrics.record(ExportMetrics.READ, level, System.nanoTime()
+                            - start, ExportMetrics.getPixelBytes(tile));
+                    if (readWidth != tileWidth || readHeight != tileHeight) {
+                        start = System.nanoTime();
+                        tile = BoxDownsampler.downsample(tile,
+                                (int) tileWidth, (int) tileHeight);
+                        metrics.record(ExportMetrics.DOWNSAMPLE, level,
+                                System.nanoTime() - start, 0);
+                    }
+                    if (backgroundTiles != null) {
+                        tile = backgroundTiles.replaceBackground(tile);
+                    }
+                    final String tileFilename = tileWriter.write(tile, level,
+                            row_num, col_num);
+                    if (LOG.isDebugEnabled()) {
+                        LOG.debug("Tile " + tileFilename
+                                + " was saved successfully.");
+                    }
+                    if (pyramid != null) {
+                        pyramid.addTile(tile, level, row_num, col_num);
+                    }
+                }
+                rowsCompleted(checkpoint, pyramid, level, row_num,
+                        row_num + 1);
+            }
+        } finally {
+            sourceImage.setSeriesNumber(mainSeries);
+        }
+        if (pyramid != null) {
+            pyramid.flush();
+        }
+        if (pyramid != null && !pyramid.isComplete()) {
+            throw new IllegalStateException(
+                    "Not all of the lower zoom level tiles were created.");
+        }
+        levelsCompleted(checkpoint, pyramid != null ? lastLevel : level);
+    }
 
-        for (long j = 0; j < numberOfTiles; j++) {
-            readWidth = tileSize;
+    /**
+     * Records in the checkpoint that a range of tile rows is complete. When
+     * the checkpoint is saved, this first waits for the lower zoom level
+     * tiles made from the range to be written, so that a resumed export finds
+     * them; the tiles of other ranges are not waited for, and nothing is
+     * waited for when the checkpoint isn't saved.
+     */
+    private static void rowsCompleted(final ExportCheckpoint checkpoint,
+            final PyramidBuilder pyramid, final int level,
+            final long firstRow, final long lastRow) throws IOException {
+        if (pyramid != null && checkpoint.isSaved()) {
+            pyramid.flush(level, firstRow, lastRow);
+        }
+        checkpoint.rowsCompleted(firstRow, lastRow);
+    }
 
-            readHeight = tileSize;
-            remainingWidth = imageWidth - reader_x;
-            remainingHeight = imageHeight - reader_y;
+    /**
+     * Records in the checkpoint that the zoom levels up to the given one are
+     * complete, and sends an event for each of them. Zoom levels that are
+     * completed together are each sent with the time they took together.
+     */
+    private void levelsCompleted(final ExportCheckpoint checkpoint,
+            final int lastLevel) throws IOException,
+            ZoomLevelNotFoundException {
+        final int firstLevel = checkpoint.getLevel();
+        checkpoint.levelsCompleted(lastLevel);
+        final long now = System.nanoTime();
+        if (ConversionEvents.isEnabled()) {
+            for (int l = firstLevel; l <= lastLevel; l++) {
+                ConversionEvents.levelCompleted(l,
+                        zoomLevelConfiguration.getNumberOfTiles(l), now
+                                - levelStartTime);
+            }
+        }
+        levelStartTime = now;
+    }
 
-            if (remainingWidth < tileSize) {
-                readWidth = (int) remainingWidth;
+    /**
+     * Creates the builder of the lower zoom levels, which writes placeholders
+     * for background tiles and creates its tiles on the pyramid threads if
+     * there are any. The tiles that wait to be created are bounded, so that
+     * the tiles they are made from don't pile up in memory when reading is
+     * faster than creating them.
+     */
+    private PyramidBuilder createPyramidBuilder(final TileWriter tileWriter,
+            final int lastLevel) {
+        final PyramidBuilder pyramid = new PyramidBuilder(tileWriter,
+                lastLevel);
+        pyramid.setPlaceholders(backgroundTiles);
+        pyramid.setMetrics(metrics);
+        if (pyramidExecutor != null) {
+            pyramid.setExecutor(pyramidExecutor, pyramidThreads
+                    * WAITING_PARENTS_PER_THREAD);
+        }
+        return pyramid;
+    }
+
+    /**
+     * Exports the full resolution tiles.
+     * 
+     * @param tileWriter
+     *            the tile writer
+     * @param lastLevel
+     *            the last zoom level to build in memory from the full
+     *            resolution tiles
+     * @param checkpoint
+     *            the progress of the export, which gives the first row to
+     *            export
+     * @throws Exception
+     */
+    private void exportFullResolutionTiles(final TileWriter tileWriter,
+            final int lastLevel, final ExportCheckpoint checkpoint)
+            throws Exception {
+        final long rows = zoomLevelConfiguration.getNumberOfRows(0);
+        final long startRow = checkpoint.getRows();
+        PyramidBuilder pyramid = null;
+        if (inMemoryPyramid && lastLevel > 0) {
+            pyramid = createPyramidBuilder(tileWriter, lastLevel);
+            resumePyramid(pyramid, tileWriter, 0, lastLevel, startRow);
+        }
+
+        int taskRows = rowsPerTask;
+        if (readMode == READ_NATIVE_TILES) {
+            long nativeTileHeight = sourceImage.getOptimalTileHeight();
+            if (nativeTileHeight < 1) {
+                nativeTileHeight = getTileSize();
             }
-            if (remainingHeight < tileSize) {
-                readHeight = (int) remainingHeight;
+            // start each task on a native tile boundary so that no native
+            // tile is decoded by two tasks
+            final long alignedRows = lcm(getTileSize(), nativeTileHeight)
+                    / getTileSize();
+            taskRows = (int) Math.min(rows, ((taskRows + alignedRows - 1)
+                    / alignedRows) * alignedRows);
+        }
+
+        if (numberOfThreads <= 1 || rows - startRow <= taskRows
+                || sourceImage.getImageNumber() != 0) {
+            for (long r = startRow; r < rows; r += taskRows) {
+                final long lastRow = Math.min(r + taskRows, rows);
+                exportFullResolutionRows(sourceImage, tileWriter, pyramid, r,
+                        lastRow);
+                rowsCompleted(checkpoint, pyramid, 0, r, lastRow);
             }
+        } else {
+            exportFullResolutionTilesInParallel(tileWriter, pyramid,
+                    startRow, rows, taskRows, checkpoint);
+        }
+        if (pyramid != null) {
+            pyramid.flush();
+        }
+        if (pyramid != null && !pyramid.isComplete()) {
+            throw new IllegalStateException(
+                    "Not all of the lower zoom level tiles were created.");
+        }
+        levelsCompleted(checkpoint, pyramid != null ? lastLevel : 0);
+    }
 
-            if (readWidth > 0 && readHeight > 0) {
-                if (LOG.isDebugEnabled()) {
-                    LOG.debug("Writing full resolution tile " + n + " of "
-                            + numberOfTiles);
+    private void exportFullResolutionTilesInParallel(
+            final TileWriter tileWriter, final PyramidBuilder pyramid,
+            final long startRow, final long rows, final int taskRows,
+            final ExportCheckpoint checkpoint) throws Exception {
+        if (LOG.isInfoEnabled()) {
+            LOG.info("Exporting full resolution tiles with " + numberOfThreads
+                    + " threads, " + taskRows + " rows per task.");
+        }
+        final BlockingQueue<ImageSource> idleSources = new LinkedBlockingQueue<ImageSource>();
+        final List<ImageSource> openedSources = Collections
+                .synchronizedList(new ArrayList<ImageSource>());
+        final ExecutorService executor = Executors
+                .newFixedThreadPool(numberOfThreads);
+        try {
+            final List<Future<Void>> results = new ArrayList<Future<Void>>();
+            for (long r = startRow; r < rows; r += taskRows) {
+                final long firstRow = r;
+                final long lastRow = Math.min(r + taskRows, rows);
+                results.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        if (sourceImage instanceof ConcurrentImageSource) {
+                            exportFullResolutionRows(sourceImage, tileWriter,
+                                    pyramid, firstRow, lastRow);
+                            rowsCompleted(checkpoint, pyramid, 0, firstRow,
+                                    lastRow);
+                            return null;
+                        }
+                        ImageSource source = idleSources.poll();
+                        if (source == null) {
+                            source = openWorkerSource();
+                            openedSources.add(source);
+                        }
+                        try {
+                            exportFullResolutionRows(source, tileWriter,
+                                    pyramid, firstRow, lastRow);
+                        } finally {
+                            idleSources.offer(source);
+                        }
+                        rowsCompleted(checkpoint, pyramid, 0, firstRow,
+                                lastRow);
+                        return null;
+                    }
+                }));
+            }
+            for (final Future<Void> result : results) {
+                try {
+                    result.get();
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof Exception) {
+                        throw (Exception) e.getCause();
+                    }
+                    throw e;
                 }
-                portion = sourceImage.readImage(reader_x, reader_y, readWidth,
-                        readHeight);
-                tileFilename = tileWriter.write(portion, 0, row_num,
-                        col_num);
-                if (LOG.isDebugEnabled()) {
-                    LOG.debug("Tile " + tileFilename + " was saved successfully.");
+            }
+        } finally {
+            executor.shutdownNow();
+            for (final ImageSource source : openedSources) {
+                try {
+                    source.close();
+                } catch (IOException e) {
+                    LOG.warn("Could not close worker image source.", e);
                 }
-            } else {
-                throw new ImageReadRangeException(
-                        "Calculated invalid read range: " + readWidth + "x"
-                                + readHeight + " for column " + col_num
-                                + " and row " + row_num + " in level " + 0);
             }
+        }
+    }
 
-            if (col_num >= cols) {
-                col_num = 0;
-                reader_x = 0;
-                row_num++;
-                reader_y += readHeight;
-            } else {
-                col_num++;
-                reader_x += readWidth;
+    /**
+     * Creates the tile reader for the current read mode. Bands are sized by
+     * the bytes per pixel of the source's current series, which is measured
+     * by reading a pixel of it.
+     * 
+     * @param source
+     *            the image source to read from
+     * @param readHeight
+     *            the height of the regions that will be read
+     * @param endY
+     *            the y-coordinate that no region extends past, exclusive
+     * @return the tile reader for the current read mode
+     * @throws IOException
+     *             if a pixel of the source could not be read
+     */
+    private TileReader createTileReader(final ImageSource source,
+            final long readHeight, final long endY) throws IOException {
+        if (readMode == READ_BANDS) {
+            final int bytesPerPixel = source.readBytes(0, 0, 1, 1).length;
+            return new BandTileReader(source, readHeight, rowsPerBand,
+                    maxBandBytes, bytesPerPixel, endY);
+        }
+        if (readMode == READ_NATIVE_TILES) {
+            long nativeTileWidth = source.getOptimalTileWidth();
+            long nativeTileHeight = source.getOptimalTileHeight();
+            if (nativeTileWidth < 1 || nativeTileHeight < 1) {
+                nativeTileWidth = getTileSize();
+                nativeTileHeight = getTileSize();
+            }
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("Reading native tiles of " + nativeTileWidth + "x"
+                        + nativeTileHeight);
             }
-            n++;
+            return new NativeTileReader(source, nativeTileWidth,
+                    nativeTileHeight);
         }
+        return new SourceTileReader(source);
     }
 
-    private void exportZoomLevelTiles(final String destination, final int level)
-            throws Exception {
+    /**
+     * Exports the full resolution tiles of a range of tile rows.
+     * 
+     * @param source
+     *            the image source to read from
+     * @param tileWriter
+     *            the tile writer
+     * @param pyramid
+     *            the builder of the lower zoom levels, or null if they are
+     *            exported afterwards
+     * @param firstRow
+     *            the first tile row to export
+     * @param lastRow
+     *            the tile row to stop at, exclusive
+     * @throws Exception
+     */
+    private void exportFullResolutionRows(final ImageSource source,
+            final TileWriter tileWriter, final PyramidBuilder pyramid,
+            final long firstRow, final long lastRow) throws Exception {
+        String tileFilename;
+        BufferedImage portion;
+
+        long readWidth, readHeight;
+
+        final long tileSize = getTileSize();
+        final long imageWidth = source.getWidth();
+        final long imageHeight = source.getHeight();
+        final long cols = zoomLevelConfiguration.getNumberOfColumns(0);
+        final long numberOfTiles = zoomLevelConfiguration.getNumberOfTiles(0);
+        final TileReader tileReader = createTileReader(source, tileSize,
+                lastRow * tileSize);
+        final boolean copyTiles = compressedTileCopy
+                && JpegTileWriterImplementation.JPG.equals(tileWriter
+                        .getExtension());
+
+        for (long row_num = firstRow; row_num < lastRow; row_num++) {
+            final long reader_y = row_num * tileSize;
+            readHeight = Math.min(tileSize, imageHeight - reader_y);
+            for (long col_num = 0; col_num < cols; col_num++) {
+                final long reader_x = col_num * tileSize;
+                readWidth = Math.min(tileSize, imageWidth - reader_x);
+
+                if (readWidth > 0 && readHeight > 0) {
+                    if (LOG.isDebugEnabled()) {
+                        LOG.debug("Writing full resolution tile "
+                                + (row_num * cols + col_num + 1) + " of "
+                                + numberOfTiles);
+                    }
+                    long start = System.nanoTime();
+                    final byte[] compressed = copyTiles ? source
+                            .readCompressedTile(reader_x, reader_y, readWidth,
+                                    readHeight) : null;
+                    if (compressed != null) {
+                        metrics.record(ExportMetrics.READ, 0,
+                                System.nanoTime() - start, compressed.length);
+                        portion = null;
+                        if (pyramid != null || backgroundTiles != null) {
+                            // decoded for the pyramid and background detection
+                            start = System.nanoTime();
+                            portion = ImageIO.read(new ByteArrayInputStream(
+                                    compressed));
+                            metrics.record(ExportMetrics.DECODE, 0,
+                                    System.nanoTime() - start,
+                                    compressed.length);
+                            if (portion == null) {
+                                portion = readTile(tileReader, reader_x,
+                                        reader_y, readWidth, readHeight);
+                            }
+                            if (backgroundTiles != null) {
+                                portion = backgroundTiles
+                                        .replaceBackground(portion);
+                            }
+                        }
+                        if (backgroundTiles != null
+                                && backgroundTiles.isPlaceholder(portion)) {
+                            tileFilename = tileWriter.write(portion, 0,
+                                    row_num, col_num);
+                        } else {
+                            tileFilename = tileWriter.writeEncoded(
+                                    compressed, 0, row_num, col_num);
+                        }
+                    } else {
+                        portion = readTile(tileReader, reader_x, reader_y,
+                                readWidth, readHeight);
+                        if (backgroundTiles != null) {
+                            portion = backgroundTiles
+                                    .replaceBackground(portion);
+                        }
+                        tileFilename = tileWriter.write(portion, 0, row_num,
+                                col_num);
+                    }
+                    if (LOG.isDebugEnabled()) {
+                        LOG.debug("Tile " + tileFilename
+                                + " was saved successfully.");
+                    }
+                    if (pyramid != null) {
+                        pyramid.addTile(portion, 0, row_num, col_num);
+                    }
+                } else {
+                    throw new ImageReadRangeException(
+                            "Calculated invalid read range: " + readWidth
+                                    + "x" + readHeight + " for column "
+                                    + col_num + " and row " + row_num
+                                    + " in level " + 0);
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads a full resolution tile, recording the time taken.
+     */
+    private BufferedImage readTile(final TileReader tileReader,
+            final long x, final long y, final long width, final long height)
+            throws IOException {
+        final long start = System.nanoTime();
+        final BufferedImage tile = tileReader.read(x, y, width, height);
+        metrics.record(ExportMetrics.READ, 0, System.nanoTime() - start,
+                ExportMetrics.getPixelBytes(tile));
+        return tile;
+    }
+
+    private static long lcm(final long a, final long b) {
+        long x = a, y = b;
+        while (y != 0) {
+            final long t = x % y;
+            x = y;
+            y = t;
+        }
+        return a / x * b;
+    }
+
+    private void exportZoomLevelTiles(final TileWriter tileWriter,
+            final int level) throws Exception {
         long col_num, row_num, cols;
         String tileFilename;
 
@@ -184,7 +1263,6 @@ public abstract class AbstractTileDirectoryExport implements TileExport {
 
         final long numberOfTiles = zoomLevelConfiguration
                 .getNumberOfTiles(level);
-        final TileWriter tileWriter = getTileWriter(destination);
         BufferedImage tileImage;
         for (long j = 0; j < numberOfTiles; j++) {
             if (LOG.isDebugEnabled()) {
@@ -193,7 +1271,7 @@ public abstract class AbstractTileDirectoryExport implements TileExport {
                         + numberOfTiles);
             }
             tileImage = TileUtils.createLowerZoomLevelTile(tileWriter, level,
-                    row_num, col_num);
+                    row_num, col_num, metrics);
             tileFilename = tileWriter.write(tileImage, level, row_num,
                     col_num);
             if (LOG.isDebugEnabled()) {
@@ -0,0 +1,202 @@
+/*
+ * Copyright 2011 University of Southern California
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.isi.misd.image.gateway.conversion.tile;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.Raster;
+
+/**
+ * Decides whether a tile shows only the blank background of a slide, such as
+ * white glass, from the statistics of its samples: nearly all of them must be
+ * at least the white level, and their variance must be low. The decision is
+ * made in a single pass over the raw bytes of the tile, and stops at the
+ * first sample that shows the tile isn't background once too many dark ones
+ * have been seen.
+ *
+ * Tiles that are background are exported as a placeholder tile filled with
+ * the background color.
+ *
+ * @author David Smith
+ *
+ */
+public class BackgroundDetector {
+
+    /**
+     * The default lowest sample value that counts as white
+     */
+    public static final int DEFAULT_WHITE_LEVEL = 220;
+
+    /**
+     * The default largest fraction of samples that may be below the white
+     * level
+     */
+    public static final double DEFAULT_MAX_DARK_FRACTION = 0.001;
+
+    /**
+     * The default largest variance of the samples
+     */
+    public static final double DEFAULT_MAX_VARIANCE = 36;
+
+    private int whiteLevel = DEFAULT_WHITE_LEVEL;
+    private double maxDarkFraction = DEFAULT_MAX_DARK_FRACTION;
+    private double maxVariance = DEFAULT_MAX_VARIANCE;
+    private int backgroundColor = 0xffffff;
+
+    /**
+     *
+     * @param image
+     *            the tile
+     * @return true if the tile shows only background
+     */
+    public boolean isBackground(final BufferedImage image) {
+        if (image == null) {
+            throw new IllegalArgumentException("Image cannot be null.");
+        }
+        final Raster raster = image.getRaster();
+        final int width = raster.getWidth();
+        final int height = raster.getHeight();
+        final boolean interleaved = BoxDownsampler.isInterleavedBytes(raster);
+        final int bands = interleaved ? raster.getNumBands() : 3;
+        final long samples = (long) width * height * bands;
+        final long maxDark = (long) (samples * maxDarkFraction);
+
+        long dark = 0;
+        long sum = 0;
+        long sumOfSquares = 0;
+        if (interleaved) {
+            final byte[] data = BoxDownsampler.getData(raster);
+            final int stride = BoxDownsampler.getScanlineStride(raster);
+            int start = BoxDownsampler.getOffset(raster, raster.getMinX(),
+                    raster.getMinY());
+            for (int y = 0; y < height; y++, start += stride) {
+                final int end = start + width * bands;
+                for (int i = start; i < end; i++) {
+                    final int value = data[i] & 0xff;
+                    if (value < whiteLevel && ++dark > maxDark) {
+                        return false;
+                    }
+                    sum += value;
+                    sumOfSquares += value * value;
+                }
+            }
+        } else {
+            final int[] row = new int[width];
+            for (int y = 0; y < height; y++) {
+                image.getRGB(0, y, width, 1, row, 0, width);
+                for (int x = 0; x < width; x++) {
+                    for (int shift = 0; shift <= 16; shift += 8) {
+                        final int value = (row[x] >> shift) & 0xff;
+                        if (value < whiteLevel && ++dark > maxDark) {
+                            return false;
+                        }
+                        sum += value;
+                        sumOfSquares += value * value;
+                    }
+                }
+            }
+        }
+        final double mean = (double) sum / samples;
+        return (double) sumOfSquares / samples - mean * mean <= maxVariance;
+    }
+
+    /**
+     * Sets the lowest sample value that counts as white.
+     *
+     * @param level
+     *            the white level, from 0 to 255
+     */
+    public void setWhiteLevel(final int level) {
+        if (level < 0 || level > 255) {
+            throw new IllegalArgumentException(
+                    "White level must be from 0 to 255.");
+        }
+        whiteLevel = level;
+    }
+
+    /**
+     *
+     * @return the lowest sample value that counts as white
+     */
+    public int getWhiteLevel() {
+        return whiteLevel;
+    }
+
+    /**
+     * Sets the largest fraction of the samples of a background tile that may
+     * be below the white level, to allow for dust and noise.
+     *
+     * @param fraction
+     *            the fraction, from 0 to 1
+     */
+    public void setMaxDarkFraction(final double fraction) {
+        if (fraction < 0 || fraction > 1) {
+            throw new IllegalArgumentException(
+                    "Dark fraction must be from 0 to 1.");
+        }
+        maxDarkFraction = fraction;
+    }
+
+    /**
+     *
+     * @return the largest fraction of the samples of a background tile that
+     *         may be below the white level
+     */
+    public double getMaxDarkFraction() {
+        return maxDarkFraction;
+    }
+
+    /**
+     * Sets the largest variance of the samples of a background tile, so that
+     * faint structure above the white level isn't taken for background.
+     *
+     * @param variance
+     *            the variance, at least 0
+     */
+    public void setMaxVariance(final double variance) {
+        if (variance < 0) {
+            throw new IllegalArgumentException(
+                    "Variance must be at least 0.");
+        }
+        maxVariance = variance;
+    }
+
+    /**
+     *
+     * @return the largest variance of the samples of a background tile
+     */
+    public double getMaxVariance() {
+        return maxVariance;
+    }
+
+    /**
+     * Sets the color that placeholder tiles are filled with.
+     *
+     * @param rgb
+     *            the color as 0xRRGGBB
+     */
+    public void setBackgroundColor(final int rgb) {
+        backgroundColor = rgb & 0xffffff;
+    }
+
+    /**
+     *
+     * @return the color that placeholder tiles are filled with, as 0xRRGGBB
+     */
+    public int getBackgroundColor() {
+        return backgroundColor;
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright 2011 University of Southern California
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.isi.misd.image.gateway.conversion.tile;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tile writer that writes placeholder tiles, which stand in for tiles that
+ * only show background, without encoding them again. There is one
+ * placeholder per tile size, filled with the background color, and when the
+ * other tile writer writes JPEG tiles it is encoded once and the same bytes
+ * are written for every tile it stands in for. Other tiles are passed on as
+ * they are.
+ *
+ * @author David Smith
+ *
+ */
+class BackgroundTileWriter implements TileWriter {
+
+    private final TileWriter tileWriter;
+    private final BackgroundDetector detector;
+    private final JpegTileEncoder encoder;
+    private final boolean encodePlaceholders;
+
+    private final List<BufferedImage> placeholders = new ArrayList<BufferedImage>();
+    private final List<byte[]> encodedPlaceholders = new ArrayList<byte[]>();
+
+    /**
+     * Constructor.
+     *
+     * @param writer
+     *            the tile writer to write the tiles with
+     * @param backgroundDetector
+     *            decides which tiles are background
+     * @param tileEncoder
+     *            the encoder used for the placeholders when the tile writer
+     *            writes JPEG tiles
+     */
+    BackgroundTileWriter(final TileWriter writer,
+            final BackgroundDetector backgroundDetector,
+            final JpegTileEncoder tileEncoder) {
+        tileWriter = writer;
+        detector = backgroundDetector;
+        encoder = tileEncoder;
+        encodePlaceholders = JpegTileWriterImplementation.JPG.equals(writer
+                .getExtension());
+    }
+
+    /**
+     *
+     * @param image
+     *            a tile that has been read
+     * @return the placeholder of the tile's size if the tile only shows
+     *         background; otherwise the tile
+     */
+    BufferedImage replaceBackground(final BufferedImage image) {
+        if (detector.isBackground(image)) {
+            return getPlaceholder(image, image.getWidth(), image.getHeight());
+        }
+        return image;
+    }
+
+    /**
+     *
+     * @param image
+     *            a tile
+     * @return true if the tile is a placeholder
+     */
+    synchronized boolean isPlaceholder(final BufferedImage image) {
+        for (final BufferedImage placeholder : placeholders) {
+            if (placeholder == image) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     *
+     * @param like
+     *            a tile with the layout the placeholder should have
+     * @param width
+     *            the width of the placeholder
+     * @param height
+     *            the height of the placeholder
+     * @return the placeholder of the given size, created if there isn't one
+     *         yet
+     */
+    synchronized BufferedImage getPlaceholder(final BufferedImage like,
+            final int width, final int height) {
+        final ColorModel colorModel = like.getColorModel();
+        for (final BufferedImage placeholder : placeholders) {
+            if (placeholder.getWidth() == width
+                    && placeholder.getHeight() == height
+                    && placeholder.getColorModel().equals(colorModel)
+                    && placeholder.getSampleModel().getClass() == like
+                            .getSampleModel().getClass()) {
+                return placeholder;
+            }
+        }
+        final BufferedImage placeholder = new BufferedImage(colorModel, like
+                .getRaster().createCompatibleWritableRaster(width, height),
+                colorModel.isAlphaPremultiplied(), null);
+        final Graphics2D g = placeholder.createGraphics();
+        try {
+            g.setColor(new Color(detector.getBackgroundColor()));
+            g.fillRect(0, 0, width, height);
+        } finally {
+            g.dispose();
+        }
+        placeholders.add(placeholder);
+        encodedPlaceholders.add(null);
+        return placeholder;
+    }
+
+    @Override
+    public String write(final BufferedImage image, final int level,
+            final long row, final long column) throws IOException {
+        if (encodePlaceholders) {
+            final byte[] data = getEncodedPlaceholder(image);
+            if (data != null) {
+                return tileWriter.writeEncoded(data, level, row, column);
+            }
+        }
+        return tileWriter.write(image, level, row, column);
+    }
+
+    @Override
+    public String writeEncoded(final byte[] data, final int level,
+            final long row, final long column) throws IOException {
+        return tileWriter.writeEncoded(data, level, row, column);
+    }
+
+    @Override
+    public void close() throws IOException {
+        tileWriter.close();
+    }
+
+    @Override
+    public String getExtension() {
+        return tileWriter.getExtension();
+    }
+
+    @Override
+    public TileNamingConvention getTileNamingConvention() {
+        return tileWriter.getTileNamingConvention();
+    }
+
+    @Override
+    public String getDestinationDirectory() {
+        return tileWriter.getDestinationDirectory();
+    }
+
+    @Override
+    public ZoomLevelConfiguration getZoomLevelConfiguration() {
+        return tileWriter.getZoomLevelConfiguration();
+    }
+
+    /**
+     *
+     * @return the encoded placeholder if the tile is a placeholder; otherwise
+     *         null
+     */
+    private synchronized byte[] getEncodedPlaceholder(final BufferedImage image)
+            throws IOException {
+        for (int i = 0; i < placeholders.size(); i++) {
+            if (placeholders.get(i) == image) {
+                byte[] data = encodedPlaceholders.get(i);
+                if (data == null) {
+                    data = encoder.encode(image);
+                    encodedPlaceholders.set(i, data);
+                }
+                return data;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright 2011 University of Southern California
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.isi.misd.image.gateway.conversion.tile;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+
+import org.apache.log4j.Logger;
+
+import edu.isi.misd.image.gateway.conversion.ImageSource;
+
+/**
+ * Tile reader that reads the source image in bands that are the full width of
+ * the image and one or more tiles high, and cuts the tiles out of the band in
+ * memory. Strip organized images then decode each strip once per band instead
+ * of once per tile.
+ * 
+ * If a band one tile high is larger than the memory limit, the band is read in
+ * as many tiles wide as fit under the limit instead.
+ * 
+ * @author David Smith
+ * 
+ */
+public class BandTileReader implements TileReader {
+
+    private static final Logger LOG = Logger.getLogger(BandTileReader.class);
+
+    private final ImageSource source;
+    private final long tileSize;
+    private final int bandRows;
+    private final long maxBandBytes;
+    private final int bytesPerPixel;
+    private final long endY;
+
+    private BufferedImage band = null;
+    private long bandX, bandY;
+
+    /**
+     * Constructor
+     * 
+     * @param imageSource
+     *            the image source to read from
+     * @param size
+     *            the tile size
+     * @param rows
+     *            the number of tile rows in a band
+     * @param maxBytes
+     *            the maximum size of a band in bytes
+     * @param pixelBytes
+     *            the number of bytes per pixel of the image source
+     * @param lastY
+     *            the y-coordinate that no band extends past, exclusive
+     */
+    public BandTileReader(final ImageSource imageSource, final long size,
+            final int rows, final long maxBytes, final int pixelBytes,
+            final long lastY) {
+        if (imageSource == null) {
+            throw new IllegalArgumentException("ImageSource must be specified.");
+        }
+        if (size < 1) {
+            throw new IllegalArgumentException("Tile size must be at least 1.");
+        }
+        if (rows < 1) {
+            throw new IllegalArgumentException(
+                    "Rows per band must be at least 1.");
+        }
+        if (maxBytes < 1) {
+            throw new IllegalArgumentException(
+                    "Maximum band size must be at least 1.");
+        }
+        if (pixelBytes < 1) {
+            throw new IllegalArgumentException(
+                    "Bytes per pixel must be at least 1.");
+        }
+        source = imageSource;
+        tileSize = size;
+        bandRows = rows;
+        maxBandBytes = Math.min(maxBytes, Integer.MAX_VALUE);
+        bytesPerPixel = pixelBytes;
+        endY = Math.min(lastY, source.getHeight());
+    }
+
+    @Override
+    public BufferedImage read(final long x, final long y, final long width,
+            final long height) throws IOException {
+        if (band == null || x < bandX || y < bandY
+                || x + width > bandX + band.getWidth()
+                || y + height > bandY + band.getHeight()) {
+            readBand(x, y, width, height);
+        }
+        return TileUtils.cropImage(band, (int) (x - bandX),
+                (int) (y - bandY), (int) width, (int) height);
+    }
+
+    /**
+     * Reads the band that starts with the requested region.
+     */
+    private void readBand(final long x, final long y, final long width,
+            final long height) throws IOException {
+        // release the previous band before reading the next one
+        band = null;
+
+        final long imageWidth = source.getWidth();
+        final long rowBytes = imageWidth * tileSize * bytesPerPixel;
+        final long fittingRows = Math.min(bandRows, maxBandBytes / rowBytes);
+        long readWidth, readHeight;
+        if (fittingRows >= 1) {
+            bandX = 0;
+            readWidth = imageWidth;
+            readHeight = fittingRows * tileSize;
+        } else {
+            final long fittingColumns = Math.max(1, maxBandBytes
+                    / (tileSize * tileSize * bytesPerPixel));
+            bandX = x;
+            readWidth = Math.max(width, fittingColumns * tileSize);
+            readHeight = Math.max(height, tileSize);
+        }
+        bandY = y;
+        readWidth = Math.min(readWidth, imageWidth - bandX);
+        readHeight = Math.min(readHeight, Math.max(endY, y + height) - bandY);
+
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Reading band at " + bandX + "x" + bandY
+                    + " of dimensions " + readWidth + "x" + readHeight);
+        }
+        band = source.readImage(bandX, bandY, readWidth, readHeight);
+    }
+}
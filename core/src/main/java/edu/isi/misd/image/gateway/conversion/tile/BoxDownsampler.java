@@ -0,0 +1,268 @@
+/*
+ * Copyright 2011 University of Southern California
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.isi.misd.image.gateway.conversion.tile;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBufferByte;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+
+import loci.formats.gui.AWTImageTools;
+
+/**
+ * Box filter downsampling of images stored as interleaved bytes, such as RGB
+ * images read with ImageSource.readBytes or the rasters of 3-byte images.
+ * The methods write into arrays provided by the caller and allocate nothing.
+ * 
+ * @author David Smith
+ * 
+ */
+public final class BoxDownsampler {
+
+    private BoxDownsampler() {
+    }
+
+    /**
+     * Halves the width and height of an image by averaging each 2x2 block of
+     * pixels. Blocks at the right and bottom edges of an image with an odd
+     * width or height average the pixels they have.
+     * 
+     * @param source
+     *            the source pixels
+     * @param sourceOffset
+     *            the index of the first byte of the top left pixel
+     * @param sourceStride
+     *            the number of bytes from one row to the next
+     * @param width
+     *            the width of the source image
+     * @param height
+     *            the height of the source image
+     * @param bands
+     *            the number of bytes per pixel
+     * @param destination
+     *            the destination pixels, at least (width + 1) / 2 by (height +
+     *            1) / 2
+     * @param destinationOffset
+     *            the index of the first byte of the top left pixel
+     * @param destinationStride
+     *            the number of bytes from one row to the next
+     */
+    public static void downsample2x2(final byte[] source,
+            final int sourceOffset, final int sourceStride, final int width,
+            final int height, final int bands, final byte[] destination,
+            final int destinationOffset, final int destinationStride) {
+        final int fullColumns = width / 2;
+        final int fullRows = height / 2;
+        for (int y = 0; y < fullRows; y++) {
+            int top = sourceOffset + 2 * y * sourceStride;
+            int out = destinationOffset + y * destinationStride;
+            for (int x = 0; x < fullColumns; x++) {
+                for (int b = 0; b < bands; b++) {
+                    final int bottom = top + sourceStride;
+                    destination[out++] = (byte) (((source[top] & 0xff)
+                            + (source[top + bands] & 0xff)
+                            + (source[bottom] & 0xff)
+                            + (source[bottom + bands] & 0xff) + 2) >> 2);
+                    top++;
+                }
+                top += bands;
+            }
+            if (fullColumns * 2 < width) {
+                for (int b = 0; b < bands; b++) {
+                    destination[out++] = (byte) (((source[top] & 0xff)
+                            + (source[top + sourceStride] & 0xff) + 1) >> 1);
+                    top++;
+                }
+            }
+        }
+        if (fullRows * 2 < height) {
+            int top = sourceOffset + 2 * fullRows * sourceStride;
+            int out = destinationOffset + fullRows * destinationStride;
+            for (int x = 0; x < fullColumns; x++) {
+                for (int b = 0; b < bands; b++) {
+                    destination[out++] = (byte) (((source[top] & 0xff)
+                            + (source[top + bands] & 0xff) + 1) >> 1);
+                    top++;
+                }
+                top += bands;
+            }
+            if (fullColumns * 2 < width) {
+                for (int b = 0; b < bands; b++) {
+                    destination[out++] = source[top++];
+                }
+            }
+        }
+    }
+
+    /**
+     * Resamples an image to any size by averaging the block of source pixels
+     * that each destination pixel covers.
+     * 
+     * @param source
+     *            the source pixels
+     * @param sourceOffset
+     *            the index of the first byte of the top left pixel
+     * @param sourceStride
+     *            the number of bytes from one row to the next
+     * @param sourceWidth
+     *            the width of the source image
+     * @param sourceHeight
+     *            the height of the source image
+     * @param bands
+     *            the number of bytes per pixel
+     * @param destination
+     *            the destination pixels
+     * @param destinationOffset
+     *            the index of the first byte of the top left pixel
+     * @param destinationStride
+     *            the number of bytes from one row to the next
+     * @param destinationWidth
+     *            the width of the destination image
+     * @param destinationHeight
+     *            the height of the destination image
+     */
+    public static void downsample(final byte[] source,
+            final int sourceOffset, final int sourceStride,
+            final int sourceWidth, final int sourceHeight, final int bands,
+            final byte[] destination, final int destinationOffset,
+            final int destinationStride, final int destinationWidth,
+            final int destinationHeight) {
+        for (int y = 0; y < destinationHeight; y++) {
+            final int top = (int) ((long) y * sourceHeight / destinationHeight);
+            final int bottom = Math.max(top + 1,
+                    (int) (((long) (y + 1) * sourceHeight
+                            + destinationHeight - 1) / destinationHeight));
+            int out = destinationOffset + y * destinationStride;
+            for (int x = 0; x < destinationWidth; x++) {
+                final int left = (int) ((long) x * sourceWidth / destinationWidth);
+                final int right = Math.max(left + 1,
+                        (int) (((long) (x + 1) * sourceWidth
+                                + destinationWidth - 1) / destinationWidth));
+                final int count = (bottom - top) * (right - left);
+                for (int b = 0; b < bands; b++) {
+                    int sum = 0;
+                    for (int sy = top; sy < bottom; sy++) {
+                        int in = sourceOffset + sy * sourceStride + left
+                                * bands + b;
+                        for (int sx = left; sx < right; sx++) {
+                            sum += source[in] & 0xff;
+                            in += bands;
+                        }
+                    }
+                    destination[out++] = (byte) ((sum + count / 2) / count);
+                }
+            }
+        }
+    }
+
+    /**
+     * Resamples an image to a new size. Images stored as interleaved bytes
+     * are averaged with a box filter into an image of the same type; other
+     * images are scaled with AWTImageTools.
+     * 
+     * @param image
+     *            the image to resample
+     * @param width
+     *            the new width
+     * @param height
+     *            the new height
+     * @return the resampled image
+     */
+    public static BufferedImage downsample(final BufferedImage image,
+            final int width, final int height) {
+        if (image == null) {
+            throw new IllegalArgumentException("Image cannot be null.");
+        }
+        if (width < 1 || height < 1) {
+            throw new IllegalArgumentException(
+                    "Width and height must be at least 1.");
+        }
+        final Raster source = image.getRaster();
+        if (!isInterleavedBytes(source)) {
+            return AWTImageTools.scale(image, width, height, false);
+        }
+        final ColorModel colorModel = image.getColorModel();
+        final WritableRaster raster = source.createCompatibleWritableRaster(
+                width, height);
+        downsample(getData(source), getOffset(source, 0, 0),
+                getScanlineStride(source), image.getWidth(),
+                image.getHeight(), source.getNumBands(), getData(raster),
+                getOffset(raster, 0, 0), getScanlineStride(raster), width,
+                height);
+        return new BufferedImage(colorModel, raster,
+                colorModel.isAlphaPremultiplied(), null);
+    }
+
+    /**
+     * 
+     * @param raster
+     *            the raster to check
+     * @return true if the raster stores the bands of each pixel next to each
+     *         other in a single byte array
+     */
+    public static boolean isInterleavedBytes(final Raster raster) {
+        if (!(raster.getDataBuffer() instanceof DataBufferByte)
+                || !(raster.getSampleModel() instanceof ComponentSampleModel)) {
+            return false;
+        }
+        final ComponentSampleModel model = (ComponentSampleModel) raster
+                .getSampleModel();
+        if (model.getPixelStride() != model.getNumBands()) {
+            return false;
+        }
+        for (int i = 0; i < model.getNumBands(); i++) {
+            if (model.getBankIndices()[i] != 0
+                    || model.getBandOffsets()[i] >= model.getPixelStride()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 
+     * @return the byte array of an interleaved byte raster
+     */
+    static byte[] getData(final Raster raster) {
+        return ((DataBufferByte) raster.getDataBuffer()).getData();
+    }
+
+    /**
+     * 
+     * @return the index of the first byte of a pixel of an interleaved byte
+     *         raster
+     */
+    static int getOffset(final Raster raster, final int x, final int y) {
+        return raster.getDataBuffer().getOffset()
+                + (y - raster.getSampleModelTranslateY())
+                * getScanlineStride(raster)
+                + (x - raster.getSampleModelTranslateX())
+                * raster.getNumBands();
+    }
+
+    /**
+     * 
+     * @return the number of bytes from one row to the next of an interleaved
+     *         byte raster
+     */
+    static int getScanlineStride(final Raster raster) {
+        return ((ComponentSampleModel) raster.getSampleModel())
+                .getScanlineStride();
+    }
+}
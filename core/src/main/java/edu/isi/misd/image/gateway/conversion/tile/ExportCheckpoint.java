@@ -0,0 +1,224 @@
+/*
+ * Copyright 2011 University of Southern California
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.isi.misd.image.gateway.conversion.tile;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+import org.apache.log4j.Logger;
+
+/**
+ * The progress of a tile export, saved to a manifest file in the destination
+ * directory so that an export that stops part way can be resumed. The export
+ * is done in stages of one or more zoom levels; the checkpoint records the
+ * first zoom level that isn't complete, and how many of its tile rows are.
+ * Tile rows can complete out of order, when they are exported in parallel,
+ * and only the rows that complete a run from the first row are counted.
+ *
+ * The manifest is written to a temporary file that is then renamed over the
+ * previous one, so it always holds a whole checkpoint. It also records the
+ * settings of the export, and is only used to resume an export with the same
+ * settings.
+ *
+ * @author David Smith
+ *
+ */
+class ExportCheckpoint {
+
+    private static final Logger LOG = Logger.getLogger(ExportCheckpoint.class);
+
+    private static final String LEVEL = "level";
+    private static final String ROWS = "rows";
+    private static final String SETTINGS = "settings";
+
+    private final File manifest;
+    private final String settings;
+
+    private int level = 0;
+    private long rows = 0;
+    private final Map<Long, Long> completedRanges = new TreeMap<Long, Long>();
+
+    /**
+     * Constructor for the start of an export.
+     *
+     * @param manifestFile
+     *            the manifest file, or null if the export can't be resumed
+     *            and no checkpoints are saved
+     * @param exportSettings
+     *            the settings that an export must have to resume from this
+     *            checkpoint
+     */
+    ExportCheckpoint(final File manifestFile, final String exportSettings) {
+        manifest = manifestFile;
+        settings = exportSettings;
+    }
+
+    /**
+     * Loads the checkpoint saved by an earlier export.
+     *
+     * @param manifestFile
+     *            the manifest file
+     * @param exportSettings
+     *            the settings of this export
+     * @return the checkpoint, or null if there is none or it was saved by an
+     *         export with other settings
+     */
+    static ExportCheckpoint load(final File manifestFile,
+            final String exportSettings) {
+        if (!manifestFile.isFile()) {
+            return null;
+        }
+        final Properties properties = new Properties();
+        try {
+            final InputStream in = new FileInputStream(manifestFile);
+            try {
+                properties.load(in);
+            } finally {
+                in.close();
+            }
+            if (!exportSettings.equals(properties.getProperty(SETTINGS))) {
+                LOG.warn("Checkpoint " + manifestFile
+                        + " was saved with other export settings.");
+                return null;
+            }
+            final ExportCheckpoint checkpoint = new ExportCheckpoint(
+                    manifestFile, exportSettings);
+            checkpoint.level = Integer.parseInt(properties.getProperty(LEVEL));
+            checkpoint.rows = Long.parseLong(properties.getProperty(ROWS));
+            return checkpoint;
+        } catch (final IOException e) {
+            LOG.warn("Could not read checkpoint " + manifestFile, e);
+        } catch (final NumberFormatException e) {
+            LOG.warn("Checkpoint " + manifestFile + " is invalid.", e);
+        }
+        return null;
+    }
+
+    /**
+     *
+     * @return the first zoom level that isn't complete
+     */
+    synchronized int getLevel() {
+        return level;
+    }
+
+    /**
+     *
+     * @return the number of complete tile rows of the first zoom level that
+     *         isn't complete
+     */
+    synchronized long getRows() {
+        return rows;
+    }
+
+    /**
+     *
+     * @return true if the checkpoint is saved to a manifest file, so that
+     *         the export can be resumed from it
+     */
+    boolean isSaved() {
+        return manifest != null;
+    }
+
+    /**
+     * Records that a range of tile rows of the current zoom level is
+     * complete, and saves the checkpoint if that completes a run of rows from
+     * the last one saved.
+     *
+     * @param firstRow
+     *            the first row of the range
+     * @param lastRow
+     *            the row that the range stops at, exclusive
+     * @throws IOException
+     *             if the checkpoint could not be saved
+     */
+    synchronized void rowsCompleted(final long firstRow, final long lastRow)
+            throws IOException {
+        completedRanges.put(Long.valueOf(firstRow), Long.valueOf(lastRow));
+        final long previousRows = rows;
+        Long next;
+        while ((next = completedRanges.remove(Long.valueOf(rows))) != null) {
+            rows = next.longValue();
+        }
+        if (rows != previousRows) {
+            save();
+        }
+    }
+
+    /**
+     * Records that the zoom levels up to the given one are complete, and
+     * saves the checkpoint.
+     *
+     * @param lastLevel
+     *            the last complete zoom level
+     * @throws IOException
+     *             if the checkpoint could not be saved
+     */
+    synchronized void levelsCompleted(final int lastLevel) throws IOException {
+        level = lastLevel + 1;
+        rows = 0;
+        completedRanges.clear();
+        save();
+    }
+
+    /**
+     * Deletes the manifest file, when an export finishes or starts over.
+     */
+    void delete() {
+        if (manifest != null && manifest.exists() && !manifest.delete()) {
+            LOG.warn("Could not delete checkpoint " + manifest);
+        }
+    }
+
+    /**
+     * Writes the checkpoint to a temporary file, forces it to the disk, and
+     * renames it over the manifest.
+     */
+    private void save() throws IOException {
+        if (manifest == null) {
+            return;
+        }
+        final Properties properties = new Properties();
+        properties.setProperty(SETTINGS, settings);
+        properties.setProperty(LEVEL, Integer.toString(level));
+        properties.setProperty(ROWS, Long.toString(rows));
+        final File temporary = new File(manifest.getPath() + ".tmp");
+        final FileOutputStream out = new FileOutputStream(temporary);
+        try {
+            properties.store(out, "Tile export checkpoint");
+            out.flush();
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        // renaming over an existing file fails on some platforms
+        if (!temporary.renameTo(manifest)
+                && !(manifest.delete() && temporary.renameTo(manifest))) {
+            throw new IOException("Could not save checkpoint " + manifest);
+        }
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Saved checkpoint at zoom level " + level + ", row "
+                    + rows);
+        }
+    }
+}
@@ -0,0 +1,435 @@
+/*
+ * Copyright 2011 University of Southern California
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.isi.misd.image.gateway.conversion.tile;
+
+import java.awt.image.BufferedImage;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Counts and times the stages of a tile export for each zoom level: reading
+ * from the source, decoding, downsampling, encoding, writing tile files and
+ * creating tile directories. Each stage keeps a count, its total time, the
+ * bytes it handled and a histogram of its latencies with a bucket for each
+ * power of two nanoseconds, which gives percentiles to within a factor of
+ * two. Recording is lock free, so the worker threads of an export share one
+ * instance.
+ *
+ * The metrics can be registered as an MBean, to follow an export that is
+ * running through JMX.
+ *
+ * @author David Smith
+ *
+ */
+public class ExportMetrics implements ExportMetricsMBean {
+
+    private static final Logger LOG = Logger.getLogger(ExportMetrics.class);
+
+    /**
+     * Reading regions or compressed tiles from the source image
+     */
+    public static final int READ = 0;
+
+    /**
+     * Decoding tiles that were read back or copied compressed
+     */
+    public static final int DECODE = 1;
+
+    /**
+     * Creating the tiles of the lower zoom levels from higher ones
+     */
+    public static final int DOWNSAMPLE = 2;
+
+    /**
+     * Encoding tiles as JPEG
+     */
+    public static final int ENCODE = 3;
+
+    /**
+     * Writing tile files
+     */
+    public static final int WRITE = 4;
+
+    /**
+     * Creating the directories of tile files
+     */
+    public static final int CREATE_DIRECTORY = 5;
+
+    private static final String[] STAGE_NAMES = { "read", "decode",
+            "downsample", "encode", "write", "mkdir" };
+
+    private static final int STAGES = STAGE_NAMES.length;
+    private static final int BUCKETS = 64;
+
+    private static final String DOMAIN = "edu.isi.misd.image.gateway";
+
+    private final int levels;
+    private final long startTime = System.nanoTime();
+    private volatile long stopTime = 0;
+
+    // indexed by level * STAGES + stage
+    private final AtomicLongArray counts;
+    private final AtomicLongArray nanos;
+    private final AtomicLongArray bytes;
+    // indexed by (level * STAGES + stage) * BUCKETS + bucket
+    private final AtomicLongArray histograms;
+
+    private ObjectName objectName = null;
+
+    /**
+     * Constructor.
+     *
+     * @param zoomLevels
+     *            the number of zoom levels of the export
+     */
+    public ExportMetrics(final int zoomLevels) {
+        if (zoomLevels < 1) {
+            throw new IllegalArgumentException(
+                    "Number of zoom levels must be at least 1.");
+        }
+        levels = zoomLevels;
+        counts = new AtomicLongArray(levels * STAGES);
+        nanos = new AtomicLongArray(levels * STAGES);
+        bytes = new AtomicLongArray(levels * STAGES);
+        histograms = new AtomicLongArray(levels * STAGES * BUCKETS);
+    }
+
+    /**
+     * Records one run of a stage.
+     *
+     * @param stage
+     *            the stage, such as READ
+     * @param level
+     *            the zoom level
+     * @param elapsedNanos
+     *            the time the stage took, in nanoseconds
+     * @param byteCount
+     *            the bytes the stage handled, or 0
+     */
+    public void record(final int stage, final int level,
+            final long elapsedNanos, final long byteCount) {
+        final int index = getIndex(stage, level);
+        final long elapsed = Math.max(0, elapsedNanos);
+        counts.incrementAndGet(index);
+        nanos.addAndGet(index, elapsed);
+        if (byteCount > 0) {
+            bytes.addAndGet(index, byteCount);
+        }
+        final int bucket = Math.min(BUCKETS - 1,
+                64 - Long.numberOfLeadingZeros(elapsed));
+        histograms.incrementAndGet(index * BUCKETS + bucket);
+    }
+
+    /**
+     *
+     * @param stage
+     *            the stage
+     * @param level
+     *            the zoom level, or -1 for all of them
+     * @return the number of times the stage ran
+     */
+    public long getCount(final int stage, final int level) {
+        return sum(counts, stage, level);
+    }
+
+    /**
+     *
+     * @param stage
+     *            the stage
+     * @param level
+     *            the zoom level, or -1 for all of them
+     * @return the total time of the stage, in nanoseconds
+     */
+    public long getNanos(final int stage, final int level) {
+        return sum(nanos, stage, level);
+    }
+
+    /**
+     *
+     * @param stage
+     *            the stage
+     * @param level
+     *            the zoom level, or -1 for all of them
+     * @return the bytes the stage handled
+     */
+    public long getBytes(final int stage, final int level) {
+        return sum(bytes, stage, level);
+    }
+
+    /**
+     *
+     * @param stage
+     *            the stage
+     * @param level
+     *            the zoom level, or -1 for all of them
+     * @param fraction
+     *            the fraction of the runs, from 0 to 1, such as 0.99
+     * @return the latency that the given fraction of the runs of the stage
+     *         took at most, rounded up to a power of two nanoseconds, or 0 if
+     *         it hasn't run
+     */
+    public long getPercentileNanos(final int stage, final int level,
+            final double fraction) {
+        if (fraction < 0 || fraction > 1) {
+            throw new IllegalArgumentException(
+                    "Fraction must be from 0 to 1.");
+        }
+        final long[] histogram = new long[BUCKETS];
+        long total = 0;
+        for (int l = 0; l < levels; l++) {
+            if (level < 0 || l == level) {
+                final int index = getIndex(stage, l) * BUCKETS;
+                for (int b = 0; b < BUCKETS; b++) {
+                    final long count = histograms.get(index + b);
+                    histogram[b] += count;
+                    total += count;
+                }
+            }
+        }
+        if (total == 0) {
+            return 0;
+        }
+        final long rank = Math.max(1, (long) Math.ceil(total * fraction));
+        long seen = 0;
+        for (int b = 0; b < BUCKETS; b++) {
+            seen += histogram[b];
+            if (seen >= rank) {
+                return b == 0 ? 0 : 1L << Math.min(62, b);
+            }
+        }
+        return Long.MAX_VALUE;
+    }
+
+    /**
+     * Stops the clock of the export, when it has finished.
+     */
+    public void stop() {
+        if (stopTime == 0) {
+            stopTime = System.nanoTime();
+        }
+    }
+
+    /**
+     *
+     * @return the time from when the metrics were created until they were
+     *         stopped, or until now if they haven't been, in nanoseconds
+     */
+    public long getElapsedNanos() {
+        return (stopTime != 0 ? stopTime : System.nanoTime()) - startTime;
+    }
+
+    /**
+     * Registers the metrics with the platform MBean server. Registration
+     * failures are logged, as they don't affect the export.
+     *
+     * @param name
+     *            the name of the metrics, such as the source filename
+     */
+    public synchronized void register(final String name) {
+        if (objectName != null) {
+            return;
+        }
+        try {
+            final ObjectName newName = new ObjectName(DOMAIN
+                    + ":type=ExportMetrics,name=" + ObjectName.quote(String.valueOf(name)));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+                    newName);
+            objectName = newName;
+        } catch (final JMException e) {
+            LOG.warn("Could not register the export metrics of " + name, e);
+        }
+    }
+
+    /**
+     * Unregisters the metrics from the platform MBean server, if they are
+     * registered.
+     */
+    public synchronized void unregister() {
+        if (objectName == null) {
+            return;
+        }
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            server.unregisterMBean(objectName);
+        } catch (final JMException e) {
+            LOG.warn("Could not unregister " + objectName, e);
+        }
+        objectName = null;
+    }
+
+    @Override
+    public int getNumberOfZoomLevels() {
+        return levels;
+    }
+
+    @Override
+    public String[] getStageNames() {
+        return STAGE_NAMES.clone();
+    }
+
+    @Override
+    public long[] getCounts() {
+        final long[] values = new long[STAGES];
+        for (int s = 0; s < STAGES; s++) {
+            values[s] = getCount(s, -1);
+        }
+        return values;
+    }
+
+    @Override
+    public double[] getTotalMillis() {
+        final double[] values = new double[STAGES];
+        for (int s = 0; s < STAGES; s++) {
+            values[s] = toMillis(getNanos(s, -1));
+        }
+        return values;
+    }
+
+    @Override
+    public long[] getByteCounts() {
+        final long[] values = new long[STAGES];
+        for (int s = 0; s < STAGES; s++) {
+            values[s] = getBytes(s, -1);
+        }
+        return values;
+    }
+
+    @Override
+    public double[] getMedianMillis() {
+        final double[] values = new double[STAGES];
+        for (int s = 0; s < STAGES; s++) {
+            values[s] = toMillis(getPercentileNanos(s, -1, 0.5));
+        }
+        return values;
+    }
+
+    @Override
+    public double[] getP99Millis() {
+        final double[] values = new double[STAGES];
+        for (int s = 0; s < STAGES; s++) {
+            values[s] = toMillis(getPercentileNanos(s, -1, 0.99));
+        }
+        return values;
+    }
+
+    @Override
+    public String getSummary() {
+        return getSummary(-1);
+    }
+
+    @Override
+    public String getLevelSummary(final int level) {
+        if (level < 0 || level >= levels) {
+            throw new IllegalArgumentException("Zoom level must be from 0 to "
+                    + (levels - 1) + ".");
+        }
+        return getSummary(level);
+    }
+
+    /**
+     * Summarizes each stage that ran on one line: how often it ran, its
+     * total time, median and 99th percentile latencies and throughput, and
+     * which stage took the most time. The stages run concurrently when tiles
+     * are exported with several threads, so their times can add up to more
+     * than the elapsed time.
+     */
+    private String getSummary(final int level) {
+        final StringBuffer summary = new StringBuffer("Export");
+        if (level >= 0) {
+            summary.append(" zoom level ").append(level);
+        }
+        summary.append(" took ")
+                .append(format(toMillis(getElapsedNanos()) / 1000))
+                .append(" s");
+        int slowest = -1;
+        for (int s = 0; s < STAGES; s++) {
+            final long count = getCount(s, level);
+            if (count == 0) {
+                continue;
+            }
+            final long stageNanos = getNanos(s, level);
+            summary.append("; ").append(STAGE_NAMES[s]).append(' ')
+                    .append(count).append(" x ")
+                    .append(format(toMillis(stageNanos) / 1000))
+                    .append(" s, p50 ")
+                    .append(format(toMillis(getPercentileNanos(s, level,
+                            0.5)))).append(" ms, p99 ")
+                    .append(format(toMillis(getPercentileNanos(s, level,
+                            0.99)))).append(" ms");
+            final long stageBytes = getBytes(s, level);
+            if (stageBytes > 0 && stageNanos > 0) {
+                summary.append(", ")
+                        .append(format(stageBytes / 1048576.0
+                                / (stageNanos / 1e9))).append(" MB/s");
+            }
+            if (slowest < 0 || stageNanos > getNanos(slowest, level)) {
+                slowest = s;
+            }
+        }
+        if (slowest >= 0) {
+            summary.append("; slowest stage: ").append(STAGE_NAMES[slowest]);
+        }
+        return summary.toString();
+    }
+
+    /**
+     *
+     * @param image
+     *            an image
+     * @return the bytes of the image's pixels, one per sample
+     */
+    static long getPixelBytes(final BufferedImage image) {
+        return (long) image.getWidth() * image.getHeight()
+                * image.getColorModel().getNumComponents();
+    }
+
+    private long sum(final AtomicLongArray values, final int stage,
+            final int level) {
+        if (level >= 0) {
+            return values.get(getIndex(stage, level));
+        }
+        long total = 0;
+        for (int l = 0; l < levels; l++) {
+            total += values.get(getIndex(stage, l));
+        }
+        return total;
+    }
+
+    private int getIndex(final int stage, final int level) {
+        if (stage < 0 || stage >= STAGES) {
+            throw new IllegalArgumentException("Invalid stage " + stage);
+        }
+        if (level < 0 || level >= levels) {
+            throw new IllegalArgumentException("Invalid zoom level " + level);
+        }
+        return level * STAGES + stage;
+    }
+
+    private static double toMillis(final long nanoseconds) {
+        return nanoseconds / 1e6;
+    }
+
+    private static String format(final double value) {
+        return String.valueOf(Math.round(value * 100) / 100.0);
+    }
+}
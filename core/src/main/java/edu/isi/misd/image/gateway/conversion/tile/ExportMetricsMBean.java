@@ -0,0 +1,83 @@
+/*
+ * Copyright 2011 University of Southern California
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.isi.misd.image.gateway.conversion.tile;
+
+/**
+ * The JMX view of the metrics of a tile export. The arrays have an entry for
+ * each stage, in the order of getStageNames().
+ *
+ * @author David Smith
+ *
+ */
+public interface ExportMetricsMBean {
+
+    /**
+     *
+     * @return the number of zoom levels of the export
+     */
+    public int getNumberOfZoomLevels();
+
+    /**
+     *
+     * @return the names of the stages
+     */
+    public String[] getStageNames();
+
+    /**
+     *
+     * @return the number of times each stage ran
+     */
+    public long[] getCounts();
+
+    /**
+     *
+     * @return the total time of each stage, in milliseconds
+     */
+    public double[] getTotalMillis();
+
+    /**
+     *
+     * @return the bytes each stage handled
+     */
+    public long[] getByteCounts();
+
+    /**
+     *
+     * @return the median latency of each stage, in milliseconds
+     */
+    public double[] getMedianMillis();
+
+    /**
+     *
+     * @return the 99th percentile latency of each stage, in milliseconds
+     */
+    public double[] getP99Millis();
+
+    /**
+     *
+     * @return a one line summary of the stages
+     */
+    public String getSummary();
+
+    /**
+     *
+     * @param level
+     *            the zoom level
+     * @return a one line summary of the stages for the zoom level
+     */
+    public String getLevelSummary(int level);
+}
@@ -0,0 +1,368 @@
+/*
+ * Copyright 2011 University of Southern California
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.isi.misd.image.gateway.conversion.tile;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.plugins.jpeg.JPEGImageWriteParam;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+import edu.isi.misd.image.gateway.conversion.ConversionEvents;
+
+/**
+ * Encodes tile images as JPEG. Each thread that uses the encoder keeps its own
+ * image writer and output buffer, so encoding a tile doesn't look up or
+ * create a writer. With the default settings, the output is the same as
+ * ImageIO.write.
+ * 
+ * @author David Smith
+ * 
+ */
+public class JpegTileEncoder {
+
+    /**
+     * Chroma subsampling of half the horizontal and vertical resolution, the
+     * ImageIO default
+     */
+    public static final int CHROMA_420 = 0;
+
+    /**
+     * Chroma subsampling of half the horizontal resolution
+     */
+    public static final int CHROMA_422 = 1;
+
+    /**
+     * No chroma subsampling
+     */
+    public static final int CHROMA_444 = 2;
+
+    /**
+     * Quality value that uses the ImageIO default tables
+     */
+    public static final float DEFAULT_QUALITY = -1;
+
+    private static final String JPEG_METADATA_FORMAT = "javax_imageio_jpeg_image_1.0";
+
+    private final float quality;
+    private final boolean optimizeHuffmanTables;
+    private final int chromaSubsampling;
+
+    private final ThreadLocal<ImageWriter> writers = new ThreadLocal<ImageWriter>() {
+        @Override
+        protected ImageWriter initialValue() {
+            final Iterator<ImageWriter> i = ImageIO
+                    .getImageWritersByFormatName(JpegTileWriterImplementation.JPG);
+            if (!i.hasNext()) {
+                throw new IllegalStateException("No JPEG image writer found.");
+            }
+            return i.next();
+        }
+    };
+
+    private final ThreadLocal<JPEGImageWriteParam> params = new ThreadLocal<JPEGImageWriteParam>() {
+        @Override
+        protected JPEGImageWriteParam initialValue() {
+            final JPEGImageWriteParam param = (JPEGImageWriteParam) writers
+                    .get().getDefaultWriteParam();
+            if (quality != DEFAULT_QUALITY) {
+                param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+                param.setCompressionQuality(quality);
+            }
+            if (optimizeHuffmanTables) {
+                param.setOptimizeHuffmanTables(true);
+            }
+            return param;
+        }
+    };
+
+    // the metadata that sets the chroma subsampling, for each image type
+    private final ThreadLocal<Map<ImageTypeSpecifier, IIOMetadata>> metadata = new ThreadLocal<Map<ImageTypeSpecifier, IIOMetadata>>() {
+        @Override
+        protected Map<ImageTypeSpecifier, IIOMetadata> initialValue() {
+            return new HashMap<ImageTypeSpecifier, IIOMetadata>();
+        }
+    };
+
+    private final ThreadLocal<TileBuffer> buffers = new ThreadLocal<TileBuffer>() {
+        @Override
+        protected TileBuffer initialValue() {
+            return new TileBuffer();
+        }
+    };
+
+    /**
+     * Constructor that uses the ImageIO default settings.
+     */
+    public JpegTileEncoder() {
+        this(DEFAULT_QUALITY, false, CHROMA_420);
+    }
+
+    /**
+     * Constructor.
+     * 
+     * @param jpegQuality
+     *            the quality between 0 and 1, or DEFAULT_QUALITY
+     * @param optimizeHuffman
+     *            true to compute optimal Huffman tables for each tile, which
+     *            makes the tiles smaller but takes longer
+     * @param subsampling
+     *            one of CHROMA_420, CHROMA_422 or CHROMA_444
+     */
+    public JpegTileEncoder(final float jpegQuality,
+            final boolean optimizeHuffman, final int subsampling) {
+        if (jpegQuality != DEFAULT_QUALITY
+                && (jpegQuality < 0 || jpegQuality > 1)) {
+            throw new IllegalArgumentException(
+                    "Quality must be between 0 and 1.");
+        }
+        if (subsampling != CHROMA_420 && subsampling != CHROMA_422
+                && subsampling != CHROMA_444) {
+            throw new IllegalArgumentException("Invalid chroma subsampling '"
+                    + subsampling + "'");
+        }
+        quality = jpegQuality;
+        optimizeHuffmanTables = optimizeHuffman;
+        chromaSubsampling = subsampling;
+    }
+
+    /**
+     * Encodes an image.
+     * 
+     * @param image
+     *            the image to encode
+     * @return the JPEG stream
+     * @throws IOException
+     */
+    public byte[] encode(final BufferedImage image) throws IOException {
+        final TileBuffer buffer = encodeToBuffer(image);
+        return buffer.toByteArray();
+    }
+
+    /**
+     * Encodes an image to a file.
+     * 
+     * @param image
+     *            the image to encode
+     * @param file
+     *            the file to write
+     * @throws IOException
+     */
+    public void write(final BufferedImage image, final File file)
+            throws IOException {
+        writeBuffer(encodeToBuffer(image), file);
+    }
+
+    /**
+     * Encodes a tile to a file, recording the time taken to encode and to
+     * write it, and sending it as conversion events.
+     * 
+     * @param image
+     *            the tile to encode
+     * @param file
+     *            the file to write
+     * @param metrics
+     *            the metrics to record the times in, or null
+     * @param level
+     *            the zoom level of the tile
+     * @param row
+     *            the row of the tile
+     * @param column
+     *            the column of the tile
+     * @throws IOException
+     */
+    public void write(final BufferedImage image, final File file,
+            final ExportMetrics metrics, final int level, final long row,
+            final long column) throws IOException {
+        final long encodeStart = System.nanoTime();
+        final TileBuffer buffer = encodeToBuffer(image);
+        final long writeStart = System.nanoTime();
+        final int length = writeBuffer(buffer, file);
+        final long writeEnd = System.nanoTime();
+        if (metrics != null) {
+            metrics.record(ExportMetrics.ENCODE, level, writeStart
+                    - encodeStart, ExportMetrics.getPixelBytes(image));
+            metrics.record(ExportMetrics.WRITE, level, writeEnd - writeStart,
+                    length);
+        }
+        if (ConversionEvents.isEnabled()) {
+            ConversionEvents.tileEncoded(level, row, column, length,
+                    writeStart - encodeStart);
+            ConversionEvents.tileWritten(level, row, column, length, writeEnd
+                    - writeStart);
+        }
+    }
+
+    /**
+     * 
+     * @return the quality between 0 and 1, or DEFAULT_QUALITY
+     */
+    public float getQuality() {
+        return quality;
+    }
+
+    /**
+     * 
+     * @return true if optimal Huffman tables are computed for each tile
+     */
+    public boolean isOptimizeHuffmanTables() {
+        return optimizeHuffmanTables;
+    }
+
+    /**
+     * 
+     * @return the chroma subsampling
+     */
+    public int getChromaSubsampling() {
+        return chromaSubsampling;
+    }
+
+    /**
+     * Writes an encoded image to a file.
+     * 
+     * @return the number of bytes written
+     */
+    private static int writeBuffer(final TileBuffer buffer, final File file)
+            throws IOException {
+        final ByteBuffer data = buffer.asByteBuffer();
+        final int length = data.remaining();
+        final FileOutputStream out = new FileOutputStream(file);
+        try {
+            final FileChannel channel = out.getChannel();
+            while (data.hasRemaining()) {
+                channel.write(data);
+            }
+        } finally {
+            out.close();
+        }
+        return length;
+    }
+
+    private TileBuffer encodeToBuffer(final BufferedImage image)
+            throws IOException {
+        if (image == null) {
+            throw new IllegalArgumentException("Image cannot be null.");
+        }
+        final ImageWriter writer = writers.get();
+        final TileBuffer buffer = buffers.get();
+        buffer.reset();
+
+        final JPEGImageWriteParam param = params.get();
+        final IIOMetadata imageMetadata = chromaSubsampling != CHROMA_420 ? getMetadata(
+                writer, param, image) : null;
+
+        final ImageOutputStream out = new MemoryCacheImageOutputStream(buffer);
+        try {
+            writer.setOutput(out);
+            writer.write(null, new IIOImage(image, null, imageMetadata),
+                    param);
+        } finally {
+            writer.setOutput(null);
+            out.close();
+        }
+        return buffer;
+    }
+
+    /**
+     * Returns the metadata that sets the chroma subsampling for the type of
+     * an image, creating it the first time the thread encodes that type. The
+     * metadata doesn't depend on the size of the image, so tiles of every
+     * size share it.
+     */
+    private IIOMetadata getMetadata(final ImageWriter writer,
+            final ImageWriteParam param, final BufferedImage image)
+            throws IOException {
+        final ImageTypeSpecifier type = new ImageTypeSpecifier(
+                image.getColorModel(), image.getSampleModel()
+                        .createCompatibleSampleModel(1, 1));
+        final Map<ImageTypeSpecifier, IIOMetadata> typeMetadata = metadata
+                .get();
+        IIOMetadata imageMetadata = typeMetadata.get(type);
+        if (imageMetadata == null) {
+            imageMetadata = writer.getDefaultImageMetadata(type, param);
+            setChromaSubsampling(imageMetadata);
+            typeMetadata.put(type, imageMetadata);
+        }
+        return imageMetadata;
+    }
+
+    /**
+     * Sets the sampling factors of the luminance component, which the chroma
+     * components are subsampled relative to.
+     */
+    private void setChromaSubsampling(final IIOMetadata metadata)
+            throws IOException {
+        final Node tree = metadata.getAsTree(JPEG_METADATA_FORMAT);
+        final Node sof = findNode(tree, "sof");
+        if (sof == null || sof.getChildNodes().getLength() < 3) {
+            // greyscale images have no chroma to subsample
+            return;
+        }
+        final Node luminance = sof.getFirstChild();
+        if (luminance instanceof Element) {
+            ((Element) luminance).setAttribute("HsamplingFactor",
+                    chromaSubsampling == CHROMA_444 ? "1" : "2");
+            ((Element) luminance).setAttribute("VsamplingFactor", "1");
+            metadata.setFromTree(JPEG_METADATA_FORMAT, tree);
+        }
+    }
+
+    private static Node findNode(final Node node, final String name) {
+        if (name.equals(node.getNodeName())) {
+            return node;
+        }
+        for (Node child = node.getFirstChild(); child != null; child = child
+                .getNextSibling()) {
+            final Node found = findNode(child, name);
+            if (found != null) {
+                return found;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Output buffer whose contents can be written without copying them.
+     */
+    private static final class TileBuffer extends ByteArrayOutputStream {
+        private TileBuffer() {
+            super(64 * 1024);
+        }
+
+        private ByteBuffer asByteBuffer() {
+            return ByteBuffer.wrap(buf, 0, count);
+        }
+    }
+}
@@ -18,10 +18,10 @@ package edu.isi.misd.image.gateway.conversion.tile;
 
 import java.awt.image.BufferedImage;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 
-import javax.imageio.ImageIO;
-
+import edu.isi.misd.image.gateway.conversion.ConversionEvents;
 import edu.isi.misd.image.gateway.conversion.ConversionUtils;
 
 /**
@@ -37,6 +37,8 @@ public class JpegTileWriterImplementation implements TileWriter {
     private final String tileDirectory;
     private final TileNamingConvention namingConvention;
     private final ZoomLevelConfiguration zoomLevelConfiguration;
+    private final JpegTileEncoder encoder;
+    private volatile ExportMetrics metrics = null;
 
     public static final String JPG = "jpg";
 
@@ -51,6 +53,25 @@ public class JpegTileWriterImplementation implements TileWriter {
     public JpegTileWriterImplementation(final String directory,
             final TileNamingConvention convention,
             ZoomLevelConfiguration zoomLevelConfig) {
+        this(directory, convention, zoomLevelConfig, new JpegTileEncoder());
+    }
+
+    /**
+     * Constructor.
+     * 
+     * @param directory
+     *            the directory to write the tile to
+     * @param convention
+     *            the naming convention to use for the tile filenames
+     * @param zoomLevelConfig
+     *            the zoom level configuration
+     * @param tileEncoder
+     *            the JPEG encoder to use
+     */
+    public JpegTileWriterImplementation(final String directory,
+            final TileNamingConvention convention,
+            final ZoomLevelConfiguration zoomLevelConfig,
+            final JpegTileEncoder tileEncoder) {
         if (directory == null || directory.length() == 0) {
             throw new IllegalArgumentException(
                     "Destination directory must be specified.");
@@ -63,6 +84,10 @@ public class JpegTileWriterImplementation implements TileWriter {
             throw new IllegalArgumentException(
                     "Zoom Level Config must be specified.");
         }
+        if (tileEncoder == null) {
+            throw new IllegalArgumentException(
+                    "JPEG encoder must be specified.");
+        }
 
         final File d = new File(directory);
         if (!d.isDirectory() || !d.canWrite()) {
@@ -72,6 +97,7 @@ public class JpegTileWriterImplementation implements TileWriter {
         tileDirectory = directory;
         namingConvention = convention;
         zoomLevelConfiguration = zoomLevelConfig;
+        encoder = tileEncoder;
     }
 
     @Override
@@ -81,6 +107,51 @@ public class JpegTileWriterImplementation implements TileWriter {
             throw new IllegalArgumentException("Image cannot be null.");
         }
 
+        final File tileFile = getTileFile(level, row, column);
+        encoder.write(image, tileFile, metrics, level, row, column);
+        return tileFile.getAbsolutePath();
+    }
+
+    @Override
+    public String writeEncoded(final byte[] data, final int level,
+            final long row, final long column) throws IOException {
+        if (data == null) {
+            throw new IllegalArgumentException("Data cannot be null.");
+        }
+
+        final File tileFile = getTileFile(level, row, column);
+        final long start = System.nanoTime();
+        final FileOutputStream out = new FileOutputStream(tileFile);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+        final long elapsed = System.nanoTime() - start;
+        if (metrics != null) {
+            metrics.record(ExportMetrics.WRITE, level, elapsed, data.length);
+        }
+        if (ConversionEvents.isEnabled()) {
+            ConversionEvents.tileWritten(level, row, column, data.length,
+                    elapsed);
+        }
+        return tileFile.getAbsolutePath();
+    }
+
+    /**
+     * Does nothing, as each tile is written to its own file.
+     */
+    @Override
+    public void close() throws IOException {
+    }
+
+    /**
+     * Creates the directories of a tile file.
+     * 
+     * @return the tile file
+     */
+    private File getTileFile(final int level, final long row,
+            final long column) {
         String tileFilename = null;
         try {
             tileFilename = namingConvention.getTileFileName(level,
@@ -90,14 +161,28 @@ public class JpegTileWriterImplementation implements TileWriter {
                     "Error retrieving the tile filename.", e);
         }
 
+        final long start = System.nanoTime();
         if (!ConversionUtils.createDirectoryTree(tileDirectory, tileFilename)) {
             throw new IllegalArgumentException(
                     "Could not create directory tree for " + tileFilename);
         }
-        final File tileFile = new File(new StringBuffer(tileDirectory)
+        if (metrics != null) {
+            metrics.record(ExportMetrics.CREATE_DIRECTORY, level,
+                    System.nanoTime() - start, 0);
+        }
+        return new File(new StringBuffer(tileDirectory)
         .append(File.separator).append(tileFilename).toString());
-        ImageIO.write(image, JPG, tileFile);
-        return tileFile.getAbsolutePath();
+    }
+
+    /**
+     * Sets the metrics that the time taken to encode and write each tile, and
+     * to create its directories, is recorded in.
+     * 
+     * @param exportMetrics
+     *            the metrics, or null to record nothing
+     */
+    public void setMetrics(final ExportMetrics exportMetrics) {
+        metrics = exportMetrics;
     }
 
     @Override
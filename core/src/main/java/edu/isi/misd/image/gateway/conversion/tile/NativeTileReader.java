@@ -0,0 +1,166 @@
+/*
+ * Copyright 2011 University of Southern California
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.isi.misd.image.gateway.conversion.tile;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.WritableRaster;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+import edu.isi.misd.image.gateway.conversion.ImageSource;
+
+/**
+ * Tile reader that reads the source image in the regions that it is stored in
+ * on disk, such as the JPEG tiles of an SVS file, and cuts the tiles out of
+ * those regions in memory. Each stored region is decoded once and kept until
+ * the tiles below it are read, so the tiles must be read from top to bottom.
+ * 
+ * @author David Smith
+ * 
+ */
+public class NativeTileReader implements TileReader {
+
+    private static final Logger LOG = Logger.getLogger(NativeTileReader.class);
+
+    private final ImageSource source;
+    private final long nativeWidth;
+    private final long nativeHeight;
+    private final long nativeColumns;
+
+    private final Map<Long, BufferedImage> nativeTiles = new HashMap<Long, BufferedImage>();
+    private long nativeTilesRead = 0;
+
+    /**
+     * Constructor
+     * 
+     * @param imageSource
+     *            the image source to read from
+     * @param width
+     *            the width of the regions the source is stored in
+     * @param height
+     *            the height of the regions the source is stored in
+     */
+    public NativeTileReader(final ImageSource imageSource, final long width,
+            final long height) {
+        if (imageSource == null) {
+            throw new IllegalArgumentException("ImageSource must be specified.");
+        }
+        if (width < 1 || height < 1) {
+            throw new IllegalArgumentException(
+                    "Native tile size must be at least 1x1.");
+        }
+        source = imageSource;
+        nativeWidth = Math.min(width, source.getWidth());
+        nativeHeight = Math.min(height, source.getHeight());
+        nativeColumns = (source.getWidth() + nativeWidth - 1) / nativeWidth;
+    }
+
+    @Override
+    public BufferedImage read(final long x, final long y, final long width,
+            final long height) throws IOException {
+        releaseNativeTilesAbove(y);
+
+        final long firstColumn = x / nativeWidth;
+        final long lastColumn = (x + width - 1) / nativeWidth;
+        final long firstRow = y / nativeHeight;
+        final long lastRow = (y + height - 1) / nativeHeight;
+
+        if (firstColumn == lastColumn && firstRow == lastRow) {
+            return TileUtils.cropImage(getNativeTile(firstRow, firstColumn),
+                    (int) (x - firstColumn * nativeWidth),
+                    (int) (y - firstRow * nativeHeight), (int) width,
+                    (int) height);
+        }
+
+        ColorModel colorModel = null;
+        WritableRaster raster = null;
+        for (long r = firstRow; r <= lastRow; r++) {
+            for (long c = firstColumn; c <= lastColumn; c++) {
+                final BufferedImage nativeTile = getNativeTile(r, c);
+                if (raster == null) {
+                    colorModel = nativeTile.getColorModel();
+                    raster = nativeTile.getRaster()
+                            .createCompatibleWritableRaster((int) width,
+                                    (int) height);
+                }
+                final long nativeX = c * nativeWidth;
+                final long nativeY = r * nativeHeight;
+                final long left = Math.max(x, nativeX);
+                final long top = Math.max(y, nativeY);
+                final long right = Math.min(x + width,
+                        nativeX + nativeTile.getWidth());
+                final long bottom = Math.min(y + height,
+                        nativeY + nativeTile.getHeight());
+                TileUtils.copyRaster(nativeTile.getRaster(),
+                        (int) (left - nativeX), (int) (top - nativeY),
+                        (int) (right - left), (int) (bottom - top), raster,
+                        (int) (left - x), (int) (top - y));
+            }
+        }
+        return new BufferedImage(colorModel, raster,
+                colorModel.isAlphaPremultiplied(), null);
+    }
+
+    /**
+     * 
+     * @return the number of native tiles that have been decoded
+     */
+    public long getNativeTilesRead() {
+        return nativeTilesRead;
+    }
+
+    /**
+     * Retrieves a native tile, decoding it if it hasn't been already.
+     */
+    private BufferedImage getNativeTile(final long row, final long column)
+            throws IOException {
+        final Long key = Long.valueOf(row * nativeColumns + column);
+        BufferedImage nativeTile = nativeTiles.get(key);
+        if (nativeTile == null) {
+            final long x = column * nativeWidth;
+            final long y = row * nativeHeight;
+            final long width = Math.min(nativeWidth, source.getWidth() - x);
+            final long height = Math.min(nativeHeight, source.getHeight() - y);
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("Reading native tile at " + x + "x" + y
+                        + " of dimensions " + width + "x" + height);
+            }
+            nativeTile = source.readImage(x, y, width, height);
+            nativeTiles.put(key, nativeTile);
+            nativeTilesRead++;
+        }
+        return nativeTile;
+    }
+
+    /**
+     * Releases the native tiles that are entirely above a y-coordinate.
+     */
+    private void releaseNativeTilesAbove(final long y) {
+        final long firstRow = y / nativeHeight;
+        for (final Iterator<Long> i = nativeTiles.keySet().iterator(); i
+                .hasNext();) {
+            if (i.next().longValue() / nativeColumns < firstRow) {
+                i.remove();
+            }
+        }
+    }
+}
@@ -0,0 +1,594 @@
+/*
+ * Copyright 2011 University of Southern California
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.isi.misd.image.gateway.conversion.tile;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Builds the lower zoom levels of a tile pyramid in memory while the higher
+ * resolution tiles are being written. Each tile that is added is kept until
+ * the rest of the tiles that make up its parent have been added; the parent
+ * is then created, written, and added to the level below it in turn. Nothing
+ * is read back from the tile writer's destination.
+ *
+ * When the scale is 2 and the tiles are stored as interleaved bytes, each
+ * parent is averaged straight from its children's rasters, and the lower zoom
+ * level tiles this class creates are reused once their parent has been made.
+ * Tile writers must therefore not keep the images they are given after write
+ * returns.
+ *
+ * Parents are created on the thread that adds the last of their children,
+ * unless an executor is set; they are then created on its threads, so that
+ * all the zoom levels are built while the tiles are still being added. The
+ * number of parents waiting to be created is bounded, and adding a tile
+ * waits when it is reached. Callers can wait for the parents of a range of
+ * tile rows alone, so that one range is known to be written without waiting
+ * for the parents of every other range being added.
+ *
+ * When background tiles are replaced with placeholders, a parent whose
+ * children are all placeholders is a placeholder itself, and is written
+ * without being averaged.
+ *
+ * @author David Smith
+ *
+ */
+public class PyramidBuilder {
+
+    private static final Logger LOG = Logger.getLogger(PyramidBuilder.class);
+
+    /**
+     * The most tiles kept for reuse.
+     */
+    private static final int MAX_FREE_TILES = 16;
+
+    private final TileWriter tileWriter;
+    private final ZoomLevelConfiguration zoomLevelConfiguration;
+    private final int lastLevel;
+
+    private final List<Map<Long, PendingTile>> pendingTiles;
+    private final LinkedList<BufferedImage> freeTiles = new LinkedList<BufferedImage>();
+    private BackgroundTileWriter placeholders = null;
+    private ExportMetrics metrics = null;
+
+    private ExecutorService executor = null;
+    private Semaphore taskPermits = null;
+    private final List<ParentTask> tasks = new LinkedList<ParentTask>();
+    private final AtomicReference<IOException> failure = new AtomicReference<IOException>();
+
+    /**
+     * Constructor that builds every zoom level of the configuration.
+     *
+     * @param writer
+     *            the tile writer that the lower zoom level tiles are written
+     *            to
+     */
+    public PyramidBuilder(final TileWriter writer) {
+        this(writer, writer == null ? 0 : writer.getZoomLevelConfiguration()
+                .getNumberOfZoomLevels() - 1);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param writer
+     *            the tile writer that the lower zoom level tiles are written
+     *            to
+     * @param last
+     *            the last zoom level to build
+     */
+    public PyramidBuilder(final TileWriter writer, final int last) {
+        if (writer == null) {
+            throw new IllegalArgumentException("Tile writer must be specified.");
+        }
+        if (last < 0
+                || last >= writer.getZoomLevelConfiguration()
+                        .getNumberOfZoomLevels()) {
+            throw new IllegalArgumentException("Last zoom level " + last
+                    + " doesn't exist.");
+        }
+        tileWriter = writer;
+        zoomLevelConfiguration = writer.getZoomLevelConfiguration();
+        lastLevel = last;
+        pendingTiles = new ArrayList<Map<Long, PendingTile>>(lastLevel + 1);
+        for (int i = 0; i <= lastLevel; i++) {
+            pendingTiles.add(new HashMap<Long, PendingTile>());
+        }
+    }
+
+    /**
+     * Adds a tile that has been written. If this completes the set of tiles
+     * that make up its parent, the parent tile is created and written, and
+     * added to the next zoom level.
+     *
+     * @param image
+     *            the tile image
+     * @param level
+     *            the zoom level of the tile
+     * @param row
+     *            the row of the tile
+     * @param column
+     *            the column of the tile
+     * @throws IOException
+     *             if a parent tile could not be written
+     */
+    public void addTile(final BufferedImage image, final int level,
+            final long row, final long column) throws IOException {
+        if (image == null) {
+            throw new IllegalArgumentException("Image cannot be null.");
+        }
+        checkFailure();
+        if (level >= lastLevel) {
+            return;
+        }
+        final PendingTile parent = addChild(image, false, level, row, column);
+        if (parent == null) {
+            return;
+        }
+        if (executor == null) {
+            createParents(parent, level, row, column);
+            return;
+        }
+        try {
+            taskPermits.acquire();
+        } catch (final InterruptedException e) {
+            throw new InterruptedIOException(
+                    "Interrupted waiting to create a parent tile.");
+        }
+        final Future<Void> task;
+        try {
+            task = executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    try {
+                        createParents(parent, level, row, column);
+                    } catch (final IOException e) {
+                        failure.compareAndSet(null, e);
+                        throw e;
+                    } finally {
+                        taskPermits.release();
+                    }
+                    return null;
+                }
+            });
+        } catch (final RuntimeException e) {
+            taskPermits.release();
+            throw e;
+        }
+        synchronized (tasks) {
+            final Iterator<ParentTask> done = tasks.iterator();
+            while (done.hasNext()) {
+                if (done.next().task.isDone()) {
+                    done.remove();
+                }
+            }
+            tasks.add(new ParentTask(task, level, row));
+        }
+    }
+
+    /**
+     * Sets the executor that parent tiles are created on.
+     *
+     * @param parentExecutor
+     *            the executor, or null to create each parent on the thread
+     *            that adds the last of its children
+     * @param maxWaitingParents
+     *            the most parents that may be waiting to be created before
+     *            adding a tile waits, at least 1
+     */
+    public void setExecutor(final ExecutorService parentExecutor,
+            final int maxWaitingParents) {
+        if (maxWaitingParents < 1) {
+            throw new IllegalArgumentException(
+                    "Waiting parents must be at least 1.");
+        }
+        executor = parentExecutor;
+        taskPermits = new Semaphore(maxWaitingParents);
+    }
+
+    /**
+     * Waits for the parents that are being created on the executor, so that
+     * every parent whose children have all been added by the calling thread
+     * has been written once this returns.
+     *
+     * @throws IOException
+     *             if a parent tile could not be written
+     */
+    public void flush() throws IOException {
+        flush(0, 0, Long.MAX_VALUE);
+    }
+
+    /**
+     * Waits for the parents that are being created on the executor from
+     * tiles in a range of rows, so that every parent with a child in the
+     * range whose children have all been added by the calling thread has been
+     * written once this returns, along with the parents above it that it
+     * completed. Parents of other rows are not waited for.
+     *
+     * @param level
+     *            the zoom level of the rows
+     * @param firstRow
+     *            the first row of the range
+     * @param lastRow
+     *            the row that the range stops at, exclusive
+     * @throws IOException
+     *             if a parent tile could not be written
+     */
+    public void flush(final int level, final long firstRow, final long lastRow)
+            throws IOException {
+        final List<Future<Void>> running = new ArrayList<Future<Void>>();
+        synchronized (tasks) {
+            for (final ParentTask task : tasks) {
+                if (task.dependsOn(level, firstRow, lastRow)) {
+                    running.add(task.task);
+                }
+            }
+        }
+        for (final Future<Void> task : running) {
+            try {
+                task.get();
+            } catch (final InterruptedException e) {
+                throw new InterruptedIOException(
+                        "Interrupted waiting for the parent tiles.");
+            } catch (final ExecutionException e) {
+                if (!(e.getCause() instanceof IOException)) {
+                    throw new IllegalStateException(
+                            "Could not create a parent tile.", e.getCause());
+                }
+            }
+        }
+        checkFailure();
+    }
+
+    /**
+     * Creates and writes the parent of a complete set of children, and each
+     * parent above it that this completes in turn.
+     */
+    private void createParents(final PendingTile parent, final int level,
+            final long row, final long column) throws IOException {
+        PendingTile next = parent;
+        int tileLevel = level;
+        long tileRow = row;
+        long tileColumn = column;
+        while (next != null) {
+            tileLevel++;
+            tileRow /= 2;
+            tileColumn /= 2;
+            final long start = System.nanoTime();
+            final BufferedImage tile = createParent(next);
+            if (metrics != null) {
+                metrics.record(ExportMetrics.DOWNSAMPLE, tileLevel,
+                        System.nanoTime() - start, 0);
+            }
+            final String tileFilename = tileWriter.write(tile, tileLevel,
+                    tileRow, tileColumn);
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("Tile " + tileFilename + " was saved successfully.");
+            }
+            next = tileLevel < lastLevel ? addChild(tile, true, tileLevel,
+                    tileRow, tileColumn) : null;
+        }
+    }
+
+    /**
+     * Throws the failure of a parent that was created on the executor.
+     */
+    private void checkFailure() throws IOException {
+        final IOException e = failure.get();
+        if (e != null) {
+            final IOException thrown = new IOException(
+                    "Could not create a parent tile: " + e.getMessage());
+            thrown.initCause(e);
+            throw thrown;
+        }
+    }
+
+    /**
+     * Sets the metrics that the time taken to create each parent tile is
+     * recorded in.
+     *
+     * @param exportMetrics
+     *            the metrics, or null
+     */
+    void setMetrics(final ExportMetrics exportMetrics) {
+        metrics = exportMetrics;
+    }
+
+    /**
+     * Sets the writer of the placeholders that stand in for background tiles,
+     * so that parents of placeholders alone are placeholders too.
+     *
+     * @param writer
+     *            the writer of the placeholders, or null
+     */
+    void setPlaceholders(final BackgroundTileWriter writer) {
+        placeholders = writer;
+    }
+
+    /**
+     *
+     * @return true if no tiles are waiting for the rest of their parent's
+     *         tiles
+     */
+    public synchronized boolean isComplete() {
+        for (final Map<Long, PendingTile> level : pendingTiles) {
+            if (!level.isEmpty()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Creates a parent tile from its children, and keeps the children this
+     * class created for reuse.
+     */
+    private BufferedImage createParent(final PendingTile parent) {
+        final BufferedImage[] children = parent.children;
+        if (zoomLevelConfiguration.getScale() == 2) {
+            final int width = (children[0].getWidth()
+                    + (children[1] == null ? 0 : children[1].getWidth()) + 1) / 2;
+            final int height = (children[0].getHeight()
+                    + (children[2] == null ? 0 : children[2].getHeight()) + 1) / 2;
+            if (arePlaceholders(children)) {
+                return placeholders.getPlaceholder(children[0], width, height);
+            }
+            if (!canAverage(children)) {
+                return createParentTile(children);
+            }
+            final BufferedImage tile = createTile(children[0], width, height);
+            final WritableRaster destination = tile.getRaster();
+            for (int i = 0; i < children.length; i++) {
+                if (children[i] != null) {
+                    final Raster source = children[i].getRaster();
+                    BoxDownsampler.downsample2x2(
+                            BoxDownsampler.getData(source),
+                            BoxDownsampler.getOffset(source, source.getMinX(),
+                                    source.getMinY()),
+                            BoxDownsampler.getScanlineStride(source),
+                            source.getWidth(), source.getHeight(),
+                            source.getNumBands(),
+                            BoxDownsampler.getData(destination),
+                            BoxDownsampler.getOffset(destination, (i % 2)
+                                    * children[0].getWidth() / 2, (i / 2)
+                                    * children[0].getHeight() / 2),
+                            BoxDownsampler.getScanlineStride(destination));
+                }
+            }
+            recycle(parent);
+            return tile;
+        }
+        return createParentTile(children);
+    }
+
+    /**
+     * Creates a parent tile from its children by drawing them scaled down.
+     */
+    private BufferedImage createParentTile(final BufferedImage[] children) {
+        final List<List<BufferedImage>> imagesToAdd = new ArrayList<List<BufferedImage>>(
+                2);
+        for (int r = 0; r < children.length; r += 2) {
+            final List<BufferedImage> i_row = new ArrayList<BufferedImage>(2);
+            for (int c = 0; c < 2; c++) {
+                if (children[r + c] != null) {
+                    i_row.add(children[r + c]);
+                }
+            }
+            if (!i_row.isEmpty()) {
+                imagesToAdd.add(i_row);
+            }
+        }
+        return TileUtils.createLowerZoomLevelTile(imagesToAdd,
+                zoomLevelConfiguration.getScale());
+    }
+
+    /**
+     *
+     * @return true if the children are all placeholders
+     */
+    private boolean arePlaceholders(final BufferedImage[] children) {
+        if (placeholders == null) {
+            return false;
+        }
+        for (final BufferedImage child : children) {
+            if (child != null && !placeholders.isPlaceholder(child)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     *
+     * @return true if the children all have the same interleaved byte layout,
+     *         and the ones with siblings to their right or below have an even
+     *         width or height
+     */
+    private static boolean canAverage(final BufferedImage[] children) {
+        final Raster first = children[0].getRaster();
+        if (!BoxDownsampler.isInterleavedBytes(first)
+                || (children[1] != null && first.getWidth() % 2 != 0)
+                || (children[2] != null && first.getHeight() % 2 != 0)) {
+            return false;
+        }
+        final int[] offsets = ((ComponentSampleModel) first.getSampleModel())
+                .getBandOffsets();
+        for (int i = 1; i < children.length; i++) {
+            if (children[i] != null) {
+                final Raster raster = children[i].getRaster();
+                if (!BoxDownsampler.isInterleavedBytes(raster)
+                        || !Arrays.equals(offsets,
+                                ((ComponentSampleModel) raster
+                                        .getSampleModel()).getBandOffsets())
+                        || !children[i].getColorModel().equals(
+                                children[0].getColorModel())) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     *
+     * @return a tile with the same layout as the given one, reused if a
+     *         matching tile is free
+     */
+    private synchronized BufferedImage createTile(final BufferedImage like,
+            final int width, final int height) {
+        final Iterator<BufferedImage> free = freeTiles.iterator();
+        while (free.hasNext()) {
+            final BufferedImage tile = free.next();
+            if (tile.getWidth() == width && tile.getHeight() == height
+                    && tile.getColorModel().equals(like.getColorModel())
+                    && Arrays.equals(((ComponentSampleModel) tile.getRaster()
+                            .getSampleModel()).getBandOffsets(),
+                            ((ComponentSampleModel) like.getRaster()
+                                    .getSampleModel()).getBandOffsets())) {
+                free.remove();
+                return tile;
+            }
+        }
+        final ColorModel colorModel = like.getColorModel();
+        return new BufferedImage(colorModel, like.getRaster()
+                .createCompatibleWritableRaster(width, height),
+                colorModel.isAlphaPremultiplied(), null);
+    }
+
+    /**
+     * Keeps the children of a parent tile that this class created for reuse.
+     */
+    private synchronized void recycle(final PendingTile parent) {
+        if (!parent.created) {
+            return;
+        }
+        for (final BufferedImage child : parent.children) {
+            if (child != null && freeTiles.size() < MAX_FREE_TILES
+                    && (placeholders == null || !placeholders
+                            .isPlaceholder(child))) {
+                freeTiles.add(child);
+            }
+        }
+    }
+
+    /**
+     * Stores a tile with its siblings.
+     *
+     * @return the parent tile if this tile completed its children; otherwise
+     *         null
+     */
+    private synchronized PendingTile addChild(final BufferedImage image,
+            final boolean created, final int level, final long row,
+            final long column) throws IOException {
+        long rows, columns, parentColumns;
+        try {
+            rows = zoomLevelConfiguration.getNumberOfRows(level);
+            columns = zoomLevelConfiguration.getNumberOfColumns(level);
+            parentColumns = zoomLevelConfiguration
+                    .getNumberOfColumns(level + 1);
+        } catch (ZoomLevelNotFoundException e) {
+            throw new IllegalArgumentException("Zoom level " + level
+                    + " doesn't exist.", e);
+        }
+        final Long key = Long.valueOf((row / 2) * parentColumns + column / 2);
+        final Map<Long, PendingTile> level_tiles = pendingTiles.get(level);
+        PendingTile parent = level_tiles.get(key);
+        if (parent == null) {
+            final long childRows = Math.min(2, rows - (row / 2) * 2);
+            final long childColumns = Math.min(2, columns - (column / 2) * 2);
+            parent = new PendingTile((int) (childRows * childColumns),
+                    created);
+            level_tiles.put(key, parent);
+        }
+        parent.children[(int) ((row % 2) * 2 + column % 2)] = image;
+        parent.received++;
+        if (parent.received < parent.expected) {
+            return null;
+        }
+        level_tiles.remove(key);
+        return parent;
+    }
+
+    /**
+     * A parent being created on the executor, with the rows of the child
+     * that completed it.
+     */
+    private static final class ParentTask {
+        private final Future<Void> task;
+        private final int level;
+        private final long row;
+
+        private ParentTask(final Future<Void> parentTask,
+                final int childLevel, final long childRow) {
+            task = parentTask;
+            level = childLevel;
+            row = childRow;
+        }
+
+        /**
+         *
+         * @return true if the parent has a child in the range of rows of the
+         *         given zoom level
+         */
+        private boolean dependsOn(final int rowLevel, final long firstRow,
+                final long lastRow) {
+            if (rowLevel > level) {
+                return true;
+            }
+            final int shift = level - rowLevel;
+            final long start = ((row / 2) * 2) << shift;
+            final long end = ((row / 2) * 2 + 2) << shift;
+            return start < lastRow && end > firstRow;
+        }
+    }
+
+    /**
+     * The children received so far for a parent tile.
+     */
+    private static final class PendingTile {
+        private final BufferedImage[] children = new BufferedImage[4];
+        private final int expected;
+        private final boolean created;
+        private int received = 0;
+
+        private PendingTile(final int expectedChildren,
+                final boolean createdChildren) {
+            expected = expectedChildren;
+            created = createdChildren;
+        }
+    }
+}
@@ -0,0 +1,742 @@
+/*
+ * Copyright 2011 University of Southern California
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.isi.misd.image.gateway.conversion.tile;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.WritableRaster;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.imageio.ImageIO;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Tile writer that writes the tiles of every zoom level to a single tiled TIFF
+ * file instead of a file per tile. The full resolution zoom level is the main
+ * image of the file, and each lower zoom level is a reduced resolution image
+ * listed in its SubIFDs, the layout used by OME-TIFF pyramids. The tiles are
+ * JPEG streams, appended to the file in the order they are written, from any
+ * number of threads; the image directories are written when the file is
+ * closed, as a BigTIFF file if they don't fit in a TIFF file.
+ *
+ * TIFF tiles all have the same size, so edge tiles are padded by repeating
+ * their last column and row. The file describes every colour tile as YCbCr
+ * with the same subsampling, so JPEG streams that are copied in are decoded
+ * and encoded again when they are RGB coded or subsampled differently from
+ * the tiles the encoder writes.
+ *
+ * @author David Smith
+ *
+ */
+public class PyramidTiffTileWriter implements TileWriter {
+
+    private static final Logger LOG = Logger
+            .getLogger(PyramidTiffTileWriter.class);
+
+    /**
+     * The space reserved at the start of the file for either header.
+     */
+    private static final int HEADER_SIZE = 16;
+
+    private static final long MAX_TIFF_OFFSET = 0xFFFFFFFFL;
+
+    private static final int NEW_SUBFILE_TYPE = 254;
+    private static final int IMAGE_WIDTH = 256;
+    private static final int IMAGE_LENGTH = 257;
+    private static final int BITS_PER_SAMPLE = 258;
+    private static final int COMPRESSION = 259;
+    private static final int PHOTOMETRIC_INTERPRETATION = 262;
+    private static final int SAMPLES_PER_PIXEL = 277;
+    private static final int PLANAR_CONFIGURATION = 284;
+    private static final int TILE_WIDTH = 322;
+    private static final int TILE_LENGTH = 323;
+    private static final int TILE_OFFSETS = 324;
+    private static final int TILE_BYTE_COUNTS = 325;
+    private static final int SUB_IFDS = 330;
+    private static final int YCBCR_SUBSAMPLING = 530;
+
+    private static final int SHORT = 3;
+    private static final int LONG = 4;
+    private static final int IFD = 13;
+    private static final int LONG8 = 16;
+    private static final int IFD8 = 18;
+
+    private static final int COMPRESSION_JPEG = 7;
+    private static final int PHOTOMETRIC_BLACK_IS_ZERO = 1;
+    private static final int PHOTOMETRIC_YCBCR = 6;
+    private static final int REDUCED_RESOLUTION = 1;
+
+    private final String filename;
+    private final long imageWidth;
+    private final long imageHeight;
+    private final int tileSize;
+    private final ZoomLevelConfiguration zoomLevelConfiguration;
+    private final JpegTileEncoder encoder;
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final long[][] tileOffsets;
+    private final int[][] tileByteCounts;
+
+    private long position = HEADER_SIZE;
+    private int samplesPerPixel = 0;
+    private int horizontalSubsampling = 1;
+    private int verticalSubsampling = 1;
+    private boolean closed = false;
+
+    /**
+     * Constructor.
+     *
+     * @param tiffFilename
+     *            the TIFF file to write, which is replaced if it exists
+     * @param width
+     *            the width of the full resolution image
+     * @param height
+     *            the height of the full resolution image
+     * @param size
+     *            the tile size, a multiple of 16
+     * @param zoomLevelConfig
+     *            the zoom levels of the image
+     * @param tileEncoder
+     *            the encoder used for the tiles
+     * @throws IOException
+     *             if the file could not be created
+     */
+    public PyramidTiffTileWriter(final String tiffFilename, final long width,
+            final long height, final int size,
+            final ZoomLevelConfiguration zoomLevelConfig,
+            final JpegTileEncoder tileEncoder) throws IOException {
+        if (tiffFilename == null || tiffFilename.length() == 0) {
+            throw new IllegalArgumentException(
+                    "TIFF filename must be specified.");
+        }
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException(
+                    "Width and height must be greater than 0.");
+        }
+        if (size <= 0 || size % 16 != 0) {
+            throw new IllegalArgumentException(
+                    "Tile size must be a multiple of 16.");
+        }
+        if (zoomLevelConfig == null) {
+            throw new IllegalArgumentException(
+                    "Zoom Level Config must be specified.");
+        }
+        if (tileEncoder == null) {
+            throw new IllegalArgumentException(
+                    "JPEG encoder must be specified.");
+        }
+        filename = tiffFilename;
+        imageWidth = width;
+        imageHeight = height;
+        tileSize = size;
+        zoomLevelConfiguration = zoomLevelConfig;
+        encoder = tileEncoder;
+
+        final int levels = zoomLevelConfiguration.getNumberOfZoomLevels();
+        tileOffsets = new long[levels][];
+        tileByteCounts = new int[levels][];
+        for (int l = 0; l < levels; l++) {
+            final long tiles = getNumberOfRows(l) * getNumberOfColumns(l);
+            if (tiles > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("Zoom level " + l
+                        + " has too many tiles.");
+            }
+            tileOffsets[l] = new long[(int) tiles];
+            tileByteCounts[l] = new int[(int) tiles];
+        }
+
+        file = new RandomAccessFile(tiffFilename, "rw");
+        file.setLength(0);
+        channel = file.getChannel();
+    }
+
+    @Override
+    public String write(final BufferedImage image, final int level,
+            final long row, final long column) throws IOException {
+        if (image == null) {
+            throw new IllegalArgumentException("Image cannot be null.");
+        }
+        if (image.getWidth() > tileSize || image.getHeight() > tileSize) {
+            throw new IllegalArgumentException("Tile is larger than "
+                    + tileSize + "x" + tileSize);
+        }
+        BufferedImage tile = image;
+        if (image.getWidth() < tileSize || image.getHeight() < tileSize) {
+            tile = pad(image);
+        }
+        return writeTile(encoder.encode(tile), level, row, column);
+    }
+
+    @Override
+    public String writeEncoded(final byte[] data, final int level,
+            final long row, final long column) throws IOException {
+        if (data == null) {
+            throw new IllegalArgumentException("Data cannot be null.");
+        }
+        final int[] frame = readFrameHeader(data);
+        if (frame == null) {
+            throw new IOException("Tile " + level + "-" + row + "-" + column
+                    + " is not a JPEG stream.");
+        }
+        if (frame[0] != tileSize || frame[1] != tileSize
+                || (frame[2] == 3 && !isEncoderLayout(frame))) {
+            // edge tiles have to be padded to the full tile size, and other
+            // colour layouts can't share the file's YCbCr tags
+            final BufferedImage image = ImageIO.read(new ByteArrayInputStream(
+                    data));
+            if (image == null) {
+                throw new IOException("Tile " + level + "-" + row + "-"
+                        + column + " could not be decoded.");
+            }
+            return write(image, level, row, column);
+        }
+        return writeTile(data, level, row, column);
+    }
+
+    /**
+     * Writes the image directories and closes the file. Every tile must have
+     * been written.
+     *
+     * @throws IOException
+     *             if a tile is missing or the file could not be written
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            for (int l = 0; l < tileOffsets.length; l++) {
+                for (int i = 0; i < tileOffsets[l].length; i++) {
+                    if (tileOffsets[l][i] == 0) {
+                        throw new IOException("Tile " + l + "-"
+                                + (i / getNumberOfColumns(l)) + "-"
+                                + (i % getNumberOfColumns(l))
+                                + " was not written to " + filename);
+                    }
+                }
+            }
+            writeDirectories();
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * Closes and deletes the file, after an export has failed.
+     */
+    public synchronized void discard() {
+        closed = true;
+        try {
+            file.close();
+        } catch (final IOException e) {
+            LOG.warn("Error closing " + filename, e);
+        }
+        if (!new File(filename).delete()) {
+            LOG.warn("Could not delete " + filename);
+        }
+    }
+
+    /**
+     *
+     * @return the name of the TIFF file
+     */
+    public String getFilename() {
+        return filename;
+    }
+
+    /**
+     *
+     * @return the tile size
+     */
+    public int getTileSize() {
+        return tileSize;
+    }
+
+    /**
+     *
+     * @return the encoder used for the tiles
+     */
+    public JpegTileEncoder getTileEncoder() {
+        return encoder;
+    }
+
+    @Override
+    public String getExtension() {
+        return JpegTileWriterImplementation.JPG;
+    }
+
+    /**
+     *
+     * @return null, as the tiles are not written to files of their own
+     */
+    @Override
+    public TileNamingConvention getTileNamingConvention() {
+        return null;
+    }
+
+    @Override
+    public String getDestinationDirectory() {
+        return new File(filename).getAbsoluteFile().getParent();
+    }
+
+    @Override
+    public ZoomLevelConfiguration getZoomLevelConfiguration() {
+        return zoomLevelConfiguration;
+    }
+
+    /**
+     * Appends a JPEG stream of the full tile size to the file.
+     */
+    private synchronized String writeTile(final byte[] data, final int level,
+            final long row, final long column) throws IOException {
+        if (closed) {
+            throw new IOException("TIFF file " + filename + " is closed.");
+        }
+        if (level < 0 || level >= tileOffsets.length || row < 0
+                || row >= getNumberOfRows(level) || column < 0
+                || column >= getNumberOfColumns(level)) {
+            throw new IllegalArgumentException("Tile " + level + "-" + row
+                    + "-" + column + " doesn't exist.");
+        }
+        final int[] frame = readFrameHeader(data);
+        if (samplesPerPixel == 0) {
+            if (frame[2] != 1 && frame[2] != 3) {
+                throw new IOException("Tile " + level + "-" + row + "-"
+                        + column + " has " + frame[2]
+                        + " components, expected 1 or 3.");
+            }
+            if (frame[2] == 3 && (frame[5] != 1 || frame[6] != 1)) {
+                throw new IOException("Tile " + level + "-" + row + "-"
+                        + column + " is not YCbCr with full resolution"
+                        + " chroma components.");
+            }
+            samplesPerPixel = frame[2];
+            horizontalSubsampling = frame[3];
+            verticalSubsampling = frame[4];
+        } else if (frame[2] != samplesPerPixel) {
+            throw new IOException("Tile " + level + "-" + row + "-" + column
+                    + " has " + frame[2] + " samples per pixel, expected "
+                    + samplesPerPixel);
+        } else if (samplesPerPixel == 3
+                && (frame[3] != horizontalSubsampling
+                        || frame[4] != verticalSubsampling || frame[5] != 1
+                        || frame[6] != 1)) {
+            throw new IOException("Tile " + level + "-" + row + "-" + column
+                    + " doesn't have the colour transform and "
+                    + horizontalSubsampling + "x" + verticalSubsampling
+                    + " subsampling of the first tile.");
+        }
+
+        final int index = (int) (row * getNumberOfColumns(level) + column);
+        final ByteBuffer buffer = ByteBuffer.wrap(data);
+        long offset = position;
+        while (buffer.hasRemaining()) {
+            offset += channel.write(buffer, offset);
+        }
+        tileOffsets[level][index] = position;
+        tileByteCounts[level][index] = data.length;
+        position = offset;
+        return new StringBuffer(filename).append('#').append(level)
+                .append('-').append(row).append('-').append(column)
+                .toString();
+    }
+
+    /**
+     * Writes the header and an image directory for each zoom level after the
+     * tiles. The full resolution directory comes first, followed by the
+     * reduced resolution directories that its SubIFDs point to.
+     */
+    private void writeDirectories() throws IOException {
+        final long start = (position + 1) & ~1L;
+        final List<List<long[]>> directories = new ArrayList<List<long[]>>();
+        long classicSize = 0;
+        for (int l = 0; l < tileOffsets.length; l++) {
+            directories.add(createDirectory(l, false));
+            classicSize += getDirectorySize(directories.get(l), false);
+        }
+        final boolean bigTiff = start + classicSize > MAX_TIFF_OFFSET;
+        if (bigTiff) {
+            directories.clear();
+            for (int l = 0; l < tileOffsets.length; l++) {
+                directories.add(createDirectory(l, true));
+            }
+        }
+
+        final long[] directoryOffsets = new long[directories.size()];
+        long offset = start;
+        for (int l = 0; l < directoryOffsets.length; l++) {
+            directoryOffsets[l] = offset;
+            offset += getDirectorySize(directories.get(l), bigTiff);
+        }
+        if (directoryOffsets.length > 1) {
+            // the reduced resolution directory offsets are only known now
+            final long[] subIfds = findEntry(directories.get(0), SUB_IFDS);
+            for (int l = 1; l < directoryOffsets.length; l++) {
+                subIfds[1 + l] = directoryOffsets[l];
+            }
+        }
+        for (int l = 0; l < directoryOffsets.length; l++) {
+            writeDirectory(directories.get(l), directoryOffsets[l], bigTiff);
+        }
+
+        final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(
+                ByteOrder.LITTLE_ENDIAN);
+        header.put((byte) 'I').put((byte) 'I');
+        if (bigTiff) {
+            header.putShort((short) 43).putShort((short) 8).putShort(
+                    (short) 0).putLong(start);
+        } else {
+            header.putShort((short) 42).putInt((int) start);
+        }
+        header.clear();
+        long headerOffset = 0;
+        while (header.hasRemaining()) {
+            headerOffset += channel.write(header, headerOffset);
+        }
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Wrote " + directoryOffsets.length + " zoom levels to "
+                    + (bigTiff ? "BigTIFF" : "TIFF") + " file " + filename);
+        }
+    }
+
+    /**
+     * Creates the entries of a zoom level's image directory, in tag order.
+     * Each entry is the tag, the type, and then the values.
+     */
+    private List<long[]> createDirectory(final int level, final boolean bigTiff) {
+        final List<long[]> entries = new ArrayList<long[]>();
+        final int offsetType = bigTiff ? LONG8 : LONG;
+        entries.add(new long[] { NEW_SUBFILE_TYPE, LONG,
+                level == 0 ? 0 : REDUCED_RESOLUTION });
+        entries.add(new long[] { IMAGE_WIDTH, LONG, getLevelWidth(level) });
+        entries.add(new long[] { IMAGE_LENGTH, LONG, getLevelHeight(level) });
+        final long[] bitsPerSample = new long[2 + samplesPerPixel];
+        bitsPerSample[0] = BITS_PER_SAMPLE;
+        bitsPerSample[1] = SHORT;
+        for (int i = 2; i < bitsPerSample.length; i++) {
+            bitsPerSample[i] = 8;
+        }
+        entries.add(bitsPerSample);
+        entries.add(new long[] { COMPRESSION, SHORT, COMPRESSION_JPEG });
+        entries.add(new long[] {
+                PHOTOMETRIC_INTERPRETATION,
+                SHORT,
+                samplesPerPixel == 1 ? PHOTOMETRIC_BLACK_IS_ZERO
+                        : PHOTOMETRIC_YCBCR });
+        entries.add(new long[] { SAMPLES_PER_PIXEL, SHORT, samplesPerPixel });
+        entries.add(new long[] { PLANAR_CONFIGURATION, SHORT, 1 });
+        entries.add(new long[] { TILE_WIDTH, LONG, tileSize });
+        entries.add(new long[] { TILE_LENGTH, LONG, tileSize });
+        final long[] offsets = new long[2 + tileOffsets[level].length];
+        final long[] byteCounts = new long[offsets.length];
+        offsets[0] = TILE_OFFSETS;
+        offsets[1] = offsetType;
+        byteCounts[0] = TILE_BYTE_COUNTS;
+        byteCounts[1] = offsetType;
+        for (int i = 0; i < tileOffsets[level].length; i++) {
+            offsets[2 + i] = tileOffsets[level][i];
+            byteCounts[2 + i] = tileByteCounts[level][i];
+        }
+        entries.add(offsets);
+        entries.add(byteCounts);
+        if (level == 0 && tileOffsets.length > 1) {
+            final long[] subIfds = new long[1 + tileOffsets.length];
+            subIfds[0] = SUB_IFDS;
+            subIfds[1] = bigTiff ? IFD8 : IFD;
+            entries.add(subIfds);
+        }
+        if (samplesPerPixel == 3) {
+            entries.add(new long[] { YCBCR_SUBSAMPLING, SHORT,
+                    horizontalSubsampling, verticalSubsampling });
+        }
+        return entries;
+    }
+
+    private static long[] findEntry(final List<long[]> entries, final int tag) {
+        for (final long[] entry : entries) {
+            if (entry[0] == tag) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    /**
+     *
+     * @return the size of a directory, including the values that don't fit
+     *         in its entries
+     */
+    private static long getDirectorySize(final List<long[]> entries,
+            final boolean bigTiff) {
+        long size = bigTiff ? 16 + entries.size() * 20L
+                : 6 + entries.size() * 12L;
+        for (final long[] entry : entries) {
+            final long valuesSize = getValuesSize(entry);
+            if (valuesSize > (bigTiff ? 8 : 4)) {
+                size += (valuesSize + 1) & ~1L;
+            }
+        }
+        return size;
+    }
+
+    private static long getValuesSize(final long[] entry) {
+        return (entry.length - 2) * getTypeSize((int) entry[1]);
+    }
+
+    private static int getTypeSize(final int type) {
+        switch (type) {
+        case SHORT:
+            return 2;
+        case LONG:
+        case IFD:
+            return 4;
+        default:
+            return 8;
+        }
+    }
+
+    private void writeDirectory(final List<long[]> entries, final long offset,
+            final boolean bigTiff) throws IOException {
+        final long size = getDirectorySize(entries, bigTiff);
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("Image directory is too large.");
+        }
+        final ByteBuffer buffer = ByteBuffer.allocate((int) size).order(
+                ByteOrder.LITTLE_ENDIAN);
+        final int inlineSize = bigTiff ? 8 : 4;
+        final int entriesSize = bigTiff ? 8 + entries.size() * 20
+                : 2 + entries.size() * 12;
+        long valuesOffset = offset + entriesSize + inlineSize;
+        final ByteBuffer values = buffer.duplicate().order(
+                ByteOrder.LITTLE_ENDIAN);
+        values.position((int) (valuesOffset - offset));
+
+        if (bigTiff) {
+            buffer.putLong(entries.size());
+        } else {
+            buffer.putShort((short) entries.size());
+        }
+        for (final long[] entry : entries) {
+            buffer.putShort((short) entry[0]);
+            buffer.putShort((short) entry[1]);
+            if (bigTiff) {
+                buffer.putLong(entry.length - 2);
+            } else {
+                buffer.putInt(entry.length - 2);
+            }
+            final long valuesSize = getValuesSize(entry);
+            if (valuesSize > inlineSize) {
+                if (bigTiff) {
+                    buffer.putLong(valuesOffset);
+                } else {
+                    buffer.putInt((int) valuesOffset);
+                }
+                putValues(values, entry);
+                if (valuesSize % 2 != 0) {
+                    values.put((byte) 0);
+                }
+                valuesOffset += (valuesSize + 1) & ~1L;
+            } else {
+                final int start = buffer.position();
+                putValues(buffer, entry);
+                buffer.position(start + inlineSize);
+            }
+        }
+        // no next directory; the reduced resolutions are SubIFDs
+        buffer.clear();
+        long written = offset;
+        while (buffer.hasRemaining()) {
+            written += channel.write(buffer, written);
+        }
+    }
+
+    private static void putValues(final ByteBuffer buffer, final long[] entry) {
+        final int typeSize = getTypeSize((int) entry[1]);
+        for (int i = 2; i < entry.length; i++) {
+            if (typeSize == 2) {
+                buffer.putShort((short) entry[i]);
+            } else if (typeSize == 4) {
+                buffer.putInt((int) entry[i]);
+            } else {
+                buffer.putLong(entry[i]);
+            }
+        }
+    }
+
+    /**
+     *
+     * @return true if a colour JPEG stream is YCbCr coded and subsampled the
+     *         way the encoder writes tiles
+     */
+    private boolean isEncoderLayout(final int[] frame) {
+        final int subsampling = encoder.getChromaSubsampling();
+        final int horizontal = subsampling == JpegTileEncoder.CHROMA_444 ? 1
+                : 2;
+        final int vertical = subsampling == JpegTileEncoder.CHROMA_420 ? 2
+                : 1;
+        return frame[3] == horizontal && frame[4] == vertical
+                && frame[5] == 1 && frame[6] == 1;
+    }
+
+    /**
+     *
+     * @return the width, height, and number of components of a JPEG stream,
+     *         the horizontal and vertical sampling factors of its first
+     *         component, 1 if the components are YCbCr and 0 if they are RGB,
+     *         and 1 if the other components are all sampled once per pixel
+     *         block and 0 if not; or null if it has no frame header
+     */
+    static int[] readFrameHeader(final byte[] data) {
+        int i = 2;
+        if (data.length < 4 || (data[0] & 0xff) != 0xff
+                || (data[1] & 0xff) != 0xd8) {
+            return null;
+        }
+        // -1 until an Adobe segment gives the colour transform
+        int transform = -1;
+        boolean jfif = false;
+        while (i + 4 <= data.length) {
+            if ((data[i] & 0xff) != 0xff) {
+                return null;
+            }
+            final int marker = data[i + 1] & 0xff;
+            if (marker == 0xff) {
+                i++;
+                continue;
+            }
+            if (marker == 0xda || marker == 0xd9) {
+                return null;
+            }
+            final int length = ((data[i + 2] & 0xff) << 8)
+                    | (data[i + 3] & 0xff);
+            if (marker == 0xe0 && i + 9 <= data.length
+                    && isTag(data, i + 4, "JFIF")) {
+                jfif = true;
+            } else if (marker == 0xee && i + 16 <= data.length
+                    && isTag(data, i + 4, "Adobe")) {
+                transform = data[i + 15] & 0xff;
+            }
+            if (marker >= 0xc0 && marker <= 0xcf && marker != 0xc4
+                    && marker != 0xc8 && marker != 0xcc) {
+                final int components = i + 10 <= data.length ? data[i + 9] & 0xff
+                        : 0;
+                if (components == 0 || i + 10 + components * 3 > data.length) {
+                    return null;
+                }
+                final int sampling = data[i + 11] & 0xff;
+                int singleSampled = 1;
+                for (int c = 1; c < components; c++) {
+                    if ((data[i + 11 + c * 3] & 0xff) != 0x11) {
+                        singleSampled = 0;
+                    }
+                }
+                final boolean rgb;
+                if (transform >= 0) {
+                    rgb = transform == 0;
+                } else {
+                    // without an Adobe segment, JFIF streams are YCbCr and
+                    // other streams are RGB when their components are named
+                    rgb = !jfif && components == 3 && data[i + 10] == 'R'
+                            && data[i + 13] == 'G' && data[i + 16] == 'B';
+                }
+                return new int[] {
+                        ((data[i + 7] & 0xff) << 8) | (data[i + 8] & 0xff),
+                        ((data[i + 5] & 0xff) << 8) | (data[i + 6] & 0xff),
+                        components, sampling >> 4, sampling & 0x0f,
+                        rgb ? 0 : 1, singleSampled };
+            }
+            i += 2 + length;
+        }
+        return null;
+    }
+
+    private static boolean isTag(final byte[] data, final int offset,
+            final String tag) {
+        for (int i = 0; i < tag.length(); i++) {
+            if (data[offset + i] != tag.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     *
+     * @return a copy of an edge tile at the full tile size, with its last
+     *         column and row repeated
+     */
+    private BufferedImage pad(final BufferedImage image) {
+        final int width = image.getWidth();
+        final int height = image.getHeight();
+        final WritableRaster raster = image.getRaster()
+                .createCompatibleWritableRaster(tileSize, tileSize);
+        raster.setRect(image.getRaster());
+        Object pixel = null;
+        for (int y = 0; y < height; y++) {
+            pixel = raster.getDataElements(width - 1, y, pixel);
+            for (int x = width; x < tileSize; x++) {
+                raster.setDataElements(x, y, pixel);
+            }
+        }
+        final Object lastRow = raster.getDataElements(0, height - 1,
+                tileSize, 1, null);
+        for (int y = height; y < tileSize; y++) {
+            raster.setDataElements(0, y, tileSize, 1, lastRow);
+        }
+        return new BufferedImage(image.getColorModel(), raster,
+                image.isAlphaPremultiplied(), null);
+    }
+
+    private long getLevelWidth(final int level) {
+        return (long) Math.ceil(imageWidth
+                / Math.pow(zoomLevelConfiguration.getScale(), level));
+    }
+
+    private long getLevelHeight(final int level) {
+        return (long) Math.ceil(imageHeight
+                / Math.pow(zoomLevelConfiguration.getScale(), level));
+    }
+
+    private long getNumberOfRows(final int level) {
+        try {
+            return zoomLevelConfiguration.getNumberOfRows(level);
+        } catch (final ZoomLevelNotFoundException e) {
+            throw new IllegalArgumentException("Zoom level " + level
+                    + " doesn't exist.", e);
+        }
+    }
+
+    private long getNumberOfColumns(final int level) {
+        try {
+            return zoomLevelConfiguration.getNumberOfColumns(level);
+        } catch (final ZoomLevelNotFoundException e) {
+            throw new IllegalArgumentException("Zoom level " + level
+                    + " doesn't exist.", e);
+        }
+    }
+}
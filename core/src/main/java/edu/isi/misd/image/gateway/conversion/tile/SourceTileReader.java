@@ -0,0 +1,52 @@
+/*
+ * Copyright 2011 University of Southern California
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.isi.misd.image.gateway.conversion.tile;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+
+import edu.isi.misd.image.gateway.conversion.ImageSource;
+
+/**
+ * Tile reader that reads each tile directly from the image source.
+ * 
+ * @author David Smith
+ * 
+ */
+public class SourceTileReader implements TileReader {
+
+    private final ImageSource source;
+
+    /**
+     * Constructor
+     * 
+     * @param imageSource
+     *            the image source to read from
+     */
+    public SourceTileReader(final ImageSource imageSource) {
+        if (imageSource == null) {
+            throw new IllegalArgumentException("ImageSource must be specified.");
+        }
+        source = imageSource;
+    }
+
+    @Override
+    public BufferedImage read(final long x, final long y, final long width,
+            final long height) throws IOException {
+        return source.readImage(x, y, width, height);
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright 2011 University of Southern California
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.isi.misd.image.gateway.conversion.tile;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+
+/**
+ * Tile writer that writes each tile both to another tile writer and to a
+ * pyramid TIFF file, so that both are built in the same pass. When the other
+ * writer writes JPEG tiles with the same encoder, each tile is only encoded
+ * once.
+ *
+ * @author David Smith
+ *
+ */
+class TeeTileWriter implements TileWriter {
+
+    private final TileWriter tileWriter;
+    private final PyramidTiffTileWriter pyramidTiff;
+
+    /**
+     * Constructor.
+     *
+     * @param writer
+     *            the tile writer whose tile names are returned
+     * @param tiff
+     *            the pyramid TIFF file that the tiles are also written to
+     */
+    TeeTileWriter(final TileWriter writer, final PyramidTiffTileWriter tiff) {
+        tileWriter = writer;
+        pyramidTiff = tiff;
+    }
+
+    @Override
+    public String write(final BufferedImage image, final int level,
+            final long row, final long column) throws IOException {
+        if (JpegTileWriterImplementation.JPG.equals(tileWriter.getExtension())
+                && image.getWidth() == pyramidTiff.getTileSize()
+                && image.getHeight() == pyramidTiff.getTileSize()) {
+            final byte[] data = pyramidTiff.getTileEncoder().encode(image);
+            final String tileFilename = tileWriter.writeEncoded(data, level,
+                    row, column);
+            pyramidTiff.writeEncoded(data, level, row, column);
+            return tileFilename;
+        }
+        final String tileFilename = tileWriter.write(image, level, row,
+                column);
+        pyramidTiff.write(image, level, row, column);
+        return tileFilename;
+    }
+
+    @Override
+    public String writeEncoded(final byte[] data, final int level,
+            final long row, final long column) throws IOException {
+        final String tileFilename = tileWriter.writeEncoded(data, level, row,
+                column);
+        pyramidTiff.writeEncoded(data, level, row, column);
+        return tileFilename;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            tileWriter.close();
+        } finally {
+            pyramidTiff.close();
+        }
+    }
+
+    @Override
+    public String getExtension() {
+        return tileWriter.getExtension();
+    }
+
+    @Override
+    public TileNamingConvention getTileNamingConvention() {
+        return tileWriter.getTileNamingConvention();
+    }
+
+    @Override
+    public String getDestinationDirectory() {
+        return tileWriter.getDestinationDirectory();
+    }
+
+    @Override
+    public ZoomLevelConfiguration getZoomLevelConfiguration() {
+        return tileWriter.getZoomLevelConfiguration();
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2011 University of Southern California
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.isi.misd.image.gateway.conversion.tile;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Tile writer that passes tiles on to another tile writer and keeps the tile
+ * of the smallest zoom level, so that it can be used as a thumbnail without
+ * reading the source image again.
+ * 
+ * @author David Smith
+ * 
+ */
+class ThumbnailTileWriter implements TileWriter {
+
+    private final TileWriter tileWriter;
+    private final int thumbnailLevel;
+    private final AtomicReference<BufferedImage> thumbnailImage;
+
+    /**
+     * Constructor.
+     * 
+     * @param writer
+     *            the tile writer to write the tiles with
+     * @param thumbnail
+     *            set to the tile of the smallest zoom level when it is
+     *            written
+     */
+    ThumbnailTileWriter(final TileWriter writer,
+            final AtomicReference<BufferedImage> thumbnail) {
+        tileWriter = writer;
+        thumbnailImage = thumbnail;
+        thumbnailLevel = writer.getZoomLevelConfiguration()
+                .getNumberOfZoomLevels() - 1;
+    }
+
+    @Override
+    public String write(final BufferedImage image, final int level,
+            final long row, final long column) throws IOException {
+        final String tileFilename = tileWriter.write(image, level, row,
+                column);
+        if (level == thumbnailLevel && row == 0 && column == 0) {
+            thumbnailImage.set(image);
+        }
+        return tileFilename;
+    }
+
+    @Override
+    public String writeEncoded(final byte[] data, final int level,
+            final long row, final long column) throws IOException {
+        final String tileFilename = tileWriter.writeEncoded(data, level, row,
+                column);
+        if (level == thumbnailLevel && row == 0 && column == 0) {
+            thumbnailImage.set(ImageIO.read(new ByteArrayInputStream(data)));
+        }
+        return tileFilename;
+    }
+
+    @Override
+    public void close() throws IOException {
+        tileWriter.close();
+    }
+
+    @Override
+    public String getExtension() {
+        return tileWriter.getExtension();
+    }
+
+    @Override
+    public TileNamingConvention getTileNamingConvention() {
+        return tileWriter.getTileNamingConvention();
+    }
+
+    @Override
+    public String getDestinationDirectory() {
+        return tileWriter.getDestinationDirectory();
+    }
+
+    @Override
+    public ZoomLevelConfiguration getZoomLevelConfiguration() {
+        return tileWriter.getZoomLevelConfiguration();
+    }
+}
@@ -0,0 +1,235 @@
+/*
+ * Copyright 2011 University of Southern California
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.isi.misd.image.gateway.conversion.tile;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads the tiles of an archive written by {@link TileArchiveWriter}. The
+ * index is read once when the archive is opened, after which each tile is read
+ * with a single positional read, so one reader can be shared by any number of
+ * threads.
+ *
+ * @author David Smith
+ *
+ */
+public class TileArchiveReader {
+
+    private final String filename;
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+
+    private final long imageWidth;
+    private final long imageHeight;
+    private final int tileSize;
+    private final long[] rows;
+    private final long[] columns;
+    private final long[][] tileOffsets;
+    private final int[][] tileLengths;
+
+    /**
+     * Constructor.
+     *
+     * @param archiveFilename
+     *            the archive file to read
+     * @throws IOException
+     *             if the file could not be read or is not a tile archive
+     */
+    public TileArchiveReader(final String archiveFilename) throws IOException {
+        if (archiveFilename == null || archiveFilename.length() == 0) {
+            throw new IllegalArgumentException(
+                    "Archive filename must be specified.");
+        }
+        filename = archiveFilename;
+        file = new RandomAccessFile(archiveFilename, "r");
+        channel = file.getChannel();
+        try {
+            final long length = channel.size();
+            if (length < TileArchiveWriter.HEADER_SIZE
+                    + TileArchiveWriter.TRAILER_SIZE) {
+                throw new IOException(filename + " is not a tile archive.");
+            }
+            final ByteBuffer header = read(0, TileArchiveWriter.HEADER_SIZE);
+            final ByteBuffer trailer = read(length
+                    - TileArchiveWriter.TRAILER_SIZE,
+                    TileArchiveWriter.TRAILER_SIZE);
+            final long indexOffset = trailer.getLong();
+            if (header.getInt() != TileArchiveWriter.MAGIC
+                    || trailer.getInt() != TileArchiveWriter.MAGIC
+                    || indexOffset < TileArchiveWriter.HEADER_SIZE
+                    || indexOffset > length - TileArchiveWriter.TRAILER_SIZE) {
+                throw new IOException(filename
+                        + " is not a complete tile archive.");
+            }
+            final int version = header.getInt();
+            if (version != TileArchiveWriter.VERSION) {
+                throw new IOException("Tile archive " + filename
+                        + " has unsupported version " + version);
+            }
+            final long indexSize = length - TileArchiveWriter.TRAILER_SIZE
+                    - indexOffset;
+            if (indexSize > Integer.MAX_VALUE) {
+                throw new IOException("Tile archive index is too large.");
+            }
+
+            final ByteBuffer index = read(indexOffset, (int) indexSize);
+            imageWidth = index.getLong();
+            imageHeight = index.getLong();
+            tileSize = index.getInt();
+            final int levels = index.getInt();
+            rows = new long[levels];
+            columns = new long[levels];
+            tileOffsets = new long[levels][];
+            tileLengths = new int[levels][];
+            for (int l = 0; l < levels; l++) {
+                rows[l] = index.getLong();
+                columns[l] = index.getLong();
+                final int tiles = (int) (rows[l] * columns[l]);
+                tileOffsets[l] = new long[tiles];
+                tileLengths[l] = new int[tiles];
+                for (int i = 0; i < tiles; i++) {
+                    tileOffsets[l][i] = index.getLong();
+                    tileLengths[l][i] = index.getInt();
+                }
+            }
+        } catch (final IOException e) {
+            file.close();
+            throw e;
+        } catch (final RuntimeException e) {
+            file.close();
+            throw new IOException("Tile archive " + filename
+                    + " has an invalid index: " + e);
+        }
+    }
+
+    /**
+     * Reads an encoded tile.
+     *
+     * @param level
+     *            the zoom level
+     * @param row
+     *            the row of the tile
+     * @param column
+     *            the column of the tile
+     * @return the encoded tile, or null if it wasn't written
+     * @throws IOException
+     *             if the tile could not be read
+     */
+    public byte[] readTile(final int level, final long row, final long column)
+            throws IOException {
+        if (level < 0 || level >= rows.length || row < 0
+                || row >= rows[level] || column < 0
+                || column >= columns[level]) {
+            throw new IllegalArgumentException("Tile " + level + "-" + row
+                    + "-" + column + " doesn't exist.");
+        }
+        final int index = (int) (row * columns[level] + column);
+        if (tileLengths[level][index] == 0) {
+            return null;
+        }
+        return read(tileOffsets[level][index], tileLengths[level][index])
+                .array();
+    }
+
+    /**
+     * Closes the archive.
+     *
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        file.close();
+    }
+
+    /**
+     *
+     * @return the name of the archive file
+     */
+    public String getFilename() {
+        return filename;
+    }
+
+    /**
+     *
+     * @return the width of the full resolution image
+     */
+    public long getWidth() {
+        return imageWidth;
+    }
+
+    /**
+     *
+     * @return the height of the full resolution image
+     */
+    public long getHeight() {
+        return imageHeight;
+    }
+
+    /**
+     *
+     * @return the tile size
+     */
+    public int getTileSize() {
+        return tileSize;
+    }
+
+    /**
+     *
+     * @return the number of zoom levels in the archive
+     */
+    public int getNumberOfZoomLevels() {
+        return rows.length;
+    }
+
+    /**
+     *
+     * @param level
+     *            the zoom level
+     * @return the number of tile rows in the zoom level
+     */
+    public long getNumberOfRows(final int level) {
+        return rows[level];
+    }
+
+    /**
+     *
+     * @param level
+     *            the zoom level
+     * @return the number of tile columns in the zoom level
+     */
+    public long getNumberOfColumns(final int level) {
+        return columns[level];
+    }
+
+    private ByteBuffer read(final long offset, final int length)
+            throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate(length);
+        long position = offset;
+        while (buffer.hasRemaining()) {
+            final int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new IOException("Unexpected end of tile archive "
+                        + filename);
+            }
+            position += read;
+        }
+        buffer.flip();
+        return buffer;
+    }
+}
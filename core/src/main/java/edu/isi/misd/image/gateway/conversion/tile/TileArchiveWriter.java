@@ -0,0 +1,381 @@
+/*
+ * Copyright 2011 University of Southern California
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.isi.misd.image.gateway.conversion.tile;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+import edu.isi.misd.image.gateway.conversion.ConversionEvents;
+
+/**
+ * Tile writer that appends the encoded tiles of every zoom level to a single
+ * archive file with an index, instead of writing a file per tile. Tiles can be
+ * written in any order and from any number of threads; the index is written
+ * when the writer is closed. {@link TileArchiveReader} reads a tile back with
+ * a single positional read. Small tiles that are identical to one of the
+ * small tiles written recently, such as the placeholders written for
+ * background tiles, are stored once and referenced by each of their index
+ * entries.
+ *
+ * The archive starts with the magic number and the format version. The tiles
+ * follow, and then the index: the image width and height, the tile size, the
+ * number of zoom levels, and for each zoom level its rows and columns followed
+ * by the offset and length of each tile in row order, a length of 0 meaning
+ * the tile wasn't written. The archive ends with the offset of the index and
+ * the magic number again. All values are big endian.
+ *
+ * @author David Smith
+ *
+ */
+public class TileArchiveWriter implements TileWriter {
+
+    private static final Logger LOG = Logger.getLogger(TileArchiveWriter.class);
+
+    /**
+     * The magic number at the start and end of an archive, "BTPK"
+     */
+    static final int MAGIC = 0x4254504b;
+
+    /**
+     * The version of the archive format
+     */
+    static final int VERSION = 1;
+
+    /**
+     * The size of the magic number and version at the start of an archive
+     */
+    static final int HEADER_SIZE = 8;
+
+    /**
+     * The size of the index offset and magic number at the end of an archive
+     */
+    static final int TRAILER_SIZE = 12;
+
+    /**
+     * The largest tile that is stored once when it is written again
+     */
+    private static final int MAX_SHARED_TILE_BYTES = 16 * 1024;
+
+    /**
+     * The most small tiles remembered to be stored once
+     */
+    private static final int MAX_SHARED_TILES = 32;
+
+    private final String filename;
+    private final long imageWidth;
+    private final long imageHeight;
+    private final int tileSize;
+    private final ZoomLevelConfiguration zoomLevelConfiguration;
+    private final JpegTileEncoder encoder;
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final long[][] tileOffsets;
+    private final int[][] tileLengths;
+
+    private final Map<SharedTile, Long> sharedTiles = new LinkedHashMap<SharedTile, Long>(
+            MAX_SHARED_TILES, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(
+                final Map.Entry<SharedTile, Long> eldest) {
+            return size() > MAX_SHARED_TILES;
+        }
+    };
+
+    private long position = HEADER_SIZE;
+    private boolean closed = false;
+    private volatile ExportMetrics metrics = null;
+
+    /**
+     * Constructor.
+     *
+     * @param archiveFilename
+     *            the archive file to write, which is replaced if it exists
+     * @param width
+     *            the width of the full resolution image
+     * @param height
+     *            the height of the full resolution image
+     * @param size
+     *            the tile size
+     * @param zoomLevelConfig
+     *            the zoom levels of the image
+     * @param tileEncoder
+     *            the encoder used for the tiles
+     * @throws IOException
+     *             if the file could not be created
+     */
+    public TileArchiveWriter(final String archiveFilename, final long width,
+            final long height, final int size,
+            final ZoomLevelConfiguration zoomLevelConfig,
+            final JpegTileEncoder tileEncoder) throws IOException {
+        if (archiveFilename == null || archiveFilename.length() == 0) {
+            throw new IllegalArgumentException(
+                    "Archive filename must be specified.");
+        }
+        if (width <= 0 || height <= 0 || size <= 0) {
+            throw new IllegalArgumentException(
+                    "Width, height and tile size must be greater than 0.");
+        }
+        if (zoomLevelConfig == null) {
+            throw new IllegalArgumentException(
+                    "Zoom Level Config must be specified.");
+        }
+        if (tileEncoder == null) {
+            throw new IllegalArgumentException(
+                    "JPEG encoder must be specified.");
+        }
+        filename = archiveFilename;
+        imageWidth = width;
+        imageHeight = height;
+        tileSize = size;
+        zoomLevelConfiguration = zoomLevelConfig;
+        encoder = tileEncoder;
+
+        final int levels = zoomLevelConfiguration.getNumberOfZoomLevels();
+        tileOffsets = new long[levels][];
+        tileLengths = new int[levels][];
+        for (int l = 0; l < levels; l++) {
+            final long tiles = getNumberOfRows(l) * getNumberOfColumns(l);
+            if (tiles > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("Zoom level " + l
+                        + " has too many tiles.");
+            }
+            tileOffsets[l] = new long[(int) tiles];
+            tileLengths[l] = new int[(int) tiles];
+        }
+
+        file = new RandomAccessFile(archiveFilename, "rw");
+        file.setLength(0);
+        channel = file.getChannel();
+        final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).putInt(VERSION).flip();
+        writeFully(header, 0);
+    }
+
+    @Override
+    public String write(final BufferedImage image, final int level,
+            final long row, final long column) throws IOException {
+        if (image == null) {
+            throw new IllegalArgumentException("Image cannot be null.");
+        }
+        final long start = System.nanoTime();
+        final byte[] data = encoder.encode(image);
+        final long elapsed = System.nanoTime() - start;
+        if (metrics != null) {
+            metrics.record(ExportMetrics.ENCODE, level, elapsed,
+                    ExportMetrics.getPixelBytes(image));
+        }
+        if (ConversionEvents.isEnabled()) {
+            ConversionEvents.tileEncoded(level, row, column, data.length,
+                    elapsed);
+        }
+        return writeEncoded(data, level, row, column);
+    }
+
+    @Override
+    public synchronized String writeEncoded(final byte[] data,
+            final int level, final long row, final long column)
+            throws IOException {
+        if (data == null) {
+            throw new IllegalArgumentException("Data cannot be null.");
+        }
+        if (closed) {
+            throw new IOException("Tile archive " + filename + " is closed.");
+        }
+        if (level < 0 || level >= tileOffsets.length || row < 0
+                || row >= getNumberOfRows(level) || column < 0
+                || column >= getNumberOfColumns(level)) {
+            throw new IllegalArgumentException("Tile " + level + "-" + row
+                    + "-" + column + " doesn't exist.");
+        }
+        final int index = (int) (row * getNumberOfColumns(level) + column);
+        SharedTile shared = null;
+        Long offset = null;
+        if (data.length <= MAX_SHARED_TILE_BYTES) {
+            shared = new SharedTile(data);
+            offset = sharedTiles.get(shared);
+        }
+        if (offset == null) {
+            offset = Long.valueOf(position);
+            final long start = System.nanoTime();
+            writeFully(ByteBuffer.wrap(data), position);
+            position += data.length;
+            final long elapsed = System.nanoTime() - start;
+            if (metrics != null) {
+                metrics.record(ExportMetrics.WRITE, level, elapsed,
+                        data.length);
+            }
+            if (ConversionEvents.isEnabled()) {
+                ConversionEvents.tileWritten(level, row, column, data.length,
+                        elapsed);
+            }
+            if (shared != null) {
+                sharedTiles.put(new SharedTile(data.clone()), offset);
+            }
+        }
+        tileOffsets[level][index] = offset.longValue();
+        tileLengths[level][index] = data.length;
+        return new StringBuffer(filename).append('#').append(level)
+                .append('-').append(row).append('-').append(column)
+                .toString();
+    }
+
+    /**
+     * Writes the index and closes the file.
+     *
+     * @throws IOException
+     *             if the index could not be written
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            long indexSize = 24;
+            for (int l = 0; l < tileOffsets.length; l++) {
+                indexSize += 16 + tileOffsets[l].length * 12L;
+            }
+            if (indexSize + TRAILER_SIZE > Integer.MAX_VALUE) {
+                throw new IOException("Tile archive index is too large.");
+            }
+            final ByteBuffer index = ByteBuffer
+                    .allocate((int) indexSize + TRAILER_SIZE);
+            index.putLong(imageWidth).putLong(imageHeight).putInt(tileSize)
+                    .putInt(tileOffsets.length);
+            for (int l = 0; l < tileOffsets.length; l++) {
+                index.putLong(getNumberOfRows(l)).putLong(
+                        getNumberOfColumns(l));
+                for (int i = 0; i < tileOffsets[l].length; i++) {
+                    index.putLong(tileOffsets[l][i]).putInt(tileLengths[l][i]);
+                }
+            }
+            index.putLong(position).putInt(MAGIC).flip();
+            writeFully(index, position);
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("Wrote the index of tile archive " + filename);
+            }
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * Sets the metrics that the time taken to encode and write each tile is
+     * recorded in. Tiles that are stored once aren't written again.
+     *
+     * @param exportMetrics
+     *            the metrics, or null to record nothing
+     */
+    public void setMetrics(final ExportMetrics exportMetrics) {
+        metrics = exportMetrics;
+    }
+
+    /**
+     *
+     * @return the name of the archive file
+     */
+    public String getFilename() {
+        return filename;
+    }
+
+    @Override
+    public String getExtension() {
+        return JpegTileWriterImplementation.JPG;
+    }
+
+    /**
+     *
+     * @return null, as the tiles are not written to files of their own
+     */
+    @Override
+    public TileNamingConvention getTileNamingConvention() {
+        return null;
+    }
+
+    @Override
+    public String getDestinationDirectory() {
+        return new File(filename).getAbsoluteFile().getParent();
+    }
+
+    @Override
+    public ZoomLevelConfiguration getZoomLevelConfiguration() {
+        return zoomLevelConfiguration;
+    }
+
+    private void writeFully(final ByteBuffer buffer, final long offset)
+            throws IOException {
+        long written = offset;
+        while (buffer.hasRemaining()) {
+            written += channel.write(buffer, written);
+        }
+    }
+
+    private long getNumberOfRows(final int level) {
+        try {
+            return zoomLevelConfiguration.getNumberOfRows(level);
+        } catch (final ZoomLevelNotFoundException e) {
+            throw new IllegalArgumentException("Zoom level " + level
+                    + " doesn't exist.", e);
+        }
+    }
+
+    private long getNumberOfColumns(final int level) {
+        try {
+            return zoomLevelConfiguration.getNumberOfColumns(level);
+        } catch (final ZoomLevelNotFoundException e) {
+            throw new IllegalArgumentException("Zoom level " + level
+                    + " doesn't exist.", e);
+        }
+    }
+
+    /**
+     * The bytes of a small tile, compared by value.
+     */
+    private static final class SharedTile {
+        private final byte[] data;
+        private final int hash;
+
+        private SharedTile(final byte[] tileData) {
+            data = tileData;
+            hash = Arrays.hashCode(tileData);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(final Object other) {
+            return other instanceof SharedTile
+                    && Arrays.equals(data, ((SharedTile) other).data);
+        }
+    }
+}
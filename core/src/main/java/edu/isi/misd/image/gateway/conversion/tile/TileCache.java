@@ -0,0 +1,350 @@
+/*
+ * Copyright 2011 University of Southern California
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.isi.misd.image.gateway.conversion.tile;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+import edu.isi.misd.image.gateway.conversion.ConversionUtils;
+
+/**
+ * Cache of encoded tiles, kept in memory and optionally in a directory. Both
+ * are bounded in bytes and evict the least recently used tiles first. Tiles
+ * that are evicted from memory stay in the directory, under their tile
+ * filenames, so that the directory holds the tiles in the same layout as an
+ * export. Tiles already in the directory when the cache is created are used
+ * as well, and count towards its bound, oldest first.
+ * 
+ * @author David Smith
+ * 
+ */
+public class TileCache {
+
+    private static final Logger LOG = Logger.getLogger(TileCache.class);
+
+    private final long maxMemoryBytes;
+    private final File directory;
+    private final long maxDiskBytes;
+
+    private final Map<String, byte[]> memoryTiles = new LinkedHashMap<String, byte[]>(
+            16, 0.75f, true);
+    private final Map<String, Long> diskTiles = new LinkedHashMap<String, Long>(
+            16, 0.75f, true);
+    private long memoryBytes = 0;
+    private long diskBytes = 0;
+    private long hits = 0;
+    private long misses = 0;
+
+    /**
+     * Constructor for a cache that only keeps tiles in memory.
+     * 
+     * @param maxMemory
+     *            the most bytes of tiles to keep in memory
+     */
+    public TileCache(final long maxMemory) {
+        this(maxMemory, null, 0);
+    }
+
+    /**
+     * Constructor.
+     * 
+     * @param maxMemory
+     *            the most bytes of tiles to keep in memory
+     * @param cacheDirectory
+     *            the directory to keep tiles in, which should only hold the
+     *            tiles of one image, or null to only keep them in memory
+     * @param maxDisk
+     *            the most bytes of tiles to keep in the directory
+     */
+    public TileCache(final long maxMemory, final File cacheDirectory,
+            final long maxDisk) {
+        if (maxMemory < 0 || maxDisk < 0) {
+            throw new IllegalArgumentException(
+                    "Cache sizes must be at least 0.");
+        }
+        if (cacheDirectory != null && !cacheDirectory.isDirectory()
+                && !cacheDirectory.mkdirs()) {
+            throw new IllegalArgumentException("Cache directory "
+                    + cacheDirectory + " could not be created.");
+        }
+        maxMemoryBytes = maxMemory;
+        directory = cacheDirectory;
+        maxDiskBytes = maxDisk;
+        if (directory != null) {
+            addExistingTiles();
+            evictFromDisk();
+        }
+    }
+
+    /**
+     * 
+     * @param name
+     *            the tile filename, relative to the cache directory
+     * @return the encoded tile, or null if it isn't cached
+     * @throws IOException
+     *             if the tile could not be read from the cache directory
+     */
+    public byte[] get(final String name) throws IOException {
+        synchronized (this) {
+            final byte[] data = memoryTiles.get(name);
+            if (data != null) {
+                hits++;
+                return data;
+            }
+        }
+        final File file = getFile(name);
+        // the file may be deleted by an eviction at any point
+        final byte[] data = file != null ? readFile(file) : null;
+        if (data == null) {
+            synchronized (this) {
+                misses++;
+            }
+            return null;
+        }
+        synchronized (this) {
+            hits++;
+            // getting the tile makes it the most recently used
+            if (diskTiles.get(name) == null) {
+                diskTiles.put(name, Long.valueOf(data.length));
+                diskBytes += data.length;
+            }
+            putInMemory(name, data);
+        }
+        evictFromDisk();
+        return data;
+    }
+
+    /**
+     * Adds a tile to the cache.
+     * 
+     * @param name
+     *            the tile filename, relative to the cache directory
+     * @param data
+     *            the encoded tile
+     * @throws IOException
+     *             if the tile could not be written to the cache directory
+     */
+    public void put(final String name, final byte[] data) throws IOException {
+        if (name == null || data == null) {
+            throw new IllegalArgumentException(
+                    "Tile name and data must be specified.");
+        }
+        synchronized (this) {
+            putInMemory(name, data);
+        }
+        final File file = getFile(name);
+        if (file == null || data.length > maxDiskBytes) {
+            return;
+        }
+        if (!ConversionUtils.createDirectoryTree(directory.getPath(), name)) {
+            throw new IOException("Could not create directory tree for "
+                    + file);
+        }
+        // written under another name and renamed, so that a tile is never
+        // read part written
+        final File partFile = new File(file.getPath() + ".tmp");
+        final FileOutputStream out = new FileOutputStream(partFile);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+        if (!partFile.renameTo(file)
+                && !(file.delete() && partFile.renameTo(file))) {
+            throw new IOException("Could not save cached tile " + file);
+        }
+        synchronized (this) {
+            final Long previous = diskTiles.put(name,
+                    Long.valueOf(data.length));
+            diskBytes += data.length
+                    - (previous != null ? previous.longValue() : 0);
+        }
+        evictFromDisk();
+    }
+
+    /**
+     * 
+     * @return the bytes of tiles kept in memory
+     */
+    public synchronized long getMemoryBytes() {
+        return memoryBytes;
+    }
+
+    /**
+     * 
+     * @return the bytes of tiles the cache has kept in its directory
+     */
+    public synchronized long getDiskBytes() {
+        return diskBytes;
+    }
+
+    /**
+     * 
+     * @return the number of tiles that were found in the cache
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * 
+     * @return the number of tiles that were looked for and not found
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    private void putInMemory(final String name, final byte[] data) {
+        if (data.length > maxMemoryBytes) {
+            return;
+        }
+        final byte[] previous = memoryTiles.put(name, data);
+        memoryBytes += data.length
+                - (previous != null ? previous.length : 0);
+        final Iterator<byte[]> i = memoryTiles.values().iterator();
+        while (memoryBytes > maxMemoryBytes && i.hasNext()) {
+            memoryBytes -= i.next().length;
+            i.remove();
+        }
+    }
+
+    /**
+     * Deletes the least recently used tiles from the cache directory while
+     * it holds more than its bound.
+     */
+    private void evictFromDisk() {
+        while (true) {
+            final String name;
+            synchronized (this) {
+                if (diskBytes <= maxDiskBytes || diskTiles.isEmpty()) {
+                    return;
+                }
+                final Iterator<Map.Entry<String, Long>> i = diskTiles
+                        .entrySet().iterator();
+                final Map.Entry<String, Long> eldest = i.next();
+                name = eldest.getKey();
+                diskBytes -= eldest.getValue().longValue();
+                i.remove();
+            }
+            final File file = getFile(name);
+            if (file.exists() && !file.delete()) {
+                LOG.warn("Could not delete cached tile " + file);
+            }
+        }
+    }
+
+    /**
+     * Adds the tiles already in the cache directory, the least recently
+     * modified first, and deletes the files of tiles that were being written.
+     */
+    private void addExistingTiles() {
+        final List<File> files = new ArrayList<File>();
+        findFiles(directory, files);
+        Collections.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(final File a, final File b) {
+                final long am = a.lastModified(), bm = b.lastModified();
+                return am < bm ? -1 : (am == bm ? 0 : 1);
+            }
+        });
+        final int prefix = directory.getPath().length() + 1;
+        synchronized (this) {
+            for (final File file : files) {
+                if (file.getName().endsWith(".tmp")) {
+                    if (!file.delete()) {
+                        LOG.warn("Could not delete part written tile " + file);
+                    }
+                    continue;
+                }
+                final String name = file.getPath().substring(prefix)
+                        .replace(File.separatorChar, '/');
+                diskTiles.put(name, Long.valueOf(file.length()));
+                diskBytes += file.length();
+            }
+        }
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Found " + diskTiles.size() + " cached tiles of "
+                    + diskBytes + " bytes in " + directory);
+        }
+    }
+
+    private static void findFiles(final File dir, final List<File> files) {
+        final File[] children = dir.listFiles();
+        if (children == null) {
+            return;
+        }
+        for (final File child : children) {
+            if (child.isDirectory()) {
+                findFiles(child, files);
+            } else {
+                files.add(child);
+            }
+        }
+    }
+
+    private File getFile(final String name) {
+        return directory != null ? new File(directory, name) : null;
+    }
+
+    /**
+     * 
+     * @return the contents of the file, or null if there is no such file
+     */
+    private static byte[] readFile(final File file) throws IOException {
+        final FileInputStream in;
+        try {
+            in = new FileInputStream(file);
+        } catch (final FileNotFoundException e) {
+            return null;
+        }
+        final byte[] data;
+        try {
+            // the length of the open file, which can't be deleted from under
+            // it on Windows and stays readable elsewhere
+            final long length = in.getChannel().size();
+            if (length > Integer.MAX_VALUE) {
+                throw new IOException("Cached tile " + file
+                        + " is too large.");
+            }
+            data = new byte[(int) length];
+            int read = 0;
+            while (read < data.length) {
+                final int n = in.read(data, read, data.length - read);
+                if (n < 0) {
+                    throw new IOException("Cached tile " + file
+                            + " was truncated.");
+                }
+                read += n;
+            }
+        } finally {
+            in.close();
+        }
+        return data;
+    }
+}
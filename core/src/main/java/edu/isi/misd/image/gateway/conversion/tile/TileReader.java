@@ -0,0 +1,46 @@
+/*
+ * Copyright 2011 University of Southern California
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.isi.misd.image.gateway.conversion.tile;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+
+/**
+ * Interface that defines the operation of reading the source region of a tile.
+ * 
+ * @author David Smith
+ * 
+ */
+public interface TileReader {
+
+    /**
+     * Reads a region of the source image for a tile
+     * 
+     * @param x
+     *            the x-coordinate to start
+     * @param y
+     *            the y-coordinate to start
+     * @param width
+     *            the width of the read
+     * @param height
+     *            the height of the read
+     * @return an image of the region that is not shared with any other tile
+     * @throws IOException
+     */
+    public BufferedImage read(long x, long y, long width, long height)
+            throws IOException;
+}
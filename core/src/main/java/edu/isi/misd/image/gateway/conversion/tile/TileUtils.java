@@ -17,18 +17,27 @@
 package edu.isi.misd.image.gateway.conversion.tile;
 
 import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.Raster;
+import java.awt.image.SampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
 import java.io.File;
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
 
 import javax.imageio.ImageIO;
 
-import loci.formats.gui.AWTImageTools;
-
 import org.apache.log4j.Logger;
 
 import edu.isi.misd.image.gateway.conversion.CompositeImage;
+import edu.isi.misd.image.gateway.conversion.ImageSource;
 
 /**
  * Utility classes that involve tiling.
@@ -60,6 +69,31 @@ public final class TileUtils {
     public static BufferedImage createLowerZoomLevelTile(
             final TileWriter tileWriter, final int level, final long row,
             final long column) throws IOException {
+        return createLowerZoomLevelTile(tileWriter, level, row, column, null);
+    }
+
+    /**
+     * Creates a new image for a lower zoom level by looking for higher
+     * resolution images, combining them, then resizing them, recording the
+     * time taken to decode the higher resolution images and to resize them
+     * 
+     * @param tileWriter
+     *            the tile writer that is being used
+     * @param level
+     *            the zoom level
+     * @param row
+     *            the row for the new tile
+     * @param column
+     *            the column for the new tile
+     * @param metrics
+     *            the metrics to record the times in, or null
+     * @return the image in its proper size and resolution
+     * @throws IOException
+     */
+    public static BufferedImage createLowerZoomLevelTile(
+            final TileWriter tileWriter, final int level, final long row,
+            final long column, final ExportMetrics metrics)
+            throws IOException {
         if (tileWriter == null) {
             throw new IllegalArgumentException("Tile writer cannot be null.");
         }
@@ -73,9 +107,6 @@ public final class TileUtils {
                             .getNumberOfZoomLevels() + ", exclusive.");
         }
 
-        int readWidth = 0;
-        int readHeight = 0;
-
         // find the four corresponding tiles
         final File[] higherTiles = new File[4];
         try {
@@ -122,19 +153,19 @@ public final class TileUtils {
         BufferedImage bufferedImage = null;
         for (int r = 0; r < higherTiles.length; r += 2) {
             final List<BufferedImage> i_row = new LinkedList<BufferedImage>();
-            int rowWidth = 0;
-            int rowHeight = 0;
             for (int c = 0; c < 2; c++) {
                 if (higherTiles[r + c].exists()) {
                     if (LOG.isDebugEnabled()) {
                         LOG.debug("Adding higher resolution tile "
                                 + higherTiles[r + c].getAbsolutePath());
                     }
+                    final long start = System.nanoTime();
                     bufferedImage = ImageIO.read(higherTiles[r + c]);
-                    rowWidth += bufferedImage.getWidth();
-                    if (bufferedImage.getHeight() > rowHeight) {
-                        rowHeight = bufferedImage.getHeight();
-                    }
+                    if (metrics != null) {
+                        metrics.record(ExportMetrics.DECODE, level - 1,
+                                System.nanoTime() - start,
+                                higherTiles[r + c].length());
+                    }
                     i_row.add(bufferedImage);
                 } else if (LOG.isDebugEnabled()) {
                     LOG.debug("Higher resolution tile "
@@ -142,24 +173,358 @@ public final class TileUtils {
                             + " doesn't exist, not using.");
                 }
             }
+            imagesToAdd.add(i_row);
+        }
+
+        final long start = System.nanoTime();
+        final BufferedImage tile = createLowerZoomLevelTile(imagesToAdd,
+                tileWriter.getZoomLevelConfiguration().getScale());
+        if (metrics != null) {
+            metrics.record(ExportMetrics.DOWNSAMPLE, level, System.nanoTime()
+                    - start, 0);
+        }
+        return tile;
+    }
+
+    /**
+     * Creates a new image for a lower zoom level by combining the higher
+     * resolution images that are already in memory, then resizing them
+     * 
+     * @param imagesToAdd
+     *            a List of Lists of the higher resolution images, one list per
+     *            row of the layout
+     * @param scale
+     *            the zoom scale that is being used
+     * @return the image in its proper size and resolution
+     */
+    public static BufferedImage createLowerZoomLevelTile(
+            final List<List<BufferedImage>> imagesToAdd, final double scale) {
+        if (imagesToAdd == null || imagesToAdd.size() == 0) {
+            throw new IllegalArgumentException(
+                    "The images to add are not specified.");
+        }
+        int readWidth = 0;
+        int readHeight = 0;
+        for (final List<BufferedImage> r : imagesToAdd) {
+            int rowWidth = 0;
+            int rowHeight = 0;
+            for (final BufferedImage c : r) {
+                rowWidth += c.getWidth();
+                if (c.getHeight() > rowHeight) {
+                    rowHeight = c.getHeight();
+                }
+            }
             if (rowWidth > readWidth) {
                 readWidth = rowWidth;
             }
-
             readHeight += rowHeight;
-            imagesToAdd.add(i_row);
         }
 
-        final int widthToResize = (int) Math.ceil(readWidth
-                / tileWriter.getZoomLevelConfiguration().getScale());
-        final int heightToResize = (int) Math.ceil(readHeight
-                / tileWriter.getZoomLevelConfiguration().getScale());
+        final int widthToResize = (int) Math.ceil(readWidth / scale);
+        final int heightToResize = (int) Math.ceil(readHeight / scale);
+
+        return BoxDownsampler.downsample(composeImageMatrix(imagesToAdd),
+                widthToResize, heightToResize);
+    }
+
+    /**
+     * Finds the series of an image that each zoom level is built from. A zoom
+     * level is built from the lowest resolution series that is at least as
+     * large as the zoom level, give or take a pixel of rounding, and has the
+     * same aspect ratio as the full resolution image, which excludes label
+     * and overview images.
+     * 
+     * @param source
+     *            the image, set to its full resolution series, which it is
+     *            set back to afterwards
+     * @param levels
+     *            the number of zoom levels
+     * @param scale
+     *            the zoom scale
+     * @return the series number of each zoom level
+     */
+    public static int[] findLevelSeries(final ImageSource source,
+            final int levels, final double scale) {
+        if (source == null) {
+            throw new IllegalArgumentException("Image source cannot be null.");
+        }
+        final int mainSeries = source.getSeriesNumber();
+        final int[] levelSeries = new int[levels];
+        Arrays.fill(levelSeries, mainSeries);
+        if (levels < 2 || source.getImageNumber() != 0) {
+            return levelSeries;
+        }
 
-        return AWTImageTools.scale(glueImageMatrix(imagesToAdd).getImage(),
-                widthToResize, heightToResize, false);
+        final long width = source.getWidth();
+        final long height = source.getHeight();
+        final long[] seriesWidth = new long[source.getSeriesCount()];
+        final long[] seriesHeight = new long[seriesWidth.length];
+        try {
+            for (int s = 0; s < seriesWidth.length; s++) {
+                source.setSeriesNumber(s);
+                seriesWidth[s] = source.getWidth();
+                seriesHeight[s] = source.getHeight();
+            }
+        } finally {
+            source.setSeriesNumber(mainSeries);
+        }
+
+        for (int l = 1; l < levels; l++) {
+            final long levelWidth = (long) Math.ceil(width
+                    / Math.pow(scale, l));
+            final long levelHeight = (long) Math.ceil(height
+                    / Math.pow(scale, l));
+            for (int s = 0; s < seriesWidth.length; s++) {
+                // series dimensions may be rounded down by a pixel, and the
+                // rounding can change the cross products by up to the sum of
+                // the full resolution dimensions
+                if (seriesWidth[s] + 1 >= levelWidth
+                        && seriesHeight[s] + 1 >= levelHeight
+                        && seriesWidth[s] < seriesWidth[levelSeries[l]]
+                        && Math.abs(seriesWidth[s] * height - seriesHeight[s]
+                                * width) <= width + height) {
+                    levelSeries[l] = s;
+                }
+            }
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("Zoom level " + l + " will be built from series "
+                        + levelSeries[l]);
+            }
+        }
+        return levelSeries;
     }
 
     /**
+     * Copies a region of an image into a new image of the same type, so that
+     * the region doesn't keep the rest of the image in memory.
+     * 
+     * @param image
+     *            the image to copy from
+     * @param x
+     *            the x-coordinate of the region
+     * @param y
+     *            the y-coordinate of the region
+     * @param width
+     *            the width of the region
+     * @param height
+     *            the height of the region
+     * @return the copy of the region
+     */
+    public static BufferedImage cropImage(final BufferedImage image,
+            final int x, final int y, final int width, final int height) {
+        if (image == null) {
+            throw new IllegalArgumentException("Image cannot be null.");
+        }
+        if (x < 0 || y < 0 || width < 1 || height < 1
+                || x + width > image.getWidth()
+                || y + height > image.getHeight()) {
+            throw new IllegalArgumentException("Region " + x + "x" + y
+                    + " of dimensions " + width + "x" + height
+                    + " is outside of the image.");
+        }
+        if (x == 0 && y == 0 && width == image.getWidth()
+                && height == image.getHeight()) {
+            return image;
+        }
+        final ColorModel colorModel = image.getColorModel();
+        final WritableRaster raster = image.getRaster()
+                .createCompatibleWritableRaster(width, height);
+        copyRaster(image.getRaster(), x, y, width, height, raster, 0, 0);
+        return new BufferedImage(colorModel, raster,
+                colorModel.isAlphaPremultiplied(), null);
+    }
+
+    /**
+     * Combines a matrix of images together into a single image, laid out the
+     * same way as glueImageMatrix. The combined image is allocated once, with
+     * the type of the first image, and the images are copied into it raster
+     * row by raster row. Images with a different number of bands than the
+     * first image are combined with glueImageMatrix instead.
+     * 
+     * @param imagesToAdd
+     *            a List of Lists of buffered images that represents the grid of
+     *            the layout
+     * @return the combined image
+     */
+    public static BufferedImage composeImageMatrix(
+            final List<List<BufferedImage>> imagesToAdd) {
+        if (imagesToAdd == null || imagesToAdd.size() == 0) {
+            throw new IllegalArgumentException(
+                    "The images to add are not specified.");
+        }
+        BufferedImage first = null;
+        int width = 0;
+        int height = 0;
+        for (final List<BufferedImage> r : imagesToAdd) {
+            int rowWidth = 0;
+            int rowHeight = 0;
+            for (final BufferedImage c : r) {
+                if (first == null) {
+                    first = c;
+                } else if (c.getRaster().getNumBands() != first.getRaster()
+                        .getNumBands()) {
+                    return glueImageMatrix(imagesToAdd).getImage();
+                }
+                rowWidth += c.getWidth();
+                rowHeight = Math.max(rowHeight, c.getHeight());
+            }
+            width = Math.max(width, rowWidth);
+            height += rowHeight;
+        }
+        if (first == null) {
+            throw new IllegalArgumentException(
+                    "The images to add are not specified.");
+        }
+
+        final ColorModel colorModel = first.getColorModel();
+        final WritableRaster raster = first.getRaster()
+                .createCompatibleWritableRaster(width, height);
+        int y = 0;
+        for (final List<BufferedImage> r : imagesToAdd) {
+            int x = 0;
+            int rowHeight = 0;
+            for (final BufferedImage c : r) {
+                copyRaster(c.getRaster(), 0, 0, c.getWidth(), c.getHeight(),
+                        raster, x, y);
+                x += c.getWidth();
+                rowHeight = Math.max(rowHeight, c.getHeight());
+            }
+            y += rowHeight;
+        }
+        return new BufferedImage(colorModel, raster,
+                colorModel.isAlphaPremultiplied(), null);
+    }
+
+    /**
+     * Copies a region of a raster into another raster. Rasters that store
+     * interleaved bytes or packed integers in the same layout are copied with
+     * array copies, one row at a time; other rasters are copied a pixel at a
+     * time.
+     * 
+     * @param source
+     *            the raster to copy from
+     * @param sourceX
+     *            the x-coordinate of the region in the source raster
+     * @param sourceY
+     *            the y-coordinate of the region in the source raster
+     * @param width
+     *            the width of the region
+     * @param height
+     *            the height of the region
+     * @param destination
+     *            the raster to copy to
+     * @param destinationX
+     *            the x-coordinate of the region in the destination raster
+     * @param destinationY
+     *            the y-coordinate of the region in the destination raster
+     */
+    public static void copyRaster(final Raster source, final int sourceX,
+            final int sourceY, final int width, final int height,
+            final WritableRaster destination, final int destinationX,
+            final int destinationY) {
+        final SampleModel sourceModel = source.getSampleModel();
+        final SampleModel destinationModel = destination.getSampleModel();
+        final DataBuffer sourceBuffer = source.getDataBuffer();
+        final DataBuffer destinationBuffer = destination.getDataBuffer();
+
+        int sourceIndex, destinationIndex, sourceStride, destinationStride;
+        int rowLength;
+        Object sourceArray, destinationArray;
+        if (sourceBuffer instanceof DataBufferByte
+                && destinationBuffer instanceof DataBufferByte
+                && isInterleaved(sourceModel, destinationModel)) {
+            final int pixelStride = ((ComponentSampleModel) sourceModel)
+                    .getPixelStride();
+            sourceStride = ((ComponentSampleModel) sourceModel)
+                    .getScanlineStride();
+            destinationStride = ((ComponentSampleModel) destinationModel)
+                    .getScanlineStride();
+            rowLength = width * pixelStride;
+            sourceIndex = sourceBuffer.getOffset()
+                    + (sourceY - source.getSampleModelTranslateY())
+                    * sourceStride
+                    + (sourceX - source.getSampleModelTranslateX())
+                    * pixelStride;
+            destinationIndex = destinationBuffer.getOffset()
+                    + (destinationY - destination.getSampleModelTranslateY())
+                    * destinationStride
+                    + (destinationX - destination.getSampleModelTranslateX())
+                    * pixelStride;
+            sourceArray = ((DataBufferByte) sourceBuffer).getData();
+            destinationArray = ((DataBufferByte) destinationBuffer).getData();
+        } else if (sourceBuffer instanceof DataBufferInt
+                && destinationBuffer instanceof DataBufferInt
+                && isPacked(sourceModel, destinationModel)) {
+            sourceStride = ((SinglePixelPackedSampleModel) sourceModel)
+                    .getScanlineStride();
+            destinationStride = ((SinglePixelPackedSampleModel) destinationModel)
+                    .getScanlineStride();
+            rowLength = width;
+            sourceIndex = sourceBuffer.getOffset()
+                    + (sourceY - source.getSampleModelTranslateY())
+                    * sourceStride
+                    + (sourceX - source.getSampleModelTranslateX());
+            destinationIndex = destinationBuffer.getOffset()
+                    + (destinationY - destination.getSampleModelTranslateY())
+                    * destinationStride
+                    + (destinationX - destination.getSampleModelTranslateX());
+            sourceArray = ((DataBufferInt) sourceBuffer).getData();
+            destinationArray = ((DataBufferInt) destinationBuffer).getData();
+        } else {
+            destination.setRect(destinationX, destinationY, source
+                    .createChild(sourceX, sourceY, width, height, 0, 0, null));
+            return;
+        }
+        for (int row = 0; row < height; row++) {
+            System.arraycopy(sourceArray, sourceIndex, destinationArray,
+                    destinationIndex, rowLength);
+            sourceIndex += sourceStride;
+            destinationIndex += destinationStride;
+        }
+    }
+
+    /**
+     * 
+     * @return true if both sample models store all bands of a pixel next to
+     *         each other, in the same order, in a single bank
+     */
+    private static boolean isInterleaved(final SampleModel a,
+            final SampleModel b) {
+        if (!(a instanceof ComponentSampleModel)
+                || !(b instanceof ComponentSampleModel)) {
+            return false;
+        }
+        final ComponentSampleModel ca = (ComponentSampleModel) a;
+        final ComponentSampleModel cb = (ComponentSampleModel) b;
+        if (ca.getNumBands() != ca.getPixelStride()
+                || cb.getNumBands() != ca.getNumBands()
+                || cb.getPixelStride() != ca.getPixelStride()
+                || !Arrays.equals(ca.getBandOffsets(), cb.getBandOffsets())) {
+            return false;
+        }
+        for (int i = 0; i < ca.getNumBands(); i++) {
+            if (ca.getBankIndices()[i] != 0 || cb.getBankIndices()[i] != 0
+                    || ca.getBandOffsets()[i] >= ca.getPixelStride()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 
+     * @return true if both sample models pack the bands of a pixel into one
+     *         integer the same way
+     */
+    private static boolean isPacked(final SampleModel a, final SampleModel b) {
+        return a instanceof SinglePixelPackedSampleModel
+                && b instanceof SinglePixelPackedSampleModel
+                && Arrays.equals(
+                        ((SinglePixelPackedSampleModel) a).getBitMasks(),
+                        ((SinglePixelPackedSampleModel) b).getBitMasks());
+    }
+
+    /**
      * Combines a matrix of images together into a single image.
      * 
      * @param imagesToAdd
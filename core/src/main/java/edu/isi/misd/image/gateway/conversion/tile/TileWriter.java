@@ -44,6 +44,31 @@ public interface TileWriter {
             throws IOException;
 
     /**
+     * Writes an image that is already encoded in this writer's format to a
+     * tile as is
+     * 
+     * @param data
+     *            the encoded image
+     * @param level
+     *            the current zoom level
+     * @param row
+     *            the current row
+     * @param column
+     *            the current column
+     * @return the name of the tile that was written
+     */
+    public String writeEncoded(byte[] data, int level, long row, long column)
+            throws IOException;
+
+    /**
+     * Finishes writing the tiles, after the last tile has been written.
+     * 
+     * @throws IOException
+     *             if the tiles could not be finished
+     */
+    public void close() throws IOException;
+
+    /**
      * 
      * @return the file extension of the tiles to write
      */
@@ -23,6 +23,7 @@ import java.io.IOException;
 import edu.isi.misd.image.gateway.conversion.ImageSource;
 import edu.isi.misd.image.gateway.conversion.tile.AbstractTileDirectoryExport;
 import edu.isi.misd.image.gateway.conversion.tile.JpegTileWriterImplementation;
+import edu.isi.misd.image.gateway.conversion.tile.TileArchiveWriter;
 import edu.isi.misd.image.gateway.conversion.tile.TileWriter;
 import edu.isi.misd.image.gateway.conversion.tile.ZoomLevelNotFoundException;
 
@@ -34,12 +35,20 @@ import edu.isi.misd.image.gateway.conversion.tile.ZoomLevelNotFoundException;
  */
 public class ZoomifyTileDirectoryExport extends AbstractTileDirectoryExport {
 
-    private static final long DEFAULT_TILE_SIZE = 256;
-    private static final double DEFAULT_ZOOM_SCALE = 2;
+    static final long DEFAULT_TILE_SIZE = 256;
+    static final double DEFAULT_ZOOM_SCALE = 2;
 
-    private static final String TILE_METADATA_FILENAME = "ImageProperties.xml";
+    static final String TILE_METADATA_FILENAME = "ImageProperties.xml";
     private static final String VERSION = "1.8";
 
+    /**
+     * The name of the tile archive written to the destination directory
+     * instead of the tile group directories
+     */
+    public static final String TILE_ARCHIVE_FILENAME = "TileArchive.pack";
+
+    private boolean tileArchive = false;
+
     /**
      * Default constructor.
      * 
@@ -61,12 +70,24 @@ public class ZoomifyTileDirectoryExport extends AbstractTileDirectoryExport {
     }
 
     @Override
-    protected TileWriter getTileWriter(final String destination) {
+    protected TileWriter getTileWriter(final String destination)
+            throws IOException {
         if (destination == null || destination.length() == 0) {
             throw new IllegalArgumentException("Destination must be specified.");
         }
+        if (tileArchive) {
+            if (!isInMemoryPyramid()) {
+                throw new IllegalStateException(
+                        "A tile archive requires the zoom levels to be built in memory.");
+            }
+            return new TileArchiveWriter(new StringBuffer(destination)
+                    .append(File.separator).append(TILE_ARCHIVE_FILENAME)
+                    .toString(), sourceImage.getWidth(),
+                    sourceImage.getHeight(), (int) getTileSize(),
+                    zoomLevelConfiguration, getTileEncoder());
+        }
         return new JpegTileWriterImplementation(destination, namingConvention,
-                zoomLevelConfiguration);
+                zoomLevelConfiguration, getTileEncoder());
     }
 
     @Override
@@ -77,33 +98,80 @@ public class ZoomifyTileDirectoryExport extends AbstractTileDirectoryExport {
         createTileMetaFile(destination);
     }
 
+    @Override
+    protected File getTileMetadataFile(final String destination) {
+        return new File(new StringBuffer(destination).append(
+                File.separator + TILE_METADATA_FILENAME).toString());
+    }
+
     private void createTileMetaFile(final String destination)
             throws IOException {
-        final File metafile = new File(new StringBuffer(destination).append(
-                File.separator + TILE_METADATA_FILENAME).toString());
+        final File metafile = getTileMetadataFile(destination);
         if (LOG.isInfoEnabled()) {
             LOG.info("Writing tile metafile " + metafile.getAbsolutePath());
         }
-        final String contents = new StringBuffer("<IMAGE_PROPERTIES WIDTH=\"")
-        .append(sourceImage.getWidth())
-        .append("\" HEIGHT=\"")
-        .append(sourceImage.getHeight())
-        .append("\" NUMTILES=\"")
-        .append(zoomLevelConfiguration.getTotalNumberOfTiles())
-        .append("\" NUMIMAGES=\"1\" VERSION=\"" + VERSION
-                + "\" TILESIZE=\"").append(getTileSize())
-                .append("\" />").toString();
+        final String contents = getImageProperties(sourceImage.getWidth(),
+                sourceImage.getHeight(),
+                zoomLevelConfiguration.getTotalNumberOfTiles(), getTileSize());
         if (LOG.isDebugEnabled()) {
             LOG.debug("Contents: " + contents);
         }
-        final FileWriter writer = new FileWriter(metafile);
-        writer.write(contents);
-        writer.close();
+        // written under another name and renamed, so that the metafile is
+        // never seen part written
+        final File partFile = new File(metafile.getPath() + ".tmp");
+        final FileWriter writer = new FileWriter(partFile);
+        try {
+            writer.write(contents);
+        } finally {
+            writer.close();
+        }
+        if (!partFile.renameTo(metafile)
+                && !(metafile.delete() && partFile.renameTo(metafile))) {
+            throw new IOException("Could not save tile metafile "
+                    + metafile.getAbsolutePath());
+        }
         if (LOG.isInfoEnabled()) {
             LOG.info("Metafile saved successfully.");
         }
     }
 
+    /**
+     * 
+     * @return the contents of the ImageProperties.xml file that Zoomify
+     *         viewers read the size of an image from
+     */
+    static String getImageProperties(final long width, final long height,
+            final long numberOfTiles, final long tileSize) {
+        return new StringBuffer("<IMAGE_PROPERTIES WIDTH=\"").append(width)
+                .append("\" HEIGHT=\"").append(height)
+                .append("\" NUMTILES=\"").append(numberOfTiles)
+                .append("\" NUMIMAGES=\"1\" VERSION=\"" + VERSION
+                        + "\" TILESIZE=\"").append(tileSize)
+                .append("\" />").toString();
+    }
+
+    /**
+     * Sets whether the tiles are appended to a single indexed archive file,
+     * {@link #TILE_ARCHIVE_FILENAME} in the destination directory, instead of
+     * being written to a file each. The archive is read with
+     * TileArchiveReader. It can only be written when the zoom levels are built
+     * in memory.
+     * 
+     * @param archive
+     *            true to write a tile archive
+     */
+    public void setTileArchive(final boolean archive) {
+        tileArchive = archive;
+    }
+
+    /**
+     * 
+     * @return true if the tiles are written to a single archive file
+     */
+    public boolean isTileArchive() {
+        return tileArchive;
+    }
+
     @Override
     public String getThumbnailFilename(final String destination) {
         if (destination == null || destination.length() == 0) {
@@ -117,8 +185,10 @@ public class ZoomifyTileDirectoryExport extends AbstractTileDirectoryExport {
         }
         String thumbFilename = null;
         try {
-            thumbFilename = namingConvention.getTileFileName(0, 0, 0,
-                    getTileWriter(destination).getExtension(),
+            // the smallest zoom level is a single tile of the whole image
+            thumbFilename = namingConvention.getTileFileName(
+                    zoomLevelConfiguration.getNumberOfZoomLevels() - 1, 0, 0,
+                    JpegTileWriterImplementation.JPG,
                     zoomLevelConfiguration);
         } catch (ZoomLevelNotFoundException e) {
             LOG.error("Error retrieving the thumb filename.", e);
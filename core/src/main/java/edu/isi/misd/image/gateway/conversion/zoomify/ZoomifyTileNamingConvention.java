@@ -22,11 +22,23 @@ import edu.isi.misd.image.gateway.conversion.tile.TileNamingConvention;
 import edu.isi.misd.image.gateway.conversion.tile.ZoomLevelConfiguration;
 import edu.isi.misd.image.gateway.conversion.tile.ZoomLevelNotFoundException;
 
+/**
+ * Names tiles the way Zoomify expects them: tiles are numbered from the
+ * coarsest zoom level to the full resolution level in row-major order, and
+ * every 256 tiles go in a new TileGroup directory. The tile numbers and
+ * directory names are worked out once for each zoom level configuration.
+ * 
+ * @author David Smith
+ * 
+ */
 public class ZoomifyTileNamingConvention implements TileNamingConvention {
 
     private final Logger LOG = Logger
             .getLogger(ZoomifyTileNamingConvention.class);
     private static final String TILE_GROUP_DIR = "TileGroup";
+    private static final int TILES_PER_GROUP = 256;
+
+    private volatile TileIndex tileIndex;
 
     @Override
     public String getTileFileName(final int level, final long row,
@@ -37,24 +49,106 @@ public class ZoomifyTileNamingConvention implements TileNamingConvention {
             throw new IllegalArgumentException(
                     "File extension must be specified.");
         }
+        final TileIndex index = getTileIndex(zoomLevelConfig);
+        final int tileGroupNumber = getTileGroupNumber(index, level, row,
+                column);
+        final StringBuffer filename;
+        if (tileGroupNumber >= 0 && tileGroupNumber < index.tileGroups.length) {
+            filename = new StringBuffer(index.tileGroups[tileGroupNumber]);
+        } else {
+            // the tile is outside the image
+            filename = new StringBuffer(TILE_GROUP_DIR)
+                    .append(tileGroupNumber).append("/");
+        }
+        return filename.append(index.levelNames[level]).append(column).append("-")
+                .append(row).append(".").append(fileExtension).toString();
+    }
+
+    /**
+     * 
+     * @param level
+     *            the zoom level of the tile
+     * @param row
+     *            the row of the tile
+     * @param column
+     *            the column of the tile
+     * @param zoomLevelConfig
+     *            the zoom level configuration
+     * @return the number of the TileGroup directory the tile is in
+     * @throws ZoomLevelNotFoundException
+     *             if the zoom level doesn't exist
+     */
+    public int getTileGroupNumber(final int level, final long row,
+            final long column, final ZoomLevelConfiguration zoomLevelConfig)
+            throws ZoomLevelNotFoundException {
+        return getTileGroupNumber(getTileIndex(zoomLevelConfig), level, row,
+                column);
+    }
+
+    private static int getTileGroupNumber(final TileIndex index,
+            final int level, final long row, final long column)
+            throws ZoomLevelNotFoundException {
+        if (level < 0 || level >= index.previousTiles.length) {
+            throw new ZoomLevelNotFoundException("Zoom level " + level
+                    + " doesn't exist.");
+        }
+        // the tiles in the coarser levels come before this tile
+        return (int) ((index.previousTiles[level] + row
+                * index.columns[level] + column) / TILES_PER_GROUP);
+    }
+
+    /**
+     * 
+     * @return the tile numbering of the configuration, worked out if the
+     *         configuration is not the one used last
+     */
+    private TileIndex getTileIndex(final ZoomLevelConfiguration zoomLevelConfig)
+            throws ZoomLevelNotFoundException {
         if (zoomLevelConfig == null) {
             throw new IllegalArgumentException(
                     "Zoom Level Configuration must be specified.");
         }
-        // find out how many tiles are behind this tile
-        long previousTiles = 0;
-        for (int i = level + 1; i < zoomLevelConfig.getNumberOfZoomLevels(); i++) {
-            previousTiles += zoomLevelConfig.getNumberOfTiles(i);
+        TileIndex index = tileIndex;
+        if (index == null || index.zoomLevelConfig != zoomLevelConfig) {
+            index = new TileIndex(zoomLevelConfig);
+            tileIndex = index;
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("Indexed " + index.tileGroups.length
+                        + " tile groups.");
+            }
         }
-        previousTiles += row * zoomLevelConfig.getNumberOfColumns(level)
-                + column;
-        long tileGroupNumber = previousTiles / 256;
-        return new StringBuffer(TILE_GROUP_DIR).append(tileGroupNumber)
-                .append("/")
-                .append(zoomLevelConfig.getNumberOfZoomLevels() - level - 1)
-                .append("-").append(column)
-                .append("-").append(row).append(".").append(fileExtension)
-                .toString();
+        return index;
     }
 
+    /**
+     * The number of tiles before each zoom level, and the directory and level
+     * names used in tile filenames.
+     */
+    private static final class TileIndex {
+        private final ZoomLevelConfiguration zoomLevelConfig;
+        private final long[] previousTiles;
+        private final long[] columns;
+        private final String[] levelNames;
+        private final String[] tileGroups;
+
+        private TileIndex(final ZoomLevelConfiguration config)
+                throws ZoomLevelNotFoundException {
+            zoomLevelConfig = config;
+            final int levels = config.getNumberOfZoomLevels();
+            previousTiles = new long[levels];
+            columns = new long[levels];
+            levelNames = new String[levels];
+            long tiles = 0;
+            for (int i = levels - 1; i >= 0; i--) {
+                previousTiles[i] = tiles;
+                columns[i] = config.getNumberOfColumns(i);
+                levelNames[i] = (levels - i - 1) + "-";
+                tiles += config.getNumberOfTiles(i);
+            }
+            tileGroups = new String[(int) ((tiles + TILES_PER_GROUP - 1) / TILES_PER_GROUP)];
+            for (int i = 0; i < tileGroups.length; i++) {
+                tileGroups[i] = TILE_GROUP_DIR + i + "/";
+            }
+        }
+    }
 }
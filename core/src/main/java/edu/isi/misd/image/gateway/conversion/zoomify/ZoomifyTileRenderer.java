@@ -0,0 +1,461 @@
+/*
+ * Copyright 2011 University of Southern California
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.isi.misd.image.gateway.conversion.zoomify;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.imageio.ImageIO;
+
+import org.apache.log4j.Logger;
+
+import edu.isi.misd.image.gateway.conversion.ConcurrentImageSource;
+import edu.isi.misd.image.gateway.conversion.ImageSource;
+import edu.isi.misd.image.gateway.conversion.tile.BoxDownsampler;
+import edu.isi.misd.image.gateway.conversion.tile.JpegTileEncoder;
+import edu.isi.misd.image.gateway.conversion.tile.JpegTileWriterImplementation;
+import edu.isi.misd.image.gateway.conversion.tile.TileCache;
+import edu.isi.misd.image.gateway.conversion.tile.TileUtils;
+import edu.isi.misd.image.gateway.conversion.tile.ZoomLevelConfiguration;
+import edu.isi.misd.image.gateway.conversion.tile.ZoomLevelConfigurationImplementation;
+import edu.isi.misd.image.gateway.conversion.tile.ZoomLevelNotFoundException;
+
+/**
+ * Creates the Zoomify tiles of an image when they are first asked for,
+ * instead of exporting every tile up front, and keeps them in a tile cache.
+ * The tiles have the same names and geometry as the ones a
+ * ZoomifyTileDirectoryExport writes.
+ * 
+ * Each zoom level is read from the lowest resolution series of the image that
+ * is at least as large as it, so the reduced resolution series embedded in
+ * whole slide images serve the lower zoom levels with a read of about one
+ * tile. A tile is read and downsampled from its series when the series is at
+ * most four times as large as the zoom level; otherwise it is made from the
+ * four tiles of the next higher zoom level. Those are created in turn if they
+ * aren't cached and are used as they were created, without decoding them
+ * again. For an image without reduced resolution series, the first request
+ * for a tile of a low zoom level therefore creates every tile it covers.
+ * 
+ * A tile that several threads ask for at once is only created once.
+ * 
+ * @author David Smith
+ * 
+ */
+public class ZoomifyTileRenderer {
+
+    private static final Logger LOG = Logger
+            .getLogger(ZoomifyTileRenderer.class);
+
+    /**
+     * Tiles are read from a series up to 2 to the power of this times as
+     * large as their zoom level
+     */
+    private static final int MAX_SOURCE_LEVEL = 2;
+
+    private static final Pattern TILE_PATTERN = Pattern
+            .compile("TileGroup(\\d+)/(\\d+)-(\\d+)-(\\d+)\\."
+                    + JpegTileWriterImplementation.JPG);
+
+    private final ImageSource source;
+    private final TileCache cache;
+    private final JpegTileEncoder encoder;
+    private final ZoomifyTileNamingConvention namingConvention = new ZoomifyTileNamingConvention();
+    private final ZoomLevelConfiguration zoomLevelConfiguration;
+    private final int tileSize = (int) ZoomifyTileDirectoryExport.DEFAULT_TILE_SIZE;
+    private final long width;
+    private final long height;
+    private final int mainSeries;
+    private final int[] levelSeries;
+    private final long[] levelSeriesWidth;
+    private final long[] levelSeriesHeight;
+    private final ReadWriteLock seriesLock = new ReentrantReadWriteLock();
+    private final ConcurrentMap<String, FutureTask<RenderedTile>> pendingTiles = new ConcurrentHashMap<String, FutureTask<RenderedTile>>();
+
+    /**
+     * Constructor.
+     * 
+     * @param imageSource
+     *            the image to create the tiles of. Reads from it are
+     *            serialized unless it is a ConcurrentImageSource, in which
+     *            case only the reads of reduced resolution series are.
+     * @param tileCache
+     *            the cache to keep the tiles in
+     * @param tileEncoder
+     *            the encoder used for the tiles
+     */
+    public ZoomifyTileRenderer(final ImageSource imageSource,
+            final TileCache tileCache, final JpegTileEncoder tileEncoder) {
+        if (imageSource == null) {
+            throw new IllegalArgumentException("ImageSource must be specified.");
+        }
+        if (tileCache == null) {
+            throw new IllegalArgumentException("Tile cache must be specified.");
+        }
+        if (tileEncoder == null) {
+            throw new IllegalArgumentException(
+                    "JPEG encoder must be specified.");
+        }
+        source = imageSource;
+        cache = tileCache;
+        encoder = tileEncoder;
+        width = source.getWidth();
+        height = source.getHeight();
+        mainSeries = source.getSeriesNumber();
+        zoomLevelConfiguration = new ZoomLevelConfigurationImplementation(
+                width, height, tileSize,
+                ZoomifyTileDirectoryExport.DEFAULT_ZOOM_SCALE);
+
+        final int levels = zoomLevelConfiguration.getNumberOfZoomLevels();
+        levelSeriesWidth = new long[levels];
+        levelSeriesHeight = new long[levels];
+        synchronized (source) {
+            levelSeries = TileUtils.findLevelSeries(source, levels,
+                    ZoomifyTileDirectoryExport.DEFAULT_ZOOM_SCALE);
+            try {
+                for (int l = 0; l < levels; l++) {
+                    source.setSeriesNumber(levelSeries[l]);
+                    levelSeriesWidth[l] = source.getWidth();
+                    levelSeriesHeight[l] = source.getHeight();
+                }
+            } finally {
+                source.setSeriesNumber(mainSeries);
+            }
+        }
+    }
+
+    /**
+     * 
+     * @return the contents of the image's ImageProperties.xml file
+     */
+    public String getImageProperties() {
+        return ZoomifyTileDirectoryExport.getImageProperties(width, height,
+                zoomLevelConfiguration.getTotalNumberOfTiles(), tileSize);
+    }
+
+    /**
+     * Returns a tile by its Zoomify filename, such as TileGroup0/0-0-0.jpg,
+     * creating it if it isn't cached.
+     * 
+     * @param filename
+     *            the tile filename
+     * @return the encoded tile, or null if the image has no tile of that name
+     * @throws IOException
+     *             if the tile could not be created
+     */
+    public byte[] getTile(final String filename) throws IOException {
+        final Matcher matcher = TILE_PATTERN.matcher(filename);
+        if (!matcher.matches()) {
+            return null;
+        }
+        try {
+            final int levels = zoomLevelConfiguration.getNumberOfZoomLevels();
+            final long zoomifyLevel = Long.parseLong(matcher.group(2));
+            if (zoomifyLevel >= levels) {
+                return null;
+            }
+            // Zoomify numbers the zoom levels from the smallest
+            final int level = levels - 1 - (int) zoomifyLevel;
+            final long column = Long.parseLong(matcher.group(3));
+            final long row = Long.parseLong(matcher.group(4));
+            if (row >= zoomLevelConfiguration.getNumberOfRows(level)
+                    || column >= zoomLevelConfiguration
+                            .getNumberOfColumns(level)
+                    || Long.parseLong(matcher.group(1)) != namingConvention
+                            .getTileGroupNumber(level, row, column,
+                                    zoomLevelConfiguration)) {
+                return null;
+            }
+            return getTile(level, row, column);
+        } catch (final NumberFormatException e) {
+            return null;
+        } catch (final ZoomLevelNotFoundException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns a tile, creating it if it isn't cached.
+     * 
+     * @param level
+     *            the zoom level of the tile, where 0 is full resolution
+     * @param row
+     *            the row of the tile
+     * @param column
+     *            the column of the tile
+     * @return the encoded tile
+     * @throws IOException
+     *             if the tile could not be created
+     * @throws ZoomLevelNotFoundException
+     *             if the zoom level doesn't exist
+     */
+    public byte[] getTile(final int level, final long row, final long column)
+            throws IOException, ZoomLevelNotFoundException {
+        final String filename = getTileFileName(level, row, column);
+        final byte[] cached = cache.get(filename);
+        if (cached != null) {
+            return cached;
+        }
+        return renderTile(filename, level, row, column).data;
+    }
+
+    /**
+     * 
+     * @return the zoom levels of the image's tiles
+     */
+    public ZoomLevelConfiguration getZoomLevelConfiguration() {
+        return zoomLevelConfiguration;
+    }
+
+    private String getTileFileName(final int level, final long row,
+            final long column) throws ZoomLevelNotFoundException {
+        return namingConvention.getTileFileName(level, row, column,
+                JpegTileWriterImplementation.JPG, zoomLevelConfiguration);
+    }
+
+    /**
+     * Returns the image of a tile that a tile of the next lower zoom level is
+     * made from, decoding it only if it was already cached.
+     */
+    private BufferedImage getTileImage(final int level, final long row,
+            final long column) throws IOException, ZoomLevelNotFoundException {
+        final String filename = getTileFileName(level, row, column);
+        final byte[] cached = cache.get(filename);
+        if (cached == null) {
+            return renderTile(filename, level, row, column).image;
+        }
+        final BufferedImage image = ImageIO.read(new ByteArrayInputStream(
+                cached));
+        if (image == null) {
+            throw new IOException("Could not decode tile " + filename);
+        }
+        return image;
+    }
+
+    /**
+     * Creates, encodes and caches a tile, or waits for the thread that is
+     * already doing so.
+     */
+    private RenderedTile renderTile(final String filename, final int level,
+            final long row, final long column) throws IOException {
+        final FutureTask<RenderedTile> task = new FutureTask<RenderedTile>(
+                new Callable<RenderedTile>() {
+                    @Override
+                    public RenderedTile call() throws Exception {
+                        final BufferedImage image = createTile(level, row,
+                                column);
+                        final byte[] data = encoder.encode(image);
+                        cache.put(filename, data);
+                        return new RenderedTile(image, data);
+                    }
+                });
+        FutureTask<RenderedTile> pending = pendingTiles.putIfAbsent(filename,
+                task);
+        if (pending == null) {
+            pending = task;
+            try {
+                task.run();
+            } finally {
+                pendingTiles.remove(filename);
+            }
+        }
+        try {
+            return pending.get();
+        } catch (final InterruptedException e) {
+            throw new IOException("Interrupted while creating tile "
+                    + filename);
+        } catch (final ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            final IOException thrown = new IOException("Could not create tile "
+                    + filename);
+            thrown.initCause(e.getCause());
+            throw thrown;
+        }
+    }
+
+    private BufferedImage createTile(final int level, final long row,
+            final long column) throws IOException,
+            ZoomLevelNotFoundException {
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Creating tile " + level + "-" + row + "-" + column);
+        }
+        if (levelSeries[level] != mainSeries
+                && levelSeriesWidth[level] <= (getLevelWidth(level) + 1)
+                        << MAX_SOURCE_LEVEL) {
+            return readSeriesTile(level, row, column);
+        }
+        if (levelSeries[level] == mainSeries && level <= MAX_SOURCE_LEVEL) {
+            return readTile(level, row, column);
+        }
+        final List<List<BufferedImage>> children = new LinkedList<List<BufferedImage>>();
+        for (long r = row * 2; r <= row * 2 + 1; r++) {
+            if (r >= zoomLevelConfiguration.getNumberOfRows(level - 1)) {
+                break;
+            }
+            final List<BufferedImage> childRow = new LinkedList<BufferedImage>();
+            for (long c = column * 2; c <= column * 2 + 1; c++) {
+                if (c >= zoomLevelConfiguration.getNumberOfColumns(level - 1)) {
+                    break;
+                }
+                childRow.add(getTileImage(level - 1, r, c));
+            }
+            children.add(childRow);
+        }
+        return TileUtils.createLowerZoomLevelTile(children,
+                zoomLevelConfiguration.getScale());
+    }
+
+    /**
+     * Reads the region of a tile from the full resolution series, downsampling
+     * it to the tile's size. The tile is the size it would have if it were
+     * made from the tiles of the higher zoom levels.
+     */
+    private BufferedImage readTile(final int level, final long row,
+            final long column) throws IOException {
+        final long scale = 1L << level;
+        final long x = column * tileSize * scale;
+        final long y = row * tileSize * scale;
+        final long readWidth = Math.min(tileSize * scale, width - x);
+        final long readHeight = Math.min(tileSize * scale, height - y);
+        BufferedImage image = read(mainSeries, x, y, readWidth, readHeight);
+        if (scale > 1) {
+            image = BoxDownsampler.downsample(image,
+                    (int) ((readWidth + scale - 1) / scale),
+                    (int) ((readHeight + scale - 1) / scale));
+        }
+        return image;
+    }
+
+    /**
+     * Reads the region of a tile from the reduced resolution series of its
+     * zoom level, resampling it to the tile's size the same way an export
+     * from the embedded pyramid does.
+     */
+    private BufferedImage readSeriesTile(final int level, final long row,
+            final long column) throws IOException {
+        final long levelWidth = getLevelWidth(level);
+        final long levelHeight = getLevelHeight(level);
+        final long seriesWidth = levelSeriesWidth[level];
+        final long seriesHeight = levelSeriesHeight[level];
+        final double xScale = (double) seriesWidth / levelWidth;
+        final double yScale = (double) seriesHeight / levelHeight;
+
+        final long x = column * tileSize;
+        final long y = row * tileSize;
+        final long tileWidth = Math.min(tileSize, levelWidth - x);
+        final long tileHeight = Math.min(tileSize, levelHeight - y);
+        final long readX = (long) Math.floor(x * xScale);
+        final long readY = (long) Math.floor(y * yScale);
+        final long readWidth = Math.min(seriesWidth,
+                (long) Math.ceil((x + tileWidth) * xScale))
+                - readX;
+        final long readHeight = Math.min(seriesHeight,
+                (long) Math.ceil((y + tileHeight) * yScale))
+                - readY;
+        BufferedImage image = read(levelSeries[level], readX, readY,
+                readWidth, readHeight);
+        if (readWidth != tileWidth || readHeight != tileHeight) {
+            image = BoxDownsampler.downsample(image, (int) tileWidth,
+                    (int) tileHeight);
+        }
+        return image;
+    }
+
+    /**
+     * Reads a region of a series. Reads of the full resolution series of a
+     * ConcurrentImageSource run at once; the source is only switched to
+     * another series while no other read is running.
+     */
+    private BufferedImage read(final int series, final long x, final long y,
+            final long readWidth, final long readHeight) throws IOException {
+        if (!(source instanceof ConcurrentImageSource)) {
+            synchronized (source) {
+                return readSeries(series, x, y, readWidth, readHeight);
+            }
+        }
+        final Lock lock = series == mainSeries ? seriesLock.readLock()
+                : seriesLock.writeLock();
+        lock.lock();
+        try {
+            return readSeries(series, x, y, readWidth, readHeight);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private BufferedImage readSeries(final int series, final long x,
+            final long y, final long readWidth, final long readHeight)
+            throws IOException {
+        if (series == mainSeries) {
+            return source.readImage(x, y, readWidth, readHeight);
+        }
+        source.setSeriesNumber(series);
+        try {
+            return source.readImage(x, y, readWidth, readHeight);
+        } finally {
+            source.setSeriesNumber(mainSeries);
+        }
+    }
+
+    /**
+     * 
+     * @return the width of the image at a zoom level
+     */
+    private long getLevelWidth(final int level) {
+        return (long) Math.ceil(width
+                / Math.pow(ZoomifyTileDirectoryExport.DEFAULT_ZOOM_SCALE,
+                        level));
+    }
+
+    /**
+     * 
+     * @return the height of the image at a zoom level
+     */
+    private long getLevelHeight(final int level) {
+        return (long) Math.ceil(height
+                / Math.pow(ZoomifyTileDirectoryExport.DEFAULT_ZOOM_SCALE,
+                        level));
+    }
+
+    /**
+     * A created tile, with the image it was encoded from.
+     */
+    private static final class RenderedTile {
+        private final BufferedImage image;
+        private final byte[] data;
+
+        private RenderedTile(final BufferedImage tileImage,
+                final byte[] encoded) {
+            image = tileImage;
+            data = encoded;
+        }
+    }
+}
@@ -0,0 +1,437 @@
+/*
+ * Copyright 2011 University of Southern California
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.isi.misd.image.gateway.conversion.zoomify;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.log4j.Logger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import edu.isi.misd.image.gateway.conversion.ImageSource;
+import edu.isi.misd.image.gateway.conversion.ImageSourceFactory;
+import edu.isi.misd.image.gateway.conversion.tile.JpegTileEncoder;
+import edu.isi.misd.image.gateway.conversion.tile.TileCache;
+
+/**
+ * HTTP server that serves the Zoomify tiles of an image as a viewer asks for
+ * them, creating each tile from the image source the first time, instead of
+ * exporting them all up front. It answers requests for ImageProperties.xml
+ * and TileGroupN/z-x-y.jpg under the root of the server, the same files a
+ * ZoomifyTileDirectoryExport writes, so a Zoomify viewer can be pointed at it
+ * as if it were an export. Created tiles are kept in a cache in memory and,
+ * if a cache directory is set, on disk.
+ * 
+ * @author David Smith
+ * 
+ */
+public class ZoomifyTileServer {
+
+    private static final Logger LOG = Logger.getLogger(ZoomifyTileServer.class);
+
+    private static final String USAGE = "Usage: "
+            + ZoomifyTileServer.class.getName()
+            + " <source file> [--port=<n>] [--bind=<address>] [--threads=<n>]"
+            + " [--cache-memory-mb=<n>] [--cache-dir=<directory>]"
+            + " [--cache-disk-mb=<n>]";
+
+    private static final String PORT_OPTION = "--port=";
+    private static final String BIND_OPTION = "--bind=";
+    private static final String THREADS_OPTION = "--threads=";
+    private static final String CACHE_MEMORY_OPTION = "--cache-memory-mb=";
+    private static final String CACHE_DIRECTORY_OPTION = "--cache-dir=";
+    private static final String CACHE_DISK_OPTION = "--cache-disk-mb=";
+
+    /**
+     * The default port the server listens on
+     */
+    public static final int DEFAULT_PORT = 8080;
+
+    /**
+     * The default address the server listens on, the loopback interface
+     */
+    public static final String DEFAULT_BIND_ADDRESS = "127.0.0.1";
+
+    private static final long MEGABYTE = 1024 * 1024;
+    private static final long DEFAULT_MAX_MEMORY_BYTES = 64 * MEGABYTE;
+    private static final long DEFAULT_MAX_DISK_BYTES = 1024 * MEGABYTE;
+    private static final int DEFAULT_THREADS = 4;
+
+    private static final String CACHE_CONTROL = "public, max-age=86400";
+
+    private final ImageSource source;
+    private int port = DEFAULT_PORT;
+    private String bindAddress = DEFAULT_BIND_ADDRESS;
+    private int numberOfThreads = DEFAULT_THREADS;
+    private long maxMemoryBytes = DEFAULT_MAX_MEMORY_BYTES;
+    private File cacheDirectory = null;
+    private long maxDiskBytes = DEFAULT_MAX_DISK_BYTES;
+    private JpegTileEncoder tileEncoder = new JpegTileEncoder();
+
+    private HttpServer server = null;
+    private ExecutorService executor = null;
+    private TileCache cache = null;
+
+    /**
+     * Serves the tiles of an image until the process is stopped.
+     * 
+     * @param args
+     *            the source image followed by the options
+     */
+    public static void main(final String[] args) {
+        if (args.length < 1) {
+            System.err.println(USAGE);
+            System.exit(1);
+        }
+        try {
+            final ImageSource source = ImageSourceFactory
+                    .getImageSource(args[0]);
+            if (source == null) {
+                throw new IOException("Could not open " + args[0]);
+            }
+            final ZoomifyTileServer tileServer = new ZoomifyTileServer(source);
+            for (int i = 1; i < args.length; i++) {
+                if (args[i].startsWith(PORT_OPTION)) {
+                    tileServer.setPort(Integer.parseInt(args[i]
+                            .substring(PORT_OPTION.length())));
+                } else if (args[i].startsWith(BIND_OPTION)) {
+                    tileServer.setBindAddress(args[i].substring(BIND_OPTION
+                            .length()));
+                } else if (args[i].startsWith(THREADS_OPTION)) {
+                    tileServer.setNumberOfThreads(Integer.parseInt(args[i]
+                            .substring(THREADS_OPTION.length())));
+                } else if (args[i].startsWith(CACHE_MEMORY_OPTION)) {
+                    tileServer.setMaxMemoryBytes(Long.parseLong(args[i]
+                            .substring(CACHE_MEMORY_OPTION.length()))
+                            * MEGABYTE);
+                } else if (args[i].startsWith(CACHE_DIRECTORY_OPTION)) {
+                    tileServer.setCacheDirectory(new File(args[i]
+                            .substring(CACHE_DIRECTORY_OPTION.length())));
+                } else if (args[i].startsWith(CACHE_DISK_OPTION)) {
+                    tileServer.setMaxDiskBytes(Long.parseLong(args[i]
+                            .substring(CACHE_DISK_OPTION.length()))
+                            * MEGABYTE);
+                } else {
+                    System.err.println(USAGE);
+                    System.exit(1);
+                }
+            }
+            Runtime.getRuntime().addShutdownHook(new Thread() {
+                @Override
+                public void run() {
+                    tileServer.stop();
+                    try {
+                        source.close();
+                    } catch (final IOException e) {
+                        LOG.warn("Could not close " + args[0], e);
+                    }
+                }
+            });
+            tileServer.start();
+        } catch (final Exception e) {
+            LOG.error("Error serving the tiles of the image.", e);
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Constructor.
+     * 
+     * @param imageSource
+     *            the image to serve the tiles of, which is left open when the
+     *            server stops
+     */
+    public ZoomifyTileServer(final ImageSource imageSource) {
+        if (imageSource == null) {
+            throw new IllegalArgumentException("ImageSource must be specified.");
+        }
+        source = imageSource;
+    }
+
+    /**
+     * Starts listening for requests.
+     * 
+     * @throws IOException
+     *             if the server could not listen on its address and port
+     */
+    public synchronized void start() throws IOException {
+        if (server != null) {
+            throw new IllegalStateException("The server is already started.");
+        }
+        cache = new TileCache(maxMemoryBytes, cacheDirectory, maxDiskBytes);
+        final ZoomifyTileRenderer renderer = new ZoomifyTileRenderer(source,
+                cache, tileEncoder);
+        final InetSocketAddress address = new InetSocketAddress(bindAddress,
+                port);
+        if (address.isUnresolved()) {
+            throw new IOException("Could not resolve bind address "
+                    + bindAddress);
+        }
+        final HttpServer newServer = HttpServer.create(address, 0);
+        newServer.createContext("/", new TileHandler(renderer));
+        executor = Executors.newFixedThreadPool(numberOfThreads);
+        newServer.setExecutor(executor);
+        newServer.start();
+        server = newServer;
+        if (LOG.isInfoEnabled()) {
+            LOG.info("Serving the tiles of " + source.getFilename()
+                    + " on " + bindAddress + ":" + getPort());
+        }
+    }
+
+    /**
+     * Stops the server, waiting for the requests being answered to finish.
+     */
+    public synchronized void stop() {
+        if (server == null) {
+            return;
+        }
+        server.stop(1);
+        executor.shutdown();
+        server = null;
+        executor = null;
+        if (LOG.isInfoEnabled()) {
+            LOG.info("Stopped serving the tiles of " + source.getFilename()
+                    + ", " + cache.getHits() + " cache hits and "
+                    + cache.getMisses() + " misses");
+        }
+    }
+
+    /**
+     * 
+     * @return the port the server listens on, which is the one it was
+     *         given if it was started on port 0
+     */
+    public synchronized int getPort() {
+        return server != null ? server.getAddress().getPort() : port;
+    }
+
+    /**
+     * Sets the port to listen on, or 0 for any free port. The default is
+     * {@link #DEFAULT_PORT}.
+     * 
+     * @param serverPort
+     *            the port
+     */
+    public void setPort(final int serverPort) {
+        if (serverPort < 0 || serverPort > 65535) {
+            throw new IllegalArgumentException("Invalid port " + serverPort);
+        }
+        port = serverPort;
+    }
+
+    /**
+     * Sets the address of the interface to listen on. The default is
+     * {@link #DEFAULT_BIND_ADDRESS}, so only this host can connect; 0.0.0.0
+     * listens on every interface.
+     * 
+     * @param address
+     *            the host name or IP address
+     */
+    public void setBindAddress(final String address) {
+        if (address == null || address.length() == 0) {
+            throw new IllegalArgumentException(
+                    "Bind address must be specified.");
+        }
+        bindAddress = address;
+    }
+
+    /**
+     * 
+     * @return the address of the interface the server listens on
+     */
+    public String getBindAddress() {
+        return bindAddress;
+    }
+
+    /**
+     * Sets the number of threads that answer requests, and so the most tiles
+     * that are created at once.
+     * 
+     * @param threads
+     *            the number of threads, at least 1
+     */
+    public void setNumberOfThreads(final int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException(
+                    "Number of threads must be at least 1.");
+        }
+        numberOfThreads = threads;
+    }
+
+    /**
+     * 
+     * @return the number of threads that answer requests
+     */
+    public int getNumberOfThreads() {
+        return numberOfThreads;
+    }
+
+    /**
+     * Sets the most bytes of tiles that are kept in memory.
+     * 
+     * @param bytes
+     *            the bound
+     */
+    public void setMaxMemoryBytes(final long bytes) {
+        if (bytes < 0) {
+            throw new IllegalArgumentException(
+                    "Memory cache size must be at least 0.");
+        }
+        maxMemoryBytes = bytes;
+    }
+
+    /**
+     * 
+     * @return the most bytes of tiles that are kept in memory
+     */
+    public long getMaxMemoryBytes() {
+        return maxMemoryBytes;
+    }
+
+    /**
+     * Sets the directory that tiles are kept in as well as in memory. It
+     * should only hold the tiles of this image, and tiles already in it are
+     * served without being created again.
+     * 
+     * @param directory
+     *            the directory, or null to only keep tiles in memory
+     */
+    public void setCacheDirectory(final File directory) {
+        cacheDirectory = directory;
+    }
+
+    /**
+     * 
+     * @return the directory that tiles are kept in, or null
+     */
+    public File getCacheDirectory() {
+        return cacheDirectory;
+    }
+
+    /**
+     * Sets the most bytes of tiles that are kept in the cache directory.
+     * 
+     * @param bytes
+     *            the bound
+     */
+    public void setMaxDiskBytes(final long bytes) {
+        if (bytes < 0) {
+            throw new IllegalArgumentException(
+                    "Disk cache size must be at least 0.");
+        }
+        maxDiskBytes = bytes;
+    }
+
+    /**
+     * 
+     * @return the most bytes of tiles that are kept in the cache directory
+     */
+    public long getMaxDiskBytes() {
+        return maxDiskBytes;
+    }
+
+    /**
+     * Sets the encoder used for the tiles.
+     * 
+     * @param encoder
+     *            the encoder
+     */
+    public void setTileEncoder(final JpegTileEncoder encoder) {
+        if (encoder == null) {
+            throw new IllegalArgumentException(
+                    "JPEG encoder must be specified.");
+        }
+        tileEncoder = encoder;
+    }
+
+    /**
+     * 
+     * @return the encoder used for the tiles
+     */
+    public JpegTileEncoder getTileEncoder() {
+        return tileEncoder;
+    }
+
+    /**
+     * Answers the requests for ImageProperties.xml and the tiles.
+     */
+    private static final class TileHandler implements HttpHandler {
+
+        private final ZoomifyTileRenderer renderer;
+
+        private TileHandler(final ZoomifyTileRenderer tileRenderer) {
+            renderer = tileRenderer;
+        }
+
+        @Override
+        public void handle(final HttpExchange exchange) throws IOException {
+            try {
+                final String method = exchange.getRequestMethod();
+                final boolean head = "HEAD".equals(method);
+                if (!head && !"GET".equals(method)) {
+                    exchange.getResponseHeaders().set("Allow", "GET, HEAD");
+                    exchange.sendResponseHeaders(405, -1);
+                    return;
+                }
+                final String path = exchange.getRequestURI().getPath()
+                        .substring(1);
+                final byte[] body;
+                final String contentType;
+                if (path.equals(ZoomifyTileDirectoryExport.TILE_METADATA_FILENAME)) {
+                    body = renderer.getImageProperties().getBytes("UTF-8");
+                    contentType = "text/xml";
+                } else {
+                    try {
+                        body = renderer.getTile(path);
+                    } catch (final IOException e) {
+                        LOG.error("Could not create tile " + path, e);
+                        exchange.sendResponseHeaders(500, -1);
+                        return;
+                    }
+                    contentType = "image/jpeg";
+                }
+                if (body == null) {
+                    exchange.sendResponseHeaders(404, -1);
+                    return;
+                }
+                exchange.getResponseHeaders().set("Content-Type", contentType);
+                exchange.getResponseHeaders().set("Cache-Control",
+                        CACHE_CONTROL);
+                if (head) {
+                    exchange.getResponseHeaders().set("Content-Length",
+                            Integer.toString(body.length));
+                    exchange.sendResponseHeaders(200, -1);
+                    return;
+                }
+                exchange.sendResponseHeaders(200, body.length);
+                final OutputStream out = exchange.getResponseBody();
+                out.write(body);
+                out.close();
+            } finally {
+                exchange.close();
+            }
+        }
+    }
+}
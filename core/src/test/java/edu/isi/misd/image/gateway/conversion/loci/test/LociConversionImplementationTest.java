@@ -2,14 +2,25 @@ package edu.isi.misd.image.gateway.conversion.loci.test;
 
 import static org.junit.Assert.fail;
 
+import java.io.File;
+import java.util.Arrays;
+
+import org.junit.After;
 import org.junit.Test;
 
 import edu.isi.misd.image.gateway.conversion.loci.LociConversionImplementation;
+import edu.isi.misd.image.gateway.conversion.loci.LociImageSource;
 import edu.isi.misd.image.gateway.conversion.loci.test.LociImageSourceTest;
 
 public class LociConversionImplementationTest {
     private static final String source = LociImageSourceTest.class.getResource(
             "/test.jpg").getPath();
+    private static final String DESTINATION = "converted.tif";
+
+    @After
+    public void tearDown() {
+        new File(DESTINATION).delete();
+    }
 
     @Test(expected = IllegalArgumentException.class)
     public void testConstructor_null1stArg() {
@@ -48,4 +59,90 @@ public class LociConversionImplementationTest {
                     + ", expected 1000.");
         }
     }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testSetMaxBufferSize_badArg() {
+        final LociConversionImplementation convert = new LociConversionImplementation(
+                source, "myfile.tif");
+        convert.setMaxBufferSize(0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testSetTileSize_badArg() {
+        final LociConversionImplementation convert = new LociConversionImplementation(
+                source, "myfile.tif");
+        convert.setTileSize(-1, 256);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testSetTileSize_notMultipleOf16() {
+        final LociConversionImplementation convert = new LociConversionImplementation(
+                source, "myfile.tif");
+        convert.setTileSize(100, 256);
+    }
+
+    @Test
+    public void testSetTileSize() {
+        final LociConversionImplementation convert = new LociConversionImplementation(
+                source, "myfile.tif");
+        if (convert.getTileWidth() != 0 || convert.getTileHeight() != 0) {
+            fail("The image isn't copied in strips by default.");
+        }
+        convert.setTileSize(512, 256);
+        if (convert.getTileWidth() != 512 || convert.getTileHeight() != 256) {
+            fail("getTileWidth() and getTileHeight() returned "
+                    + convert.getTileWidth() + "x" + convert.getTileHeight()
+                    + ", expected 512x256.");
+        }
+        convert.setTileSize(512, 0);
+        if (convert.getTileWidth() != 0 || convert.getTileHeight() != 0) {
+            fail("A tile height of 0 didn't switch back to strips.");
+        }
+    }
+
+    @Test
+    public void testRun_tiles() throws Exception {
+        // 153x127 pixels in 64x48 tiles, with partial tiles at both edges
+        final LociConversionImplementation convert = new LociConversionImplementation(
+                source, DESTINATION);
+        convert.setTileSize(64, 48);
+        convert.setMaxBufferSize(64 * 48 * 3);
+        convert.run();
+        comparePixels();
+    }
+
+    @Test
+    public void testRun_strips() throws Exception {
+        // 153x127 pixels in strips of 10 rows, with a shorter last strip
+        final LociConversionImplementation convert = new LociConversionImplementation(
+                source, DESTINATION);
+        convert.setMaxBufferSize(153 * 10 * 3);
+        convert.run();
+        comparePixels();
+    }
+
+    /**
+     * Compares the pixels of the converted image with the source image's.
+     */
+    private static void comparePixels() throws Exception {
+        final LociImageSource expected = new LociImageSource(source, 0, 0);
+        final LociImageSource actual = new LociImageSource(DESTINATION, 0, 0);
+        try {
+            if (actual.getWidth() != expected.getWidth()
+                    || actual.getHeight() != expected.getHeight()) {
+                fail("The converted image is " + actual.getWidth() + "x"
+                        + actual.getHeight() + ", expected "
+                        + expected.getWidth() + "x" + expected.getHeight()
+                        + ".");
+            }
+            if (!Arrays.equals(expected.readBytes(0, 0, expected.getWidth(),
+                    expected.getHeight()), actual.readBytes(0, 0,
+                    actual.getWidth(), actual.getHeight()))) {
+                fail("The converted pixels don't match the source pixels.");
+            }
+        } finally {
+            actual.close();
+            expected.close();
+        }
+    }
 }
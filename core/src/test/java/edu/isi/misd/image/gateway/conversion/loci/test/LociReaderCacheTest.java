@@ -0,0 +1,108 @@
+package edu.isi.misd.image.gateway.conversion.loci.test;
+
+import static org.junit.Assert.fail;
+
+import java.io.File;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.isi.misd.image.gateway.conversion.loci.LociImageSource;
+import edu.isi.misd.image.gateway.conversion.loci.LociReaderCache;
+
+public class LociReaderCacheTest {
+
+    private static final String testFile = LociReaderCacheTest.class
+            .getResource("/test.jpg").getPath();
+
+    @Before
+    public void setUp() {
+        LociReaderCache.clear();
+        LociReaderCache
+                .setMaxIdleReaders(LociReaderCache.DEFAULT_MAX_IDLE_READERS);
+    }
+
+    @After
+    public void tearDown() {
+        LociReaderCache.clear();
+        LociReaderCache.setIdleTimeout(LociReaderCache.DEFAULT_IDLE_TIMEOUT);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testSetMaxIdleReaders_negative() {
+        LociReaderCache.setMaxIdleReaders(-1);
+    }
+
+    @Test
+    public void testReuse() throws Exception {
+        final LociImageSource first = new LociImageSource(testFile);
+        final long width = first.getWidth();
+        first.close();
+        // closing twice must not keep the reader twice
+        first.close();
+        if (LociReaderCache.getNumberOfIdleReaders() != 1) {
+            fail(LociReaderCache.getNumberOfIdleReaders()
+                    + " idle readers after closing a source, expected 1");
+        }
+        final LociImageSource second = new LociImageSource(testFile);
+        if (LociReaderCache.getNumberOfIdleReaders() != 0) {
+            fail("The idle reader was not reused.");
+        }
+        if (second.getWidth() != width) {
+            fail("getWidth() returned " + second.getWidth()
+                    + " from the reused reader, expected " + width);
+        }
+        second.close();
+    }
+
+    @Test
+    public void testChangedFile() throws Exception {
+        final File copy = new File("test_reader_cache.jpg");
+        FileUtils.copyFile(new File(testFile), copy);
+        try {
+            new LociImageSource(copy.getAbsolutePath()).close();
+            copy.setLastModified(copy.lastModified() - 10000);
+            final LociImageSource source = new LociImageSource(
+                    copy.getAbsolutePath());
+            if (LociReaderCache.getNumberOfIdleReaders() != 1) {
+                fail("The reader of the changed file was reused.");
+            }
+            source.close();
+            LociReaderCache.evict(copy.getAbsolutePath());
+            if (LociReaderCache.getNumberOfIdleReaders() != 0) {
+                fail("evict() left readers of the file open.");
+            }
+        } finally {
+            copy.delete();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testSetIdleTimeout_zero() {
+        LociReaderCache.setIdleTimeout(0);
+    }
+
+    @Test
+    public void testSetIdleTimeout() throws Exception {
+        // the sweep starts with the default timeout; a shorter timeout set
+        // afterwards must still close the idle reader
+        new LociImageSource(testFile).close();
+        LociReaderCache.setIdleTimeout(50);
+        new LociImageSource(testFile).close();
+        Thread.sleep(500);
+        if (LociReaderCache.getNumberOfIdleReaders() != 0) {
+            fail("The idle reader was kept past the new timeout.");
+        }
+    }
+
+    @Test
+    public void testDisabled() throws Exception {
+        LociReaderCache.setMaxIdleReaders(0);
+        new LociImageSource(testFile).close();
+        if (LociReaderCache.getNumberOfIdleReaders() != 0) {
+            fail("A reader was kept with the cache turned off.");
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package edu.isi.misd.image.gateway.conversion.loci.test;
+
+import static org.junit.Assert.fail;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+import edu.isi.misd.image.gateway.conversion.loci.LociImageSource;
+import edu.isi.misd.image.gateway.conversion.loci.LociReaderCache;
+import edu.isi.misd.image.gateway.conversion.loci.PooledLociImageSource;
+
+public class PooledLociImageSourceTest {
+
+    private static final String testFile = PooledLociImageSourceTest.class
+            .getResource("/test.jpg").getPath();
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testConstructor_null1stArg() throws Exception {
+        new PooledLociImageSource(null, 2);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testConstructor_zero2ndArg() throws Exception {
+        new PooledLociImageSource(new LociImageSource(testFile), 0);
+    }
+
+    @Test
+    public void testReadImage_concurrent() throws Exception {
+        final LociImageSource single = new LociImageSource(testFile);
+        final PooledLociImageSource pooled = new PooledLociImageSource(
+                new LociImageSource(testFile), 3);
+        final int width = (int) pooled.getWidth() / 4;
+        final int height = (int) pooled.getHeight() / 4;
+        final ExecutorService executor = Executors.newFixedThreadPool(6);
+        try {
+            final List<Future<BufferedImage>> results = new ArrayList<Future<BufferedImage>>();
+            for (int i = 0; i < 16; i++) {
+                final int x = (i % 4) * width;
+                final int y = (i / 4) * height;
+                results.add(executor.submit(new Callable<BufferedImage>() {
+                    @Override
+                    public BufferedImage call() throws Exception {
+                        return pooled.readImage(x, y, width, height);
+                    }
+                }));
+            }
+            for (int i = 0; i < results.size(); i++) {
+                final BufferedImage expected = single.readImage((i % 4)
+                        * width, (i / 4) * height, width, height);
+                final BufferedImage actual = results.get(i).get();
+                for (int y = 0; y < height; y++) {
+                    for (int x = 0; x < width; x++) {
+                        if (expected.getRGB(x, y) != actual.getRGB(x, y)) {
+                            fail("Region " + i + " differs at " + x + "x" + y);
+                        }
+                    }
+                }
+            }
+        } finally {
+            executor.shutdown();
+        }
+        if (pooled.getNumberOfReaders() < 1 || pooled.getNumberOfReaders() > 3) {
+            fail(pooled.getNumberOfReaders() + " readers were opened.");
+        }
+        single.close();
+        pooled.close();
+    }
+
+    @Test
+    public void testReuseParsedReaders() throws Exception {
+        LociReaderCache.clear();
+        try {
+            final PooledLociImageSource first = new PooledLociImageSource(
+                    new LociImageSource(testFile), 1);
+            first.readImage(0, 0, 1, 1);
+            first.close();
+            // the pooled reader and the source's reader are kept parsed
+            if (LociReaderCache.getNumberOfIdleReaders() != 2) {
+                fail(LociReaderCache.getNumberOfIdleReaders()
+                        + " idle readers after closing the pool, expected 2");
+            }
+            final PooledLociImageSource second = new PooledLociImageSource(
+                    new LociImageSource(testFile), 1);
+            second.readImage(0, 0, 1, 1);
+            if (LociReaderCache.getNumberOfIdleReaders() != 0) {
+                fail("The next pool of the file parsed it again.");
+            }
+            second.close();
+        } finally {
+            LociReaderCache.clear();
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testReadImage_closed() throws Exception {
+        final PooledLociImageSource pooled = new PooledLociImageSource(
+                new LociImageSource(testFile), 2);
+        pooled.close();
+        pooled.readImage(0, 0, 1, 1);
+    }
+}
@@ -0,0 +1,177 @@
+package edu.isi.misd.image.gateway.conversion.loci.test;
+
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Test;
+
+import edu.isi.misd.image.gateway.conversion.loci.LociImageSource;
+import edu.isi.misd.image.gateway.conversion.loci.SyntheticSlideGenerator;
+
+public class SyntheticSlideGeneratorTest {
+
+    private static final String DESTINATION = "synthetic_slide.tif";
+
+    @After
+    public void tearDown() {
+        new File(DESTINATION).delete();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testConstructor_nullDestination() {
+        new SyntheticSlideGenerator(null, 100, 100);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testConstructor_badWidth() {
+        new SyntheticSlideGenerator(DESTINATION, 0, 100);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testSetTileSize_badArg() {
+        new SyntheticSlideGenerator(DESTINATION, 100, 100).setTileSize(100);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testSetBlankFraction_badArg() {
+        new SyntheticSlideGenerator(DESTINATION, 100, 100)
+                .setBlankFraction(1.5);
+    }
+
+    @Test
+    public void testGenerate_seed() {
+        final SyntheticSlideGenerator generator = new SyntheticSlideGenerator(
+                DESTINATION, 1000, 1000);
+        final byte[] first = new byte[200 * 100 * 3];
+        final byte[] second = new byte[first.length];
+        generator.setSeed(7);
+        generator.generate(first, 0, 300, 400, 200, 100);
+        generator.generate(second, 0, 300, 400, 200, 100);
+        if (!Arrays.equals(first, second)) {
+            fail("The same region was generated with different pixels.");
+        }
+        generator.setSeed(8);
+        generator.generate(second, 0, 300, 400, 200, 100);
+        if (Arrays.equals(first, second)) {
+            fail("Another seed generated the same pixels.");
+        }
+    }
+
+    @Test
+    public void testGenerate_reducedLevel() {
+        final SyntheticSlideGenerator generator = new SyntheticSlideGenerator(
+                DESTINATION, 1000, 1000);
+        generator.setPyramidLevels(1);
+        final byte[] full = new byte[3];
+        final byte[] reduced = new byte[3];
+        generator.generate(full, 0, 200, 100, 1, 1);
+        generator.generate(reduced, 1, 100, 50, 1, 1);
+        if (!Arrays.equals(full, reduced)) {
+            fail("A reduced level pixel doesn't sample the full resolution.");
+        }
+        if (generator.getLevelWidth(1) != 500) {
+            fail("getLevelWidth(1) returned " + generator.getLevelWidth(1)
+                    + ", expected 500.");
+        }
+    }
+
+    @Test
+    public void testGenerate_blank() {
+        final SyntheticSlideGenerator generator = new SyntheticSlideGenerator(
+                DESTINATION, 1000, 1000);
+        generator.setBlankFraction(1);
+        final byte[] bytes = new byte[64 * 64 * 3];
+        generator.generate(bytes, 0, 0, 0, 64, 64);
+        for (int i = 0; i < bytes.length; i += 3) {
+            if ((bytes[i] & 0xff) < 240 || bytes[i] != bytes[i + 1]
+                    || bytes[i] != bytes[i + 2]) {
+                fail("Pixel " + i / 3 + " of a blank region isn't background.");
+            }
+        }
+    }
+
+    @Test
+    public void testRun() throws Exception {
+        final SyntheticSlideGenerator generator = new SyntheticSlideGenerator(
+                DESTINATION, 600, 400);
+        generator.setTileSize(256);
+        generator.run();
+
+        final LociImageSource source = new LociImageSource(DESTINATION, 0, 0);
+        try {
+            if (source.getWidth() != 600 || source.getHeight() != 400) {
+                fail("The slide is " + source.getWidth() + "x"
+                        + source.getHeight() + ", expected 600x400.");
+            }
+            final byte[] expected = new byte[300 * 200 * 3];
+            generator.generate(expected, 0, 250, 150, 300, 200);
+            if (!Arrays.equals(expected,
+                    source.readBytes(250, 150, 300, 200))) {
+                fail("The pixels read back don't match the generated ones.");
+            }
+        } finally {
+            source.close();
+        }
+    }
+
+    @Test
+    public void testRun_pyramidLevels() throws Exception {
+        final SyntheticSlideGenerator generator = new SyntheticSlideGenerator(
+                DESTINATION, 600, 400);
+        generator.setTileSize(256);
+        generator.setPyramidLevels(2);
+        generator.run();
+        checkLevels(generator);
+    }
+
+    @Test
+    public void testRun_strips() throws Exception {
+        // wide enough that the full resolution level takes two 8 MB strips
+        final SyntheticSlideGenerator generator = new SyntheticSlideGenerator(
+                DESTINATION, 3000, 1000);
+        generator.setTileSize(0);
+        generator.setPyramidLevels(1);
+        generator.run();
+        checkLevels(generator);
+    }
+
+    /**
+     * Checks that each level of the slide is a series of the file, with the
+     * size and pixels of the level.
+     */
+    private static void checkLevels(final SyntheticSlideGenerator generator)
+            throws Exception {
+        final LociImageSource source = new LociImageSource(DESTINATION, 0, 0);
+        try {
+            final int levels = generator.getPyramidLevels() + 1;
+            if (source.getSeriesCount() != levels) {
+                fail("The slide has " + source.getSeriesCount()
+                        + " series, expected " + levels);
+            }
+            for (int level = 0; level < levels; level++) {
+                source.setSeriesNumber(level);
+                final int width = generator.getLevelWidth(level);
+                final int height = generator.getLevelHeight(level);
+                if (source.getWidth() != width || source.getHeight() != height) {
+                    fail("Level " + level + " is " + source.getWidth() + "x"
+                            + source.getHeight() + ", expected " + width + "x"
+                            + height);
+                }
+                // a region that crosses the last tile or strip
+                final int x = width / 3, y = height / 2;
+                final int w = width - x, h = height - y;
+                final byte[] expected = new byte[w * h * 3];
+                generator.generate(expected, level, x, y, w, h);
+                if (!Arrays.equals(expected, source.readBytes(x, y, w, h))) {
+                    fail("The pixels of level " + level
+                            + " don't match the generated ones.");
+                }
+            }
+        } finally {
+            source.close();
+        }
+    }
+}
@@ -8,13 +8,20 @@ import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
+import edu.isi.misd.image.gateway.conversion.ConversionEventListener;
+import edu.isi.misd.image.gateway.conversion.ConversionEvents;
 import edu.isi.misd.image.gateway.conversion.ConvertImageToZoomifyTiles;
+import edu.isi.misd.image.gateway.conversion.ImageSource;
+import edu.isi.misd.image.gateway.conversion.SharedImageSource;
+import edu.isi.misd.image.gateway.conversion.loci.LociImageSource;
 
 public class ConvertImageToZoomifyTilesTest {
 
     private String testDir;
     private final String testFile = ConvertImageToZoomifyTilesTest.class
     .getResource("/test.jpg").getPath();
+    private final String bigFile = ConvertImageToZoomifyTilesTest.class
+            .getResource("/big.jpg").getPath();
 
     @Before
     public void setUp() {
@@ -54,6 +61,38 @@ public class ConvertImageToZoomifyTilesTest {
         }
     }
 
+    @Test
+    public void testRun_sharedSourceThreads() throws Exception {
+        final OpenCounter counter = new OpenCounter();
+        ConversionEvents.addListener(counter);
+        try {
+            final SharedImageSource shared = new SharedImageSource(
+                    new LociImageSource(bigFile));
+            final ImageSource handle = shared.retain();
+            final ConvertImageToZoomifyTiles convert = new ConvertImageToZoomifyTiles(
+                    handle, testDir);
+            convert.setNumberOfThreads(4);
+            // a task per tile row, so that all of the threads read
+            convert.setRowsPerTask(1);
+            convert.run();
+            if (shared.getReferences() != 1) {
+                fail(shared.getReferences()
+                        + " references to the shared image remain, expected 1");
+            }
+            shared.release();
+            // the workers read through the reader opened for the shared image
+            if (counter.opened != 1) {
+                fail("The image was opened " + counter.opened
+                        + " times, expected once.");
+            }
+            if (!new File(testDir, "ImageProperties.xml").isFile()) {
+                fail("No tiles were exported.");
+            }
+        } finally {
+            ConversionEvents.removeListener(counter);
+        }
+    }
+
     @After
     public void tearDown() {
         removeDir(new File(testDir));
@@ -72,4 +111,39 @@ public class ConvertImageToZoomifyTilesTest {
         }
         dir.delete();
     }
+
+    /**
+     * Counts the images that are opened.
+     */
+    private static final class OpenCounter implements
+            ConversionEventListener {
+        private int opened = 0;
+
+        @Override
+        public synchronized void slideOpened(final String filename,
+                final String format, final int series, final long nanos) {
+            opened++;
+        }
+
+        @Override
+        public void regionRead(final String filename, final long x,
+                final long y, final long width, final long height,
+                final long bytes, final long nanos) {
+        }
+
+        @Override
+        public void tileEncoded(final int level, final long row,
+                final long column, final long bytes, final long nanos) {
+        }
+
+        @Override
+        public void tileWritten(final int level, final long row,
+                final long column, final long bytes, final long nanos) {
+        }
+
+        @Override
+        public void levelCompleted(final int level, final long tiles,
+                final long nanos) {
+        }
+    }
 }
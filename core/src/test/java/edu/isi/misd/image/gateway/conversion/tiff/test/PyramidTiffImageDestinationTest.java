@@ -0,0 +1,80 @@
+package edu.isi.misd.image.gateway.conversion.tiff.test;
+
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.isi.misd.image.gateway.conversion.tiff.PyramidTiffImageDestination;
+
+public class PyramidTiffImageDestinationTest {
+
+    private static final int WIDTH = 700, HEIGHT = 300;
+
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("destination", ".ptif");
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testConstructor_nullFilename() {
+        new PyramidTiffImageDestination(null, WIDTH, HEIGHT);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testWriteBytes_badBands() throws Exception {
+        new PyramidTiffImageDestination(file.getPath(), WIDTH, HEIGHT)
+                .writeBytes(new byte[WIDTH * 2 * 2], 0, 0, WIDTH, 2);
+    }
+
+    @Test
+    public void testWriteBytes() throws Exception {
+        final PyramidTiffImageDestination destination = new PyramidTiffImageDestination(
+                file.getPath(), WIDTH, HEIGHT);
+        // strips that don't line up with the tiles
+        final int rows = 100;
+        for (int y = 0; y < HEIGHT; y += rows) {
+            destination.writeBytes(new byte[WIDTH * rows * 3], 0, y, WIDTH,
+                    rows);
+        }
+        destination.close();
+
+        final RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            if (in.length() <= 16 || in.read() != 'I' || in.read() != 'I'
+                    || in.read() != 42) {
+                fail("No TIFF file was written.");
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    @Test
+    public void testClose_incomplete() throws Exception {
+        final PyramidTiffImageDestination destination = new PyramidTiffImageDestination(
+                file.getPath(), WIDTH, HEIGHT);
+        destination.writeBytes(new byte[WIDTH * 10], 0, 0, WIDTH, 10);
+        try {
+            destination.close();
+            fail("close() succeeded without the whole image being written.");
+        } catch (final IOException e) {
+            // expected
+        }
+        if (file.exists()) {
+            fail("The incomplete file was not deleted.");
+        }
+    }
+}
@@ -7,6 +7,7 @@ import java.io.File;
 
 import javax.imageio.ImageIO;
 
+import org.apache.commons.io.FileUtils;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -102,6 +103,50 @@ public class ZoomifyTileDirectoryExportTest {
         }
     }
 
+    @Test(expected = IllegalArgumentException.class)
+    public void testSetNumberOfThreads_zero() {
+        export.setNumberOfThreads(0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testSetRowsPerTask_zero() {
+        export.setRowsPerTask(0);
+    }
+
+    @Test
+    public void testExport_parallel() throws Exception {
+        final File serialDir = new File(testDir, "serial");
+        final File parallelDir = new File(testDir, "parallel");
+        serialDir.mkdir();
+        parallelDir.mkdir();
+        export.export(serialDir.getAbsolutePath());
+
+        final ZoomifyTileDirectoryExport parallelExport = new ZoomifyTileDirectoryExport(
+                new LociImageSource(testFile));
+        parallelExport.setNumberOfThreads(4);
+        parallelExport.setRowsPerTask(1);
+        parallelExport.export(parallelDir.getAbsolutePath());
+
+        compareDirs(serialDir, parallelDir);
+    }
+
+    private void compareDirs(final File expected, final File actual)
+            throws Exception {
+        final File[] files = expected.listFiles();
+        for (final File f : files) {
+            final File other = new File(actual, f.getName());
+            if (f.isDirectory()) {
+                compareDirs(f, other);
+            } else if (!other.isFile()) {
+                fail("Expected file " + other.getAbsolutePath()
+                        + " doesn't exist.");
+            } else if (!FileUtils.contentEquals(f, other)) {
+                fail("File " + other.getAbsolutePath() + " differs from "
+                        + f.getAbsolutePath());
+            }
+        }
+    }
+
     @After
     public void tearDown() {
         removeDir(new File(testDir));
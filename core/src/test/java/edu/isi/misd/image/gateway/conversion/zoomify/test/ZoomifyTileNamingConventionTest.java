@@ -5,7 +5,9 @@ import static org.junit.Assert.fail;
 import org.junit.Before;
 import org.junit.Test;
 
+import edu.isi.misd.image.gateway.conversion.tile.ZoomLevelConfiguration;
 import edu.isi.misd.image.gateway.conversion.tile.ZoomLevelConfigurationImplementation;
+import edu.isi.misd.image.gateway.conversion.tile.ZoomLevelNotFoundException;
 import edu.isi.misd.image.gateway.conversion.zoomify.ZoomifyTileNamingConvention;
 
 public class ZoomifyTileNamingConventionTest {
@@ -46,4 +48,57 @@ public class ZoomifyTileNamingConventionTest {
                     + tileFilename);
         }
     }
+
+    @Test
+    public void testGetTileFileName_allTiles() throws Exception {
+        final ZoomLevelConfiguration zoomLevelConfig = new ZoomLevelConfigurationImplementation(
+                10000, 7000, 256, 2.0);
+        final int levels = zoomLevelConfig.getNumberOfZoomLevels();
+        long tileNumber = 0;
+        for (int l = levels - 1; l >= 0; l--) {
+            for (long r = 0; r < zoomLevelConfig.getNumberOfRows(l); r++) {
+                for (long c = 0; c < zoomLevelConfig.getNumberOfColumns(l); c++) {
+                    final String expected = "TileGroup" + (tileNumber / 256)
+                            + "/" + (levels - l - 1) + "-" + c + "-" + r
+                            + ".jpg";
+                    final String actual = namingConvention.getTileFileName(l,
+                            r, c, "jpg", zoomLevelConfig);
+                    if (!expected.equals(actual)) {
+                        fail("getTileFileName() returned " + actual
+                                + ", expected " + expected);
+                    }
+                    tileNumber++;
+                }
+            }
+        }
+        final int lastGroup = namingConvention.getTileGroupNumber(0,
+                zoomLevelConfig.getNumberOfRows(0) - 1,
+                zoomLevelConfig.getNumberOfColumns(0) - 1, zoomLevelConfig);
+        if (lastGroup != (tileNumber - 1) / 256) {
+            fail("getTileGroupNumber() doesn't match the last tile.");
+        }
+    }
+
+    @Test
+    public void testGetTileFileName_changedConfiguration() throws Exception {
+        namingConvention.getTileFileName(0, 0, 0, "jpg",
+                new ZoomLevelConfigurationImplementation(100000, 100000, 256,
+                        2.0));
+        final String conventionName = namingConvention.getTileFileName(0, 0,
+                0, "jpg", new ZoomLevelConfigurationImplementation(512, 512,
+                        256, 2.0));
+        if (!conventionName.equals("TileGroup0/1-0-0.jpg")) {
+            fail("getTileFileName() returned " + conventionName
+                    + " after the configuration changed.");
+        }
+    }
+
+    @Test(expected = ZoomLevelNotFoundException.class)
+    public void testGetTileFileName_badLevel() throws Exception {
+        final ZoomLevelConfiguration zoomLevelConfig = new ZoomLevelConfigurationImplementation(
+                2560, 2560, 256, 2.0);
+        namingConvention.getTileFileName(
+                zoomLevelConfig.getNumberOfZoomLevels(), 0, 0, "jpg",
+                zoomLevelConfig);
+    }
 }
@@ -0,0 +1,150 @@
+package edu.isi.misd.image.gateway.tile.test;
+
+import static org.junit.Assert.fail;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.util.Arrays;
+
+import javax.imageio.ImageIO;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.isi.misd.image.gateway.conversion.tile.BackgroundDetector;
+import edu.isi.misd.image.gateway.conversion.tile.TileArchiveReader;
+import edu.isi.misd.image.gateway.conversion.zoomify.ZoomifyTileDirectoryExport;
+
+public class BackgroundTileTest {
+
+    private static final int WIDTH = 1024, HEIGHT = 512;
+
+    private File testDir;
+
+    @Before
+    public void setUp() {
+        testDir = new File("test_background_dir");
+        testDir.mkdir();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        FileUtils.deleteDirectory(testDir);
+    }
+
+    @Test
+    public void testIsBackground() {
+        final BackgroundDetector detector = new BackgroundDetector();
+        final BufferedImage tile = new BufferedImage(256, 256,
+                BufferedImage.TYPE_3BYTE_BGR);
+        fillGlass(tile);
+        if (!detector.isBackground(tile)) {
+            fail("Near white tile wasn't detected as background.");
+        }
+        tile.setRGB(10, 10, 0x000000);
+        if (!detector.isBackground(tile)) {
+            fail("A speck of dust stopped the tile being background.");
+        }
+        for (int y = 0; y < 40; y++) {
+            for (int x = 0; x < 40; x++) {
+                tile.setRGB(x, y, 0xc08080);
+            }
+        }
+        if (detector.isBackground(tile)) {
+            fail("Tile with tissue was detected as background.");
+        }
+
+        final BufferedImage pale = new BufferedImage(256, 256,
+                BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < 256; y++) {
+            for (int x = 0; x < 256; x++) {
+                pale.setRGB(x, y, (x + y) % 2 == 0 ? 0xe0e0e0 : 0xffffff);
+            }
+        }
+        if (detector.isBackground(pale)) {
+            fail("Tile with faint structure was detected as background.");
+        }
+    }
+
+    @Test
+    public void testExport_tileArchive() throws Exception {
+        checkExport(false);
+    }
+
+    @Test
+    public void testExport_compressedTileCopy() throws Exception {
+        // stored tiles that are copied as they are must still be detected
+        checkExport(true);
+    }
+
+    private void checkExport(final boolean compressedTileCopy)
+            throws Exception {
+        final MemoryImageSource source = new MemoryImageSource(WIDTH, HEIGHT);
+        source.compressedTiles = compressedTileCopy;
+        final BufferedImage glass = new BufferedImage(WIDTH / 2, HEIGHT,
+                BufferedImage.TYPE_3BYTE_BGR);
+        fillGlass(glass);
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH / 2; x++) {
+                source.fill(WIDTH / 2 + x, y, 1, 1, glass.getRGB(x, y));
+            }
+        }
+        final ZoomifyTileDirectoryExport export = new ZoomifyTileDirectoryExport(
+                source);
+        export.setBackgroundDetector(new BackgroundDetector());
+        export.setTileArchive(true);
+        export.setCompressedTileCopy(compressedTileCopy);
+        export.export(testDir.getAbsolutePath());
+
+        final File archive = new File(testDir,
+                ZoomifyTileDirectoryExport.TILE_ARCHIVE_FILENAME);
+        final TileArchiveReader reader = new TileArchiveReader(archive
+                .getPath());
+        try {
+            final byte[] placeholder = reader.readTile(0, 0, 2);
+            long tileBytes = 0;
+            for (int l = 0; l < reader.getNumberOfZoomLevels(); l++) {
+                for (int r = 0; r < reader.getNumberOfRows(l); r++) {
+                    for (int c = 0; c < reader.getNumberOfColumns(l); c++) {
+                        final byte[] tile = reader.readTile(l, r, c);
+                        tileBytes += tile.length;
+                        // the glass tiles of level 0 and their parent in
+                        // level 1 are all the same placeholder
+                        final boolean glassTile = l < 2
+                                && c >= reader.getNumberOfColumns(l) / 2;
+                        if (glassTile != Arrays.equals(placeholder, tile)) {
+                            fail("Tile " + l + "-" + r + "-" + c
+                                    + (glassTile ? " isn't" : " is")
+                                    + " the placeholder.");
+                        }
+                    }
+                }
+            }
+            final BufferedImage image = ImageIO.read(new ByteArrayInputStream(
+                    placeholder));
+            if ((image.getRGB(100, 100) & 0xffffff) < 0xf8f8f8) {
+                fail("Placeholder isn't filled with the background color.");
+            }
+            if (archive.length() >= tileBytes) {
+                fail("Placeholder tiles were stored more than once.");
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Fills an image with noisy, nearly white glass.
+     */
+    private static void fillGlass(final BufferedImage image) {
+        for (int y = 0; y < image.getHeight(); y++) {
+            for (int x = 0; x < image.getWidth(); x++) {
+                image.setRGB(x, y, (x * 7 + y * 3) % 5 == 0 ? 0xf0f0f0
+                        : 0xf8f8f8);
+            }
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package edu.isi.misd.image.gateway.tile.test;
+
+import static org.junit.Assert.fail;
+
+import java.awt.image.BufferedImage;
+
+import org.junit.Test;
+
+import edu.isi.misd.image.gateway.conversion.tile.BandTileReader;
+
+public class BandTileReaderTest {
+
+    private static final int WIDTH = 100, HEIGHT = 70, TILE_SIZE = 16;
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testConstructor_nullSource() {
+        new BandTileReader(null, TILE_SIZE, 1, 1024, 3, HEIGHT);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testConstructor_zeroRows() {
+        new BandTileReader(new MemoryImageSource(WIDTH, HEIGHT), TILE_SIZE, 0,
+                1024, 3, HEIGHT);
+    }
+
+    @Test
+    public void testRead_fullWidthBands() throws Exception {
+        final MemoryImageSource source = new MemoryImageSource(WIDTH, HEIGHT);
+        readAllTiles(source, new BandTileReader(source, TILE_SIZE, 2,
+                Long.MAX_VALUE, 3, HEIGHT));
+        // 5 tile rows, 2 per band
+        if (source.reads.size() != 3) {
+            fail("Read " + source.reads.size() + " bands, expected 3");
+        }
+        for (final long[] read : source.reads) {
+            if (read[0] != 0 || read[2] != WIDTH) {
+                fail("Band at " + read[0] + " of width " + read[2]
+                        + " is not the full width of the image.");
+            }
+        }
+    }
+
+    @Test
+    public void testRead_memoryLimit() throws Exception {
+        final MemoryImageSource source = new MemoryImageSource(WIDTH, HEIGHT);
+        // room for 3 tiles, less than a full width tile row
+        readAllTiles(source, new BandTileReader(source, TILE_SIZE, 4,
+                3 * TILE_SIZE * TILE_SIZE * 3, 3, HEIGHT));
+        for (final long[] read : source.reads) {
+            if (read[2] * read[3] * 3 > 3 * TILE_SIZE * TILE_SIZE * 3) {
+                fail("Band of " + read[2] + "x" + read[3]
+                        + " is larger than the memory limit.");
+            }
+        }
+        // 7 columns in 3 reads per row, 5 rows
+        if (source.reads.size() != 15) {
+            fail("Read " + source.reads.size() + " bands, expected 15");
+        }
+    }
+
+    @Test
+    public void testRead_lastY() throws Exception {
+        final MemoryImageSource source = new MemoryImageSource(WIDTH, HEIGHT);
+        final BandTileReader reader = new BandTileReader(source, TILE_SIZE, 8,
+                Long.MAX_VALUE, 3, TILE_SIZE * 2);
+        reader.read(0, 0, TILE_SIZE, TILE_SIZE);
+        final long[] read = source.reads.get(0);
+        if (read[3] != TILE_SIZE * 2) {
+            fail("Band height is " + read[3] + ", expected " + TILE_SIZE * 2);
+        }
+    }
+
+    private static void readAllTiles(final MemoryImageSource source,
+            final BandTileReader reader) throws Exception {
+        for (int y = 0; y < HEIGHT; y += TILE_SIZE) {
+            for (int x = 0; x < WIDTH; x += TILE_SIZE) {
+                final int w = Math.min(TILE_SIZE, WIDTH - x);
+                final int h = Math.min(TILE_SIZE, HEIGHT - y);
+                final BufferedImage tile = reader.read(x, y, w, h);
+                if (tile.getWidth() != w || tile.getHeight() != h) {
+                    fail("Tile at " + x + "x" + y + " is " + tile.getWidth()
+                            + "x" + tile.getHeight() + ", expected " + w + "x"
+                            + h);
+                }
+                for (int ty = 0; ty < h; ty++) {
+                    for (int tx = 0; tx < w; tx++) {
+                        if (tile.getRGB(tx, ty) != source.getRGB(x + tx, y
+                                + ty)) {
+                            fail("Tile at " + x + "x" + y
+                                    + " doesn't match the source at " + tx
+                                    + "x" + ty);
+                        }
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package edu.isi.misd.image.gateway.tile.test;
+
+import static org.junit.Assert.fail;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+
+import org.junit.Test;
+
+import edu.isi.misd.image.gateway.conversion.tile.BoxDownsampler;
+
+public class BoxDownsamplerTest {
+
+    @Test
+    public void testDownsample2x2() {
+        // 3x3 single band image, destination is 2x2
+        final byte[] source = new byte[] { 0, 4, 8, 12, 16, (byte) 200, 9,
+                11, (byte) 255 };
+        final byte[] destination = new byte[4];
+        BoxDownsampler.downsample2x2(source, 0, 3, 3, 3, 1, destination, 0, 2);
+        final int[] expected = new int[] { 8, 104, 10, 255 };
+        for (int i = 0; i < expected.length; i++) {
+            if ((destination[i] & 0xff) != expected[i]) {
+                fail("Pixel " + i + " is " + (destination[i] & 0xff)
+                        + ", expected " + expected[i]);
+            }
+        }
+    }
+
+    @Test
+    public void testDownsample2x2_interleaved() {
+        // 2x2 RGB image with padded rows, written at an offset
+        final byte[] source = new byte[] { 10, 20, 30, 20, 30, 40, 99, 30,
+                40, 50, 40, 50, 60, 99 };
+        final byte[] destination = new byte[5];
+        BoxDownsampler.downsample2x2(source, 0, 7, 2, 2, 3, destination, 2, 3);
+        if (destination[2] != 25 || destination[3] != 35
+                || destination[4] != 45) {
+            fail("Averaged pixel is " + destination[2] + "," + destination[3]
+                    + "," + destination[4]);
+        }
+    }
+
+    @Test
+    public void testDownsample() {
+        // 6x1 single band image reduced by 3
+        final byte[] source = new byte[] { 0, 3, 6, 30, 30, 30 };
+        final byte[] destination = new byte[2];
+        BoxDownsampler.downsample(source, 0, 6, 6, 1, 1, destination, 0, 2,
+                2, 1);
+        if (destination[0] != 3 || destination[1] != 30) {
+            fail("Downsampled pixels are " + destination[0] + ","
+                    + destination[1]);
+        }
+    }
+
+    @Test
+    public void testDownsample_image() {
+        final BufferedImage image = new BufferedImage(100, 60,
+                BufferedImage.TYPE_3BYTE_BGR);
+        for (int y = 0; y < image.getHeight(); y++) {
+            for (int x = 0; x < image.getWidth(); x++) {
+                image.setRGB(x, y, x < 50 ? 0xff0000 : 0x0000ff);
+            }
+        }
+        final BufferedImage result = BoxDownsampler.downsample(image, 25, 20);
+        if (result.getWidth() != 25 || result.getHeight() != 20) {
+            fail("Downsampled image is " + result.getWidth() + "x"
+                    + result.getHeight());
+        }
+        if (result.getType() != BufferedImage.TYPE_3BYTE_BGR) {
+            fail("Downsampled image type changed to " + result.getType());
+        }
+        if ((result.getRGB(0, 0) & 0xffffff) != 0xff0000
+                || (result.getRGB(24, 19) & 0xffffff) != 0x0000ff) {
+            fail("Downsampled colors are wrong.");
+        }
+        if (!(result.getRaster().getDataBuffer() instanceof DataBufferByte)) {
+            fail("Downsampled image is not stored as bytes.");
+        }
+    }
+
+    @Test
+    public void testDownsample_otherType() {
+        final BufferedImage image = new BufferedImage(100, 60,
+                BufferedImage.TYPE_INT_RGB);
+        final BufferedImage result = BoxDownsampler.downsample(image, 50, 30);
+        if (result.getWidth() != 50 || result.getHeight() != 30) {
+            fail("Scaled image is " + result.getWidth() + "x"
+                    + result.getHeight());
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testDownsample_nullImage() {
+        BoxDownsampler.downsample(null, 1, 1);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testDownsample_badSize() {
+        BoxDownsampler.downsample(new BufferedImage(10, 10,
+                BufferedImage.TYPE_3BYTE_BGR), 0, 5);
+    }
+}
@@ -0,0 +1,99 @@
+package edu.isi.misd.image.gateway.tile.test;
+
+import static org.junit.Assert.fail;
+
+import java.io.File;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.isi.misd.image.gateway.conversion.ConcurrentImageSource;
+import edu.isi.misd.image.gateway.conversion.ImageSource;
+import edu.isi.misd.image.gateway.conversion.tile.ZoomLevelConfiguration;
+import edu.isi.misd.image.gateway.conversion.tile.ZoomLevelConfigurationImplementation;
+import edu.isi.misd.image.gateway.conversion.zoomify.ZoomifyTileDirectoryExport;
+import edu.isi.misd.image.gateway.conversion.zoomify.ZoomifyTileNamingConvention;
+
+public class ConcurrentSourceExportTest {
+
+    private static final int WIDTH = 800, HEIGHT = 1600;
+
+    private File testDir;
+
+    @Before
+    public void setUp() {
+        testDir = new File("test_concurrent_source_dir");
+        testDir.mkdir();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        FileUtils.deleteDirectory(testDir);
+    }
+
+    @Test
+    public void testExport_sharedSource() throws Exception {
+        final ConcurrentMemoryImageSource source = new ConcurrentMemoryImageSource(
+                WIDTH, HEIGHT);
+        final ZoomifyTileDirectoryExport export = new ZoomifyTileDirectoryExport(
+                source) {
+            @Override
+            protected ImageSource openWorkerSource() throws Exception {
+                fail("A worker image source was opened.");
+                return null;
+            }
+        };
+        export.setNumberOfThreads(4);
+        export.setRowsPerTask(2);
+        export.export(testDir.getAbsolutePath());
+
+        final ZoomLevelConfiguration config = new ZoomLevelConfigurationImplementation(
+                WIDTH, HEIGHT, 256, 2.0);
+        assertTilesWritten(config);
+        if (source.reads.size() != config.getNumberOfTiles(0)) {
+            fail(source.reads.size() + " regions were read, expected "
+                    + config.getNumberOfTiles(0));
+        }
+    }
+
+    @Test
+    public void testExport_pyramidThreads() throws Exception {
+        final ZoomifyTileDirectoryExport export = new ZoomifyTileDirectoryExport(
+                new ConcurrentMemoryImageSource(WIDTH, HEIGHT));
+        export.setNumberOfThreads(4);
+        export.setRowsPerTask(1);
+        export.setPyramidThreads(2);
+        export.export(testDir.getAbsolutePath());
+
+        assertTilesWritten(new ZoomLevelConfigurationImplementation(WIDTH,
+                HEIGHT, 256, 2.0));
+    }
+
+    private void assertTilesWritten(final ZoomLevelConfiguration config)
+            throws Exception {
+        final ZoomifyTileNamingConvention convention = new ZoomifyTileNamingConvention();
+        for (int l = 0; l < config.getNumberOfZoomLevels(); l++) {
+            for (int r = 0; r < config.getNumberOfRows(l); r++) {
+                for (int c = 0; c < config.getNumberOfColumns(l); c++) {
+                    final File tile = new File(testDir,
+                            convention.getTileFileName(l, r, c, "jpg", config));
+                    if (!tile.exists()) {
+                        fail("Tile " + tile + " was not written.");
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Memory image source that can be read from several threads.
+     */
+    private static final class ConcurrentMemoryImageSource extends
+            MemoryImageSource implements ConcurrentImageSource {
+        private ConcurrentMemoryImageSource(final int width, final int height) {
+            super(width, height);
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package edu.isi.misd.image.gateway.tile.test;
+
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.Vector;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.isi.misd.image.gateway.conversion.ConversionEventListener;
+import edu.isi.misd.image.gateway.conversion.ConversionEvents;
+import edu.isi.misd.image.gateway.conversion.zoomify.ZoomifyTileDirectoryExport;
+
+public class ConversionEventsTest {
+
+    private File testDir;
+    private RecordingListener listener;
+
+    @Before
+    public void setUp() {
+        testDir = new File("test_conversion_events_dir");
+        testDir.mkdir();
+        listener = new RecordingListener();
+        ConversionEvents.addListener(listener);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        ConversionEvents.removeListener(listener);
+        FileUtils.deleteDirectory(testDir);
+    }
+
+    @Test
+    public void testExport() throws Exception {
+        if (!ConversionEvents.isEnabled()) {
+            fail("Events are not enabled with a listener.");
+        }
+        new ZoomifyTileDirectoryExport(new MemoryImageSource(600, 400))
+                .export(testDir.getAbsolutePath());
+
+        // 6 full resolution tiles, 2 at zoom level 1 and 1 at zoom level 2
+        if (listener.encoded.size() != 9) {
+            fail(listener.encoded.size() + " tiles were encoded, expected 9");
+        }
+        if (!listener.written.equals(listener.encoded)) {
+            fail("The tiles written " + listener.written
+                    + " are not the tiles encoded " + listener.encoded);
+        }
+        if (!listener.written.contains("1-0-1")) {
+            fail("Tile 1-0-1 was not written.");
+        }
+        if (listener.levels.size() != 3 || listener.levels.get(0).longValue() != 6
+                || listener.levels.get(2).longValue() != 1) {
+            fail("Completed zoom levels were " + listener.levels);
+        }
+    }
+
+    @Test
+    public void testRemoveListener() throws Exception {
+        ConversionEvents.removeListener(listener);
+        new ZoomifyTileDirectoryExport(new MemoryImageSource(600, 400))
+                .export(testDir.getAbsolutePath());
+        if (!listener.written.isEmpty()) {
+            fail("A listener that was removed received events.");
+        }
+    }
+
+    @Test
+    public void testAddListener_null() {
+        try {
+            ConversionEvents.addListener(null);
+            fail("Added a null listener.");
+        } catch (final IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    private static final class RecordingListener implements
+            ConversionEventListener {
+        private final Set<String> encoded = Collections
+                .synchronizedSet(new HashSet<String>());
+        private final Set<String> written = Collections
+                .synchronizedSet(new HashSet<String>());
+        private final List<Long> levels = new Vector<Long>();
+
+        @Override
+        public void slideOpened(final String filename, final String format,
+                final int series, final long parseNanos) {
+        }
+
+        @Override
+        public void regionRead(final String filename, final long x,
+                final long y, final long width, final long height,
+                final long bytes, final long nanos) {
+        }
+
+        @Override
+        public void tileEncoded(final int level, final long row,
+                final long column, final long bytes, final long nanos) {
+            encoded.add(level + "-" + row + "-" + column);
+        }
+
+        @Override
+        public void tileWritten(final int level, final long row,
+                final long column, final long bytes, final long nanos) {
+            written.add(level + "-" + row + "-" + column);
+        }
+
+        @Override
+        public void levelCompleted(final int level, final long tiles,
+                final long nanos) {
+            levels.add(Long.valueOf(tiles));
+        }
+    }
+}
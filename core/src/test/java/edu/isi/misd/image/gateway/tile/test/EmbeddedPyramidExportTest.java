@@ -0,0 +1,227 @@
+package edu.isi.misd.image.gateway.tile.test;
+
+import static org.junit.Assert.fail;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import javax.imageio.ImageIO;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.isi.misd.image.gateway.conversion.tile.AbstractTileDirectoryExport;
+import edu.isi.misd.image.gateway.conversion.tile.JpegTileWriterImplementation;
+import edu.isi.misd.image.gateway.conversion.tile.TileWriter;
+import edu.isi.misd.image.gateway.conversion.tile.ZoomLevelConfiguration;
+import edu.isi.misd.image.gateway.conversion.tile.ZoomLevelConfigurationImplementation;
+import edu.isi.misd.image.gateway.conversion.zoomify.ZoomifyTileDirectoryExport;
+import edu.isi.misd.image.gateway.conversion.zoomify.ZoomifyTileNamingConvention;
+
+public class EmbeddedPyramidExportTest {
+
+    private static final int WIDTH = 1200, HEIGHT = 900;
+
+    private File testDir;
+    private MemoryImageSource source;
+
+    @Before
+    public void setUp() {
+        testDir = new File("test_embedded_pyramid_dir");
+        testDir.mkdir();
+        source = new MemoryImageSource(WIDTH, HEIGHT);
+        // reduced resolution level, rounded down like an SVS level
+        source.addSeries(WIDTH / 4 - 1, HEIGHT / 4 - 1);
+        // label image
+        source.addSeries(200, 80);
+    }
+
+    @Test
+    public void testExport_embeddedPyramid() throws Exception {
+        final ZoomifyTileDirectoryExport export = new ZoomifyTileDirectoryExport(
+                source);
+        export.setEmbeddedPyramid(true);
+        export.export(testDir.getAbsolutePath());
+
+        for (final long[] read : source.reads) {
+            if (read[4] == 2) {
+                fail("The label image was read.");
+            }
+        }
+        boolean seriesRead = false;
+        for (final long[] read : source.reads) {
+            seriesRead |= read[4] == 1;
+        }
+        if (!seriesRead) {
+            fail("The reduced resolution series was not read.");
+        }
+        if (source.getSeriesNumber() != 0) {
+            fail("The series was not restored after the export.");
+        }
+        checkTiles();
+    }
+
+    @Test
+    public void testExport_resumedBands() throws Exception {
+        final ZoomifyTileDirectoryExport failing = new ZoomifyTileDirectoryExport(
+                source) {
+            @Override
+            protected TileWriter getTileWriter(final String destination) {
+                return new JpegTileWriterImplementation(destination,
+                        namingConvention, zoomLevelConfiguration) {
+                    @Override
+                    public String write(final BufferedImage image,
+                            final int level, final long row,
+                            final long column) throws IOException {
+                        if (level == 2) {
+                            throw new IOException("Disk full.");
+                        }
+                        return super.write(image, level, row, column);
+                    }
+                };
+            }
+        };
+        failing.setEmbeddedPyramid(true);
+        try {
+            failing.export(testDir.getAbsolutePath());
+            fail("Export didn't stop at the reduced resolution series.");
+        } catch (final IOException e) {
+            // expected
+        }
+
+        // the resumed export starts with the reduced resolution series
+        source.reads.clear();
+        final ZoomifyTileDirectoryExport export = new ZoomifyTileDirectoryExport(
+                source);
+        final long maxBandBytes = 200000;
+        export.setEmbeddedPyramid(true);
+        export.setResume(true);
+        export.setReadMode(AbstractTileDirectoryExport.READ_BANDS);
+        export.setRowsPerBand(4);
+        export.setMaxBandBytes(maxBandBytes);
+        export.export(testDir.getAbsolutePath());
+
+        boolean seriesRead = false;
+        for (final long[] read : source.reads) {
+            seriesRead |= read[4] == 1;
+            // the source has 3 bytes per pixel in every series
+            if (read[2] * read[3] * 3 > maxBandBytes) {
+                fail("A " + read[2] + "x" + read[3] + " band of series "
+                        + read[4] + " is larger than " + maxBandBytes
+                        + " bytes.");
+            }
+        }
+        if (!seriesRead) {
+            fail("The reduced resolution series was not read.");
+        }
+        checkTiles();
+    }
+
+    @Test
+    public void testExport_fullResolutionOnly() throws Exception {
+        final ZoomifyTileDirectoryExport export = new ZoomifyTileDirectoryExport(
+                source);
+        export.export(testDir.getAbsolutePath());
+
+        for (final long[] read : source.reads) {
+            if (read[4] != 0) {
+                fail("Series " + read[4] + " was read.");
+            }
+        }
+        checkTiles();
+    }
+
+    @Test
+    public void testExport_pyramidTiff() throws Exception {
+        final ZoomifyTileDirectoryExport export = new ZoomifyTileDirectoryExport(
+                source);
+        final File tiff = new File(testDir, "pyramid.ptif");
+        export.setEmbeddedPyramid(true);
+        export.setPyramidTiffFilename(tiff.getAbsolutePath());
+        export.export(testDir.getAbsolutePath());
+
+        checkTiles();
+        final RandomAccessFile in = new RandomAccessFile(tiff, "r");
+        try {
+            if (in.read() != 'I' || in.read() != 'I' || in.read() != 42) {
+                fail("Pyramid TIFF file " + tiff + " was not written.");
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    @Test
+    public void testGetThumbnailImage() throws Exception {
+        final ZoomifyTileDirectoryExport export = new ZoomifyTileDirectoryExport(
+                source);
+        if (export.getThumbnailImage() != null) {
+            fail("getThumbnailImage() returned an image before the export.");
+        }
+        export.setInMemoryPyramid(false);
+        export.export(testDir.getAbsolutePath());
+
+        final BufferedImage thumbnail = export.getThumbnailImage();
+        if (thumbnail == null) {
+            fail("getThumbnailImage() returned null after the export.");
+        }
+        final BufferedImage tile = ImageIO.read(new File(testDir, export
+                .getThumbnailFilename(testDir.getAbsolutePath())));
+        if (thumbnail.getWidth() != tile.getWidth()
+                || thumbnail.getHeight() != tile.getHeight()) {
+            fail("Thumbnail is " + thumbnail.getWidth() + "x"
+                    + thumbnail.getHeight() + ", expected " + tile.getWidth()
+                    + "x" + tile.getHeight());
+        }
+    }
+
+    private void checkTiles() throws Exception {
+        final ZoomLevelConfiguration config = new ZoomLevelConfigurationImplementation(
+                WIDTH, HEIGHT, 256, 2.0);
+        final ZoomifyTileNamingConvention convention = new ZoomifyTileNamingConvention();
+        for (int l = 0; l < config.getNumberOfZoomLevels(); l++) {
+            final long levelWidth = (long) Math.ceil(WIDTH / Math.pow(2, l));
+            final long levelHeight = (long) Math.ceil(HEIGHT / Math.pow(2, l));
+            for (long r = 0; r < config.getNumberOfRows(l); r++) {
+                for (long c = 0; c < config.getNumberOfColumns(l); c++) {
+                    final File tile = new File(testDir,
+                            convention.getTileFileName(l, r, c, "jpg", config));
+                    if (!tile.exists()) {
+                        fail("Tile " + tile + " was not written.");
+                    }
+                    final BufferedImage image = ImageIO.read(tile);
+                    final long w = Math.min(256, levelWidth - c * 256);
+                    final long h = Math.min(256, levelHeight - r * 256);
+                    if (Math.abs(image.getWidth() - w) > 1
+                            || Math.abs(image.getHeight() - h) > 1) {
+                        fail("Tile " + tile + " is " + image.getWidth() + "x"
+                                + image.getHeight() + ", expected " + w + "x"
+                                + h);
+                    }
+                }
+            }
+        }
+    }
+
+    @After
+    public void tearDown() {
+        removeDir(testDir);
+    }
+
+    private void removeDir(final File dir) {
+        final File[] files = dir.listFiles();
+        if (files != null) {
+            for (final File f : files) {
+                if (f.isDirectory()) {
+                    removeDir(f);
+                } else {
+                    f.delete();
+                }
+            }
+        }
+        dir.delete();
+    }
+}
@@ -0,0 +1,154 @@
+package edu.isi.misd.image.gateway.tile.test;
+
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+
+import javax.management.ObjectName;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.isi.misd.image.gateway.conversion.tile.ExportMetrics;
+import edu.isi.misd.image.gateway.conversion.zoomify.ZoomifyTileDirectoryExport;
+
+public class ExportMetricsTest {
+
+    private File testDir;
+
+    @Before
+    public void setUp() {
+        testDir = new File("test_export_metrics_dir");
+        testDir.mkdir();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        FileUtils.deleteDirectory(testDir);
+    }
+
+    @Test
+    public void testRecord() {
+        final ExportMetrics metrics = new ExportMetrics(2);
+        metrics.record(ExportMetrics.READ, 0, 1000, 100);
+        metrics.record(ExportMetrics.READ, 1, 3000, 50);
+        metrics.record(ExportMetrics.WRITE, 1, 500, 0);
+
+        if (metrics.getCount(ExportMetrics.READ, -1) != 2
+                || metrics.getCount(ExportMetrics.READ, 1) != 1) {
+            fail("Read counts are wrong.");
+        }
+        if (metrics.getNanos(ExportMetrics.READ, -1) != 4000) {
+            fail("Read time was " + metrics.getNanos(ExportMetrics.READ, -1)
+                    + " ns, expected 4000");
+        }
+        if (metrics.getBytes(ExportMetrics.READ, -1) != 150) {
+            fail("Read bytes were " + metrics.getBytes(ExportMetrics.READ, -1)
+                    + ", expected 150");
+        }
+        if (metrics.getCount(ExportMetrics.ENCODE, -1) != 0) {
+            fail("Encode ran without being recorded.");
+        }
+    }
+
+    @Test
+    public void testGetPercentileNanos() {
+        final ExportMetrics metrics = new ExportMetrics(1);
+        for (int i = 0; i < 99; i++) {
+            metrics.record(ExportMetrics.ENCODE, 0, 1000, 0);
+        }
+        metrics.record(ExportMetrics.ENCODE, 0, 1000000, 0);
+
+        final long median = metrics.getPercentileNanos(ExportMetrics.ENCODE,
+                0, 0.5);
+        if (median < 1000 || median >= 2000) {
+            fail("Median was " + median + " ns, expected about 1000");
+        }
+        final long max = metrics.getPercentileNanos(ExportMetrics.ENCODE, 0,
+                1.0);
+        if (max < 1000000 || max >= 2000000) {
+            fail("Maximum was " + max + " ns, expected about 1000000");
+        }
+        if (metrics.getPercentileNanos(ExportMetrics.WRITE, 0, 0.5) != 0) {
+            fail("Stage that didn't run has a latency.");
+        }
+    }
+
+    @Test
+    public void testGetSummary() {
+        final ExportMetrics metrics = new ExportMetrics(1);
+        metrics.record(ExportMetrics.READ, 0, 1000, 1024);
+        metrics.record(ExportMetrics.ENCODE, 0, 5000, 0);
+        metrics.stop();
+
+        final String summary = metrics.getSummary();
+        if (summary.indexOf("read 1 x") < 0
+                || summary.indexOf("encode 1 x") < 0
+                || summary.indexOf("write") >= 0) {
+            fail("Summary doesn't list the stages that ran: " + summary);
+        }
+        if (!summary.endsWith("slowest stage: encode")) {
+            fail("Summary doesn't name the slowest stage: " + summary);
+        }
+    }
+
+    @Test
+    public void testRecord_invalidLevel() {
+        final ExportMetrics metrics = new ExportMetrics(1);
+        try {
+            metrics.record(ExportMetrics.READ, 1, 1000, 0);
+            fail("Recorded a zoom level that doesn't exist.");
+        } catch (final IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testRegister() throws Exception {
+        final ExportMetrics metrics = new ExportMetrics(1);
+        final ObjectName name = new ObjectName(
+                "edu.isi.misd.image.gateway:type=ExportMetrics,name="
+                        + ObjectName.quote("test"));
+        metrics.register("test");
+        try {
+            if (!ManagementFactory.getPlatformMBeanServer().isRegistered(
+                    name)) {
+                fail("Metrics were not registered.");
+            }
+        } finally {
+            metrics.unregister();
+        }
+        if (ManagementFactory.getPlatformMBeanServer().isRegistered(name)) {
+            fail("Metrics were not unregistered.");
+        }
+    }
+
+    @Test
+    public void testExport() throws Exception {
+        final ZoomifyTileDirectoryExport export = new ZoomifyTileDirectoryExport(
+                new MemoryImageSource(600, 400));
+        export.export(testDir.getAbsolutePath());
+
+        final ExportMetrics metrics = export.getMetrics();
+        if (metrics == null) {
+            fail("Export has no metrics.");
+        }
+        if (metrics.getCount(ExportMetrics.READ, 0) != 6) {
+            fail(metrics.getCount(ExportMetrics.READ, 0)
+                    + " reads were recorded, expected 6");
+        }
+        // 6 full resolution tiles, 2 at zoom level 1 and 1 at zoom level 2
+        if (metrics.getCount(ExportMetrics.ENCODE, -1) != 9
+                || metrics.getCount(ExportMetrics.WRITE, -1) != 9) {
+            fail("Tile writes were not all recorded: " + metrics.getSummary());
+        }
+        if (metrics.getCount(ExportMetrics.DOWNSAMPLE, 1) != 2
+                || metrics.getCount(ExportMetrics.DOWNSAMPLE, 2) != 1) {
+            fail("Lower zoom level tiles were not all recorded: "
+                    + metrics.getSummary());
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package edu.isi.misd.image.gateway.tile.test;
+
+import static org.junit.Assert.fail;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.util.Arrays;
+
+import javax.imageio.ImageIO;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.isi.misd.image.gateway.conversion.tile.JpegTileEncoder;
+
+public class JpegTileEncoderTest {
+
+    private static final String testFile = JpegTileEncoderTest.class
+            .getResource("/test.jpg").getPath();
+    private BufferedImage image;
+
+    @Before
+    public void setUp() throws Exception {
+        image = ImageIO.read(new File(testFile));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testConstructor_badQuality() {
+        new JpegTileEncoder(1.5f, false, JpegTileEncoder.CHROMA_420);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testConstructor_badSubsampling() {
+        new JpegTileEncoder(0.8f, false, 7);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testEncode_nullImage() throws Exception {
+        new JpegTileEncoder().encode(null);
+    }
+
+    @Test
+    public void testEncode_default() throws Exception {
+        final ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        ImageIO.write(image, "jpg", expected);
+        final JpegTileEncoder encoder = new JpegTileEncoder();
+        // the second encode reuses the writer and buffer of this thread
+        for (int i = 0; i < 2; i++) {
+            if (!Arrays.equals(expected.toByteArray(), encoder.encode(image))) {
+                fail("encode() with the default settings differs from ImageIO.write()");
+            }
+        }
+    }
+
+    @Test
+    public void testEncode_quality() throws Exception {
+        final byte[] low = new JpegTileEncoder(0.2f, false,
+                JpegTileEncoder.CHROMA_420).encode(image);
+        final byte[] high = new JpegTileEncoder(0.95f, false,
+                JpegTileEncoder.CHROMA_420).encode(image);
+        if (low.length >= high.length) {
+            fail("Quality 0.2 encoded " + low.length
+                    + " bytes, quality 0.95 encoded " + high.length);
+        }
+    }
+
+    @Test
+    public void testEncode_optimizeHuffman() throws Exception {
+        final byte[] standard = new JpegTileEncoder().encode(image);
+        final byte[] optimized = new JpegTileEncoder(
+                JpegTileEncoder.DEFAULT_QUALITY, true,
+                JpegTileEncoder.CHROMA_420).encode(image);
+        if (optimized.length > standard.length) {
+            fail("Optimized Huffman tables encoded " + optimized.length
+                    + " bytes, standard tables encoded " + standard.length);
+        }
+    }
+
+    @Test
+    public void testEncode_subsampling() throws Exception {
+        checkSubsampling(JpegTileEncoder.CHROMA_420, 0x22);
+        checkSubsampling(JpegTileEncoder.CHROMA_422, 0x21);
+        checkSubsampling(JpegTileEncoder.CHROMA_444, 0x11);
+    }
+
+    @Test
+    public void testEncode_subsamplingSizes() throws Exception {
+        // the encoder reuses its settings for tiles of other sizes
+        final JpegTileEncoder encoder = new JpegTileEncoder(
+                JpegTileEncoder.DEFAULT_QUALITY, false,
+                JpegTileEncoder.CHROMA_444);
+        final int[] sizes = { 150, 100, 37 };
+        for (final int size : sizes) {
+            final BufferedImage decoded = ImageIO
+                    .read(new ByteArrayInputStream(encoder.encode(image
+                            .getSubimage(0, 0, size, size / 2))));
+            if (decoded.getWidth() != size || decoded.getHeight() != size / 2) {
+                fail("Decoded tile is " + decoded.getWidth() + "x"
+                        + decoded.getHeight() + ", expected " + size + "x"
+                        + size / 2);
+            }
+        }
+    }
+
+    @Test
+    public void testWrite() throws Exception {
+        final File f = File.createTempFile("tile", ".jpg");
+        try {
+            final JpegTileEncoder encoder = new JpegTileEncoder();
+            encoder.write(image, f);
+            if (!Arrays.equals(encoder.encode(image),
+                    FileUtils.readFileToByteArray(f))) {
+                fail("write() wrote different data than encode() returned");
+            }
+        } finally {
+            f.delete();
+        }
+    }
+
+    private void checkSubsampling(final int subsampling, final int factors)
+            throws Exception {
+        final byte[] jpeg = new JpegTileEncoder(
+                JpegTileEncoder.DEFAULT_QUALITY, false, subsampling)
+                .encode(image);
+        for (int i = 0; i < jpeg.length - 12; i++) {
+            // baseline start of frame: the luminance sampling factors follow
+            // the length, precision, dimensions, and number of components
+            if ((jpeg[i] & 0xff) == 0xff && (jpeg[i + 1] & 0xff) == 0xc0) {
+                if ((jpeg[i + 11] & 0xff) != factors) {
+                    fail("Sampling factors are "
+                            + Integer.toHexString(jpeg[i + 11] & 0xff)
+                            + ", expected " + Integer.toHexString(factors));
+                }
+                final BufferedImage decoded = ImageIO
+                        .read(new ByteArrayInputStream(jpeg));
+                if (decoded.getWidth() != image.getWidth()
+                        || decoded.getHeight() != image.getHeight()) {
+                    fail("Decoded image is " + decoded.getWidth() + "x"
+                            + decoded.getHeight());
+                }
+                return;
+            }
+        }
+        fail("No start of frame marker found.");
+    }
+}
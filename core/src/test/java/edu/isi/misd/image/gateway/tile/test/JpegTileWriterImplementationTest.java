@@ -5,6 +5,8 @@ import static org.junit.Assert.fail;
 import java.awt.image.BufferedImage;
 import java.io.File;
 
+import org.apache.commons.io.FileUtils;
+
 import javax.imageio.ImageIO;
 
 import org.junit.After;
@@ -106,6 +108,24 @@ public class JpegTileWriterImplementationTest {
         }
     }
 
+    @Test(expected = IllegalArgumentException.class)
+    public void testWriteEncoded_nullData() throws Exception {
+        writer.writeEncoded(null, 0, 0, 0);
+    }
+
+    @Test
+    public void testWriteEncoded() throws Exception {
+        final File source = new File(testFile);
+        final JpegTileWriterImplementation levelWriter = new JpegTileWriterImplementation(
+                testDir, namingConvention,
+                new ZoomLevelConfigurationImplementation(512, 512, 256, 2.0));
+        final String tileName = levelWriter.writeEncoded(
+                FileUtils.readFileToByteArray(source), 0, 0, 0);
+        if (!FileUtils.contentEquals(source, new File(tileName))) {
+            fail("writeEncoded() did not copy the data to " + tileName);
+        }
+    }
+
     @After
     public void tearDown() {
         removeDir(new File(testDir));
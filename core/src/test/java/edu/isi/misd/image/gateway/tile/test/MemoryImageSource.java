@@ -0,0 +1,179 @@
+package edu.isi.misd.image.gateway.tile.test;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import javax.imageio.ImageIO;
+
+import edu.isi.misd.image.gateway.conversion.ImageSource;
+import edu.isi.misd.image.gateway.conversion.tile.TileUtils;
+
+/**
+ * Image source backed by an image in memory, that records the regions read
+ * from it.
+ */
+class MemoryImageSource implements ImageSource {
+
+    private final List<BufferedImage> series = new ArrayList<BufferedImage>();
+    private BufferedImage image;
+    private int seriesNumber = 0;
+    private final int tileWidth, tileHeight;
+    final List<long[]> reads = new ArrayList<long[]>();
+    int closeCount = 0;
+    boolean compressedTiles = false;
+
+    MemoryImageSource(final int width, final int height) {
+        this(width, height, width, 1);
+    }
+
+    MemoryImageSource(final int width, final int height,
+            final int optimalTileWidth, final int optimalTileHeight) {
+        tileWidth = optimalTileWidth;
+        tileHeight = optimalTileHeight;
+        addSeries(width, height);
+        image = series.get(0);
+    }
+
+    /**
+     * Adds another series, such as a reduced resolution level.
+     */
+    void addSeries(final int width, final int height) {
+        final BufferedImage newImage = new BufferedImage(width, height,
+                BufferedImage.TYPE_3BYTE_BGR);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                newImage.setRGB(x, y, (x * 31 + y * 17) & 0xffffff);
+            }
+        }
+        series.add(newImage);
+    }
+
+    /**
+     * Fills a region of the current series with a color.
+     */
+    void fill(final int x, final int y, final int width, final int height,
+            final int rgb) {
+        for (int j = y; j < y + height; j++) {
+            for (int i = x; i < x + width; i++) {
+                image.setRGB(i, j, rgb);
+            }
+        }
+    }
+
+    int getRGB(final int x, final int y) {
+        return image.getRGB(x, y);
+    }
+
+    @Override
+    public byte[] readBytes(final long x, final long y, final long width,
+            final long height) throws IOException {
+        return new byte[(int) (width * height * 3)];
+    }
+
+    @Override
+    public synchronized BufferedImage readImage(final long x, final long y,
+            final long width, final long height) throws IOException {
+        reads.add(new long[] { x, y, width, height, seriesNumber });
+        return TileUtils.cropImage(image, (int) x, (int) y, (int) width,
+                (int) height);
+    }
+
+    @Override
+    public byte[] readCompressedTile(final long x, final long y,
+            final long width, final long height) throws IOException {
+        if (!compressedTiles) {
+            return null;
+        }
+        // stored as JPEG, like the tiles of a whole slide image
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(TileUtils.cropImage(image, (int) x, (int) y,
+                (int) width, (int) height), "jpg", out);
+        return out.toByteArray();
+    }
+
+    @Override
+    public long getWidth() {
+        return image.getWidth();
+    }
+
+    @Override
+    public long getHeight() {
+        return image.getHeight();
+    }
+
+    @Override
+    public int getOptimalTileWidth() {
+        return tileWidth;
+    }
+
+    @Override
+    public int getOptimalTileHeight() {
+        return tileHeight;
+    }
+
+    @Override
+    public String getFilename() {
+        return "memory";
+    }
+
+    @Override
+    public int getSeriesNumber() {
+        return seriesNumber;
+    }
+
+    @Override
+    public int getImageNumber() {
+        return 0;
+    }
+
+    @Override
+    public void close() throws IOException {
+        closeCount++;
+    }
+
+    @Override
+    public Map<String, Object> getGlobalMetadata() {
+        return Collections.emptyMap();
+    }
+
+    @Override
+    public Map<String, Object> getSeriesMetadata() {
+        return Collections.emptyMap();
+    }
+
+    @Override
+    public Object getMetadataValue(final String key) {
+        return null;
+    }
+
+    @Override
+    public Object getSeriesMetadataValue(final String key) {
+        return null;
+    }
+
+    @Override
+    public void setSeriesNumber(final int seriesNumber) {
+        this.seriesNumber = seriesNumber;
+        image = series.get(seriesNumber);
+    }
+
+    @Override
+    public int getSeriesCount() {
+        return series.size();
+    }
+
+    @Override
+    public List<String> getRelevantFiles() {
+        return Collections.emptyList();
+    }
+
+    @Override
+    public BufferedImage getThumbnailImage() {
+        return null;
+    }
+}
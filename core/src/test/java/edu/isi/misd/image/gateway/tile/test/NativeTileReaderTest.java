@@ -0,0 +1,82 @@
+package edu.isi.misd.image.gateway.tile.test;
+
+import static org.junit.Assert.fail;
+
+import java.awt.image.BufferedImage;
+
+import org.junit.Test;
+
+import edu.isi.misd.image.gateway.conversion.tile.NativeTileReader;
+
+public class NativeTileReaderTest {
+
+    private static final int WIDTH = 100, HEIGHT = 70, TILE_SIZE = 16;
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testConstructor_nullSource() {
+        new NativeTileReader(null, 10, 10);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testConstructor_zeroSize() {
+        new NativeTileReader(new MemoryImageSource(WIDTH, HEIGHT), 0, 10);
+    }
+
+    @Test
+    public void testRead_smallerNativeTiles() throws Exception {
+        readAllTiles(12, 10);
+    }
+
+    @Test
+    public void testRead_largerNativeTiles() throws Exception {
+        readAllTiles(40, 24);
+    }
+
+    @Test
+    public void testRead_sameNativeTiles() throws Exception {
+        readAllTiles(TILE_SIZE, TILE_SIZE);
+    }
+
+    private static void readAllTiles(final int nativeWidth,
+            final int nativeHeight) throws Exception {
+        final MemoryImageSource source = new MemoryImageSource(WIDTH, HEIGHT,
+                nativeWidth, nativeHeight);
+        final NativeTileReader reader = new NativeTileReader(source,
+                nativeWidth, nativeHeight);
+        for (int y = 0; y < HEIGHT; y += TILE_SIZE) {
+            for (int x = 0; x < WIDTH; x += TILE_SIZE) {
+                final int w = Math.min(TILE_SIZE, WIDTH - x);
+                final int h = Math.min(TILE_SIZE, HEIGHT - y);
+                final BufferedImage tile = reader.read(x, y, w, h);
+                if (tile.getWidth() != w || tile.getHeight() != h) {
+                    fail("Tile at " + x + "x" + y + " is " + tile.getWidth()
+                            + "x" + tile.getHeight() + ", expected " + w + "x"
+                            + h);
+                }
+                for (int ty = 0; ty < h; ty++) {
+                    for (int tx = 0; tx < w; tx++) {
+                        if (tile.getRGB(tx, ty) != source.getRGB(x + tx, y
+                                + ty)) {
+                            fail("Tile at " + x + "x" + y
+                                    + " doesn't match the source at " + tx
+                                    + "x" + ty);
+                        }
+                    }
+                }
+            }
+        }
+        final int nativeTiles = ((WIDTH + nativeWidth - 1) / nativeWidth)
+                * ((HEIGHT + nativeHeight - 1) / nativeHeight);
+        if (source.reads.size() != nativeTiles
+                || reader.getNativeTilesRead() != nativeTiles) {
+            fail("Read " + source.reads.size() + " native tiles, expected "
+                    + nativeTiles);
+        }
+        for (final long[] read : source.reads) {
+            if (read[0] % nativeWidth != 0 || read[1] % nativeHeight != 0) {
+                fail("Read at " + read[0] + "x" + read[1]
+                        + " is not aligned to the native tiles.");
+            }
+        }
+    }
+}
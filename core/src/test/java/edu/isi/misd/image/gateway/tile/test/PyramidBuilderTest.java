@@ -0,0 +1,275 @@
+package edu.isi.misd.image.gateway.tile.test;
+
+import static org.junit.Assert.fail;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.isi.misd.image.gateway.conversion.tile.PyramidBuilder;
+import edu.isi.misd.image.gateway.conversion.tile.TileNamingConvention;
+import edu.isi.misd.image.gateway.conversion.tile.TileWriter;
+import edu.isi.misd.image.gateway.conversion.tile.ZoomLevelConfiguration;
+import edu.isi.misd.image.gateway.conversion.tile.ZoomLevelConfigurationImplementation;
+import edu.isi.misd.image.gateway.conversion.zoomify.ZoomifyTileNamingConvention;
+
+public class PyramidBuilderTest {
+
+    private static final int WIDTH = 1000, HEIGHT = 600, TILE_SIZE = 256;
+
+    private ZoomLevelConfiguration config;
+    private RecordingTileWriter writer;
+
+    @Before
+    public void setUp() {
+        config = new ZoomLevelConfigurationImplementation(WIDTH, HEIGHT,
+                TILE_SIZE, 2.0);
+        writer = new RecordingTileWriter(config);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testConstructor_nullWriter() {
+        new PyramidBuilder(null);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testConstructor_badLevel() {
+        new PyramidBuilder(writer, config.getNumberOfZoomLevels());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testAddTile_nullImage() throws Exception {
+        new PyramidBuilder(writer).addTile(null, 0, 0, 0);
+    }
+
+    @Test
+    public void testAddTile() throws Exception {
+        final PyramidBuilder pyramid = new PyramidBuilder(writer);
+        for (int r = 0; r < config.getNumberOfRows(0); r++) {
+            for (int c = 0; c < config.getNumberOfColumns(0); c++) {
+                final int w = Math.min(TILE_SIZE, WIDTH - c * TILE_SIZE);
+                final int h = Math.min(TILE_SIZE, HEIGHT - r * TILE_SIZE);
+                pyramid.addTile(new BufferedImage(w, h,
+                        BufferedImage.TYPE_3BYTE_BGR), 0, r, c);
+            }
+        }
+        if (!pyramid.isComplete()) {
+            fail("isComplete() returned false after all tiles were added.");
+        }
+        for (int l = 1; l < config.getNumberOfZoomLevels(); l++) {
+            for (int r = 0; r < config.getNumberOfRows(l); r++) {
+                for (int c = 0; c < config.getNumberOfColumns(l); c++) {
+                    final BufferedImage tile = writer.tiles.get(l + "-" + r
+                            + "-" + c);
+                    if (tile == null) {
+                        fail("Tile " + l + "-" + r + "-" + c
+                                + " was not written.");
+                    }
+                    final int w = (int) Math.min(TILE_SIZE,
+                            Math.ceil(WIDTH / Math.pow(2, l)) - c * TILE_SIZE);
+                    final int h = (int) Math.min(TILE_SIZE,
+                            Math.ceil(HEIGHT / Math.pow(2, l)) - r
+                                    * TILE_SIZE);
+                    if (tile.getWidth() != w || tile.getHeight() != h) {
+                        fail("Tile " + l + "-" + r + "-" + c + " is "
+                                + tile.getWidth() + "x" + tile.getHeight()
+                                + ", expected " + w + "x" + h);
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testAddTile_executor() throws Exception {
+        final ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            final PyramidBuilder pyramid = new PyramidBuilder(writer);
+            pyramid.setExecutor(executor, 1);
+            for (int r = 0; r < config.getNumberOfRows(0); r++) {
+                for (int c = 0; c < config.getNumberOfColumns(0); c++) {
+                    final int w = Math.min(TILE_SIZE, WIDTH - c * TILE_SIZE);
+                    final int h = Math.min(TILE_SIZE, HEIGHT - r * TILE_SIZE);
+                    pyramid.addTile(new BufferedImage(w, h,
+                            BufferedImage.TYPE_3BYTE_BGR), 0, r, c);
+                }
+            }
+            pyramid.flush();
+            if (!pyramid.isComplete()) {
+                fail("isComplete() returned false after flush().");
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        for (int l = 1; l < config.getNumberOfZoomLevels(); l++) {
+            for (int r = 0; r < config.getNumberOfRows(l); r++) {
+                for (int c = 0; c < config.getNumberOfColumns(l); c++) {
+                    if (!writer.tiles.containsKey(l + "-" + r + "-" + c)) {
+                        fail("Tile " + l + "-" + r + "-" + c
+                                + " was not written.");
+                    }
+                }
+            }
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testFlush_rows() throws Exception {
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+        writer.blockedRow = 1;
+        try {
+            final PyramidBuilder pyramid = new PyramidBuilder(writer);
+            pyramid.setExecutor(executor, 4);
+            for (int r = 0; r < config.getNumberOfRows(0); r++) {
+                for (int c = 0; c < config.getNumberOfColumns(0); c++) {
+                    final int w = Math.min(TILE_SIZE, WIDTH - c * TILE_SIZE);
+                    final int h = Math.min(TILE_SIZE, HEIGHT - r * TILE_SIZE);
+                    pyramid.addTile(new BufferedImage(w, h,
+                            BufferedImage.TYPE_3BYTE_BGR), 0, r, c);
+                }
+            }
+            // the parents of row 2 are held back, and aren't waited for
+            pyramid.flush(0, 0, 2);
+            synchronized (writer) {
+                for (int c = 0; c < config.getNumberOfColumns(1); c++) {
+                    if (!writer.tiles.containsKey("1-0-" + c)) {
+                        fail("Tile 1-0-" + c + " was not written.");
+                    }
+                    if (writer.tiles.containsKey("1-1-" + c)) {
+                        fail("Tile 1-1-" + c + " was written too soon.");
+                    }
+                }
+            }
+            writer.release.countDown();
+            pyramid.flush(0, 2, 3);
+            if (!pyramid.isComplete()) {
+                fail("isComplete() returned false after flush().");
+            }
+        } finally {
+            writer.release.countDown();
+            executor.shutdownNow();
+        }
+        for (int l = 1; l < config.getNumberOfZoomLevels(); l++) {
+            for (int r = 0; r < config.getNumberOfRows(l); r++) {
+                for (int c = 0; c < config.getNumberOfColumns(l); c++) {
+                    if (!writer.tiles.containsKey(l + "-" + r + "-" + c)) {
+                        fail("Tile " + l + "-" + r + "-" + c
+                                + " was not written.");
+                    }
+                }
+            }
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testSetExecutor_noWaitingParents() {
+        new PyramidBuilder(writer).setExecutor(null, 0);
+    }
+
+    @Test
+    public void testAddTile_averaged() throws Exception {
+        final PyramidBuilder pyramid = new PyramidBuilder(writer);
+        for (int r = 0; r < config.getNumberOfRows(0); r++) {
+            for (int c = 0; c < config.getNumberOfColumns(0); c++) {
+                final int w = Math.min(TILE_SIZE, WIDTH - c * TILE_SIZE);
+                final int h = Math.min(TILE_SIZE, HEIGHT - r * TILE_SIZE);
+                final BufferedImage tile = new BufferedImage(w, h,
+                        BufferedImage.TYPE_3BYTE_BGR);
+                final int rgb = (r + c) % 2 == 0 ? 0x000000 : 0xffffff;
+                for (int y = 0; y < h; y++) {
+                    for (int x = 0; x < w; x++) {
+                        tile.setRGB(x, y, rgb);
+                    }
+                }
+                pyramid.addTile(tile, 0, r, c);
+            }
+        }
+        final BufferedImage tile = writer.tiles.get("1-0-0");
+        if (tile.getType() != BufferedImage.TYPE_3BYTE_BGR) {
+            fail("Tile 1-0-0 type changed to " + tile.getType());
+        }
+        if ((tile.getRGB(10, 10) & 0xffffff) != 0x000000
+                || (tile.getRGB(200, 10) & 0xffffff) != 0xffffff
+                || (tile.getRGB(10, 200) & 0xffffff) != 0xffffff
+                || (tile.getRGB(200, 200) & 0xffffff) != 0x000000) {
+            fail("Tile 1-0-0 was not averaged from its children.");
+        }
+    }
+
+    /**
+     * Tile writer that keeps the lower zoom level tiles in memory.
+     */
+    private static final class RecordingTileWriter implements TileWriter {
+        private final ZoomLevelConfiguration config;
+        private final TileNamingConvention convention = new ZoomifyTileNamingConvention();
+        private final Map<String, BufferedImage> tiles = new HashMap<String, BufferedImage>();
+        private final CountDownLatch release = new CountDownLatch(1);
+        private volatile long blockedRow = -1;
+
+        private RecordingTileWriter(final ZoomLevelConfiguration config) {
+            this.config = config;
+        }
+
+        @Override
+        public String write(final BufferedImage image, final int level,
+                final long row, final long column) throws IOException {
+            if (level == 1 && row == blockedRow) {
+                try {
+                    release.await();
+                } catch (final InterruptedException e) {
+                    throw new IOException("Interrupted.");
+                }
+            }
+            return record(image, level, row, column);
+        }
+
+        private synchronized String record(final BufferedImage image,
+                final int level, final long row, final long column) {
+            final String key = level + "-" + row + "-" + column;
+            // the pyramid builder reuses the images it writes
+            final BufferedImage copy = new BufferedImage(image.getColorModel(),
+                    image.copyData(null), image.isAlphaPremultiplied(), null);
+            if (tiles.put(key, copy) != null) {
+                fail("Tile " + key + " was written more than once.");
+            }
+            return key;
+        }
+
+        @Override
+        public String writeEncoded(final byte[] data, final int level,
+                final long row, final long column) throws IOException {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public String getExtension() {
+            return "jpg";
+        }
+
+        @Override
+        public TileNamingConvention getTileNamingConvention() {
+            return convention;
+        }
+
+        @Override
+        public String getDestinationDirectory() {
+            return null;
+        }
+
+        @Override
+        public ZoomLevelConfiguration getZoomLevelConfiguration() {
+            return config;
+        }
+    }
+}
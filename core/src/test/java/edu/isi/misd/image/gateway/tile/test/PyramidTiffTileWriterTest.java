@@ -0,0 +1,349 @@
+package edu.isi.misd.image.gateway.tile.test;
+
+import static org.junit.Assert.fail;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriter;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataNode;
+import javax.imageio.stream.ImageOutputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+import edu.isi.misd.image.gateway.conversion.tile.JpegTileEncoder;
+import edu.isi.misd.image.gateway.conversion.tile.PyramidBuilder;
+import edu.isi.misd.image.gateway.conversion.tile.PyramidTiffTileWriter;
+import edu.isi.misd.image.gateway.conversion.tile.ZoomLevelConfiguration;
+import edu.isi.misd.image.gateway.conversion.tile.ZoomLevelConfigurationImplementation;
+
+public class PyramidTiffTileWriterTest {
+
+    private static final int WIDTH = 600, HEIGHT = 400, TILE_SIZE = 256;
+
+    private ZoomLevelConfiguration config;
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        config = new ZoomLevelConfigurationImplementation(WIDTH, HEIGHT,
+                TILE_SIZE, 2.0);
+        file = File.createTempFile("pyramid", ".ptif");
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testConstructor_badTileSize() throws Exception {
+        new PyramidTiffTileWriter(file.getPath(), WIDTH, HEIGHT, 250, config,
+                new JpegTileEncoder());
+    }
+
+    @Test(expected = IOException.class)
+    public void testClose_missingTile() throws Exception {
+        final PyramidTiffTileWriter writer = new PyramidTiffTileWriter(
+                file.getPath(), WIDTH, HEIGHT, TILE_SIZE, config,
+                new JpegTileEncoder());
+        writer.write(new BufferedImage(TILE_SIZE, TILE_SIZE,
+                BufferedImage.TYPE_3BYTE_BGR), 0, 0, 0);
+        writer.close();
+    }
+
+    @Test
+    public void testWrite() throws Exception {
+        final PyramidTiffTileWriter writer = new PyramidTiffTileWriter(
+                file.getPath(), WIDTH, HEIGHT, TILE_SIZE, config,
+                new JpegTileEncoder());
+        final PyramidBuilder pyramid = new PyramidBuilder(writer);
+        for (int r = 0; r < config.getNumberOfRows(0); r++) {
+            for (int c = 0; c < config.getNumberOfColumns(0); c++) {
+                final int w = Math.min(TILE_SIZE, WIDTH - c * TILE_SIZE);
+                final int h = Math.min(TILE_SIZE, HEIGHT - r * TILE_SIZE);
+                final BufferedImage tile = new BufferedImage(w, h,
+                        BufferedImage.TYPE_3BYTE_BGR);
+                for (int y = 0; y < h; y++) {
+                    for (int x = 0; x < w; x++) {
+                        tile.setRGB(x, y, 0xff0000);
+                    }
+                }
+                pyramid.addTile(tile, 0, r, c);
+                writer.write(tile, 0, r, c);
+            }
+        }
+        writer.close();
+
+        final RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            final byte[] data = new byte[(int) in.length()];
+            in.readFully(data);
+            final ByteBuffer tiff = ByteBuffer.wrap(data).order(
+                    ByteOrder.LITTLE_ENDIAN);
+            if (tiff.getShort(0) != 0x4949 || tiff.getShort(2) != 42) {
+                fail("File doesn't start with a little endian TIFF header.");
+            }
+            final Map<Integer, long[]> main = readDirectory(tiff,
+                    tiff.getInt(4));
+            checkLevel(data, main, 0, WIDTH, HEIGHT);
+            final long[] subIfds = main.get(Integer.valueOf(330));
+            if (subIfds == null
+                    || subIfds.length != config.getNumberOfZoomLevels() - 1) {
+                fail("Main image doesn't list the reduced resolution images.");
+            }
+            for (int l = 1; l < config.getNumberOfZoomLevels(); l++) {
+                final Map<Integer, long[]> reduced = readDirectory(tiff,
+                        (int) subIfds[l - 1]);
+                if (reduced.get(Integer.valueOf(254))[0] != 1) {
+                    fail("Zoom level " + l
+                            + " isn't marked as reduced resolution.");
+                }
+                checkLevel(data, reduced, l,
+                        (int) Math.ceil(WIDTH / Math.pow(2, l)),
+                        (int) Math.ceil(HEIGHT / Math.pow(2, l)));
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    @Test
+    public void testWriteEncoded_otherSubsampling() throws Exception {
+        final byte[] tile = createTile(new JpegTileEncoder(
+                JpegTileEncoder.DEFAULT_QUALITY, false,
+                JpegTileEncoder.CHROMA_444));
+        if (getSampling(tile) != 0x11) {
+            fail("The source tile isn't 4:4:4.");
+        }
+        final byte[] written = writeFirstTile(tile);
+        if (getSampling(written) != 0x22) {
+            fail("A 4:4:4 tile was copied into a 4:2:0 file.");
+        }
+    }
+
+    @Test
+    public void testWriteEncoded_rgb() throws Exception {
+        final BufferedImage image = new BufferedImage(TILE_SIZE, TILE_SIZE,
+                BufferedImage.TYPE_3BYTE_BGR);
+        for (int y = 0; y < TILE_SIZE; y++) {
+            for (int x = 0; x < TILE_SIZE; x++) {
+                image.setRGB(x, y, 0xff0000);
+            }
+        }
+        final byte[] rgb = encodeRgb(image);
+        if (indexOf(rgb, "Adobe".getBytes("US-ASCII")) < 0) {
+            fail("The source tile has no Adobe segment.");
+        }
+        final byte[] written = writeFirstTile(rgb);
+        if (indexOf(written, "Adobe".getBytes("US-ASCII")) >= 0
+                || getSampling(written) != 0x22) {
+            fail("An RGB coded tile was copied into a YCbCr file.");
+        }
+    }
+
+    /**
+     * Encodes an image as RGB, with an Adobe segment instead of a JFIF one.
+     */
+    private static byte[] encodeRgb(final BufferedImage image)
+            throws IOException {
+        final ImageWriter writer = ImageIO.getImageWritersByFormatName("jpg")
+                .next();
+        try {
+            final IIOMetadata metadata = writer.getDefaultImageMetadata(
+                    new ImageTypeSpecifier(image), null);
+            final String format = "javax_imageio_jpeg_image_1.0";
+            final IIOMetadataNode tree = (IIOMetadataNode) metadata
+                    .getAsTree(format);
+            final Node variety = tree.getElementsByTagName("JPEGvariety")
+                    .item(0);
+            while (variety.getFirstChild() != null) {
+                variety.removeChild(variety.getFirstChild());
+            }
+            final IIOMetadataNode adobe = new IIOMetadataNode("app14Adobe");
+            adobe.setAttribute("transform", "0");
+            tree.getElementsByTagName("markerSequence").item(0)
+                    .appendChild(adobe);
+            final NodeList components = tree
+                    .getElementsByTagName("componentSpec");
+            for (int i = 0; i < components.getLength(); i++) {
+                ((IIOMetadataNode) components.item(i)).setAttribute(
+                        "HsamplingFactor", "1");
+                ((IIOMetadataNode) components.item(i)).setAttribute(
+                        "VsamplingFactor", "1");
+            }
+            metadata.setFromTree(format, tree);
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            final ImageOutputStream out = ImageIO
+                    .createImageOutputStream(bytes);
+            try {
+                writer.setOutput(out);
+                writer.write(new IIOImage(image, null, metadata));
+            } finally {
+                out.close();
+            }
+            return bytes.toByteArray();
+        } finally {
+            writer.dispose();
+        }
+    }
+
+    /**
+     * Encodes a full size red tile.
+     */
+    private static byte[] createTile(final JpegTileEncoder encoder)
+            throws IOException {
+        final BufferedImage tile = new BufferedImage(TILE_SIZE, TILE_SIZE,
+                BufferedImage.TYPE_3BYTE_BGR);
+        for (int y = 0; y < TILE_SIZE; y++) {
+            for (int x = 0; x < TILE_SIZE; x++) {
+                tile.setRGB(x, y, 0xff0000);
+            }
+        }
+        return encoder.encode(tile);
+    }
+
+    /**
+     * Writes a JPEG stream as the first tile of a 4:2:0 file, the rest of
+     * the tiles as images, and returns the stream stored for the first tile.
+     */
+    private byte[] writeFirstTile(final byte[] data) throws Exception {
+        final PyramidTiffTileWriter writer = new PyramidTiffTileWriter(
+                file.getPath(), WIDTH, HEIGHT, TILE_SIZE, config,
+                new JpegTileEncoder());
+        writer.writeEncoded(data, 0, 0, 0);
+        for (int l = 0; l < config.getNumberOfZoomLevels(); l++) {
+            for (int r = 0; r < config.getNumberOfRows(l); r++) {
+                for (int c = 0; c < config.getNumberOfColumns(l); c++) {
+                    if (l != 0 || r != 0 || c != 0) {
+                        writer.write(new BufferedImage(TILE_SIZE, TILE_SIZE,
+                                BufferedImage.TYPE_3BYTE_BGR), l, r, c);
+                    }
+                }
+            }
+        }
+        writer.close();
+
+        final RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            final byte[] tiff = new byte[(int) in.length()];
+            in.readFully(tiff);
+            final Map<Integer, long[]> main = readDirectory(ByteBuffer.wrap(
+                    tiff).order(ByteOrder.LITTLE_ENDIAN), ByteBuffer.wrap(
+                    tiff).order(ByteOrder.LITTLE_ENDIAN).getInt(4));
+            final long[] subsampling = main.get(Integer.valueOf(530));
+            if (subsampling[0] != 2 || subsampling[1] != 2) {
+                fail("The file isn't 4:2:0.");
+            }
+            final int offset = (int) main.get(Integer.valueOf(324))[0];
+            final byte[] tile = new byte[(int) main.get(Integer.valueOf(325))[0]];
+            System.arraycopy(tiff, offset, tile, 0, tile.length);
+            final BufferedImage image = ImageIO.read(new ByteArrayInputStream(
+                    tile));
+            if (((image.getRGB(10, 10) >> 16) & 0xff) < 200) {
+                fail("The first tile isn't red.");
+            }
+            return tile;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     *
+     * @return the sampling factors of the first component of a baseline
+     *         JPEG stream
+     */
+    private static int getSampling(final byte[] jpeg) {
+        final int sof = indexOf(jpeg, new byte[] { (byte) 0xff, (byte) 0xc0 });
+        return jpeg[sof + 11] & 0xff;
+    }
+
+    private static int indexOf(final byte[] data, final byte[] pattern) {
+        for (int i = 0; i + pattern.length <= data.length; i++) {
+            int j = 0;
+            while (j < pattern.length && data[i + j] == pattern[j]) {
+                j++;
+            }
+            if (j == pattern.length) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void checkLevel(final byte[] data,
+            final Map<Integer, long[]> directory, final int level,
+            final int width, final int height) throws Exception {
+        if (directory.get(Integer.valueOf(256))[0] != width
+                || directory.get(Integer.valueOf(257))[0] != height) {
+            fail("Zoom level " + level + " is "
+                    + directory.get(Integer.valueOf(256))[0] + "x"
+                    + directory.get(Integer.valueOf(257))[0] + ", expected "
+                    + width + "x" + height);
+        }
+        if (directory.get(Integer.valueOf(259))[0] != 7) {
+            fail("Zoom level " + level + " isn't JPEG compressed.");
+        }
+        final long[] offsets = directory.get(Integer.valueOf(324));
+        final long[] counts = directory.get(Integer.valueOf(325));
+        if (offsets.length != config.getNumberOfTiles(level)) {
+            fail("Zoom level " + level + " has " + offsets.length
+                    + " tiles, expected " + config.getNumberOfTiles(level));
+        }
+        for (int i = 0; i < offsets.length; i++) {
+            final BufferedImage tile = ImageIO.read(new ByteArrayInputStream(
+                    data, (int) offsets[i], (int) counts[i]));
+            if (tile.getWidth() != TILE_SIZE || tile.getHeight() != TILE_SIZE) {
+                fail("Tile " + level + "-" + i + " is " + tile.getWidth()
+                        + "x" + tile.getHeight());
+            }
+            final int red = (tile.getRGB(TILE_SIZE - 1, TILE_SIZE - 1) >> 16) & 0xff;
+            if (red < 200) {
+                fail("Tile " + level + "-" + i
+                        + " wasn't padded with its edge pixels.");
+            }
+        }
+    }
+
+    /**
+     * Reads the values of each entry of a TIFF image directory.
+     */
+    private static Map<Integer, long[]> readDirectory(final ByteBuffer tiff,
+            final int offset) {
+        final Map<Integer, long[]> entries = new HashMap<Integer, long[]>();
+        final int count = tiff.getShort(offset) & 0xffff;
+        for (int i = 0; i < count; i++) {
+            final int entry = offset + 2 + i * 12;
+            final int tag = tiff.getShort(entry) & 0xffff;
+            final int type = tiff.getShort(entry + 2);
+            final int n = tiff.getInt(entry + 4);
+            final int size = type == 3 ? 2 : 4;
+            final int values = n * size > 4 ? tiff.getInt(entry + 8)
+                    : entry + 8;
+            final long[] v = new long[n];
+            for (int j = 0; j < n; j++) {
+                v[j] = size == 2 ? tiff.getShort(values + j * 2) & 0xffff
+                        : tiff.getInt(values + j * 4) & 0xffffffffL;
+            }
+            entries.put(Integer.valueOf(tag), v);
+        }
+        return entries;
+    }
+}
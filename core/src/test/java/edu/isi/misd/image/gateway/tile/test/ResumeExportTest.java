@@ -0,0 +1,136 @@
+package edu.isi.misd.image.gateway.tile.test;
+
+import static org.junit.Assert.fail;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.isi.misd.image.gateway.conversion.ImageSource;
+import edu.isi.misd.image.gateway.conversion.tile.AbstractTileDirectoryExport;
+import edu.isi.misd.image.gateway.conversion.tile.JpegTileWriterImplementation;
+import edu.isi.misd.image.gateway.conversion.tile.TileWriter;
+import edu.isi.misd.image.gateway.conversion.tile.ZoomLevelConfiguration;
+import edu.isi.misd.image.gateway.conversion.tile.ZoomLevelConfigurationImplementation;
+import edu.isi.misd.image.gateway.conversion.zoomify.ZoomifyTileDirectoryExport;
+import edu.isi.misd.image.gateway.conversion.zoomify.ZoomifyTileNamingConvention;
+
+public class ResumeExportTest {
+
+    private static final int WIDTH = 1024, HEIGHT = 1536, TILE_SIZE = 256;
+    private static final int FAILED_ROW = 3;
+
+    private File testDir;
+
+    @Before
+    public void setUp() {
+        testDir = new File("test_resume_dir");
+        testDir.mkdir();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        FileUtils.deleteDirectory(testDir);
+    }
+
+    @Test
+    public void testExport_resume() throws Exception {
+        final MemoryImageSource source = new MemoryImageSource(WIDTH, HEIGHT);
+        final ZoomifyTileDirectoryExport failing = new FailingExport(source);
+        failing.setRowsPerTask(1);
+        try {
+            failing.export(testDir.getAbsolutePath());
+            fail("Export didn't stop at the failed tile.");
+        } catch (final IOException e) {
+            // expected
+        }
+        if (new File(testDir, "ImageProperties.xml").exists()) {
+            fail("Stopped export wrote the tile metadata.");
+        }
+        if (!new File(testDir, AbstractTileDirectoryExport.CHECKPOINT_FILENAME)
+                .exists()) {
+            fail("Stopped export didn't leave a checkpoint.");
+        }
+
+        source.reads.clear();
+        final ZoomifyTileDirectoryExport export = new ZoomifyTileDirectoryExport(
+                source);
+        export.setRowsPerTask(1);
+        export.setResume(true);
+        export.export(testDir.getAbsolutePath());
+
+        for (final long[] read : source.reads) {
+            if (read[1] < FAILED_ROW * TILE_SIZE) {
+                fail("Resumed export read row " + read[1] / TILE_SIZE
+                        + " again.");
+            }
+        }
+        final ZoomLevelConfiguration config = new ZoomLevelConfigurationImplementation(
+                WIDTH, HEIGHT, TILE_SIZE, 2.0);
+        final ZoomifyTileNamingConvention convention = new ZoomifyTileNamingConvention();
+        for (int l = 0; l < config.getNumberOfZoomLevels(); l++) {
+            for (int r = 0; r < config.getNumberOfRows(l); r++) {
+                for (int c = 0; c < config.getNumberOfColumns(l); c++) {
+                    final File tile = new File(testDir,
+                            convention.getTileFileName(l, r, c, "jpg", config));
+                    if (!tile.exists()) {
+                        fail("Tile " + tile + " was not written.");
+                    }
+                }
+            }
+        }
+        if (!new File(testDir, "ImageProperties.xml").exists()) {
+            fail("Resumed export didn't write the tile metadata.");
+        }
+        if (new File(testDir, AbstractTileDirectoryExport.CHECKPOINT_FILENAME)
+                .exists()) {
+            fail("Finished export left its checkpoint.");
+        }
+    }
+
+    @Test
+    public void testExport_resumeWithoutCheckpoint() throws Exception {
+        final MemoryImageSource source = new MemoryImageSource(WIDTH, HEIGHT);
+        final ZoomifyTileDirectoryExport export = new ZoomifyTileDirectoryExport(
+                source);
+        export.setResume(true);
+        export.export(testDir.getAbsolutePath());
+        final long tiles = new ZoomLevelConfigurationImplementation(WIDTH,
+                HEIGHT, TILE_SIZE, 2.0).getNumberOfTiles(0);
+        if (source.reads.size() != tiles) {
+            fail(source.reads.size() + " regions were read, expected "
+                    + tiles);
+        }
+    }
+
+    /**
+     * Export whose tile writer fails at the first tile of a row.
+     */
+    private static final class FailingExport extends
+            ZoomifyTileDirectoryExport {
+        private FailingExport(final ImageSource source) {
+            super(source);
+        }
+
+        @Override
+        protected TileWriter getTileWriter(final String destination) {
+            return new JpegTileWriterImplementation(destination,
+                    namingConvention, zoomLevelConfiguration) {
+                @Override
+                public String write(final BufferedImage image,
+                        final int level, final long row, final long column)
+                        throws IOException {
+                    if (level == 0 && row == FAILED_ROW) {
+                        throw new IOException("Disk full.");
+                    }
+                    return super.write(image, level, row, column);
+                }
+            };
+        }
+    }
+}
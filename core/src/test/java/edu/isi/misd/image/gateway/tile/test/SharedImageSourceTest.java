@@ -0,0 +1,95 @@
+package edu.isi.misd.image.gateway.tile.test;
+
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.isi.misd.image.gateway.conversion.ImageSource;
+import edu.isi.misd.image.gateway.conversion.SharedImageSource;
+
+public class SharedImageSourceTest {
+
+    private MemoryImageSource source;
+    private SharedImageSource shared;
+
+    @Before
+    public void setUp() {
+        source = new MemoryImageSource(400, 300);
+        source.addSeries(100, 75);
+        shared = new SharedImageSource(source);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testConstructor_nullArg() {
+        new SharedImageSource(null);
+    }
+
+    @Test
+    public void testRelease() throws Exception {
+        final ImageSource first = shared.retain();
+        final ImageSource second = shared.retain();
+        shared.release();
+        first.close();
+        // closing a handle twice only releases it once
+        first.close();
+        if (source.closeCount != 0) {
+            fail("The image source was closed while a handle was open.");
+        }
+        second.close();
+        if (source.closeCount != 1) {
+            fail("The image source was closed " + source.closeCount
+                    + " times, expected once.");
+        }
+        if (shared.getReferences() != 0) {
+            fail(shared.getReferences() + " references remain.");
+        }
+    }
+
+    @Test
+    public void testGetSharedSource() throws Exception {
+        final ImageSource handle = shared.retain();
+        if (SharedImageSource.getSharedSource(handle) != source) {
+            fail("The handle's shared source was not returned.");
+        }
+        if (SharedImageSource.getSharedSource(source) != null) {
+            fail("A shared source was returned for an image source that "
+                    + "isn't a handle.");
+        }
+        handle.close();
+        if (SharedImageSource.getSharedSource(handle) != null) {
+            fail("A closed handle returned its shared source.");
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testRetain_closed() throws Exception {
+        shared.release();
+        shared.retain();
+    }
+
+    @Test
+    public void testSeriesNumber() throws Exception {
+        final ImageSource first = shared.retain();
+        final ImageSource second = shared.retain();
+        first.setSeriesNumber(1);
+        if (second.getWidth() != 400) {
+            fail("Another handle's width changed to "
+                    + second.getWidth());
+        }
+        if (first.getWidth() != 100 || first.getSeriesNumber() != 1) {
+            fail("The series of the handle was not kept.");
+        }
+        first.close();
+        second.close();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testClosedHandle() throws Exception {
+        final ImageSource handle = shared.retain();
+        handle.close();
+        handle.getWidth();
+    }
+}
@@ -0,0 +1,127 @@
+package edu.isi.misd.image.gateway.tile.test;
+
+import static org.junit.Assert.fail;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import javax.imageio.ImageIO;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.isi.misd.image.gateway.conversion.tile.JpegTileEncoder;
+import edu.isi.misd.image.gateway.conversion.tile.TileArchiveReader;
+import edu.isi.misd.image.gateway.conversion.tile.TileArchiveWriter;
+import edu.isi.misd.image.gateway.conversion.tile.ZoomLevelConfiguration;
+import edu.isi.misd.image.gateway.conversion.tile.ZoomLevelConfigurationImplementation;
+
+public class TileArchiveTest {
+
+    private static final int WIDTH = 600, HEIGHT = 400, TILE_SIZE = 256;
+
+    private ZoomLevelConfiguration config;
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        config = new ZoomLevelConfigurationImplementation(WIDTH, HEIGHT,
+                TILE_SIZE, 2.0);
+        file = File.createTempFile("tiles", ".pack");
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Test
+    public void testWriteAndRead() throws Exception {
+        final TileArchiveWriter writer = new TileArchiveWriter(file.getPath(),
+                WIDTH, HEIGHT, TILE_SIZE, config, new JpegTileEncoder());
+        final byte[][] written = new byte[(int) config.getNumberOfTiles(0)][];
+        for (int r = 0; r < config.getNumberOfRows(0); r++) {
+            for (int c = 0; c < config.getNumberOfColumns(0); c++) {
+                if (r == 1 && c == 2) {
+                    // left out to check that missing tiles read as null
+                    continue;
+                }
+                final BufferedImage tile = new BufferedImage(Math.min(
+                        TILE_SIZE, WIDTH - c * TILE_SIZE), Math.min(TILE_SIZE,
+                        HEIGHT - r * TILE_SIZE), BufferedImage.TYPE_3BYTE_BGR);
+                tile.setRGB(0, 0, 0xff0000);
+                final byte[] data = new JpegTileEncoder().encode(tile);
+                written[(int) (r * config.getNumberOfColumns(0) + c)] = data;
+                writer.writeEncoded(data, 0, r, c);
+            }
+        }
+        final int last = config.getNumberOfZoomLevels() - 1;
+        writer.write(new BufferedImage(75, 50, BufferedImage.TYPE_3BYTE_BGR),
+                last, 0, 0);
+        writer.close();
+
+        final TileArchiveReader reader = new TileArchiveReader(file.getPath());
+        try {
+            if (reader.getWidth() != WIDTH || reader.getHeight() != HEIGHT
+                    || reader.getTileSize() != TILE_SIZE) {
+                fail("Archive describes a " + reader.getWidth() + "x"
+                        + reader.getHeight() + " image with "
+                        + reader.getTileSize() + " pixel tiles.");
+            }
+            if (reader.getNumberOfZoomLevels() != config
+                    .getNumberOfZoomLevels()) {
+                fail("Archive has " + reader.getNumberOfZoomLevels()
+                        + " zoom levels, expected "
+                        + config.getNumberOfZoomLevels());
+            }
+            for (int r = 0; r < reader.getNumberOfRows(0); r++) {
+                for (int c = 0; c < reader.getNumberOfColumns(0); c++) {
+                    final byte[] expected = written[(int) (r
+                            * config.getNumberOfColumns(0) + c)];
+                    final byte[] tile = reader.readTile(0, r, c);
+                    if (expected == null ? tile != null : !Arrays.equals(
+                            expected, tile)) {
+                        fail("Tile 0-" + r + "-" + c
+                                + " doesn't match the tile written.");
+                    }
+                }
+            }
+            final BufferedImage thumbnail = ImageIO
+                    .read(new ByteArrayInputStream(reader.readTile(last, 0, 0)));
+            if (thumbnail.getWidth() != 75 || thumbnail.getHeight() != 50) {
+                fail("Tile " + last + "-0-0 is " + thumbnail.getWidth() + "x"
+                        + thumbnail.getHeight());
+            }
+            if (reader.readTile(1, 0, 0) != null) {
+                fail("Tile 1-0-0 was never written.");
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testWrite_outsideLevel() throws Exception {
+        final TileArchiveWriter writer = new TileArchiveWriter(file.getPath(),
+                WIDTH, HEIGHT, TILE_SIZE, config, new JpegTileEncoder());
+        try {
+            writer.writeEncoded(new byte[1], 0, 0,
+                    config.getNumberOfColumns(0));
+        } finally {
+            writer.close();
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testRead_notArchive() throws Exception {
+        final FileOutputStream out = new FileOutputStream(file);
+        out.write(new byte[64]);
+        out.close();
+        new TileArchiveReader(file.getPath());
+    }
+}
@@ -0,0 +1,135 @@
+package edu.isi.misd.image.gateway.tile.test;
+
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.util.Arrays;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.isi.misd.image.gateway.conversion.tile.TileCache;
+
+public class TileCacheTest {
+
+    private File testDir;
+
+    @Before
+    public void setUp() {
+        testDir = new File("test_tile_cache_dir");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        FileUtils.deleteDirectory(testDir);
+    }
+
+    @Test
+    public void testGet_memory() throws Exception {
+        final TileCache cache = new TileCache(250);
+        cache.put("a.jpg", new byte[100]);
+        cache.put("b.jpg", new byte[100]);
+        // makes b the least recently used
+        cache.get("a.jpg");
+        cache.put("c.jpg", new byte[100]);
+
+        if (cache.get("a.jpg") == null || cache.get("c.jpg") == null) {
+            fail("Recently used tiles were evicted.");
+        }
+        if (cache.get("b.jpg") != null) {
+            fail("The least recently used tile was not evicted.");
+        }
+        if (cache.getMemoryBytes() != 200) {
+            fail("Cache holds " + cache.getMemoryBytes()
+                    + " bytes, expected 200");
+        }
+        if (cache.getHits() != 3 || cache.getMisses() != 1) {
+            fail("Cache counted " + cache.getHits() + " hits and "
+                    + cache.getMisses() + " misses, expected 3 and 1");
+        }
+    }
+
+    @Test
+    public void testGet_disk() throws Exception {
+        final byte[] data = new byte[100];
+        Arrays.fill(data, (byte) 7);
+        new TileCache(0, testDir, 1000).put("TileGroup0/0-0-0.jpg", data);
+
+        if (!new File(testDir, "TileGroup0/0-0-0.jpg").isFile()) {
+            fail("Tile was not written to the cache directory.");
+        }
+        final TileCache cache = new TileCache(1000, testDir, 1000);
+        if (!Arrays.equals(data, cache.get("TileGroup0/0-0-0.jpg"))) {
+            fail("Tile was not read from the cache directory.");
+        }
+        if (cache.getDiskBytes() != 100) {
+            fail("Cache directory holds " + cache.getDiskBytes()
+                    + " bytes, expected 100");
+        }
+    }
+
+    @Test
+    public void testPut_diskEviction() throws Exception {
+        final TileCache cache = new TileCache(0, testDir, 250);
+        cache.put("TileGroup0/0-0-0.jpg", new byte[100]);
+        cache.put("TileGroup0/1-0-0.jpg", new byte[100]);
+        cache.put("TileGroup0/1-1-0.jpg", new byte[100]);
+
+        if (new File(testDir, "TileGroup0/0-0-0.jpg").exists()) {
+            fail("The least recently used tile was not deleted.");
+        }
+        if (cache.get("TileGroup0/1-1-0.jpg") == null) {
+            fail("The last tile was not kept.");
+        }
+        if (cache.getDiskBytes() != 200) {
+            fail("Cache directory holds " + cache.getDiskBytes()
+                    + " bytes, expected 200");
+        }
+    }
+
+    @Test
+    public void testTileCache_existingTiles() throws Exception {
+        final TileCache first = new TileCache(0, testDir, 1000);
+        first.put("TileGroup0/0-0-0.jpg", new byte[100]);
+        first.put("TileGroup0/1-0-0.jpg", new byte[100]);
+        first.put("TileGroup0/1-1-0.jpg", new byte[100]);
+        new File(testDir, "TileGroup0/0-0-0.jpg").setLastModified(
+                System.currentTimeMillis() - 60000);
+
+        // the tiles left in the directory count before any are read
+        final TileCache cache = new TileCache(0, testDir, 250);
+        if (cache.getDiskBytes() != 200) {
+            fail("Cache directory holds " + cache.getDiskBytes()
+                    + " bytes, expected 200");
+        }
+        if (new File(testDir, "TileGroup0/0-0-0.jpg").exists()) {
+            fail("The oldest tile was not deleted.");
+        }
+    }
+
+    @Test
+    public void testGet_deletedTile() throws Exception {
+        final TileCache cache = new TileCache(0, testDir, 1000);
+        cache.put("TileGroup0/0-0-0.jpg", new byte[100]);
+        new File(testDir, "TileGroup0/0-0-0.jpg").delete();
+        if (cache.get("TileGroup0/0-0-0.jpg") != null) {
+            fail("A deleted tile was found.");
+        }
+        if (cache.getMisses() != 1) {
+            fail("Cache counted " + cache.getMisses()
+                    + " misses, expected 1");
+        }
+    }
+
+    @Test
+    public void testTileCache_negativeSize() {
+        try {
+            new TileCache(-1);
+            fail("Created a cache with a negative size.");
+        } catch (final IllegalArgumentException e) {
+            // expected
+        }
+    }
+}
@@ -66,6 +66,73 @@ public class TileUtilsTest {
         }
     }
 
+    @Test(expected = IllegalArgumentException.class)
+    public void testComposeImageMatrix_null1stArg() throws Exception {
+        TileUtils.composeImageMatrix(null);
+    }
+
+    @Test
+    public void testComposeImageMatrix() throws Exception {
+        final int[] types = { BufferedImage.TYPE_3BYTE_BGR,
+                BufferedImage.TYPE_INT_RGB, BufferedImage.TYPE_BYTE_GRAY };
+        for (final int type : types) {
+            final List<List<BufferedImage>> imagesToAdd = new ArrayList<List<BufferedImage>>();
+            final int[][] sizes = { { 30, 20 }, { 17, 20 }, { 30, 9 },
+                    { 17, 9 } };
+            for (int r = 0; r < 2; r++) {
+                final List<BufferedImage> row = new ArrayList<BufferedImage>();
+                for (int c = 0; c < 2; c++) {
+                    final int[] size = sizes[r * 2 + c];
+                    final BufferedImage image = new BufferedImage(size[0],
+                            size[1], type);
+                    for (int y = 0; y < size[1]; y++) {
+                        for (int x = 0; x < size[0]; x++) {
+                            image.setRGB(x, y, (x * 7919 + y * 104729 + r
+                                    * 31 + c * 17) & 0xffffff);
+                        }
+                    }
+                    row.add(image);
+                }
+                imagesToAdd.add(row);
+            }
+            final BufferedImage glued = TileUtils.glueImageMatrix(imagesToAdd)
+                    .getImage();
+            final BufferedImage composed = TileUtils
+                    .composeImageMatrix(imagesToAdd);
+            if (composed.getType() != type
+                    || composed.getWidth() != glued.getWidth()
+                    || composed.getHeight() != glued.getHeight()) {
+                fail("composed image of type " + composed.getType() + " is "
+                        + composed.getWidth() + "x" + composed.getHeight()
+                        + ", expected type " + type + " of "
+                        + glued.getWidth() + "x" + glued.getHeight());
+            }
+            for (int y = 0; y < glued.getHeight(); y++) {
+                for (int x = 0; x < glued.getWidth(); x++) {
+                    if (composed.getRGB(x, y) != glued.getRGB(x, y)) {
+                        fail("composed image of type " + type
+                                + " differs from the glued image at " + x
+                                + "x" + y);
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testCropImage() throws Exception {
+        final BufferedImage image = ImageIO.read(new File(testFile));
+        final BufferedImage region = TileUtils.cropImage(image, 10, 5, 40, 30);
+        for (int y = 0; y < 30; y++) {
+            for (int x = 0; x < 40; x++) {
+                if (region.getRGB(x, y) != image.getRGB(x + 10, y + 5)) {
+                    fail("cropped image differs from the image at " + x + "x"
+                            + y);
+                }
+            }
+        }
+    }
+
     /*
      * @Test public void testCreateLowerZoomLevelTile() throws Exception { final
      * BufferedImage orig = ImageIO.read(new File(testFile)); final
@@ -0,0 +1,211 @@
+package edu.isi.misd.image.gateway.tile.test;
+
+import static org.junit.Assert.fail;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+import javax.imageio.ImageIO;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.isi.misd.image.gateway.conversion.tile.JpegTileEncoder;
+import edu.isi.misd.image.gateway.conversion.tile.TileCache;
+import edu.isi.misd.image.gateway.conversion.tile.ZoomLevelConfiguration;
+import edu.isi.misd.image.gateway.conversion.zoomify.ZoomifyTileDirectoryExport;
+import edu.isi.misd.image.gateway.conversion.zoomify.ZoomifyTileNamingConvention;
+import edu.isi.misd.image.gateway.conversion.zoomify.ZoomifyTileRenderer;
+import edu.isi.misd.image.gateway.conversion.zoomify.ZoomifyTileServer;
+
+public class ZoomifyTileServerTest {
+
+    private static final int WIDTH = 2400, HEIGHT = 1600;
+
+    private File testDir;
+
+    @Before
+    public void setUp() {
+        testDir = new File("test_tile_server_dir");
+        testDir.mkdir();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        FileUtils.deleteDirectory(testDir);
+    }
+
+    @Test
+    public void testGetTile_sameAsExport() throws Exception {
+        final MemoryImageSource source = new MemoryImageSource(WIDTH, HEIGHT);
+        new ZoomifyTileDirectoryExport(source).export(testDir
+                .getAbsolutePath());
+        final ZoomifyTileRenderer renderer = new ZoomifyTileRenderer(source,
+                new TileCache(16 * 1024 * 1024), new JpegTileEncoder());
+        final ZoomLevelConfiguration config = renderer
+                .getZoomLevelConfiguration();
+        final ZoomifyTileNamingConvention convention = new ZoomifyTileNamingConvention();
+
+        // every tile, including the ones made from higher zoom levels
+        for (int l = 0; l < config.getNumberOfZoomLevels(); l++) {
+            for (int r = 0; r < config.getNumberOfRows(l); r++) {
+                for (int c = 0; c < config.getNumberOfColumns(l); c++) {
+                    final String name = convention.getTileFileName(l, r, c,
+                            "jpg", config);
+                    final BufferedImage exported = ImageIO.read(new File(
+                            testDir, name));
+                    final BufferedImage tile = ImageIO
+                            .read(new ByteArrayInputStream(renderer
+                                    .getTile(name)));
+                    if (tile.getWidth() != exported.getWidth()
+                            || tile.getHeight() != exported.getHeight()) {
+                        fail("Tile " + name + " is " + tile.getWidth() + "x"
+                                + tile.getHeight() + ", expected "
+                                + exported.getWidth() + "x"
+                                + exported.getHeight());
+                    }
+                }
+            }
+        }
+
+        final String xml = FileUtils.readFileToString(new File(testDir,
+                "ImageProperties.xml"));
+        if (!xml.equals(renderer.getImageProperties())) {
+            fail("Image properties " + renderer.getImageProperties()
+                    + " are not the exported ones " + xml);
+        }
+    }
+
+    @Test
+    public void testGetTile_cached() throws Exception {
+        final MemoryImageSource source = new MemoryImageSource(WIDTH, HEIGHT);
+        final ZoomifyTileRenderer renderer = new ZoomifyTileRenderer(source,
+                new TileCache(16 * 1024 * 1024), new JpegTileEncoder());
+
+        final byte[] tile = renderer.getTile("TileGroup0/0-0-0.jpg");
+        final int reads = source.reads.size();
+        if (reads == 0) {
+            fail("The smallest tile was not read from the source.");
+        }
+        if (renderer.getTile("TileGroup0/0-0-0.jpg") != tile
+                || source.reads.size() != reads) {
+            fail("The smallest tile was created again.");
+        }
+        // the tiles the smallest tile was made from are cached as well
+        renderer.getTile(2, 0, 0);
+        if (source.reads.size() != reads) {
+            fail("A cached tile was read from the source again.");
+        }
+    }
+
+    @Test
+    public void testGetTile_embeddedSeries() throws Exception {
+        final MemoryImageSource source = new MemoryImageSource(WIDTH, HEIGHT);
+        source.addSeries(WIDTH / 4, HEIGHT / 4);
+        source.addSeries(WIDTH / 16, HEIGHT / 16);
+        final ZoomifyTileDirectoryExport export = new ZoomifyTileDirectoryExport(
+                source);
+        export.setEmbeddedPyramid(true);
+        export.export(testDir.getAbsolutePath());
+        final ZoomifyTileRenderer renderer = new ZoomifyTileRenderer(source,
+                new TileCache(16 * 1024 * 1024), new JpegTileEncoder());
+        source.reads.clear();
+
+        // the smallest tile is read from the smallest series alone
+        final BufferedImage smallest = ImageIO.read(new ByteArrayInputStream(
+                renderer.getTile("TileGroup0/0-0-0.jpg")));
+        if (source.reads.size() != 1 || source.reads.get(0)[4] != 2) {
+            fail("The smallest tile took " + source.reads.size()
+                    + " reads, expected 1 of series 2");
+        }
+        if (source.getSeriesNumber() != 0) {
+            fail("Source was left at series " + source.getSeriesNumber());
+        }
+        final BufferedImage exported = ImageIO.read(new File(testDir,
+                "TileGroup0/0-0-0.jpg"));
+        if (smallest.getWidth() != exported.getWidth()
+                || smallest.getHeight() != exported.getHeight()) {
+            fail("Smallest tile is " + smallest.getWidth() + "x"
+                    + smallest.getHeight() + ", expected "
+                    + exported.getWidth() + "x" + exported.getHeight());
+        }
+
+        // a zoom level between two series is read from the larger one
+        renderer.getTile(3, 0, 1);
+        final long[] read = source.reads.get(source.reads.size() - 1);
+        if (source.reads.size() != 2 || read[4] != 1) {
+            fail("Tile 3-0-1 was not read from series 1 alone.");
+        }
+    }
+
+    @Test
+    public void testGetTile_notATile() throws Exception {
+        final ZoomifyTileRenderer renderer = new ZoomifyTileRenderer(
+                new MemoryImageSource(WIDTH, HEIGHT), new TileCache(0),
+                new JpegTileEncoder());
+        final String[] names = { "TileGroup0/5-0-0.jpg",
+                "TileGroup0/0-1-0.jpg", "TileGroup1/0-0-0.jpg",
+                "TileGroup0/0-0-0.png", "../0-0-0.jpg", "" };
+        for (final String name : names) {
+            if (renderer.getTile(name) != null) {
+                fail("Created a tile for " + name);
+            }
+        }
+    }
+
+    @Test
+    public void testStart() throws Exception {
+        final ZoomifyTileServer server = new ZoomifyTileServer(
+                new MemoryImageSource(WIDTH, HEIGHT));
+        server.setPort(0);
+        server.setCacheDirectory(testDir);
+        server.start();
+        try {
+            // the server only listens on the loopback interface by default
+            final String root = "http://127.0.0.1:" + server.getPort() + "/";
+            final HttpURLConnection properties = (HttpURLConnection) new URL(
+                    root + "ImageProperties.xml").openConnection();
+            final String xml = read(properties);
+            if (xml.indexOf("WIDTH=\"2400\"") < 0) {
+                fail("Unexpected image properties " + xml);
+            }
+
+            final HttpURLConnection tile = (HttpURLConnection) new URL(root
+                    + "TileGroup0/4-9-6.jpg").openConnection();
+            final BufferedImage image = ImageIO.read(tile.getInputStream());
+            if (!"image/jpeg".equals(tile.getContentType()) || image == null
+                    || image.getWidth() != 96 || image.getHeight() != 64) {
+                fail("Full resolution tile was not served.");
+            }
+            if (!new File(testDir, "TileGroup0/4-9-6.jpg").isFile()) {
+                fail("Tile was not kept in the cache directory.");
+            }
+
+            final HttpURLConnection missing = (HttpURLConnection) new URL(
+                    root + "TileGroup0/4-10-0.jpg").openConnection();
+            if (missing.getResponseCode() != 404) {
+                fail("Tile outside the image returned "
+                        + missing.getResponseCode());
+            }
+        } finally {
+            server.stop();
+        }
+    }
+
+    private static String read(final HttpURLConnection connection)
+            throws Exception {
+        final InputStream in = connection.getInputStream();
+        try {
+            return IOUtils.toString(in);
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2011 University of Southern California
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.isi.misd.image.gateway.jfr;
+
+import edu.isi.misd.image.gateway.conversion.ConversionEventListener;
+
+/**
+ * Conversion event listener that commits each event to Java Flight Recorder.
+ * It is found through META-INF/services when its jar is on the class path.
+ * Events whose types aren't enabled in the running recordings, or when
+ * nothing is recording, are dropped without setting their fields.
+ * 
+ * @author David Smith
+ * 
+ */
+public class FlightRecorderEventListener implements ConversionEventListener {
+
+    @Override
+    public void slideOpened(final String filename, final String format,
+            final int series, final long parseNanos) {
+        final SlideOpenedEvent event = new SlideOpenedEvent();
+        if (event.isEnabled()) {
+            event.filename = filename;
+            event.format = format;
+            event.series = series;
+            event.parseTime = parseNanos;
+            event.commit();
+        }
+    }
+
+    @Override
+    public void regionRead(final String filename, final long x, final long y,
+            final long width, final long height, final long bytes,
+            final long nanos) {
+        final RegionReadEvent event = new RegionReadEvent();
+        if (event.isEnabled()) {
+            event.filename = filename;
+            event.x = x;
+            event.y = y;
+            event.width = width;
+            event.height = height;
+            event.bytes = bytes;
+            event.readTime = nanos;
+            event.commit();
+        }
+    }
+
+    @Override
+    public void tileEncoded(final int level, final long row,
+            final long column, final long bytes, final long nanos) {
+        final TileEncodedEvent event = new TileEncodedEvent();
+        if (event.isEnabled()) {
+            event.level = level;
+            event.row = row;
+            event.column = column;
+            event.bytes = bytes;
+            event.encodeTime = nanos;
+            event.commit();
+        }
+    }
+
+    @Override
+    public void tileWritten(final int level, final long row,
+            final long column, final long bytes, final long nanos) {
+        final TileWrittenEvent event = new TileWrittenEvent();
+        if (event.isEnabled()) {
+            event.level = level;
+            event.row = row;
+            event.column = column;
+            event.bytes = bytes;
+            event.writeTime = nanos;
+            event.commit();
+        }
+    }
+
+    @Override
+    public void levelCompleted(final int level, final long tiles,
+            final long nanos) {
+        final LevelCompletedEvent event = new LevelCompletedEvent();
+        if (event.isEnabled()) {
+            event.level = level;
+            event.tiles = tiles;
+            event.exportTime = nanos;
+            event.commit();
+        }
+    }
+}
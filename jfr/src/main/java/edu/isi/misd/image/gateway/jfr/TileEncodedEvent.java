@@ -0,0 +1,56 @@
+/*
+ * Copyright 2011 University of Southern California
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.isi.misd.image.gateway.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * Flight Recorder event for a tile being encoded.
+ * 
+ * @author David Smith
+ * 
+ */
+@Name("edu.isi.misd.image.gateway.TileEncoded")
+@Label("Tile Encoded")
+@Category("BigTiler")
+@Description("A tile was encoded")
+@StackTrace(false)
+class TileEncodedEvent extends jdk.jfr.Event {
+
+    @Label("Zoom Level")
+    int level;
+
+    @Label("Row")
+    long row;
+
+    @Label("Column")
+    long column;
+
+    @Label("Bytes")
+    @DataAmount
+    long bytes;
+
+    @Label("Encode Time")
+    @Timespan(Timespan.NANOSECONDS)
+    long encodeTime;
+}